@@ -36,6 +36,13 @@ public class ConsumerConfig extends TubeClientConfig {
      *  1: Start from the latest consume position.
     */
     private int consumeModel = 0;
+    /* consumeStartTimeMs
+     *    If not negative, the consumer starts from the first message received by the broker
+     *    at or after this time, in milliseconds, when it registers to a partition for the first time.
+     *    It takes precedence over consumeModel, but not over the offsets bound in completeSubscribe.
+     *    Default value is -1.
+    */
+    private long consumeStartTimeMs = -1L;
     private int maxSubInfoReportIntvlTimes =
             TClientConstants.MAX_SUBSCRIBE_REPORT_INTERVAL_TIMES;
     private long msgNotFoundWaitPeriodMs =
@@ -48,6 +55,23 @@ public class ConsumerConfig extends TubeClientConfig {
     private boolean pushIsListenerThrowedRollBack = false;
     private long pushListenerWaitPeriodMs =
             TClientConstants.CFG_DEFAULT_PUSH_LISTENER_WAIT_PERIOD_MS;
+    /* pushPrefetchMaxBytes
+     *    If positive, the push consumer fetches and notifies the listener with separate threads,
+     *    fetched but not yet consumed messages are held up to about this size in bytes,
+     *    a partition is not fetched again until its last batch is consumed.
+     *    Default value is 0, each fetch thread fetches and then notifies the listener.
+    */
+    private long pushPrefetchMaxBytes = 0L;
+    private int pushListenerThreadCnt =
+            TClientConstants.CFG_DEFAULT_CLIENT_PUSH_FETCH_THREAD_CNT;
+    /* pushAsyncFetchMaxCnt
+     *    If positive, the push consumer fetches messages without waiting for the responses,
+     *    and runs each partition's fetch and consume as tasks on the listener threads, at most
+     *    this number of partitions are fetched or consumed at the same time. An AsyncMessageListener
+     *    completes the consumption through its callback without holding a listener thread.
+     *    Default value is 0, it takes precedence over pushPrefetchMaxBytes.
+    */
+    private int pushAsyncFetchMaxCnt = 0;
     private boolean pullRebConfirmTimeoutRollBack = true;
     private long pullRebConfirmWaitPeriodMs =
             TClientConstants.CFG_DEFAULT_PULL_REB_CONFIRM_WAIT_PERIOD_MS;
@@ -88,6 +112,14 @@ public class ConsumerConfig extends TubeClientConfig {
         }
     }
 
+    public long getConsumeStartTimeMs() {
+        return consumeStartTimeMs;
+    }
+
+    public void setConsumeStartTimeMs(long consumeStartTimeMs) {
+        this.consumeStartTimeMs = consumeStartTimeMs < 0 ? -1L : consumeStartTimeMs;
+    }
+
     public long getMsgNotFoundWaitPeriodMs() {
         return msgNotFoundWaitPeriodMs;
     }
@@ -140,6 +172,42 @@ public class ConsumerConfig extends TubeClientConfig {
         this.pushListenerWaitPeriodMs = pushListenerWaitPeriodMs;
     }
 
+    public long getPushPrefetchMaxBytes() {
+        return pushPrefetchMaxBytes;
+    }
+
+    public void setPushPrefetchMaxBytes(long pushPrefetchMaxBytes) {
+        this.pushPrefetchMaxBytes = pushPrefetchMaxBytes < 0 ? 0L : pushPrefetchMaxBytes;
+    }
+
+    public boolean isPushPrefetchEnable() {
+        return pushPrefetchMaxBytes > 0;
+    }
+
+    public int getPushAsyncFetchMaxCnt() {
+        return pushAsyncFetchMaxCnt;
+    }
+
+    public void setPushAsyncFetchMaxCnt(int pushAsyncFetchMaxCnt) {
+        this.pushAsyncFetchMaxCnt = pushAsyncFetchMaxCnt < 0 ? 0 : pushAsyncFetchMaxCnt;
+    }
+
+    public boolean isPushAsyncFetchEnable() {
+        return pushAsyncFetchMaxCnt > 0;
+    }
+
+    public int getPushListenerThreadCnt() {
+        return pushListenerThreadCnt;
+    }
+
+    public void setPushListenerThreadCnt(int pushListenerThreadCnt) {
+        if (pushListenerThreadCnt <= 0) {
+            this.pushListenerThreadCnt = TClientConstants.CFG_DEFAULT_CLIENT_PUSH_FETCH_THREAD_CNT;
+        } else {
+            this.pushListenerThreadCnt = pushListenerThreadCnt;
+        }
+    }
+
     public boolean isPullRebConfirmTimeoutRollBack() {
         return pullRebConfirmTimeoutRollBack;
     }
@@ -205,12 +273,16 @@ public class ConsumerConfig extends TubeClientConfig {
                 .append("\"consumerGroup\":\"").append(this.consumerGroup)
                 .append("\",\"maxSubInfoReportIntvlTimes\":").append(this.maxSubInfoReportIntvlTimes)
                 .append(",\"consumeModel\":").append(this.consumeModel)
+                .append(",\"consumeStartTimeMs\":").append(this.consumeStartTimeMs)
                 .append(",\"msgNotFoundWaitPeriodMs\":").append(this.msgNotFoundWaitPeriodMs)
                 .append(",\"shutDownRebalanceWaitPeriodMs\":").append(this.shutDownRebalanceWaitPeriodMs)
                 .append(",\"pushFetchThreadCnt\":").append(this.pushFetchThreadCnt)
                 .append(",\"pushIsListenerWaitTimeoutRollBack\":").append(this.pushIsListenerWaitTimeoutRollBack)
                 .append(",\"pushIsListenerThrowedRollBack\":").append(this.pushIsListenerThrowedRollBack)
                 .append(",\"pushListenerWaitPeriodMs\":").append(this.pushListenerWaitPeriodMs)
+                .append(",\"pushPrefetchMaxBytes\":").append(this.pushPrefetchMaxBytes)
+                .append(",\"pushListenerThreadCnt\":").append(this.pushListenerThreadCnt)
+                .append(",\"pushAsyncFetchMaxCnt\":").append(this.pushAsyncFetchMaxCnt)
                 .append(",\"pullIsRebConfirmWaitTimeoutRollBack\":").append(this.pullRebConfirmTimeoutRollBack)
                 .append(",\"pullConfirmWaitPeriodMs\":").append(this.pullRebConfirmWaitPeriodMs)
                 .append(",\"pullProtectConfirmTimeoutPeriodMs\":").append(this.pullProtectConfirmTimeoutMs)
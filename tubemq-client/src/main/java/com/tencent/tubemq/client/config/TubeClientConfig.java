@@ -91,6 +91,8 @@ public class TubeClientConfig {
     private String usrPassWord = "";
     // TLS configuration.
     private TLSConfig tlsConfig = new TLSConfig();
+    // Send message attributes in binary format, the consumers must be able to decode it.
+    private boolean enableBinaryAttribute = false;
 
 
     public TubeClientConfig(final String localHostIP, final String masterAddrInfo) throws Exception {
@@ -447,6 +449,14 @@ public class TubeClientConfig {
         return usrPassWord;
     }
 
+    public boolean isEnableBinaryAttribute() {
+        return enableBinaryAttribute;
+    }
+
+    public void setEnableBinaryAttribute(boolean enableBinaryAttribute) {
+        this.enableBinaryAttribute = enableBinaryAttribute;
+    }
+
     @Override
     public boolean equals(Object o) {
         // #lizard forgives
@@ -536,6 +546,9 @@ public class TubeClientConfig {
         if (!usrPassWord.equals(that.usrPassWord)) {
             return false;
         }
+        if (enableBinaryAttribute != that.enableBinaryAttribute) {
+            return false;
+        }
         if (this.tlsConfig.equals(that.tlsConfig)) {
             return false;
         }
@@ -578,7 +591,8 @@ public class TubeClientConfig {
             .append(",\"enableUserAuthentic\":").append(this.enableUserAuthentic)
             .append(",\"usrName\":\"").append(this.usrName)
             .append("\",\"usrPassWord\":\"").append(this.usrPassWord)
-            .append("\",").append(this.tlsConfig.toString())
+            .append("\",\"enableBinaryAttribute\":").append(this.enableBinaryAttribute)
+            .append(",").append(this.tlsConfig.toString())
             .append("}").toString();
     }
 }
@@ -0,0 +1,39 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.client.consumer;
+
+import com.tencent.tubemq.corebase.Message;
+import java.util.List;
+
+/**
+ * Message listener that completes the consumption asynchronously, used by the push consumer
+ * when ConsumerConfig.pushAsyncFetchMaxCnt is positive. The partition of the messages is not
+ * fetched again until the callback is called, so the messages of a partition are still
+ * delivered in order. In other modes receiveMessages(messages) is called instead.
+ */
+public interface AsyncMessageListener extends MessageListener {
+
+    void receiveMessages(final List<Message> messages, final ConsumeCallback callback);
+
+    interface ConsumeCallback {
+
+        void onConsumed();
+
+        void onFailed(final Throwable e);
+    }
+}
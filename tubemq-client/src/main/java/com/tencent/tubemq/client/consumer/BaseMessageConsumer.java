@@ -43,6 +43,7 @@ import com.tencent.tubemq.corebase.utils.ThreadUtils;
 import com.tencent.tubemq.corerpc.RpcConfig;
 import com.tencent.tubemq.corerpc.RpcConstants;
 import com.tencent.tubemq.corerpc.RpcServiceFactory;
+import com.tencent.tubemq.corerpc.client.Callback;
 import com.tencent.tubemq.corerpc.service.BrokerReadService;
 import com.tencent.tubemq.corerpc.service.MasterService;
 import java.io.IOException;
@@ -57,7 +58,9 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -997,14 +1000,22 @@ public class BaseMessageConsumer implements MessageConsumer {
         if (topicProcessor != null && topicProcessor.getFilterConds() != null) {
             builder.addAllFilterCondStr(topicProcessor.getFilterConds());
         }
+        boolean isOffsetBound = false;
         if (this.isFirst.get()
                 && consumeSubInfo.isRequireBound()
                 && consumeSubInfo.getIsNotAllocated()) {
             Long currOffset = consumeSubInfo.getAssignedPartOffset(partition.getPartitionKey());
             if (currOffset != null && currOffset != -1) {
                 builder.setCurrOffset(currOffset);
+                isOffsetBound = true;
             }
         }
+        if (this.isFirst.get()
+                && !isOffsetBound
+                && consumerConfig.getConsumeStartTimeMs() >= 0) {
+            builder.setStartTimeMs(consumerConfig.getConsumeStartTimeMs());
+            builder.setReadStatus(TBaseConstants.CONSUME_MODEL_READ_NORMAL);
+        }
         ClientBroker.AuthorizedInfo.Builder authInfoBuilder =
                 genBrokerAuthenticInfo(true);
         if (authInfoBuilder != null) {
@@ -1201,15 +1212,12 @@ public class BaseMessageConsumer implements MessageConsumer {
         return readStatus;
     }
 
-    // #lizard forgives
     protected FetchContext fetchMessage(PartitionSelectResult partSelectResult,
                                         final StringBuilder strBuffer) {
         // Fetch task context based on selected partition
         FetchContext taskContext =
                 new FetchContext(partSelectResult);
         Partition partition = taskContext.getPartition();
-        String topic = partition.getTopic();
-        String partitionKey = partition.getPartitionKey();
         // Response from broker
         ClientBroker.GetMessageResponseB2C msgRspB2C = null;
         try {
@@ -1219,14 +1227,90 @@ public class BaseMessageConsumer implements MessageConsumer {
                                     partition, taskContext.isLastConsumed()),
                                     AddressUtils.getLocalAddress(), consumerConfig.isTlsEnable());
         } catch (Throwable ee) {
-            // Process the exception
-            rmtDataCache.errReqRelease(partitionKey, taskContext.getUsedToken(), false);
-            taskContext.setFailProcessResult(400, strBuffer
-                    .append("Get message error, reason is ")
-                    .append(ee.toString()).toString());
-            strBuffer.delete(0, strBuffer.length());
+            processFetchError(taskContext, ee, strBuffer);
             return taskContext;
         }
+        return processFetchResponse(taskContext, msgRspB2C, strBuffer);
+    }
+
+    /**
+     * Fetch messages of the selected partition without waiting for the response, the response
+     * is processed on the executor, then the callback receives the fetch task context.
+     *
+     * @param partSelectResult partition select result
+     * @param executor         executor that processes the response
+     * @param callback         callback of the fetch task context
+     */
+    protected void fetchMessageAsync(PartitionSelectResult partSelectResult,
+                                     final Executor executor,
+                                     final Callback<FetchContext> callback) {
+        final FetchContext taskContext =
+                new FetchContext(partSelectResult);
+        Partition partition = taskContext.getPartition();
+        try {
+            getAsyncBrokerService(partition.getBroker())
+                    .getMessagesC2B(createBrokerGetMessageRequest(
+                            partition, taskContext.isLastConsumed()),
+                            AddressUtils.getLocalAddress(), consumerConfig.isTlsEnable(),
+                            new Callback() {
+                                @Override
+                                public void handleResult(final Object result) {
+                                    runFetchCallback(executor, new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            processFetchResponse(taskContext,
+                                                    (result instanceof ClientBroker.GetMessageResponseB2C)
+                                                            ? (ClientBroker.GetMessageResponseB2C) result : null,
+                                                    new StringBuilder(256));
+                                            callback.handleResult(taskContext);
+                                        }
+                                    });
+                                }
+
+                                @Override
+                                public void handleError(final Throwable error) {
+                                    runFetchCallback(executor, new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            processFetchError(taskContext, error, new StringBuilder(256));
+                                            callback.handleResult(taskContext);
+                                        }
+                                    });
+                                }
+                            });
+        } catch (Throwable ee) {
+            processFetchError(taskContext, ee, new StringBuilder(256));
+            callback.handleResult(taskContext);
+        }
+    }
+
+    private void runFetchCallback(final Executor executor, final Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    private void processFetchError(final FetchContext taskContext,
+                                   final Throwable ee,
+                                   final StringBuilder strBuffer) {
+        // Process the exception
+        rmtDataCache.errReqRelease(taskContext.getPartition().getPartitionKey(),
+                taskContext.getUsedToken(), false);
+        taskContext.setFailProcessResult(400, strBuffer
+                .append("Get message error, reason is ")
+                .append(ee.toString()).toString());
+        strBuffer.delete(0, strBuffer.length());
+    }
+
+    // #lizard forgives
+    private FetchContext processFetchResponse(final FetchContext taskContext,
+                                              final ClientBroker.GetMessageResponseB2C msgRspB2C,
+                                              final StringBuilder strBuffer) {
+        Partition partition = taskContext.getPartition();
+        String topic = partition.getTopic();
+        String partitionKey = partition.getPartitionKey();
         if (msgRspB2C == null) {
             rmtDataCache.errReqRelease(partitionKey, taskContext.getUsedToken(), false);
             taskContext.setFailProcessResult(500, "Get message null");
@@ -1263,7 +1347,7 @@ public class BaseMessageConsumer implements MessageConsumer {
                             continue;
                         }
                         messageList.add(message);
-                        msgSize += message.getData().length;
+                        msgSize += message.getDataLength();
                     }
                     // Set the process result of current stage. Process the result based on the response
                     long dataDltVal = msgRspB2C.hasCurrDataDlt()
@@ -1416,6 +1500,11 @@ public class BaseMessageConsumer implements MessageConsumer {
         return rpcServiceFactory.getService(BrokerReadService.class, brokerInfo, rpcConfig);
     }
 
+    protected BrokerReadService.AsyncService getAsyncBrokerService(BrokerInfo brokerInfo) {
+        return rpcServiceFactory.getService(
+                BrokerReadService.AsyncService.class, brokerInfo, rpcConfig);
+    }
+
     // #lizard forgives
     private class HeartTask2MasterWorker implements Runnable {
         // Heartbeat logic between master and worker
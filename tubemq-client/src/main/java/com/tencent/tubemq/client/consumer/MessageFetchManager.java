@@ -19,15 +19,29 @@ package com.tencent.tubemq.client.consumer;
 
 import com.tencent.tubemq.client.config.ConsumerConfig;
 import com.tencent.tubemq.client.exception.TubeClientException;
+import com.tencent.tubemq.corebase.Message;
 import com.tencent.tubemq.corebase.cluster.Partition;
+import com.tencent.tubemq.corerpc.client.Callback;
 import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Fetch messages with multiple threads.
+ * If prefetch is enabled, fetch workers only fetch messages and put the fetched batches
+ * in a queue bounded by bytes, and listen workers notify the listener and release the
+ * partitions, so the fetches are in flight while the listener processes the fetched batches.
+ * If async fetch is enabled, fetch workers only select partitions and send fetch requests without
+ * waiting for the responses, each partition's response and consumption run as tasks on a shared
+ * listener thread pool, so a few threads drive a large number of partitions.
  */
 public class MessageFetchManager {
 
@@ -43,6 +57,18 @@ public class MessageFetchManager {
     // 1: Started
     private AtomicInteger managerStatus = new AtomicInteger(-1);
     private Thread[] fetchWorkerPool;
+    private Thread[] listenWorkerPool;
+    // fetched batches waiting for the listener
+    private final LinkedBlockingQueue<FetchContext> prefetchQueue =
+            new LinkedBlockingQueue<FetchContext>();
+    // message bytes of the fetched batches waiting for the listener
+    private final AtomicLong prefetchBytes = new AtomicLong(0);
+    private final Object prefetchSync = new Object();
+    // listener thread pool of async fetch
+    private ThreadPoolExecutor listenExecutor;
+    // permits of partitions being fetched or consumed in async fetch
+    private Semaphore asyncFetchPermits;
+    private final AtomicInteger asyncFetchCnt = new AtomicInteger(0);
 
 
     public MessageFetchManager(final ConsumerConfig consumerConfig,
@@ -73,14 +99,60 @@ public class MessageFetchManager {
                 .append("Prepare to start Fetch Worker Pool, total count:")
                 .append(fetchWorkerPool.length).toString());
         sBuilder.delete(0, sBuilder.length());
+        if (this.consumerConfig.isPushAsyncFetchEnable()) {
+            final String groupName = this.consumerConfig.getConsumerGroup();
+            this.asyncFetchPermits =
+                    new Semaphore(this.consumerConfig.getPushAsyncFetchMaxCnt());
+            this.listenExecutor =
+                    new ThreadPoolExecutor(this.consumerConfig.getPushListenerThreadCnt(),
+                            this.consumerConfig.getPushListenerThreadCnt(), 0L, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                                private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, new StringBuilder(256)
+                                            .append("Listen_Worker_").append(groupName).append("-")
+                                            .append(threadIndex.getAndIncrement()).toString());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+            logger.info(sBuilder.append("Async fetch enabled, listen thread count:")
+                    .append(this.consumerConfig.getPushListenerThreadCnt())
+                    .append(", max async fetch count:")
+                    .append(this.consumerConfig.getPushAsyncFetchMaxCnt()).toString());
+            sBuilder.delete(0, sBuilder.length());
+        }
         for (int i = 0; i < this.fetchWorkerPool.length; i++) {
-            this.fetchWorkerPool[i] = new Thread(new FetchTaskWorker());
+            this.fetchWorkerPool[i] = new Thread(this.consumerConfig.isPushAsyncFetchEnable()
+                    ? new AsyncFetchTaskWorker() : new FetchTaskWorker());
             this.fetchWorkerStatusMap.put(this.fetchWorkerPool[i].getId(), -1);
             this.fetchWorkerPool[i].setName(sBuilder.append("Fetch_Worker_")
                     .append(this.consumerConfig.getConsumerGroup())
                     .append("-").append(i).toString());
             sBuilder.delete(0, sBuilder.length());
         }
+        if (!this.consumerConfig.isPushAsyncFetchEnable()
+                && this.consumerConfig.isPushPrefetchEnable()) {
+            this.listenWorkerPool =
+                    new Thread[this.consumerConfig.getPushListenerThreadCnt()];
+            for (int i = 0; i < this.listenWorkerPool.length; i++) {
+                this.listenWorkerPool[i] = new Thread(new ListenTaskWorker());
+                this.fetchWorkerStatusMap.put(this.listenWorkerPool[i].getId(), -1);
+                this.listenWorkerPool[i].setName(sBuilder.append("Listen_Worker_")
+                        .append(this.consumerConfig.getConsumerGroup())
+                        .append("-").append(i).toString());
+                sBuilder.delete(0, sBuilder.length());
+            }
+            for (final Thread thread : this.listenWorkerPool) {
+                thread.start();
+            }
+            logger.info(sBuilder.append("Listen Worker Pool started, total count:")
+                    .append(listenWorkerPool.length).append(", prefetch max bytes:")
+                    .append(this.consumerConfig.getPushPrefetchMaxBytes()).toString());
+            sBuilder.delete(0, sBuilder.length());
+        }
         for (final Thread thread : this.fetchWorkerPool) {
             thread.start();
         }
@@ -121,32 +193,144 @@ public class MessageFetchManager {
             MessageFetchManager.this.pushConsumer.resumeConsume();
         }
         logger.info("[STOP_FetchWorker] Wait all fetch workers exist:");
+        synchronized (prefetchSync) {
+            prefetchSync.notifyAll();
+        }
         if (waitAllFetchRequestHolds(this.consumerConfig.getPushListenerWaitPeriodMs())) {
-            for (final Thread thread : this.fetchWorkerPool) {
-                if (thread != null) {
-                    thread.interrupt();
-                }
-            }
-            for (final Thread thread : this.fetchWorkerPool) {
-                if (thread != null) {
-                    thread.join();
-                    logger.info(sBuilder.append("[STOP_FetchWorker]").append(thread).toString());
-                    sBuilder.delete(0, sBuilder.length());
-                }
+            stopWorkers(this.fetchWorkerPool, sBuilder);
+            if (this.listenWorkerPool != null) {
+                stopWorkers(this.listenWorkerPool, sBuilder);
             }
         }
+        releasePrefetchedBatches();
+        if (this.listenExecutor != null) {
+            this.listenExecutor.shutdown();
+        }
         this.pushConsumer
                 .getBaseConsumer().notifyAllMessageListenerStopped();
         Thread.sleep(200);
         logger.info("[STOP_FetchWorker] All fetch workers are stopped.");
     }
 
+    private void stopWorkers(final Thread[] workerPool,
+                             final StringBuilder sBuilder) throws InterruptedException {
+        for (final Thread thread : workerPool) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        for (final Thread thread : workerPool) {
+            if (thread != null) {
+                thread.join();
+                logger.info(sBuilder.append("[STOP_FetchWorker]").append(thread).toString());
+                sBuilder.delete(0, sBuilder.length());
+            }
+        }
+    }
+
+    /**
+     * Put a fetched batch in the prefetch queue, an empty batch is released at once.
+     *
+     * @param taskContext fetched batch
+     */
+    private void addPrefetchedBatch(final FetchContext taskContext,
+                                    final long startTime,
+                                    final StringBuilder sBuilder) {
+        if (taskContext.getMessageList() == null
+                || taskContext.getMessageList().isEmpty()) {
+            this.pushConsumer.consumeFetchedMessages(taskContext, startTime, sBuilder);
+            return;
+        }
+        this.prefetchBytes.addAndGet(getBatchBytes(taskContext));
+        this.prefetchQueue.offer(taskContext);
+    }
+
+    /**
+     * Wait until the prefetched bytes are below the max prefetch bytes.
+     */
+    private void waitPrefetchSpace() throws InterruptedException {
+        synchronized (prefetchSync) {
+            while (!isShutdown()
+                    && prefetchBytes.get() >= consumerConfig.getPushPrefetchMaxBytes()) {
+                prefetchSync.wait(100);
+            }
+        }
+    }
+
+    private void releasePrefetchedBatches() {
+        FetchContext taskContext;
+        while ((taskContext = this.prefetchQueue.poll()) != null) {
+            this.prefetchBytes.addAndGet(-getBatchBytes(taskContext));
+            this.pushConsumer.rollbackFetchedMessages(taskContext);
+        }
+    }
+
+    private long getBatchBytes(final FetchContext taskContext) {
+        long batchBytes = 0L;
+        if (taskContext.getMessageList() != null) {
+            for (Message message : taskContext.getMessageList()) {
+                batchBytes += message.getDataLength();
+            }
+        }
+        return batchBytes;
+    }
+
+    /**
+     * Send a fetch request of the selected partition, the response and the consumption run
+     * on the listener thread pool, the async fetch permit is released after the partition is released.
+     *
+     * @param partSelectResult partition select result
+     */
+    private void fetchAsync(final PartitionSelectResult partSelectResult) {
+        final long startTime = System.currentTimeMillis();
+        final Runnable doneTask = new Runnable() {
+            @Override
+            public void run() {
+                asyncFetchCnt.decrementAndGet();
+                asyncFetchPermits.release();
+            }
+        };
+        asyncFetchCnt.incrementAndGet();
+        this.pushConsumer.getBaseConsumer().fetchMessageAsync(partSelectResult,
+                listenExecutor, new Callback<FetchContext>() {
+                    @Override
+                    public void handleResult(FetchContext taskContext) {
+                        if (!taskContext.isSuccess()) {
+                            doneTask.run();
+                            return;
+                        }
+                        if (isShutdown()) {
+                            try {
+                                pushConsumer.rollbackFetchedMessages(taskContext);
+                            } finally {
+                                doneTask.run();
+                            }
+                            return;
+                        }
+                        pushConsumer.consumeFetchedMessagesAsync(taskContext, startTime, doneTask);
+                    }
+
+                    @Override
+                    public void handleError(Throwable error) {
+                        doneTask.run();
+                    }
+                });
+    }
+
+    public int getAsyncFetchCnt() {
+        return this.asyncFetchCnt.get();
+    }
+
+    public long getPrefetchBytes() {
+        return this.prefetchBytes.get();
+    }
+
     private boolean waitAllFetchRequestHolds(long waitTimeInMills) {
         boolean haveProcessingThread = false;
         long startWaitTime = System.currentTimeMillis();
         do {
             haveProcessingThread =
-                    (!this.fetchWorkerStatusMap.isEmpty());
+                    (!this.fetchWorkerStatusMap.isEmpty() || this.asyncFetchCnt.get() > 0);
             if (haveProcessingThread) {
                 try {
                     Thread.sleep(150);
@@ -174,6 +358,12 @@ public class MessageFetchManager {
                     }
                     fetchWorkerStatusMap.put(curThreadId, 1);
                     MessageFetchManager.this.pushConsumer.allowConsumeWait();
+                    if (consumerConfig.isPushPrefetchEnable()) {
+                        waitPrefetchSpace();
+                        if (isShutdown()) {
+                            break;
+                        }
+                    }
                     partSelectResult =
                             MessageFetchManager.this.pushConsumer
                                     .getBaseConsumer().pushSelectPartition();
@@ -216,7 +406,125 @@ public class MessageFetchManager {
                     sBuilder.delete(0, sBuilder.length());
                 }
                 fetchWorkerStatusMap.put(curThreadId, 2);
-                MessageFetchManager.this.pushConsumer.processRequest(partSelectResult, sBuilder);
+                if (consumerConfig.isPushPrefetchEnable()) {
+                    if (partSelectResult == null) {
+                        continue;
+                    }
+                    final long startTime = System.currentTimeMillis();
+                    FetchContext taskContext =
+                            MessageFetchManager.this.pushConsumer.fetchRequest(partSelectResult, sBuilder);
+                    if (taskContext != null) {
+                        addPrefetchedBatch(taskContext, startTime, sBuilder);
+                    }
+                } else {
+                    MessageFetchManager.this.pushConsumer.processRequest(partSelectResult, sBuilder);
+                }
+            }
+            fetchWorkerStatusMap.remove(curThreadId);
+        }
+    }
+
+    private class AsyncFetchTaskWorker implements Runnable {
+        @Override
+        public void run() {
+            StringBuilder sBuilder = new StringBuilder(256);
+            final Long curThreadId = Thread.currentThread().getId();
+            fetchWorkerStatusMap.put(curThreadId, 0);
+            while (!isShutdown()) {
+                PartitionSelectResult partSelectResult = null;
+                boolean isPermitted = false;
+                fetchWorkerStatusMap.put(curThreadId, 0);
+                try {
+                    MessageFetchManager.this.pushConsumer.allowConsumeWait();
+                    if (!asyncFetchPermits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        continue;
+                    }
+                    isPermitted = true;
+                    if (isShutdown()) {
+                        break;
+                    }
+                    fetchWorkerStatusMap.put(curThreadId, 1);
+                    partSelectResult =
+                            MessageFetchManager.this.pushConsumer
+                                    .getBaseConsumer().pushSelectPartition();
+                    if (partSelectResult == null) {
+                        continue;
+                    }
+                    Partition partition = partSelectResult.getPartition();
+                    if (isShutdown() || MessageFetchManager.this.pushConsumer.isConsumePaused()) {
+                        boolean result = partSelectResult.isLastPackConsumed();
+                        if (result && !isShutdown()) {
+                            result =
+                                    MessageFetchManager.this.pushConsumer
+                                            .getBaseConsumer().flushLastRequest(partition);
+                        }
+                        MessageFetchManager.this.pushConsumer
+                                .getBaseConsumer().pushReqReleasePartiton(partition.getPartitionKey(),
+                                partSelectResult.getUsedToken(), result);
+                        partSelectResult = null;
+                        continue;
+                    }
+                    fetchWorkerStatusMap.put(curThreadId, 2);
+                    isPermitted = false;
+                    fetchAsync(partSelectResult);
+                    partSelectResult = null;
+                } catch (InterruptedException e) {
+                    // interrupted by stopFetchWorkers while waiting for a permit
+                    break;
+                } catch (Throwable e) {
+                    if (partSelectResult != null) {
+                        MessageFetchManager.this.pushConsumer
+                                .getBaseConsumer()
+                                .pushReqReleasePartiton(partSelectResult.getPartition().getPartitionKey(),
+                                        partSelectResult.getUsedToken(), false);
+                    }
+                    sBuilder.delete(0, sBuilder.length());
+                    logger.warn(sBuilder.append("Async fetch worker process failure, thread=")
+                            .append(Thread.currentThread().getName()).toString(), e);
+                    sBuilder.delete(0, sBuilder.length());
+                } finally {
+                    if (isPermitted) {
+                        asyncFetchPermits.release();
+                    }
+                }
+            }
+            fetchWorkerStatusMap.remove(curThreadId);
+        }
+    }
+
+    private class ListenTaskWorker implements Runnable {
+        @Override
+        public void run() {
+            StringBuilder sBuilder = new StringBuilder(256);
+            final Long curThreadId = Thread.currentThread().getId();
+            fetchWorkerStatusMap.put(curThreadId, 0);
+            while (!isShutdown()) {
+                FetchContext taskContext = null;
+                fetchWorkerStatusMap.put(curThreadId, 0);
+                try {
+                    taskContext = prefetchQueue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (taskContext == null) {
+                    continue;
+                }
+                fetchWorkerStatusMap.put(curThreadId, 2);
+                final long startTime = System.currentTimeMillis();
+                try {
+                    MessageFetchManager.this.pushConsumer
+                            .consumeFetchedMessages(taskContext, startTime, sBuilder);
+                } catch (Throwable e) {
+                    sBuilder.delete(0, sBuilder.length());
+                    logger.warn(sBuilder.append("Listen worker process failure, partition=")
+                            .append(taskContext.getPartition()).toString(), e);
+                    sBuilder.delete(0, sBuilder.length());
+                } finally {
+                    prefetchBytes.addAndGet(-getBatchBytes(taskContext));
+                    synchronized (prefetchSync) {
+                        prefetchSync.notifyAll();
+                    }
+                }
             }
             fetchWorkerStatusMap.remove(curThreadId);
         }
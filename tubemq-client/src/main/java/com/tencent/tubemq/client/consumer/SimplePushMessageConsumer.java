@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -159,6 +160,22 @@ public class SimplePushMessageConsumer implements PushMessageConsumer {
      */
     protected void processRequest(PartitionSelectResult partSelectResult, final StringBuilder sBuilder) {
         final long startTime = System.currentTimeMillis();
+        FetchContext taskContext = fetchRequest(partSelectResult, sBuilder);
+        if (taskContext == null) {
+            return;
+        }
+        consumeFetchedMessages(taskContext, startTime, sBuilder);
+    }
+
+    /**
+     * Fetch messages of the selected partition, the partition is released if the fetch fails.
+     *
+     * @param partSelectResult partition select result
+     * @param sBuilder         a string builder
+     * @return the fetch task context, or null if the fetch fails
+     */
+    protected FetchContext fetchRequest(PartitionSelectResult partSelectResult,
+                                        final StringBuilder sBuilder) {
         FetchContext taskContext =
                 baseConsumer.fetchMessage(partSelectResult, sBuilder);
         if (!taskContext.isSuccess()) {
@@ -168,8 +185,21 @@ public class SimplePushMessageConsumer implements PushMessageConsumer {
                         .append(taskContext.getErrMsg()).toString());
                 sBuilder.delete(0, sBuilder.length());
             }
-            return;
+            return null;
         }
+        return taskContext;
+    }
+
+    /**
+     * Notify the listener with the fetched messages, then release the partition.
+     *
+     * @param taskContext fetch task context
+     * @param startTime   the time the fetch starts
+     * @param sBuilder    a string builder
+     */
+    protected void consumeFetchedMessages(final FetchContext taskContext,
+                                          final long startTime,
+                                          final StringBuilder sBuilder) {
         boolean isConsumed = false;
         if (!isShutdown()) {
             if (taskContext.getMessageList() == null
@@ -193,23 +223,108 @@ public class SimplePushMessageConsumer implements PushMessageConsumer {
                 }
             }
         }
+        releaseFetchedPartition(taskContext, isConsumed);
+        logLongProcessTime(taskContext, startTime, sBuilder);
+    }
+
+    /**
+     * Notify the listener with the fetched messages, an AsyncMessageListener is notified with
+     * a callback and the partition is released when the callback is called, other listeners
+     * are notified on the current thread. The done task runs after the partition is released.
+     *
+     * @param taskContext fetch task context
+     * @param startTime   the time the fetch starts
+     * @param doneTask    task to run after the partition is released
+     */
+    protected void consumeFetchedMessagesAsync(final FetchContext taskContext,
+                                               final long startTime,
+                                               final Runnable doneTask) {
+        final StringBuilder sBuilder = new StringBuilder(256);
+        final TopicProcessor topicProcessor =
+                baseConsumer.consumeSubInfo.getTopicProcesser(taskContext.getPartition().getTopic());
+        if (isShutdown()
+                || taskContext.getMessageList() == null
+                || taskContext.getMessageList().isEmpty()
+                || topicProcessor == null
+                || !(topicProcessor.getMessageListener() instanceof AsyncMessageListener)) {
+            try {
+                consumeFetchedMessages(taskContext, startTime, sBuilder);
+            } finally {
+                doneTask.run();
+            }
+            return;
+        }
+        final AtomicBoolean isCompleted = new AtomicBoolean(false);
+        final AsyncMessageListener.ConsumeCallback callback = new AsyncMessageListener.ConsumeCallback() {
+            @Override
+            public void onConsumed() {
+                if (isCompleted.compareAndSet(false, true)) {
+                    completeAsyncConsume(taskContext, true, startTime, doneTask);
+                }
+            }
+
+            @Override
+            public void onFailed(final Throwable e) {
+                if (isCompleted.compareAndSet(false, true)) {
+                    logMessageProcessFailed(taskContext, e);
+                    completeAsyncConsume(taskContext,
+                            baseConsumer.consumerConfig.isPushListenerThrowedRollBack(),
+                            startTime, doneTask);
+                }
+            }
+        };
+        try {
+            ((AsyncMessageListener) topicProcessor.getMessageListener())
+                    .receiveMessages(taskContext.getMessageList(), callback);
+        } catch (Throwable e) {
+            callback.onFailed(e);
+        }
+    }
+
+    private void completeAsyncConsume(final FetchContext taskContext,
+                                      final boolean isConsumed,
+                                      final long startTime,
+                                      final Runnable doneTask) {
+        try {
+            releaseFetchedPartition(taskContext, isConsumed);
+            logLongProcessTime(taskContext, startTime, new StringBuilder(256));
+        } finally {
+            doneTask.run();
+        }
+    }
+
+    private void releaseFetchedPartition(final FetchContext taskContext,
+                                         final boolean isConsumed) {
         baseConsumer.rmtDataCache.succRspRelease(taskContext.getPartition().getPartitionKey(),
                 taskContext.getPartition().getTopic(), taskContext.getUsedToken(),
                 isConsumed, isFilterConsume(taskContext.getPartition().getTopic()),
                 taskContext.getCurrOffset());
+    }
 
+    private void logLongProcessTime(final FetchContext taskContext,
+                                    final long startTime,
+                                    final StringBuilder sBuilder) {
         // Warning if the process time is too long
         long cost = System.currentTimeMillis() - startTime;
         if (cost > 30000) {
             logger.info(sBuilder.append("Consuming Partition; current processing thread ")
                     .append(Thread.currentThread().getName())
                     .append("-->Process[")
-                    .append(partSelectResult.getPartition().toString())
+                    .append(taskContext.getPartition().toString())
                     .append("] cost:").append(cost).append(" Ms").toString());
             sBuilder.delete(0, sBuilder.length());
         }
     }
 
+    /**
+     * Release the partition of a fetched but not consumed batch, the batch is fetched again.
+     *
+     * @param taskContext fetch task context
+     */
+    protected void rollbackFetchedMessages(final FetchContext taskContext) {
+        releaseFetchedPartition(taskContext, false);
+    }
+
     private boolean notifyListener(final FetchContext request,
                                    final TopicProcessor topicProcessor,
                                    final StringBuilder sBuilder) throws Exception {
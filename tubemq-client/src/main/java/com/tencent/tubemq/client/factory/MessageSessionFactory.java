@@ -22,6 +22,7 @@ import com.tencent.tubemq.client.consumer.PullMessageConsumer;
 import com.tencent.tubemq.client.consumer.PushMessageConsumer;
 import com.tencent.tubemq.client.exception.TubeClientException;
 import com.tencent.tubemq.client.producer.MessageProducer;
+import com.tencent.tubemq.client.producer.PartitionRouter;
 import com.tencent.tubemq.corebase.Shutdownable;
 
 
@@ -34,6 +35,8 @@ public interface MessageSessionFactory extends Shutdownable {
 
     MessageProducer createProducer() throws TubeClientException;
 
+    MessageProducer createProducer(PartitionRouter partitionRouter) throws TubeClientException;
+
     PushMessageConsumer createPushConsumer(ConsumerConfig consumerConfig)
             throws TubeClientException;
 
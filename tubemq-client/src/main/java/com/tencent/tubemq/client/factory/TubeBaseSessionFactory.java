@@ -25,7 +25,9 @@ import com.tencent.tubemq.client.consumer.SimplePullMessageConsumer;
 import com.tencent.tubemq.client.consumer.SimplePushMessageConsumer;
 import com.tencent.tubemq.client.exception.TubeClientException;
 import com.tencent.tubemq.client.producer.MessageProducer;
+import com.tencent.tubemq.client.producer.PartitionRouter;
 import com.tencent.tubemq.client.producer.ProducerManager;
+import com.tencent.tubemq.client.producer.RoundRobinPartitionRouter;
 import com.tencent.tubemq.client.producer.SimpleMessageProducer;
 import com.tencent.tubemq.client.producer.qltystats.DefaultBrokerRcvQltyStats;
 import com.tencent.tubemq.corebase.Shutdownable;
@@ -131,6 +133,12 @@ public class TubeBaseSessionFactory implements InnerSessionFactory {
 
     @Override
     public MessageProducer createProducer() throws TubeClientException {
+        return createProducer(new RoundRobinPartitionRouter());
+    }
+
+    @Override
+    public MessageProducer createProducer(PartitionRouter partitionRouter)
+            throws TubeClientException {
         this.brokerRcvQltyStats.startBrokerStatistic();
         try {
             this.producerManager.start();
@@ -141,7 +149,7 @@ public class TubeBaseSessionFactory implements InnerSessionFactory {
                 throw new TubeClientException("Create Producer failure, ", e);
             }
         }
-        return this.addClient(new SimpleMessageProducer(this, this.tubeClientConfig));
+        return this.addClient(new SimpleMessageProducer(this, this.tubeClientConfig, partitionRouter));
     }
 
     @Override
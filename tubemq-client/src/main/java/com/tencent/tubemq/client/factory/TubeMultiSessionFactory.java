@@ -24,6 +24,7 @@ import com.tencent.tubemq.client.consumer.PullMessageConsumer;
 import com.tencent.tubemq.client.consumer.PushMessageConsumer;
 import com.tencent.tubemq.client.exception.TubeClientException;
 import com.tencent.tubemq.client.producer.MessageProducer;
+import com.tencent.tubemq.client.producer.PartitionRouter;
 import com.tencent.tubemq.corebase.Shutdownable;
 import com.tencent.tubemq.corerpc.RpcConfig;
 import com.tencent.tubemq.corerpc.netty.NettyClientFactory;
@@ -64,6 +65,12 @@ public class TubeMultiSessionFactory implements MessageSessionFactory {
         return this.baseSessionFactory.createProducer();
     }
 
+    @Override
+    public MessageProducer createProducer(PartitionRouter partitionRouter)
+            throws TubeClientException {
+        return this.baseSessionFactory.createProducer(partitionRouter);
+    }
+
     @Override
     public PushMessageConsumer createPushConsumer(final ConsumerConfig consumerConfig)
             throws TubeClientException {
@@ -24,6 +24,7 @@ import com.tencent.tubemq.client.consumer.PullMessageConsumer;
 import com.tencent.tubemq.client.consumer.PushMessageConsumer;
 import com.tencent.tubemq.client.exception.TubeClientException;
 import com.tencent.tubemq.client.producer.MessageProducer;
+import com.tencent.tubemq.client.producer.PartitionRouter;
 import com.tencent.tubemq.corebase.Shutdownable;
 import com.tencent.tubemq.corerpc.RpcConfig;
 import com.tencent.tubemq.corerpc.netty.NettyClientFactory;
@@ -69,6 +70,12 @@ public class TubeSingleSessionFactory implements MessageSessionFactory {
         return baseSessionFactory.createProducer();
     }
 
+    @Override
+    public MessageProducer createProducer(PartitionRouter partitionRouter)
+            throws TubeClientException {
+        return baseSessionFactory.createProducer(partitionRouter);
+    }
+
     @Override
     public PushMessageConsumer createPushConsumer(ConsumerConfig consumerConfig)
             throws TubeClientException {
@@ -0,0 +1,213 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.client.producer;
+
+import com.tencent.tubemq.client.exception.TubeClientException;
+import com.tencent.tubemq.corebase.Message;
+import com.tencent.tubemq.corebase.cluster.Partition;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Partition router that prefers the brokers answering faster. Two partitions are picked at
+ * random and the one whose broker has the lower cost is used, the cost of a broker is the
+ * moving average of its send latency multiplied by its in-flight request count plus one.
+ * The average follows a latency rise at once and a latency drop gradually; it also decays
+ * while the broker gets no response, so a broker that turned slow is tried again later.
+ *
+ * <p>The producer reports the requests through {@link #onSendStart(int)} and
+ * {@link #onSendComplete(int, long, boolean)}.</p>
+ */
+public class LatencyWeightedPartitionRouter implements PartitionRouter {
+
+    private static final long DEF_DECAY_TIME_MS = 5000L;
+    private static final long DEF_FAILURE_PENALTY_MS = 1000L;
+    // time constant of the moving average
+    private final long decayTimeNs;
+    // latency counted for a failed request
+    private final long failurePenaltyNs;
+    private final ConcurrentHashMap<Integer/* brokerId */, BrokerLatency> brokerLatencyMap =
+            new ConcurrentHashMap<Integer, BrokerLatency>();
+
+    public LatencyWeightedPartitionRouter() {
+        this(DEF_DECAY_TIME_MS, DEF_FAILURE_PENALTY_MS);
+    }
+
+    /**
+     * Create a latency weighted router
+     *
+     * @param decayTimeMs       time constant of the latency moving average
+     * @param failurePenaltyMs  latency counted for a failed request
+     */
+    public LatencyWeightedPartitionRouter(final long decayTimeMs, final long failurePenaltyMs) {
+        this.decayTimeNs = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, decayTimeMs));
+        this.failurePenaltyNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, failurePenaltyMs));
+    }
+
+    @Override
+    public Partition getPartition(final Message message, final List<Partition> partitions) throws TubeClientException {
+        if (partitions == null || partitions.isEmpty()) {
+            throw new TubeClientException(new StringBuilder(512)
+                    .append("No available partition for topic: ")
+                    .append(message.getTopic()).toString());
+        }
+        final int partSize = partitions.size();
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long currentTime = System.currentTimeMillis();
+        final int startIndex = random.nextInt(partSize);
+        int firstIndex = -1;
+        for (int i = 0; i < partSize; i++) {
+            final int index = (startIndex + i) % partSize;
+            final Partition partition = partitions.get(index);
+            if (partition != null && partition.getDelayTimeStamp() < currentTime) {
+                firstIndex = index;
+                break;
+            }
+        }
+        if (firstIndex < 0) {
+            return partitions.get(startIndex);
+        }
+        final Partition firstPart = partitions.get(firstIndex);
+        if (partSize == 1) {
+            return firstPart;
+        }
+        final Partition secondPart =
+                partitions.get((firstIndex + 1 + random.nextInt(partSize - 1)) % partSize);
+        if (secondPart == null
+                || secondPart.getDelayTimeStamp() >= currentTime
+                || secondPart.getBrokerId() == firstPart.getBrokerId()) {
+            return firstPart;
+        }
+        final long nanoTime = getNanoTime();
+        if (getCost(secondPart.getBrokerId(), nanoTime)
+                < getCost(firstPart.getBrokerId(), nanoTime)) {
+            return secondPart;
+        }
+        return firstPart;
+    }
+
+    /**
+     * Record a request sent to the broker
+     *
+     * @param brokerId  broker id
+     */
+    public void onSendStart(final int brokerId) {
+        getOrCreateBrokerLatency(brokerId).inFlightCnt.incrementAndGet();
+    }
+
+    /**
+     * Record the response of a request sent to the broker
+     *
+     * @param brokerId   broker id
+     * @param latencyNs  latency of the request in nanoseconds
+     * @param success    whether the request succeeded
+     */
+    public void onSendComplete(final int brokerId, final long latencyNs, final boolean success) {
+        final BrokerLatency brokerLatency = getOrCreateBrokerLatency(brokerId);
+        brokerLatency.decInFlightCnt();
+        brokerLatency.addSample(success ? latencyNs : Math.max(latencyNs, failurePenaltyNs),
+                getNanoTime(), decayTimeNs);
+    }
+
+    /**
+     * Get the current latency average of the broker
+     *
+     * @param brokerId  broker id
+     * @return the latency average in milliseconds, 0 if the broker has no response yet
+     */
+    public double getBrokerLatencyMs(final int brokerId) {
+        final BrokerLatency brokerLatency = brokerLatencyMap.get(brokerId);
+        if (brokerLatency == null) {
+            return 0;
+        }
+        return brokerLatency.getAvgLatencyNs(getNanoTime(), decayTimeNs) / 1000000d;
+    }
+
+    public int getInFlightCnt(final int brokerId) {
+        final BrokerLatency brokerLatency = brokerLatencyMap.get(brokerId);
+        return brokerLatency == null ? 0 : brokerLatency.inFlightCnt.get();
+    }
+
+    /**
+     * Get the time base of the latency average, the same as the latency reported
+     *
+     * @return current time in nanoseconds
+     */
+    protected long getNanoTime() {
+        return System.nanoTime();
+    }
+
+    private double getCost(final int brokerId, final long nanoTime) {
+        final BrokerLatency brokerLatency = brokerLatencyMap.get(brokerId);
+        if (brokerLatency == null) {
+            return 0;
+        }
+        return (brokerLatency.getAvgLatencyNs(nanoTime, decayTimeNs) + 1)
+                * (brokerLatency.inFlightCnt.get() + 1);
+    }
+
+    private BrokerLatency getOrCreateBrokerLatency(final int brokerId) {
+        BrokerLatency brokerLatency = brokerLatencyMap.get(brokerId);
+        if (brokerLatency == null) {
+            final BrokerLatency newLatency = new BrokerLatency();
+            brokerLatency = brokerLatencyMap.putIfAbsent(brokerId, newLatency);
+            if (brokerLatency == null) {
+                brokerLatency = newLatency;
+            }
+        }
+        return brokerLatency;
+    }
+
+    private static class BrokerLatency {
+        private final AtomicInteger inFlightCnt = new AtomicInteger(0);
+        // latency average in nanoseconds, negative before the first response
+        private double avgLatencyNs = -1;
+        private long lastUpdateTime = 0L;
+
+        public void decInFlightCnt() {
+            int count = inFlightCnt.get();
+            while (count > 0 && !inFlightCnt.compareAndSet(count, count - 1)) {
+                count = inFlightCnt.get();
+            }
+        }
+
+        public synchronized void addSample(final double latencyNs,
+                                           final long nanoTime, final long decayTimeNs) {
+            if (avgLatencyNs < 0 || latencyNs > avgLatencyNs) {
+                avgLatencyNs = latencyNs;
+            } else {
+                // the weight of the old average shrinks with the time since the last sample
+                final double weight =
+                        Math.exp(-(double) Math.max(0L, nanoTime - lastUpdateTime) / decayTimeNs);
+                avgLatencyNs = avgLatencyNs * weight + latencyNs * (1 - weight);
+            }
+            lastUpdateTime = nanoTime;
+        }
+
+        public synchronized double getAvgLatencyNs(final long nanoTime, final long decayTimeNs) {
+            if (avgLatencyNs < 0) {
+                return 0;
+            }
+            return avgLatencyNs
+                    * Math.exp(-(double) Math.max(0L, nanoTime - lastUpdateTime) / decayTimeNs);
+        }
+    }
+}
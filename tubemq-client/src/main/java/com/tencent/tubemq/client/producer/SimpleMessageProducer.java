@@ -61,24 +61,37 @@ public class SimpleMessageProducer implements MessageProducer {
     private final RpcServiceFactory rpcServiceFactory;
     private final ProducerManager producerManager;
     private final PartitionRouter partitionRouter;
+    // set when the router weights the brokers by their send latency
+    private final LatencyWeightedPartitionRouter latencyRouter;
     private final DefaultBrokerRcvQltyStats brokerRcvQltyStats;
     private final RpcConfig rpcConfig = new RpcConfig();
     private AtomicBoolean isShutDown = new AtomicBoolean(false);
 
     public SimpleMessageProducer(final InnerSessionFactory sessionFactory,
                                  TubeClientConfig tubeClientConfig) throws TubeClientException {
+        this(sessionFactory, tubeClientConfig, new RoundRobinPartitionRouter());
+    }
+
+    public SimpleMessageProducer(final InnerSessionFactory sessionFactory,
+                                 TubeClientConfig tubeClientConfig,
+                                 PartitionRouter partitionRouter) throws TubeClientException {
         java.security.Security.setProperty("networkaddress.cache.ttl", "3");
         java.security.Security.setProperty("networkaddress.cache.negative.ttl", "1");
         if (sessionFactory == null || tubeClientConfig == null) {
             throw new TubeClientException(
                 "Illegal parameter: messageSessionFactory or tubeClientConfig is null!");
         }
+        if (partitionRouter == null) {
+            throw new TubeClientException("Illegal parameter: partitionRouter is null!");
+        }
         this.producerConfig = tubeClientConfig;
         this.sessionFactory = sessionFactory;
         this.rpcServiceFactory = this.sessionFactory.getRpcServiceFactory();
         this.producerManager = this.sessionFactory.getProducerManager();
         this.brokerRcvQltyStats = sessionFactory.getBrokerRcvQltyStats();
-        this.partitionRouter = new RoundRobinPartitionRouter();
+        this.partitionRouter = partitionRouter;
+        this.latencyRouter = (partitionRouter instanceof LatencyWeightedPartitionRouter)
+                ? (LatencyWeightedPartitionRouter) partitionRouter : null;
         this.rpcConfig.put(RpcConstants.CONNECT_TIMEOUT, 3000);
         this.rpcConfig.put(RpcConstants.REQUEST_TIMEOUT,
             tubeClientConfig.getRpcTimeoutMs());
@@ -203,25 +216,23 @@ public class SimpleMessageProducer implements MessageProducer {
         checkMessageAndStatus(message);
         Partition partition = this.selectPartition(message, BrokerWriteService.class);
         int brokerId = partition.getBrokerId();
+        final long startTime = System.nanoTime();
         try {
-            this.brokerRcvQltyStats.addSendStatistic(brokerId);
+            this.addSendStatistic(brokerId);
             ClientBroker.SendMessageResponseB2P response =
                     getBrokerService(partition.getBroker()).sendMessageP2B(
                             createSendMessageRequest(partition, message),
                             AddressUtils.getLocalAddress(), producerConfig.isTlsEnable());
             rpcServiceFactory.resetRmtAddrErrCount(partition.getBroker().getBrokerAddr());
-            this.brokerRcvQltyStats.addReceiveStatistic(brokerId, response.getSuccess());
-            if (!response.getSuccess()
-                && response.getErrCode() == TErrCodeConstants.SERVICE_UNAVILABLE) {
-                rpcServiceFactory.addUnavailableBroker(brokerId);
-            }
+            this.addReceiveStatistic(brokerId, response.getSuccess(), startTime);
+            this.checkBrokerOverload(brokerId, response);
             return this.buildMsgSentResult(message, partition, response);
         } catch (final Throwable e) {
             if (e instanceof LocalConnException) {
                 rpcServiceFactory.addRmtAddrErrCount(partition.getBroker().getBrokerAddr());
             }
             partition.increRetries(1);
-            this.brokerRcvQltyStats.addReceiveStatistic(brokerId, false);
+            this.addReceiveStatistic(brokerId, false, startTime);
             throw new TubeClientException("Send message failed", e);
         }
     }
@@ -233,8 +244,9 @@ public class SimpleMessageProducer implements MessageProducer {
         final Partition partition =
                 this.selectPartition(message, BrokerWriteService.AsyncService.class);
         final int brokerId = partition.getBrokerId();
+        final long startTime = System.nanoTime();
         try {
-            this.brokerRcvQltyStats.addSendStatistic(brokerId);
+            this.addSendStatistic(brokerId);
             getAsyncBrokerService(partition.getBroker()).sendMessageP2B(
                     createSendMessageRequest(partition, message),
                     AddressUtils.getLocalAddress(), producerConfig.isTlsEnable(),
@@ -249,19 +261,15 @@ public class SimpleMessageProducer implements MessageProducer {
                             final MessageSentResult rt =
                                     SimpleMessageProducer.this.buildMsgSentResult(message, partition, responseB2P);
                             partition.resetRetries();
-                            brokerRcvQltyStats.addReceiveStatistic(brokerId,
-                                    responseB2P.getSuccess());
-                            if (!responseB2P.getSuccess()
-                                && responseB2P.getErrCode() == TErrCodeConstants.SERVICE_UNAVILABLE) {
-                                rpcServiceFactory.addUnavailableBroker(brokerId);
-                            }
+                            addReceiveStatistic(brokerId, responseB2P.getSuccess(), startTime);
+                            checkBrokerOverload(brokerId, responseB2P);
                             cb.onMessageSent(rt);
                         }
 
                         @Override
                         public void handleError(Throwable error) {
                             partition.increRetries(1);
-                            brokerRcvQltyStats.addReceiveStatistic(brokerId, false);
+                            addReceiveStatistic(brokerId, false, startTime);
                             cb.onException(error);
                         }
                     });
@@ -272,11 +280,40 @@ public class SimpleMessageProducer implements MessageProducer {
             }
             // if failed,increment the counter
             partition.increRetries(1);
-            this.brokerRcvQltyStats.addReceiveStatistic(brokerId, false);
+            this.addReceiveStatistic(brokerId, false, startTime);
             cb.onException(e);
         }
     }
 
+    private void addSendStatistic(final int brokerId) {
+        this.brokerRcvQltyStats.addSendStatistic(brokerId);
+        if (this.latencyRouter != null) {
+            this.latencyRouter.onSendStart(brokerId);
+        }
+    }
+
+    private void addReceiveStatistic(final int brokerId,
+                                     final boolean isSuccess,
+                                     final long startTime) {
+        this.brokerRcvQltyStats.addReceiveStatistic(brokerId, isSuccess);
+        if (this.latencyRouter != null) {
+            this.latencyRouter.onSendComplete(brokerId, System.nanoTime() - startTime, isSuccess);
+        }
+    }
+
+    private void checkBrokerOverload(final int brokerId,
+                                     final ClientBroker.SendMessageResponseB2P response) {
+        if (response.getSuccess()) {
+            return;
+        }
+        if (response.getErrCode() == TErrCodeConstants.SERVICE_UNAVILABLE) {
+            rpcServiceFactory.addUnavailableBroker(brokerId);
+        } else if (response.hasRetryAfterMs() && response.getRetryAfterMs() > 0) {
+            // the broker is flushing behind, send to the other brokers until the hint passes
+            this.brokerRcvQltyStats.addBrokerRetryAfter(brokerId, response.getRetryAfterMs());
+        }
+    }
+
     private void checkMessageAndStatus(final Message message) throws TubeClientException {
         if (message == null) {
             throw new TubeClientException("Illegal parameter: null message package!");
@@ -320,8 +357,10 @@ public class SimpleMessageProducer implements MessageProducer {
         builder.setClientId(this.producerManager.getProducerId());
         builder.setTopicName(partition.getTopic());
         builder.setPartitionId(partition.getPartitionId());
-        builder.setData(ByteString.copyFrom(encodePayload(message)));
-        builder.setFlag(MessageFlagUtils.getFlag(message));
+        final int flag = MessageFlagUtils.getFlag(message,
+                this.producerConfig.isEnableBinaryAttribute());
+        builder.setData(ByteString.copyFrom(encodePayload(message, flag)));
+        builder.setFlag(flag);
         builder.setSentAddr(this.producerManager.getProducerAddrId());
         builder.setCheckSum(-1);
         if (TStringUtils.isNotBlank(message.getMsgType())) {
@@ -334,13 +373,18 @@ public class SimpleMessageProducer implements MessageProducer {
         return builder.build();
     }
 
-    private byte[] encodePayload(final Message message) {
+    private byte[] encodePayload(final Message message, final int flag) {
         final byte[] payload = message.getData();
-        final String attribute = message.getAttribute();
-        if (TStringUtils.isBlank(attribute)) {
-            return payload;
+        byte[] attrData;
+        if (MessageFlagUtils.hasBinaryAttribute(flag)) {
+            attrData = message.getBinaryAttribute();
+        } else {
+            final String attribute = message.getAttribute();
+            if (TStringUtils.isBlank(attribute)) {
+                return payload;
+            }
+            attrData = StringUtils.getBytesUtf8(attribute);
         }
-        byte[] attrData = StringUtils.getBytesUtf8(attribute);
         final ByteBuffer buffer =
                 ByteBuffer.allocate(4 + attrData.length + payload.length);
         buffer.putInt(attrData.length);
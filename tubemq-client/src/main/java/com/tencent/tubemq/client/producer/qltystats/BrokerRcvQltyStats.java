@@ -34,6 +34,8 @@ public interface BrokerRcvQltyStats {
 
     void addReceiveStatistic(int brokerId, boolean isSuccess);
 
+    void addBrokerRetryAfter(int brokerId, long retryAfterMs);
+
     void removeUnRegisteredBroker(List<Integer> registeredBrokerIdList);
 
     void stopBrokerStatistic();
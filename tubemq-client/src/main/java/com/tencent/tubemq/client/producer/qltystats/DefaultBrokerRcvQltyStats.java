@@ -56,6 +56,9 @@ public class DefaultBrokerRcvQltyStats implements BrokerRcvQltyStats {
     // The statistics of the blocking brokers.
     private final ConcurrentHashMap<Integer, Long> brokerForbiddenMap =
             new ConcurrentHashMap<Integer, Long>();
+    // The brokers asked to be retried later, broker id --> time to send again.
+    private final ConcurrentHashMap<Integer, Long> brokerRetryAfterMap =
+            new ConcurrentHashMap<Integer, Long>();
     // Status:
     // -1: Uninitialized
     // 0: Running
@@ -142,6 +145,7 @@ public class DefaultBrokerRcvQltyStats implements BrokerRcvQltyStats {
         }
         long curTime = System.currentTimeMillis();
         Set<Integer> allowedBrokerIds = new HashSet<Integer>();
+        Set<Integer> retryAfterBrokerIds = new HashSet<Integer>();
         ConcurrentHashMap<Integer, Long> unAvailableBrokerMap = rpcServiceFactory.getUnavilableBrokerMap();
         for (Map.Entry<Integer, List<Partition>> oldBrokerPartEntry : brokerPartList.entrySet()) {
             Long lastAddTime = unAvailableBrokerMap.get(oldBrokerPartEntry.getKey());
@@ -164,11 +168,23 @@ public class DefaultBrokerRcvQltyStats implements BrokerRcvQltyStats {
                         continue;
                     }
                     if (!rpcServiceFactory.isRemoteAddrForbidden(brokerInfo.getBrokerAddr())) {
-                        allowedBrokerIds.add(brokerInfo.getBrokerId());
+                        Long retryTime = this.brokerRetryAfterMap.get(brokerInfo.getBrokerId());
+                        if (retryTime == null) {
+                            allowedBrokerIds.add(brokerInfo.getBrokerId());
+                        } else if (curTime < retryTime) {
+                            retryAfterBrokerIds.add(brokerInfo.getBrokerId());
+                        } else {
+                            this.brokerRetryAfterMap.remove(brokerInfo.getBrokerId(), retryTime);
+                            allowedBrokerIds.add(brokerInfo.getBrokerId());
+                        }
                     }
                 }
             }
         }
+        if (allowedBrokerIds.isEmpty()) {
+            // the brokers asked to be retried later are still used if no other broker is allowed
+            allowedBrokerIds.addAll(retryAfterBrokerIds);
+        }
         if (allowedBrokerIds.isEmpty()) {
             throw new TubeClientException("The brokers of topic are all forbidden!");
         }
@@ -224,6 +240,11 @@ public class DefaultBrokerRcvQltyStats implements BrokerRcvQltyStats {
                 brokerStatis.remove(curBrokerId);
             }
         }
+        for (Integer curBrokerId : brokerRetryAfterMap.keySet()) {
+            if (!registeredBrokerIdList.contains(curBrokerId)) {
+                brokerRetryAfterMap.remove(curBrokerId);
+            }
+        }
     }
 
     @Override
@@ -418,6 +439,34 @@ public class DefaultBrokerRcvQltyStats implements BrokerRcvQltyStats {
         }
     }
 
+    /**
+     * Hold the broker from being selected until the retry-after time passes,
+     * the broker rejected a message as its writes are overloaded.
+     *
+     * @param brokerId     broker id
+     * @param retryAfterMs retry-after hint of the broker
+     */
+    @Override
+    public void addBrokerRetryAfter(int brokerId, long retryAfterMs) {
+        if (retryAfterMs <= 0) {
+            return;
+        }
+        long retryTime = System.currentTimeMillis() + retryAfterMs;
+        Long curRetryTime = this.brokerRetryAfterMap.get(brokerId);
+        while (curRetryTime == null || curRetryTime < retryTime) {
+            if (curRetryTime == null) {
+                curRetryTime = this.brokerRetryAfterMap.putIfAbsent(brokerId, retryTime);
+                if (curRetryTime == null) {
+                    return;
+                }
+            } else if (this.brokerRetryAfterMap.replace(brokerId, curRetryTime, retryTime)) {
+                return;
+            } else {
+                curRetryTime = this.brokerRetryAfterMap.get(brokerId);
+            }
+        }
+    }
+
     @Override
     public void stopBrokerStatistic() {
         if (this.statusId.get() != 0) {
@@ -440,7 +489,8 @@ public class DefaultBrokerRcvQltyStats implements BrokerRcvQltyStats {
                 + TokenConstants.ATTR_SEP + ",linkMaxAllowedDelayedMsgCount:"
                 + this.clientConfig.getLinkMaxAllowedDelayedMsgCount() + TokenConstants.ATTR_SEP
                 + ",brokerStatis:" + this.brokerStatis.toString() + TokenConstants.ATTR_SEP
-                + ",brokerForbiddenMap:" + this.brokerForbiddenMap.toString();
+                + ",brokerForbiddenMap:" + this.brokerForbiddenMap.toString() + TokenConstants.ATTR_SEP
+                + ",brokerRetryAfterMap:" + this.brokerRetryAfterMap.toString();
     }
 
     private static class BrokerStatsDltTupleComparator
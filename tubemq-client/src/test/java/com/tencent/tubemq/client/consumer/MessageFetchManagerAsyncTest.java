@@ -0,0 +1,256 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package com.tencent.tubemq.client.consumer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import com.tencent.tubemq.client.config.ConsumerConfig;
+import com.tencent.tubemq.corebase.Message;
+import com.tencent.tubemq.corebase.cluster.BrokerInfo;
+import com.tencent.tubemq.corebase.cluster.Partition;
+import com.tencent.tubemq.corerpc.client.Callback;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class MessageFetchManagerAsyncTest {
+
+    private final Partition partition =
+            new Partition(new BrokerInfo(1, "127.0.0.1", 8123), "test", 0);
+    // callbacks of the fetch requests sent by the fetch workers
+    private final LinkedBlockingQueue<Callback<FetchContext>> fetchCallbacks =
+            new LinkedBlockingQueue<Callback<FetchContext>>();
+    private ConsumerConfig consumerConfig;
+    private BaseMessageConsumer baseConsumer;
+    private SimplePushMessageConsumer pushConsumer;
+    private MessageFetchManager fetchManager;
+
+    @Before
+    public void setUp() throws Exception {
+        consumerConfig = mock(ConsumerConfig.class);
+        when(consumerConfig.getConsumerGroup()).thenReturn("test-group");
+        when(consumerConfig.isPushAsyncFetchEnable()).thenReturn(true);
+        when(consumerConfig.getPushAsyncFetchMaxCnt()).thenReturn(2);
+        when(consumerConfig.getPushListenerThreadCnt()).thenReturn(2);
+        when(consumerConfig.getPushFetchThreadCnt()).thenReturn(1);
+        when(consumerConfig.getPushListenerWaitPeriodMs()).thenReturn(500L);
+        baseConsumer = mock(BaseMessageConsumer.class);
+        when(baseConsumer.pushSelectPartition())
+                .thenReturn(new PartitionSelectResult(partition, 1L, false));
+        doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                fetchCallbacks.offer((Callback<FetchContext>) invocation.getArguments()[2]);
+                return null;
+            }
+        }).when(baseConsumer).fetchMessageAsync(any(PartitionSelectResult.class),
+                any(Executor.class), Matchers.<Callback<FetchContext>>any());
+        pushConsumer = mock(SimplePushMessageConsumer.class);
+        when(pushConsumer.getBaseConsumer()).thenReturn(baseConsumer);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[2]).run();
+                return null;
+            }
+        }).when(pushConsumer).consumeFetchedMessagesAsync(any(FetchContext.class),
+                anyLong(), any(Runnable.class));
+        fetchManager = new MessageFetchManager(consumerConfig, pushConsumer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fetchManager.stopFetchWorkers(true);
+        Callback<FetchContext> callback;
+        while ((callback = fetchCallbacks.poll()) != null) {
+            callback.handleError(new Exception("test finished"));
+        }
+        fetchManager.stopFetchWorkers(false);
+    }
+
+    @Test
+    public void permitsReleasedOnCompletion() throws Exception {
+        fetchManager.startFetchWorkers();
+        Callback<FetchContext> first = fetchCallbacks.poll(5, TimeUnit.SECONDS);
+        Callback<FetchContext> second = fetchCallbacks.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        // no more fetches than permits while the responses are outstanding
+        Assert.assertNull(fetchCallbacks.poll(300, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, fetchManager.getAsyncFetchCnt());
+        // a consumed response releases its permit
+        FetchContext consumed = createFetchContext();
+        first.handleResult(consumed);
+        verify(pushConsumer).consumeFetchedMessagesAsync(any(FetchContext.class),
+                anyLong(), any(Runnable.class));
+        Callback<FetchContext> third = fetchCallbacks.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(third);
+        // a failed request releases its permit
+        second.handleError(new Exception("test error"));
+        Callback<FetchContext> fourth = fetchCallbacks.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(fourth);
+        // a failed response releases its permit without consuming
+        FetchContext failed = new FetchContext(new PartitionSelectResult(partition, 1L, false));
+        failed.setFailProcessResult(400, "test failure");
+        third.handleResult(failed);
+        Assert.assertNotNull(fetchCallbacks.poll(5, TimeUnit.SECONDS));
+        Assert.assertNull(fetchCallbacks.poll(300, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, fetchManager.getAsyncFetchCnt());
+        verify(pushConsumer, times(1)).consumeFetchedMessagesAsync(any(FetchContext.class),
+                anyLong(), any(Runnable.class));
+        verify(pushConsumer, never()).rollbackFetchedMessages(any(FetchContext.class));
+    }
+
+    @Test
+    public void fetchedMessagesRolledBackOnShutdown() throws Exception {
+        fetchManager.startFetchWorkers();
+        Callback<FetchContext> first = fetchCallbacks.poll(5, TimeUnit.SECONDS);
+        Callback<FetchContext> second = fetchCallbacks.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        fetchManager.stopFetchWorkers(true);
+        FetchContext firstContext = createFetchContext();
+        FetchContext secondContext = createFetchContext();
+        first.handleResult(firstContext);
+        second.handleResult(secondContext);
+        verify(pushConsumer).rollbackFetchedMessages(firstContext);
+        verify(pushConsumer).rollbackFetchedMessages(secondContext);
+        verify(pushConsumer, never()).consumeFetchedMessagesAsync(any(FetchContext.class),
+                anyLong(), any(Runnable.class));
+        Assert.assertEquals(0, fetchManager.getAsyncFetchCnt());
+        // the fetch workers stop without waiting for the listener wait period
+        long startTime = System.currentTimeMillis();
+        fetchManager.stopFetchWorkers(false);
+        Assert.assertTrue(System.currentTimeMillis() - startTime
+                < consumerConfig.getPushListenerWaitPeriodMs());
+        Assert.assertTrue(fetchCallbacks.isEmpty());
+        verify(baseConsumer).notifyAllMessageListenerStopped();
+    }
+
+    @Test
+    public void asyncListenerReleasesPartitionBeforeDone() throws Exception {
+        final AtomicReference<AsyncMessageListener.ConsumeCallback> consumeCallback =
+                new AtomicReference<AsyncMessageListener.ConsumeCallback>();
+        AsyncMessageListener listener = mock(AsyncMessageListener.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                consumeCallback.set((AsyncMessageListener.ConsumeCallback) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(listener).receiveMessages(anyListOf(Message.class), any(AsyncMessageListener.ConsumeCallback.class));
+        RmtDataCache rmtDataCache = mock(RmtDataCache.class);
+        SimplePushMessageConsumer consumer = createAsyncConsumer(listener, rmtDataCache);
+        Runnable doneTask = mock(Runnable.class);
+        consumer.consumeFetchedMessagesAsync(createFetchContext(), System.currentTimeMillis(), doneTask);
+        // the partition is held until the listener calls back
+        Assert.assertNotNull(consumeCallback.get());
+        verify(rmtDataCache, never()).succRspRelease(anyString(), anyString(),
+                anyLong(), anyBoolean(), anyBoolean(), anyLong());
+        verify(doneTask, never()).run();
+        consumeCallback.get().onConsumed();
+        // repeated calls are ignored
+        consumeCallback.get().onConsumed();
+        consumeCallback.get().onFailed(new Exception("test error"));
+        InOrder inOrder = inOrder(rmtDataCache, doneTask);
+        inOrder.verify(rmtDataCache).succRspRelease(partition.getPartitionKey(),
+                "test", 1L, true, false, 100L);
+        inOrder.verify(doneTask).run();
+        verify(rmtDataCache, times(1)).succRspRelease(anyString(), anyString(),
+                anyLong(), anyBoolean(), anyBoolean(), anyLong());
+        verify(doneTask, times(1)).run();
+    }
+
+    @Test
+    public void asyncListenerFailureReleasesPartition() throws Exception {
+        AsyncMessageListener listener = mock(AsyncMessageListener.class);
+        doThrow(new RuntimeException("test error")).when(listener)
+                .receiveMessages(anyListOf(Message.class), any(AsyncMessageListener.ConsumeCallback.class));
+        RmtDataCache rmtDataCache = mock(RmtDataCache.class);
+        SimplePushMessageConsumer consumer = createAsyncConsumer(listener, rmtDataCache);
+        Runnable doneTask = mock(Runnable.class);
+        consumer.consumeFetchedMessagesAsync(createFetchContext(), System.currentTimeMillis(), doneTask);
+        InOrder inOrder = inOrder(rmtDataCache, doneTask);
+        inOrder.verify(rmtDataCache).succRspRelease(partition.getPartitionKey(),
+                "test", 1L, false, false, 100L);
+        inOrder.verify(doneTask).run();
+        verify(doneTask, times(1)).run();
+    }
+
+    private FetchContext createFetchContext() {
+        FetchContext taskContext =
+                new FetchContext(new PartitionSelectResult(partition, 1L, false));
+        List<Message> messageList = new ArrayList<Message>();
+        messageList.add(new Message("test", new byte[16]));
+        taskContext.setSuccessProcessResult(100L, "", messageList);
+        return taskContext;
+    }
+
+    private SimplePushMessageConsumer createAsyncConsumer(final MessageListener listener,
+                                                         final RmtDataCache rmtDataCache)
+            throws Exception {
+        ClientSubInfo consumeSubInfo = mock(ClientSubInfo.class);
+        when(consumeSubInfo.getTopicProcesser("test"))
+                .thenReturn(new TopicProcessor(listener, null));
+        BaseMessageConsumer messageConsumer = mock(BaseMessageConsumer.class);
+        setField(BaseMessageConsumer.class, messageConsumer, "consumerConfig", consumerConfig);
+        setField(BaseMessageConsumer.class, messageConsumer, "consumeSubInfo", consumeSubInfo);
+        setField(BaseMessageConsumer.class, messageConsumer, "rmtDataCache", rmtDataCache);
+        SimplePushMessageConsumer consumer = mock(SimplePushMessageConsumer.class);
+        setField(SimplePushMessageConsumer.class, consumer, "baseConsumer", messageConsumer);
+        setField(SimplePushMessageConsumer.class, consumer, "lastLogPrintTime", new AtomicLong(0));
+        setField(SimplePushMessageConsumer.class, consumer, "lastFailureCount", new AtomicLong(0));
+        doCallRealMethod().when(consumer).consumeFetchedMessagesAsync(any(FetchContext.class),
+                anyLong(), any(Runnable.class));
+        return consumer;
+    }
+
+    private void setField(final Class<?> clazz, final Object target,
+                          final String fieldName, final Object value) throws Exception {
+        Field field = clazz.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
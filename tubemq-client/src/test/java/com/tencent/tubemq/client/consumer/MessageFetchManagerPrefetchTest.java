@@ -0,0 +1,136 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package com.tencent.tubemq.client.consumer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import com.tencent.tubemq.client.config.ConsumerConfig;
+import com.tencent.tubemq.corebase.Message;
+import com.tencent.tubemq.corebase.cluster.BrokerInfo;
+import com.tencent.tubemq.corebase.cluster.Partition;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class MessageFetchManagerPrefetchTest {
+
+    private final Partition partition =
+            new Partition(new BrokerInfo(1, "127.0.0.1", 8123), "test", 0);
+    // batches returned by the fetch requests, 16 bytes each
+    private final List<FetchContext> fetchedBatches = new CopyOnWriteArrayList<FetchContext>();
+    // blocks the listener until counted down
+    private final CountDownLatch listenerLatch = new CountDownLatch(1);
+    private SimplePushMessageConsumer pushConsumer;
+    private MessageFetchManager fetchManager;
+
+    @Before
+    public void setUp() throws Exception {
+        ConsumerConfig consumerConfig = mock(ConsumerConfig.class);
+        when(consumerConfig.getConsumerGroup()).thenReturn("test-group");
+        when(consumerConfig.isPushPrefetchEnable()).thenReturn(true);
+        when(consumerConfig.getPushPrefetchMaxBytes()).thenReturn(32L);
+        when(consumerConfig.getPushListenerThreadCnt()).thenReturn(1);
+        when(consumerConfig.getPushFetchThreadCnt()).thenReturn(1);
+        when(consumerConfig.getPushListenerWaitPeriodMs()).thenReturn(500L);
+        BaseMessageConsumer baseConsumer = mock(BaseMessageConsumer.class);
+        when(baseConsumer.pushSelectPartition())
+                .thenReturn(new PartitionSelectResult(partition, 1L, false));
+        pushConsumer = mock(SimplePushMessageConsumer.class);
+        when(pushConsumer.getBaseConsumer()).thenReturn(baseConsumer);
+        doAnswer(new Answer<FetchContext>() {
+            @Override
+            public FetchContext answer(InvocationOnMock invocation) {
+                FetchContext taskContext = new FetchContext((PartitionSelectResult) invocation.getArguments()[0]);
+                List<Message> messageList = new ArrayList<Message>();
+                messageList.add(new Message("test", new byte[16]));
+                taskContext.setSuccessProcessResult(100L, "", messageList);
+                fetchedBatches.add(taskContext);
+                return taskContext;
+            }
+        }).when(pushConsumer).fetchRequest(any(PartitionSelectResult.class), any(StringBuilder.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                listenerLatch.await();
+                return null;
+            }
+        }).when(pushConsumer).consumeFetchedMessages(any(FetchContext.class),
+                anyLong(), any(StringBuilder.class));
+        fetchManager = new MessageFetchManager(consumerConfig, pushConsumer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fetchManager.stopFetchWorkers(true);
+        listenerLatch.countDown();
+        fetchManager.stopFetchWorkers(false);
+    }
+
+    @Test
+    public void prefetchStopsAtMaxBytes() throws Exception {
+        fetchManager.startFetchWorkers();
+        // the listener holds the first batch, the second batch reaches the max bytes
+        verify(pushConsumer, timeout(5000)).consumeFetchedMessages(any(FetchContext.class),
+                anyLong(), any(StringBuilder.class));
+        verify(pushConsumer, timeout(5000).times(2))
+                .fetchRequest(any(PartitionSelectResult.class), any(StringBuilder.class));
+        TimeUnit.MILLISECONDS.sleep(300);
+        verify(pushConsumer, times(2))
+                .fetchRequest(any(PartitionSelectResult.class), any(StringBuilder.class));
+        Assert.assertEquals(32L, fetchManager.getPrefetchBytes());
+        // prefetching resumes once the listener frees space
+        listenerLatch.countDown();
+        verify(pushConsumer, timeout(5000).atLeast(3))
+                .fetchRequest(any(PartitionSelectResult.class), any(StringBuilder.class));
+    }
+
+    @Test
+    public void prefetchedBatchesRolledBackOnShutdown() throws Exception {
+        fetchManager.startFetchWorkers();
+        verify(pushConsumer, timeout(5000)).consumeFetchedMessages(any(FetchContext.class),
+                anyLong(), any(StringBuilder.class));
+        verify(pushConsumer, timeout(5000).times(2))
+                .fetchRequest(any(PartitionSelectResult.class), any(StringBuilder.class));
+        fetchManager.stopFetchWorkers(true);
+        listenerLatch.countDown();
+        fetchManager.stopFetchWorkers(false);
+        // the batch held by the listener is consumed, the queued batch is rolled back
+        Assert.assertEquals(2, fetchedBatches.size());
+        verify(pushConsumer, times(1)).consumeFetchedMessages(any(FetchContext.class),
+                anyLong(), any(StringBuilder.class));
+        verify(pushConsumer, never()).rollbackFetchedMessages(fetchedBatches.get(0));
+        verify(pushConsumer).rollbackFetchedMessages(fetchedBatches.get(1));
+        Assert.assertEquals(0L, fetchManager.getPrefetchBytes());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.client.producer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import com.tencent.tubemq.client.exception.TubeClientException;
+import com.tencent.tubemq.corebase.Message;
+import com.tencent.tubemq.corebase.cluster.BrokerInfo;
+import com.tencent.tubemq.corebase.cluster.Partition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class LatencyWeightedPartitionRouterTest {
+    private static final Logger logger =
+            LoggerFactory.getLogger(LatencyWeightedPartitionRouterTest.class);
+
+    @Test(expected = TubeClientException.class)
+    public void testGetPartitionInvalidInput() throws TubeClientException {
+        LatencyWeightedPartitionRouter router = new LatencyWeightedPartitionRouter();
+        Message message = new Message("test", new byte[]{1, 2, 3});
+        router.getPartition(message, new ArrayList<Partition>());
+    }
+
+    @Test
+    public void testGetPartition() throws TubeClientException {
+        LatencyWeightedPartitionRouter router = new LatencyWeightedPartitionRouter();
+        Message message = new Message("test", new byte[]{1, 2, 3});
+        List<Partition> partitions = new ArrayList<Partition>();
+        partitions.add(new Partition(new BrokerInfo("0:127.0.0.1:18080"), "test", 0));
+        partitions.add(new Partition(new BrokerInfo("1:127.0.0.1:18081"), "test", 1));
+        // broker 1 answers 10 times slower
+        for (int i = 0; i < 10; i++) {
+            router.onSendStart(0);
+            router.onSendComplete(0, 1000000L, true);
+            router.onSendStart(1);
+            router.onSendComplete(1, 10000000L, true);
+        }
+        assertEquals(0, router.getInFlightCnt(0));
+        assertTrue(router.getBrokerLatencyMs(1) > router.getBrokerLatencyMs(0));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, router.getPartition(message, partitions).getBrokerId());
+        }
+        // in-flight requests are weighted too
+        for (int i = 0; i < 20; i++) {
+            router.onSendStart(0);
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, router.getPartition(message, partitions).getBrokerId());
+        }
+        // a delayed partition is skipped
+        partitions.get(1).setDelayTimeStamp(System.currentTimeMillis() + 10000000);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, router.getPartition(message, partitions).getBrokerId());
+        }
+    }
+
+    /***
+     * Simulate producers sending to 4 stand-in brokers, one of which has a slow disk, and
+     * compare the send latency with the round robin router. The request count is set by
+     * tubemq.test.routerRequestCnt.
+     */
+    @Test
+    public void testSimulation() throws TubeClientException {
+        final int requestCnt = Integer.getInteger("tubemq.test.routerRequestCnt", 200000);
+        final long[] baseLatencyNs = {2000000L, 2000000L, 2000000L, 12000000L};
+        final VirtualTimeRouter latencyRouter = new VirtualTimeRouter();
+        long startTime = System.currentTimeMillis();
+        long[] weightedResult =
+                simulate(latencyRouter, latencyRouter, baseLatencyNs, requestCnt);
+        long[] roundRobinResult =
+                simulate(new RoundRobinPartitionRouter(), null, baseLatencyNs, requestCnt);
+        logger.info("Simulate " + requestCnt + " requests, latency weighted p50="
+                + weightedResult[0] / 1000 + "us, p99=" + weightedResult[1] / 1000
+                + "us, slow broker share=" + weightedResult[2] * 100 / requestCnt
+                + "%, " + requestCnt * 1000000000L / weightedResult[3]
+                + " req/s; round robin p50=" + roundRobinResult[0] / 1000 + "us, p99="
+                + roundRobinResult[1] / 1000 + "us, slow broker share="
+                + roundRobinResult[2] * 100 / requestCnt + "%, "
+                + requestCnt * 1000000000L / roundRobinResult[3] + " req/s, wast time "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        assertTrue(weightedResult[1] < roundRobinResult[1]);
+        assertTrue(weightedResult[2] < roundRobinResult[2]);
+        assertTrue(weightedResult[3] < roundRobinResult[3]);
+    }
+
+    /***
+     * Run the requests through a discrete event simulation, the latency of a stand-in broker
+     * grows with its in-flight request count.
+     *
+     * @return p50 latency, p99 latency, the request count of the last broker and the
+     *         simulated time
+     */
+    private long[] simulate(PartitionRouter router, VirtualTimeRouter latencyRouter,
+                            long[] baseLatencyNs, int requestCnt) throws TubeClientException {
+        final int concurrency = 32;
+        final Random random = new Random(7);
+        final Message message = new Message("test", new byte[]{1, 2, 3});
+        final List<Partition> partitions = new ArrayList<Partition>();
+        for (int brokerId = 0; brokerId < baseLatencyNs.length; brokerId++) {
+            for (int partId = 0; partId < 4; partId++) {
+                partitions.add(new Partition(new BrokerInfo(brokerId,
+                        "127.0.0.1", 18080 + brokerId), "test", partId));
+            }
+        }
+        final int[] inFlightCnt = new int[baseLatencyNs.length];
+        final long[] latencies = new long[requestCnt];
+        final PriorityQueue<long[]> responses = new PriorityQueue<long[]>(concurrency,
+                new java.util.Comparator<long[]>() {
+                    @Override
+                    public int compare(long[] o1, long[] o2) {
+                        return Long.compare(o1[0], o2[0]);
+                    }
+                });
+        long slowBrokerCnt = 0;
+        long currentTime = 0L;
+        int sentCnt = 0;
+        int doneCnt = 0;
+        while (doneCnt < requestCnt) {
+            if (sentCnt < requestCnt && responses.size() < concurrency) {
+                int brokerId = router.getPartition(message, partitions).getBrokerId();
+                if (latencyRouter != null) {
+                    latencyRouter.onSendStart(brokerId);
+                }
+                inFlightCnt[brokerId]++;
+                long latency = (long) (baseLatencyNs[brokerId]
+                        * (1 + inFlightCnt[brokerId] / 8.0) * (0.8 + 0.4 * random.nextDouble()));
+                responses.add(new long[]{currentTime + latency, brokerId, latency});
+                if (brokerId == baseLatencyNs.length - 1) {
+                    slowBrokerCnt++;
+                }
+                sentCnt++;
+                continue;
+            }
+            long[] response = responses.poll();
+            currentTime = response[0];
+            inFlightCnt[(int) response[1]]--;
+            if (latencyRouter != null) {
+                latencyRouter.currentTime = currentTime;
+                latencyRouter.onSendComplete((int) response[1], response[2], true);
+            }
+            latencies[doneCnt++] = response[2];
+        }
+        Arrays.sort(latencies);
+        return new long[]{latencies[requestCnt / 2],
+                latencies[(int) (requestCnt * 0.99)], slowBrokerCnt, currentTime};
+    }
+
+    private static class VirtualTimeRouter extends LatencyWeightedPartitionRouter {
+        private long currentTime = 0L;
+
+        @Override
+        protected long getNanoTime() {
+            return currentTime;
+        }
+    }
+}
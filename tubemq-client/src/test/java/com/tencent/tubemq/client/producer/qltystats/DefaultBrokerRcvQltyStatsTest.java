@@ -68,4 +68,43 @@ public class DefaultBrokerRcvQltyStatsTest {
         stats.stopBrokerStatistic();
         assertTrue(stats.isStopped());
     }
+
+    @Test
+    public void testBrokerRetryAfter() throws Exception {
+        RpcServiceFactory rpcServiceFactory = mock(RpcServiceFactory.class);
+        when(rpcServiceFactory.getForbiddenAddrMap()).thenReturn(new ConcurrentHashMap<String, Long>());
+        when(rpcServiceFactory.getUnavilableBrokerMap()).thenReturn(new ConcurrentHashMap<Integer, Long>());
+
+        TubeClientConfig config = mock(TubeClientConfig.class);
+        when(config.getSessionMaxAllowedDelayedMsgCount()).thenReturn(1000L);
+        when(config.getLinkMaxAllowedDelayedMsgCount()).thenReturn(1000L);
+        when(config.getSessionWarnDelayedMsgCount()).thenReturn(1000L);
+
+        DefaultBrokerRcvQltyStats stats = new DefaultBrokerRcvQltyStats(rpcServiceFactory, config);
+        Map<Integer, List<Partition>> brokerPartList = new HashMap<>();
+        for (int brokerId = 0; brokerId < 2; brokerId++) {
+            List<Partition> partitions = new ArrayList<>();
+            partitions.add(new Partition(new BrokerInfo(brokerId + ":192.168.0.1:18080"), "test_topic", 1));
+            brokerPartList.put(brokerId, partitions);
+        }
+        assertEquals(2, stats.getAllowedBrokerPartitions(brokerPartList).size());
+
+        // the broker asked to be retried later is held
+        stats.addBrokerRetryAfter(0, 200);
+        List<Partition> actualPartitions = stats.getAllowedBrokerPartitions(brokerPartList);
+        assertEquals(1, actualPartitions.size());
+        assertEquals(1, actualPartitions.get(0).getBrokerId());
+
+        // still used if all the brokers are held
+        stats.addBrokerRetryAfter(1, 200);
+        assertEquals(2, stats.getAllowedBrokerPartitions(brokerPartList).size());
+
+        // a later hint extends the held time, a shorter one does not shorten it
+        stats.addBrokerRetryAfter(0, 10000);
+        stats.addBrokerRetryAfter(0, 1);
+        Thread.sleep(300);
+        actualPartitions = stats.getAllowedBrokerPartitions(brokerPartList);
+        assertEquals(1, actualPartitions.size());
+        assertEquals(1, actualPartitions.get(0).getBrokerId());
+    }
 }
@@ -17,12 +17,17 @@
 
 package com.tencent.tubemq.corebase;
 
+import com.tencent.tubemq.corebase.utils.MessageAttrUtils;
+import com.tencent.tubemq.corebase.utils.MessageFlagUtils;
 import com.tencent.tubemq.corebase.utils.TStringUtils;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Message is a message object class passed in the Tube. The data of the
@@ -50,7 +55,20 @@ public class Message implements Serializable {
     private transient String msgType;
     // message time
     private transient String msgTime;
-    private transient String sysAttributes;
+    // user key-values of the attribute, null if none
+    private transient LinkedHashMap<String, String> attrKeyVals;
+    // whether msgType, msgTime and attrKeyVals hold the parsed attribute
+    private transient boolean attrParsed = false;
+    // whether the attribute string must be rebuilt from the parsed items
+    private transient boolean attrTextStale = false;
+    // payload buffer of a received message, the data and the attribute
+    // are read from it on demand instead of being copied out at receipt
+    private transient byte[] rcvBuffer;
+    private transient int rcvDataOffset;
+    private transient int rcvDataLength;
+    private transient int rcvAttrOffset;
+    // attribute length in the payload buffer, -1 if decoded or absent
+    private transient int rcvAttrLength = -1;
 
     /**
      * init with topic and data body
@@ -81,28 +99,44 @@ public class Message implements Serializable {
         this.flag = flag;
     }
 
+    /**
+     * init with indexId topic flag and a payload buffer, the data and the attribute
+     * are not copied out of the buffer until they are requested
+     *
+     * @param indexId
+     * @param topic
+     * @param rcvBuffer
+     * @param attrOffset
+     * @param attrLength    attribute length, no attribute if not positive
+     * @param dataOffset
+     * @param dataLength
+     * @param flag
+     */
+    protected Message(long indexId, String topic, byte[] rcvBuffer,
+                      int attrOffset, int attrLength,
+                      int dataOffset, int dataLength, int flag) {
+        this.indexId = indexId;
+        this.topic = topic;
+        this.flag = flag;
+        this.rcvBuffer = rcvBuffer;
+        this.rcvDataOffset = dataOffset;
+        this.rcvDataLength = dataLength;
+        this.rcvAttrOffset = attrOffset;
+        this.rcvAttrLength = attrLength > 0 ? attrLength : -1;
+    }
+
     public int getFlag() {
         return this.flag;
     }
 
     public String getMsgType() {
-        if (TStringUtils.isBlank(this.msgType)) {
-            if (TStringUtils.isNotBlank(this.attribute)
-                    && attribute.contains(TokenConstants.TOKEN_MSG_TYPE)) {
-                parseSystemHeader();
-            }
-        }
+        parseAttribute();
         return this.msgType;
     }
 
     public String getMsgTime() {
-        if (TStringUtils.isBlank(this.msgTime)) {
-            if (TStringUtils.isNotBlank(this.attribute)
-                    && attribute.contains(TokenConstants.TOKEN_MSG_TIME)) {
-                parseSystemHeader();
-            }
-        }
-        return msgTime;
+        parseAttribute();
+        return this.msgTime;
     }
 
     /**
@@ -110,54 +144,31 @@ public class Message implements Serializable {
      * @param msgTime
      */
     public void putSystemHeader(final String msgType, final String msgTime) {
-        this.msgType = null;
-        this.msgTime = null;
-        this.sysAttributes = null;
-        if (TStringUtils.isNotBlank(msgType)) {
-            this.msgType = msgType.trim();
-            this.sysAttributes = TokenConstants.TOKEN_MSG_TYPE + TokenConstants.EQ + this.msgType;
-        }
+        String tmpMsgTime = null;
         if (TStringUtils.isNotBlank(msgTime)) {
-            String tmpMsgTime = msgTime.trim();
+            tmpMsgTime = msgTime.trim();
             if (tmpMsgTime.length() != 12) {
                 throw new IllegalStateException("Illegal parameter: msgTime's value "
                         + "must 'yyyyMMddHHmm' format and length must equal 12!");
             }
-            Date tmpDate;
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmm");
-            try {
-                tmpDate = sdf.parse(tmpMsgTime);
-            } catch (ParseException e) {
+            if (!MessageAttrUtils.isValidMsgTime(tmpMsgTime)) {
                 throw new IllegalStateException("Illegal parameter: parse msgTime value"
                         + " failure , msgType's value must 'yyyyMMddHHmm' format!");
             }
-            this.msgTime = tmpMsgTime;
-            if (TStringUtils.isBlank(this.sysAttributes)) {
-                this.sysAttributes =
-                        TokenConstants.TOKEN_MSG_TIME + TokenConstants.EQ + this.msgTime;
-            } else {
-                this.sysAttributes +=
-                        TokenConstants.ARRAY_SEP + TokenConstants.TOKEN_MSG_TIME + TokenConstants.EQ + this.msgTime;
-            }
         }
-        String tmpAttributes = this.sysAttributes;
-        if (TStringUtils.isNotBlank(this.attribute)) {
-            String[] strAttrs = this.attribute.split(TokenConstants.ARRAY_SEP);
-            for (String strAttrItem : strAttrs) {
-                if (strAttrItem != null && !(strAttrItem.contains(TokenConstants.TOKEN_MSG_TYPE)
-                        || strAttrItem.contains(TokenConstants.TOKEN_MSG_TIME))) {
-                    if (TStringUtils.isBlank(tmpAttributes)) {
-                        tmpAttributes = strAttrItem;
-                    } else {
-                        tmpAttributes += TokenConstants.ARRAY_SEP + strAttrItem;
-                    }
-                }
-            }
-        }
-        this.attribute = tmpAttributes;
+        parseAttribute();
+        this.msgType = TStringUtils.isNotBlank(msgType) ? msgType.trim() : null;
+        this.msgTime = tmpMsgTime;
+        this.attrTextStale = true;
     }
 
     public boolean hasAttribute() {
+        if (this.rcvAttrLength > 0) {
+            return true;
+        }
+        if (this.attrTextStale) {
+            return this.msgType != null || this.msgTime != null || this.attrKeyVals != null;
+        }
         return this.attribute != null;
     }
 
@@ -177,24 +188,90 @@ public class Message implements Serializable {
     }
 
     public byte[] getData() {
+        if (this.data == null && this.rcvBuffer != null) {
+            if (this.rcvDataOffset == 0 && this.rcvDataLength == this.rcvBuffer.length) {
+                this.data = this.rcvBuffer;
+            } else {
+                this.data = Arrays.copyOfRange(this.rcvBuffer,
+                        this.rcvDataOffset, this.rcvDataOffset + this.rcvDataLength);
+            }
+            if (this.rcvAttrLength < 0) {
+                this.rcvBuffer = null;
+            }
+        }
         return this.data;
     }
 
+    /**
+     * Get a read-only view of the message's payload, the payload is not copied
+     *
+     * @return the payload buffer, or null if the message has no payload
+     */
+    public ByteBuffer getDataBuffer() {
+        if (this.data != null) {
+            return ByteBuffer.wrap(this.data).asReadOnlyBuffer();
+        }
+        if (this.rcvBuffer != null) {
+            return ByteBuffer.wrap(this.rcvBuffer,
+                    this.rcvDataOffset, this.rcvDataLength).slice().asReadOnlyBuffer();
+        }
+        return null;
+    }
+
+    /**
+     * Get the length of the message's payload without copying it
+     *
+     * @return the payload length
+     */
+    public int getDataLength() {
+        if (this.data != null) {
+            return this.data.length;
+        }
+        if (this.rcvBuffer != null) {
+            return this.rcvDataLength;
+        }
+        return 0;
+    }
+
     /**
      * Set the message's payload
      */
     public void setData(final byte[] data) {
         this.data = data;
+        if (this.rcvAttrLength < 0) {
+            this.rcvBuffer = null;
+        }
     }
 
     public void clearAttribute() {
         this.attribute = "";
+        this.rcvAttrLength = -1;
+        this.msgType = null;
+        this.msgTime = null;
+        this.attrKeyVals = null;
+        this.attrParsed = true;
+        this.attrTextStale = false;
     }
 
     public String getAttribute() {
+        decodeRcvAttribute();
+        if (this.attrTextStale) {
+            this.attribute = buildAttribute();
+            this.attrTextStale = false;
+        }
         return this.attribute;
     }
 
+    /**
+     * Get the attribute in the binary format of MessageAttrUtils
+     *
+     * @return the encoded attribute
+     */
+    public byte[] getBinaryAttribute() {
+        parseAttribute();
+        return MessageAttrUtils.encodeAttribute(this.msgType, this.msgTime, this.attrKeyVals);
+    }
+
     /**
      * @param keyVal
      * @return
@@ -203,21 +280,17 @@ public class Message implements Serializable {
         if (TStringUtils.isBlank(keyVal)) {
             throw new IllegalStateException("keyVal's value is blank!");
         }
-        if (TStringUtils.isBlank(this.attribute)) {
-            return null;
+        parseAttribute();
+        if (keyVal.equals(TokenConstants.TOKEN_MSG_TYPE)) {
+            return this.msgType;
         }
-        String[] strAttrs = this.attribute.split(TokenConstants.ARRAY_SEP);
-        for (String strAttrItem : strAttrs) {
-            if (TStringUtils.isNotBlank(strAttrItem)) {
-                String[] strItems = strAttrItem.split(TokenConstants.EQ);
-                if (strItems.length > 1 && !TStringUtils.isBlank(strItems[0])) {
-                    if (keyVal.equals(strItems[0])) {
-                        return strItems[1];
-                    }
-                }
-            }
+        if (keyVal.equals(TokenConstants.TOKEN_MSG_TIME)) {
+            return this.msgTime;
         }
-        return null;
+        if (this.attrKeyVals == null) {
+            return null;
+        }
+        return this.attrKeyVals.get(keyVal);
     }
 
     /**
@@ -249,39 +322,23 @@ public class Message implements Serializable {
                     .append(TokenConstants.EQ).append(
                             ") are reserved tokens, can't include in keyVal or valueVal!").toString());
         }
-        if (TStringUtils.isBlank(this.attribute)) {
-            this.attribute = keyVal + TokenConstants.EQ + valueVal;
-            return;
+        parseAttribute();
+        if (this.attrKeyVals == null) {
+            this.attrKeyVals = new LinkedHashMap<String, String>();
+        } else {
+            // a replaced key moves to the end
+            this.attrKeyVals.remove(keyVal);
         }
-        int count = 0;
-        StringBuilder sBuilder = new StringBuilder(512);
-        String[] strAttrs = this.attribute.split(TokenConstants.ARRAY_SEP);
-        for (String strAttrItem : strAttrs) {
-            if (TStringUtils.isNotBlank(strAttrItem)) {
-                String[] strItems = strAttrItem.split(TokenConstants.EQ);
-                if (strItems.length > 1 && !TStringUtils.isBlank(strItems[0])) {
-                    if (!keyVal.equals(strItems[0])) {
-                        if (count++ > 0) {
-                            sBuilder.append(TokenConstants.ARRAY_SEP);
-                        }
-                        sBuilder.append(strAttrItem);
-                    }
-                }
-            }
-        }
-        if (count > 0) {
-            sBuilder.append(TokenConstants.ARRAY_SEP);
-        }
-        sBuilder.append(keyVal).append(TokenConstants.EQ).append(valueVal);
-        this.attribute = sBuilder.toString();
+        this.attrKeyVals.put(keyVal, valueVal);
+        this.attrTextStale = true;
     }
 
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + (this.attribute == null ? 0 : this.attribute.hashCode());
-        result = prime * result + Arrays.hashCode(this.data);
+        result = prime * result + (getAttribute() == null ? 0 : this.attribute.hashCode());
+        result = prime * result + Arrays.hashCode(getData());
         result = prime * result + (int) (this.indexId ^ this.indexId >>> 32);
         result = prime * result + (this.topic == null ? 0 : this.topic.hashCode());
         return result;
@@ -299,14 +356,14 @@ public class Message implements Serializable {
             return false;
         }
         final Message other = (Message) obj;
-        if (this.attribute == null) {
-            if (other.attribute != null) {
+        if (getAttribute() == null) {
+            if (other.getAttribute() != null) {
                 return false;
             }
-        } else if (!this.attribute.equals(other.attribute)) {
+        } else if (!this.attribute.equals(other.getAttribute())) {
             return false;
         }
-        if (!Arrays.equals(this.data, other.data)) {
+        if (!Arrays.equals(getData(), other.getData())) {
             return false;
         }
         if (this.indexId != other.indexId) {
@@ -322,46 +379,107 @@ public class Message implements Serializable {
         return true;
     }
 
-    private void parseSystemHeader() {
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getData();
+        getAttribute();
+        out.defaultWriteObject();
+    }
+
+    private void decodeRcvAttribute() {
+        if (this.rcvAttrLength <= 0) {
+            return;
+        }
+        if (MessageFlagUtils.hasBinaryAttribute(this.flag)) {
+            LinkedHashMap<String, String> keyVals = new LinkedHashMap<String, String>();
+            this.msgType = MessageAttrUtils.decodeAttribute(this.rcvBuffer,
+                    this.rcvAttrOffset, this.rcvAttrLength, keyVals);
+            this.msgTime = MessageAttrUtils.getMsgTime(ByteBuffer.wrap(this.rcvBuffer),
+                    this.rcvAttrOffset, this.rcvAttrLength);
+            this.attrKeyVals = keyVals.isEmpty() ? null : keyVals;
+            this.attrParsed = true;
+            this.attrTextStale = true;
+        } else {
+            try {
+                this.attribute = new String(this.rcvBuffer, this.rcvAttrOffset,
+                        this.rcvAttrLength, TBaseConstants.META_DEFAULT_CHARSET_NAME);
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        this.rcvAttrLength = -1;
+        if (this.data != null) {
+            this.rcvBuffer = null;
+        }
+    }
+
+    /**
+     * Parse the attribute into msgType, msgTime and the user key-values, a text attribute
+     * is split once, a binary one is read directly.
+     */
+    private void parseAttribute() {
+        if (this.attrParsed) {
+            return;
+        }
+        decodeRcvAttribute();
+        if (this.attrParsed) {
+            return;
+        }
+        this.attrParsed = true;
         if (TStringUtils.isBlank(this.attribute)) {
             return;
         }
-        if (attribute.contains(TokenConstants.TOKEN_MSG_TYPE)
-                || attribute.contains(TokenConstants.TOKEN_MSG_TIME)) {
-            String[] strAttrs = this.attribute.split(TokenConstants.ARRAY_SEP);
-            for (String strAttrItem : strAttrs) {
-                if (TStringUtils.isNotBlank(strAttrItem)) {
-                    if (strAttrItem.contains(TokenConstants.TOKEN_MSG_TYPE)) {
-                        String[] strItems = strAttrItem.split(TokenConstants.EQ);
-                        if (strItems.length > 1) {
-                            this.msgType = strItems[1];
-                        }
-                    } else if (strAttrItem.contains(TokenConstants.TOKEN_MSG_TIME)) {
-                        String[] strItems = strAttrItem.split(TokenConstants.EQ);
-                        if (strItems.length > 1) {
-                            Date tmpDate;
-                            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmm");
-                            try {
-                                tmpDate = sdf.parse(strItems[1]);
-                                this.msgTime = strItems[1];
-                            } catch (ParseException e) {
-                                this.msgTime = "";
-                            }
-                        }
-                    }
+        String[] strAttrs = this.attribute.split(TokenConstants.ARRAY_SEP);
+        for (String strAttrItem : strAttrs) {
+            if (TStringUtils.isBlank(strAttrItem)) {
+                continue;
+            }
+            String[] strItems = strAttrItem.split(TokenConstants.EQ);
+            if (strAttrItem.contains(TokenConstants.TOKEN_MSG_TYPE)) {
+                if (strItems.length > 1) {
+                    this.msgType = strItems[1];
+                }
+            } else if (strAttrItem.contains(TokenConstants.TOKEN_MSG_TIME)) {
+                if (strItems.length > 1 && MessageAttrUtils.isValidMsgTime(strItems[1])) {
+                    this.msgTime = strItems[1];
+                }
+            } else {
+                if (this.attrKeyVals == null) {
+                    this.attrKeyVals = new LinkedHashMap<String, String>();
+                }
+                // items without value are kept as they are
+                if (strItems.length > 1 && !TStringUtils.isBlank(strItems[0])) {
+                    this.attrKeyVals.put(strItems[0], strItems[1]);
+                } else {
+                    this.attrKeyVals.put(strAttrItem, null);
                 }
             }
-            if (TStringUtils.isNotBlank(this.msgType)) {
-                this.sysAttributes = TokenConstants.TOKEN_MSG_TYPE + TokenConstants.EQ + this.msgType;
+        }
+    }
+
+    private String buildAttribute() {
+        StringBuilder sBuilder = new StringBuilder(512);
+        if (TStringUtils.isNotBlank(this.msgType)) {
+            sBuilder.append(TokenConstants.TOKEN_MSG_TYPE)
+                    .append(TokenConstants.EQ).append(this.msgType);
+        }
+        if (TStringUtils.isNotBlank(this.msgTime)) {
+            if (sBuilder.length() > 0) {
+                sBuilder.append(TokenConstants.ARRAY_SEP);
             }
-            if (TStringUtils.isNotBlank(this.msgTime)) {
-                if (TStringUtils.isBlank(this.sysAttributes)) {
-                    this.sysAttributes = TokenConstants.TOKEN_MSG_TIME + TokenConstants.EQ + this.msgTime;
-                } else {
-                    this.sysAttributes += TokenConstants.ARRAY_SEP + TokenConstants.TOKEN_MSG_TIME
-                            + TokenConstants.EQ + this.msgTime;
+            sBuilder.append(TokenConstants.TOKEN_MSG_TIME)
+                    .append(TokenConstants.EQ).append(this.msgTime);
+        }
+        if (this.attrKeyVals != null) {
+            for (Map.Entry<String, String> entry : this.attrKeyVals.entrySet()) {
+                if (sBuilder.length() > 0) {
+                    sBuilder.append(TokenConstants.ARRAY_SEP);
+                }
+                sBuilder.append(entry.getKey());
+                if (entry.getValue() != null) {
+                    sBuilder.append(TokenConstants.EQ).append(entry.getValue());
                 }
             }
         }
+        return sBuilder.length() == 0 ? null : sBuilder.toString();
     }
 }
@@ -23,4 +23,10 @@ public class MessageExt extends Message {
         super(indexId, topic, data, attribute, flag);
     }
 
+    public MessageExt(long indexId, String topic, byte[] rcvBuffer,
+                      int attrOffset, int attrLength,
+                      int dataOffset, int dataLength, int flag) {
+        super(indexId, topic, rcvBuffer, attrOffset, attrLength, dataOffset, dataLength, flag);
+    }
+
 }
@@ -36,6 +36,8 @@ public class TokenConstants {
     public static final String TOKEN_TLS_PORT = "TLSPort";
     public static final String TOKEN_MCACHE_MSG_SIZE = "memCacheMsgSizeInMB";
     public static final String TOKEN_MCACHE_FLUSH_INTVL = "memCacheFlushIntvl";
+    public static final String TOKEN_MCACHE_BUFFER_CNT = "memCacheBufferCnt";
+    public static final String TOKEN_REPLICA_OF = "replicaOf";
     public static final String TOKEN_MSG_TYPE = "$msgType$";
     public static final String TOKEN_MSG_TIME = "$msgTime$";
 
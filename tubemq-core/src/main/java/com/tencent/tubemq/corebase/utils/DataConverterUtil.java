@@ -26,7 +26,6 @@ import com.tencent.tubemq.corebase.cluster.Partition;
 import com.tencent.tubemq.corebase.cluster.SubscribeInfo;
 import com.tencent.tubemq.corebase.cluster.TopicInfo;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -200,42 +199,30 @@ public class DataConverterUtil {
         }
         for (ClientBroker.TransferedMessage trsMessage : transferedMessageList) {
             final int flag = trsMessage.getFlag();
-            int dataCheckSum = trsMessage.getCheckSum();
-            final ByteBuffer payloadData = ByteBuffer.allocate(trsMessage.getPayLoadData().size());
-            payloadData.put(trsMessage.getPayLoadData().toByteArray());
-            payloadData.flip();
-            int payloadDataLen = payloadData.array().length;
-            int currentChecksum = CheckSum.crc32(payloadData.array());
-            if (dataCheckSum != currentChecksum) {
+            // the payload is copied once, the message data and attribute are views of it
+            final byte[] payloadData = trsMessage.getPayLoadData().toByteArray();
+            if (trsMessage.getCheckSum() != CheckSum.crc32(payloadData)) {
                 continue;
             }
             int readPos = 0;
-            String attribute = null;
+            int payloadDataLen = payloadData.length;
+            int attrLen = 0;
             if (MessageFlagUtils.hasAttribute(flag)) {
                 if (payloadDataLen < 4) {
                     continue;
                 }
-                final int attrLen = payloadData.getInt(0);
+                attrLen = ByteBuffer.wrap(payloadData).getInt(0);
                 payloadDataLen -= 4;
                 readPos += 4;
                 if (attrLen > payloadDataLen) {
                     continue;
                 }
                 if (attrLen > 0) {
-                    final byte[] attrData = new byte[attrLen];
-                    System.arraycopy(payloadData.array(), readPos, attrData, 0, attrLen);
-                    try {
-                        attribute = new String(attrData, TBaseConstants.META_DEFAULT_CHARSET_NAME);
-                    } catch (final UnsupportedEncodingException e) {
-                        throw new RuntimeException(e);
-                    }
-                    readPos += attrLen;
                     payloadDataLen -= attrLen;
                 }
             }
-            final byte[] payload = new byte[payloadDataLen];
-            System.arraycopy(payloadData.array(), readPos, payload, 0, payloadDataLen);
-            messageList.add(new MessageExt(trsMessage.getMessageId(), topicName, payload, attribute, flag));
+            messageList.add(new MessageExt(trsMessage.getMessageId(), topicName, payloadData,
+                    readPos, attrLen, readPos + Math.max(attrLen, 0), payloadDataLen, flag));
         }
         return messageList;
     }
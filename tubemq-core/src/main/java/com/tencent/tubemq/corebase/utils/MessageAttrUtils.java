@@ -0,0 +1,207 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.corebase.utils;
+
+import com.tencent.tubemq.corebase.TBaseConstants;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Binary message attribute codec, used when the message flag has the binary attribute bit.
+ * The layout is:
+ * <pre>
+ *   byte   version
+ *   long   msgTime as the yyyyMMddHHmm number, -1 if absent
+ *   short  msgType length, -1 if absent, followed by the msgType bytes
+ *   short  key-value count, followed by the key-values, each is
+ *          short key length, key bytes, short value length (-1 if absent), value bytes
+ * </pre>
+ * msgTime is kept at a fixed position so the broker can read it without decoding the rest.
+ */
+public class MessageAttrUtils {
+
+    public static final byte BINARY_ATTR_VERSION = 1;
+    public static final int BINARY_ATTR_POS_MSGTIME = 1;
+    public static final int BINARY_ATTR_HEAD_LEN = 1 + 8;
+    private static final int MSG_TIME_LENGTH = 12;
+
+
+    /**
+     * Encode the attribute items in binary format
+     *
+     * @param msgType   message type, null if absent
+     * @param msgTime   message time in yyyyMMddHHmm format, null if absent
+     * @param keyVals   user key-values, may be null
+     * @return the encoded attribute
+     */
+    public static byte[] encodeAttribute(final String msgType,
+                                         final String msgTime,
+                                         final Map<String, String> keyVals) {
+        final byte[] typeData = checkLength(toBytes(msgType));
+        int attrLen = BINARY_ATTR_HEAD_LEN + 2 + (typeData == null ? 0 : typeData.length) + 2;
+        byte[][] keyValData = null;
+        if (keyVals != null && !keyVals.isEmpty()) {
+            keyValData = new byte[keyVals.size() * 2][];
+            int index = 0;
+            for (Map.Entry<String, String> entry : keyVals.entrySet()) {
+                keyValData[index] = checkLength(toBytes(entry.getKey()));
+                keyValData[index + 1] = checkLength(toBytes(entry.getValue()));
+                attrLen += 2 + keyValData[index].length + 2
+                        + (keyValData[index + 1] == null ? 0 : keyValData[index + 1].length);
+                index += 2;
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(attrLen);
+        buffer.put(BINARY_ATTR_VERSION);
+        buffer.putLong(TStringUtils.isBlank(msgTime) ? -1L : Long.parseLong(msgTime));
+        putBytes(buffer, typeData);
+        if (keyValData == null) {
+            buffer.putShort((short) 0);
+        } else {
+            buffer.putShort((short) (keyValData.length / 2));
+            for (byte[] itemData : keyValData) {
+                putBytes(buffer, itemData);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decode a binary attribute, a truncated attribute is decoded as far as it goes
+     *
+     * @param attrData  buffer holding the attribute
+     * @param offset    attribute offset in the buffer
+     * @param length    attribute length
+     * @param keyVals   receives the user key-values
+     * @return the message type, null if absent
+     */
+    public static String decodeAttribute(final byte[] attrData, final int offset,
+                                         final int length, final Map<String, String> keyVals) {
+        if (length < BINARY_ATTR_HEAD_LEN + 2) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(attrData, offset, length);
+        buffer.position(offset + BINARY_ATTR_HEAD_LEN);
+        String msgType = null;
+        try {
+            msgType = getString(buffer);
+            final int keyValCnt = buffer.getShort();
+            for (int i = 0; i < keyValCnt; i++) {
+                final String key = getString(buffer);
+                final String value = getString(buffer);
+                if (key != null) {
+                    keyVals.put(key, value);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            //
+        }
+        return msgType;
+    }
+
+    /**
+     * Get the message time of a binary attribute
+     *
+     * @param buffer    buffer holding the attribute
+     * @param offset    attribute offset in the buffer
+     * @param length    attribute length
+     * @return the message time in yyyyMMddHHmm format, null if absent
+     */
+    public static String getMsgTime(final ByteBuffer buffer, final int offset, final int length) {
+        if (length < BINARY_ATTR_HEAD_LEN) {
+            return null;
+        }
+        final long msgTime = buffer.getLong(offset + BINARY_ATTR_POS_MSGTIME);
+        if (msgTime < 0) {
+            return null;
+        }
+        final String strMsgTime = String.valueOf(msgTime);
+        if (strMsgTime.length() >= MSG_TIME_LENGTH) {
+            return strMsgTime;
+        }
+        return "000000000000".substring(strMsgTime.length()) + strMsgTime;
+    }
+
+    /**
+     * Check if the message time is a 12 digits yyyyMMddHHmm value
+     *
+     * @param msgTime
+     * @return
+     */
+    public static boolean isValidMsgTime(final String msgTime) {
+        if (msgTime == null || msgTime.length() != MSG_TIME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MSG_TIME_LENGTH; i++) {
+            final char ch = msgTime.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] toBytes(final String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return value.getBytes(TBaseConstants.META_DEFAULT_CHARSET_NAME);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] checkLength(final byte[] itemData) {
+        if (itemData != null && itemData.length > Short.MAX_VALUE) {
+            throw new IllegalStateException(new StringBuilder(256)
+                    .append("Attribute item's length over max allowed length ")
+                    .append(Short.MAX_VALUE).toString());
+        }
+        return itemData;
+    }
+
+    private static void putBytes(final ByteBuffer buffer, final byte[] itemData) {
+        if (itemData == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) itemData.length);
+            buffer.put(itemData);
+        }
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final int itemLen = buffer.getShort();
+        if (itemLen < 0) {
+            return null;
+        }
+        if (itemLen > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        try {
+            final String value = new String(buffer.array(), buffer.position(),
+                    itemLen, TBaseConstants.META_DEFAULT_CHARSET_NAME);
+            buffer.position(buffer.position() + itemLen);
+            return value;
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -21,16 +21,33 @@ import com.tencent.tubemq.corebase.Message;
 
 public class MessageFlagUtils {
 
+    // the payload starts with a length prefixed attribute
+    public static final int FLAG_ATTRIBUTE = 0x1;
+    // the attribute is in the binary format of MessageAttrUtils
+    public static final int FLAG_BINARY_ATTRIBUTE = 0x2;
+
     public static int getFlag(final Message message) {
         int flag = 0;
-        if (message != null && message.getAttribute() != null) {
-            flag = flag & 0xFFFFFFFE | 1;
+        if (message != null && message.hasAttribute()) {
+            flag = flag & 0xFFFFFFFE | FLAG_ATTRIBUTE;
+        }
+        return flag;
+    }
+
+    public static int getFlag(final Message message, final boolean binaryAttribute) {
+        int flag = getFlag(message);
+        if (binaryAttribute && hasAttribute(flag)) {
+            flag |= FLAG_BINARY_ATTRIBUTE;
         }
         return flag;
     }
 
     public static boolean hasAttribute(final int flag) {
-        return (flag & 0x1) == 1;
+        return (flag & FLAG_ATTRIBUTE) == 1;
+    }
+
+    public static boolean hasBinaryAttribute(final int flag) {
+        return hasAttribute(flag) && (flag & FLAG_BINARY_ATTRIBUTE) != 0;
     }
 
 }
@@ -76,6 +76,7 @@ public final class RpcConstants {
     public static final int RPC_SERVICE_TYPE_BROKER_WRITE_SERVICE = 3;
     public static final int RPC_SERVICE_TYPE_BROKER_ADMIN_SERVICE = 4;
     public static final int RPC_SERVICE_TYPE_MASTER_ADMIN_SERVICE = 5;
+    public static final int RPC_SERVICE_TYPE_BROKER_REPLICA_SERVICE = 6;
 
     public static final int RPC_MSG_MASTER_METHOD_BEGIN = 1;
     public static final int RPC_MSG_MASTER_PRODUCER_REGISTER = 1;
@@ -101,6 +102,8 @@ public final class RpcConstants {
     public static final int RPC_MSG_BROKER_CONSUMER_CLOSE = 19;
     //public static final int RPC_MSG_BROKER_METHOD_END = 19;
 
+    public static final int RPC_MSG_BROKER_REPLICA_FETCH = 21;
+
     public static final int MSG_OPTYPE_REGISTER = 31;
     public static final int MSG_OPTYPE_UNREGISTER = 32;
 
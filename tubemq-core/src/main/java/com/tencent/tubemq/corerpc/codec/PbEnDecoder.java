@@ -51,15 +51,20 @@ public class PbEnDecoder {
         rpcMethodMap.put("getMessagesC2B", RpcConstants.RPC_MSG_BROKER_CONSUMER_GETMESSAGE);
         rpcMethodMap.put("consumerCommitC2B", RpcConstants.RPC_MSG_BROKER_CONSUMER_COMMIT);
         rpcMethodMap.put("sendMessageP2B", RpcConstants.RPC_MSG_BROKER_PRODUCER_SENDMESSAGE);
+        rpcMethodMap.put("fetchReplicaB2B", RpcConstants.RPC_MSG_BROKER_REPLICA_FETCH);
 
         rpcServiceMap.put("com.tencent.tubemq.corerpc.service.MasterService",
                 RpcConstants.RPC_SERVICE_TYPE_MASTER_SERVICE);
         rpcServiceMap.put("com.tencent.tubemq.corerpc.service.BrokerReadService",
                 RpcConstants.RPC_SERVICE_TYPE_BROKER_READ_SERVICE);
+        rpcServiceMap.put("com.tencent.tubemq.corerpc.service.BrokerReadService$AsyncService",
+                RpcConstants.RPC_SERVICE_TYPE_BROKER_READ_SERVICE);
         rpcServiceMap.put("com.tencent.tubemq.corerpc.service.BrokerWriteService",
                 RpcConstants.RPC_SERVICE_TYPE_BROKER_WRITE_SERVICE);
         rpcServiceMap.put("com.tencent.tubemq.corerpc.service.BrokerWriteService$AsyncService",
                 RpcConstants.RPC_SERVICE_TYPE_BROKER_WRITE_SERVICE);
+        rpcServiceMap.put("com.tencent.tubemq.corerpc.service.BrokerReplicaService",
+                RpcConstants.RPC_SERVICE_TYPE_BROKER_REPLICA_SERVICE);
 
     }
 
@@ -125,6 +130,9 @@ public class PbEnDecoder {
                 case RpcConstants.RPC_MSG_BROKER_CONSUMER_COMMIT: {
                     return ClientBroker.CommitOffsetRequestC2B.parseFrom(bytes);
                 }
+                case RpcConstants.RPC_MSG_BROKER_REPLICA_FETCH: {
+                    return ClientBroker.ReplicaFetchRequestB2B.parseFrom(bytes);
+                }
                 case RpcConstants.RPC_MSG_BROKER_CONSUMER_CLOSE:
                 case RpcConstants.RPC_MSG_BROKER_PRODUCER_CLOSE:
                 case RpcConstants.RPC_MSG_BROKER_PRODUCER_REGISTER:
@@ -179,6 +187,9 @@ public class PbEnDecoder {
                 case RpcConstants.RPC_MSG_BROKER_CONSUMER_COMMIT: {
                     return ClientBroker.CommitOffsetResponseB2C.parseFrom(bytes);
                 }
+                case RpcConstants.RPC_MSG_BROKER_REPLICA_FETCH: {
+                    return ClientBroker.ReplicaFetchResponseB2B.parseFrom(bytes);
+                }
                 case RpcConstants.RPC_MSG_BROKER_CONSUMER_CLOSE:
                 case RpcConstants.RPC_MSG_BROKER_PRODUCER_CLOSE:
                 case RpcConstants.RPC_MSG_BROKER_PRODUCER_REGISTER:
@@ -292,6 +303,21 @@ public class PbEnDecoder {
                     }
                 }
             }
+            case RpcConstants.RPC_SERVICE_TYPE_BROKER_REPLICA_SERVICE: {
+                switch (methodId) {
+                    case RpcConstants.RPC_MSG_BROKER_REPLICA_FETCH: {
+                        return true;
+                    }
+                    default: {
+                        if (sBuilder != null) {
+                            sBuilder.append("Unsupported method ").append(methodId)
+                                    .append("in service type ").append(serviceId)
+                                    .append("!");
+                        }
+                        return false;
+                    }
+                }
+            }
             default: {
                 if (sBuilder != null) {
                     sBuilder.append("Service Type is invalid!");
@@ -18,6 +18,7 @@
 package com.tencent.tubemq.corerpc.service;
 
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker;
+import com.tencent.tubemq.corerpc.client.Callback;
 
 
 public interface BrokerReadService {
@@ -34,4 +35,11 @@ public interface BrokerReadService {
     ClientBroker.CommitOffsetResponseB2C consumerCommitC2B(ClientBroker.CommitOffsetRequestC2B request,
                                                            final String rmtAddress, boolean overtls) throws Throwable;
 
+    interface AsyncService extends BrokerReadService {
+
+        void getMessagesC2B(ClientBroker.GetMessageRequestC2B request, final String rmtAddress,
+                            boolean overtls, Callback callback) throws Throwable;
+
+    }
+
 }
@@ -17,18 +17,34 @@
 
 package com.tencent.tubemq.corerpc.codec;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import com.google.protobuf.ByteString;
+import com.tencent.tubemq.corebase.Message;
 import com.tencent.tubemq.corebase.cluster.BrokerInfo;
 import com.tencent.tubemq.corebase.cluster.Partition;
 import com.tencent.tubemq.corebase.cluster.SubscribeInfo;
 import com.tencent.tubemq.corebase.cluster.TopicInfo;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker;
+import com.tencent.tubemq.corebase.utils.CheckSum;
 import com.tencent.tubemq.corebase.utils.DataConverterUtil;
+import com.tencent.tubemq.corebase.utils.MessageFlagUtils;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DataConverterUtilTest {
+    private static final Logger logger = LoggerFactory.getLogger(DataConverterUtilTest.class);
 
     private static boolean subscribeInfoEqual(SubscribeInfo o1, SubscribeInfo o2) {
         return o1.getPartition().equals(o2.getPartition())
@@ -36,6 +52,138 @@ public class DataConverterUtilTest {
                 && o1.getGroup().equals(o2.getGroup());
     }
 
+    private static ClientBroker.TransferedMessage buildTransferedMessage(long msgId,
+                                                                         byte[] data,
+                                                                         String attribute) {
+        return buildTransferedMessage(msgId, data,
+                attribute == null ? null : attribute.getBytes(), attribute == null ? 0 : 1);
+    }
+
+    private static ClientBroker.TransferedMessage buildTransferedMessage(long msgId,
+                                                                         byte[] data,
+                                                                         byte[] attrData,
+                                                                         int flag) {
+        ByteBuffer payload;
+        if (attrData == null) {
+            payload = ByteBuffer.wrap(data);
+        } else {
+            payload = ByteBuffer.allocate(4 + attrData.length + data.length);
+            payload.putInt(attrData.length);
+            payload.put(attrData);
+            payload.put(data);
+        }
+        return ClientBroker.TransferedMessage.newBuilder()
+                .setMessageId(msgId)
+                .setCheckSum(CheckSum.crc32(payload.array()))
+                .setFlag(flag)
+                .setPayLoadData(ByteString.copyFrom(payload.array()))
+                .build();
+    }
+
+    @Test
+    public void convertMessage() {
+        byte[] data = "test message body".getBytes();
+        List<ClientBroker.TransferedMessage> trsMessages =
+                new ArrayList<ClientBroker.TransferedMessage>();
+        trsMessages.add(buildTransferedMessage(1L, data, null));
+        trsMessages.add(buildTransferedMessage(2L, data, "key=val,$msgType$=tag1"));
+        List<Message> messages = DataConverterUtil.convertMessage("test", trsMessages);
+        assertEquals(2, messages.size());
+        // without attribute
+        Message message = messages.get(0);
+        assertFalse(message.hasAttribute());
+        assertNull(message.getAttribute());
+        assertEquals(data.length, message.getDataLength());
+        assertEquals(ByteBuffer.wrap(data), message.getDataBuffer());
+        assertArrayEquals(data, message.getData());
+        // with attribute
+        message = messages.get(1);
+        assertTrue(message.hasAttribute());
+        assertEquals(data.length, message.getDataLength());
+        ByteBuffer dataBuffer = message.getDataBuffer();
+        assertEquals(0, dataBuffer.position());
+        assertEquals(ByteBuffer.wrap(data), dataBuffer);
+        try {
+            dataBuffer.put(0, (byte) 0);
+            fail("data buffer should be read-only");
+        } catch (ReadOnlyBufferException e) {
+            //
+        }
+        assertEquals("key=val,$msgType$=tag1", message.getAttribute());
+        assertEquals("tag1", message.getMsgType());
+        assertArrayEquals(data, message.getData());
+        assertEquals(ByteBuffer.wrap(data), message.getDataBuffer());
+        // broken checksum
+        trsMessages.clear();
+        trsMessages.add(buildTransferedMessage(3L, data, null).toBuilder().setCheckSum(0).build());
+        assertTrue(DataConverterUtil.convertMessage("test", trsMessages).isEmpty());
+    }
+
+    @Test
+    public void convertBinaryAttributeMessage() {
+        byte[] data = "test message body".getBytes();
+        Message sentMessage = new Message("test", data);
+        sentMessage.setAttrKeyVal("key1", "val1");
+        sentMessage.putSystemHeader("tag1", "201910181000");
+        sentMessage.setAttrKeyVal("key2", "val2");
+        int flag = MessageFlagUtils.getFlag(sentMessage, true);
+        assertTrue(MessageFlagUtils.hasBinaryAttribute(flag));
+        List<ClientBroker.TransferedMessage> trsMessages =
+                new ArrayList<ClientBroker.TransferedMessage>();
+        trsMessages.add(buildTransferedMessage(1L, data, sentMessage.getBinaryAttribute(), flag));
+        List<Message> messages = DataConverterUtil.convertMessage("test", trsMessages);
+        assertEquals(1, messages.size());
+        Message message = messages.get(0);
+        assertTrue(message.hasAttribute());
+        assertEquals("tag1", message.getMsgType());
+        assertEquals("201910181000", message.getMsgTime());
+        assertEquals("val1", message.getAttrValue("key1"));
+        assertEquals("val2", message.getAttrValue("key2"));
+        assertNull(message.getAttrValue("key3"));
+        assertEquals(sentMessage.getAttribute(), message.getAttribute());
+        assertEquals("$msgType$=tag1,$msgTime$=201910181000,key1=val1,key2=val2",
+                message.getAttribute());
+        assertArrayEquals(data, message.getData());
+        // text attribute of the same items
+        trsMessages.clear();
+        trsMessages.add(buildTransferedMessage(2L, data, sentMessage.getAttribute()));
+        message = DataConverterUtil.convertMessage("test", trsMessages).get(0);
+        assertEquals("tag1", message.getMsgType());
+        assertEquals("201910181000", message.getMsgTime());
+        assertEquals("val2", message.getAttrValue("key2"));
+        message.putSystemHeader("tag2", null);
+        message.setAttrKeyVal("key1", "val3");
+        assertEquals("$msgType$=tag2,key2=val2,key1=val3", message.getAttribute());
+    }
+
+    /***
+     * Decode 1KB messages with attribute and read their payloads through getDataBuffer(),
+     * the message count is set by tubemq.test.convertMessageCnt.
+     */
+    @Test
+    public void convertMessageThroughput() {
+        final int msgCnt = Integer.getInteger("tubemq.test.convertMessageCnt", 100000);
+        final int batchSize = 32;
+        byte[] data = new byte[1024];
+        Arrays.fill(data, (byte) 'a');
+        List<ClientBroker.TransferedMessage> trsMessages =
+                new ArrayList<ClientBroker.TransferedMessage>();
+        for (int i = 0; i < batchSize; i++) {
+            trsMessages.add(buildTransferedMessage(i, data, "$msgType$=tag1,$msgTime$=201910181000"));
+        }
+        long readSize = 0L;
+        long startTime = System.currentTimeMillis();
+        for (int cnt = 0; cnt < msgCnt; cnt += batchSize) {
+            for (Message message : DataConverterUtil.convertMessage("test", trsMessages)) {
+                readSize += message.getDataBuffer().remaining();
+            }
+        }
+        long wastTime = Math.max(1L, System.currentTimeMillis() - startTime);
+        assertTrue(readSize >= (long) msgCnt * data.length);
+        logger.info("Decode " + readSize / 1024 / 1024 + "MB, "
+                + readSize * 1000 / 1024 / 1024 / wastTime + "MB/s, wast time " + wastTime + "ms");
+    }
+
     @Test
     public void testDataConvert() {
         // broker convert
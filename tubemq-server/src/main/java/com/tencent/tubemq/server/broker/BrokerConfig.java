@@ -79,6 +79,14 @@ public class BrokerConfig extends AbstractFileConfig {
     private int maxSSDTotalFileCnt = 70;
     // max ssd file size
     private long maxSSDTotalFileSizes = 32212254720L;
+    // ssd transfer worker thread count
+    private int ssdTransferThreadCnt = 2;
+    // max concurrent ssd transfers reading from the same disk
+    private int ssdTransferMaxPerDisk = 1;
+    // max pending ssd transfer requests
+    private int ssdTransferQueueSize = 60;
+    // ssd copy throughput limit in bytes per second, 0 means no limit
+    private long ssdTransferBytesPerSec = 0L;
     // consumer register timeout in milliseconds
     private int consumerRegTimeoutMs = 30000;
     private boolean updateConsumerOffsets = true;
@@ -92,6 +100,14 @@ public class BrokerConfig extends AbstractFileConfig {
     private long nettyWriteBufferLowWaterMark = 5 * 1024 * 1024;
     // log cleanup interval in milliseconds
     private long logClearupDurationMs = 30 * 60 * 1000;
+    // threads deleting the expired files, one data directory at a time each
+    private int logClearupThreadCnt = 4;
+    // delete rate of the expired files of each data directory in bytes per second, 0 means no limit
+    private long logClearupBytesPerSec = 0L;
+    // max total size of the data files of the broker, 0 means no limit
+    private long logRetentionMaxBytes = 0L;
+    // max used percent of the disk of the primary path before the oldest files are deleted, 0 means no limit
+    private int logRetentionMaxDiskUsage = 0;
     // log flush to disk interval in milliseconds
     private long logFlushDiskDurMs = 20 * 1000;
     // memory flush to disk interval in milliseconds
@@ -110,6 +126,58 @@ public class BrokerConfig extends AbstractFileConfig {
     // row lock wait duration
     private int rowLockWaitDurMs =
             TServerConstants.CFG_ROWLOCK_DEFAULT_DURATION;
+    // offset storage type, zookeeper or file
+    private String offsetStorageType = TServerConstants.OFFSET_STORAGE_TYPE_ZK;
+    // directory of the file offset storage, default is primaryPath/.offsets
+    private String offsetStoragePath;
+    // whether the cold data files are offloaded to the tiered store
+    private boolean tieredStoreEnable = false;
+    // blob store implementation class of the tiered store
+    private String tieredStoreClass =
+            "com.tencent.tubemq.server.broker.msgstore.tiered.LocalFileBlobStore";
+    // base path of the local file blob store, default is primaryPath/.tiered
+    private String tieredStorePath;
+    // age in milliseconds after which an immutable data file is offloaded
+    private long tieredOffloadAfterMs = 60 * 60 * 1000;
+    // used percent of the disk of the primary path above which offloaded local files are removed
+    private int tieredEvictDiskUsage = 80;
+    // max size of the local cache of the fetched offloaded files
+    private long tieredCacheMaxBytes = 2L * 1024 * 1024 * 1024;
+    // offload and eviction check interval in milliseconds
+    private long tieredCheckIntervalMs = 60 * 1000;
+    // offset log size that triggers a snapshot of the file offset storage
+    private long offsetLogCompactSize =
+            TServerConstants.CFG_OFFSET_LOG_DEFAULT_COMPACT_SIZE;
+    // whether the file offset storage reads offsets missing locally from zookeeper
+    private boolean offsetMigrateFromZk = true;
+    // whether writes to a store still flushing a full write cache are rejected at once
+    private boolean writeAdmissionEnable = true;
+    // max retry-after hint returned with a rejected write
+    private long writeRetryAfterMaxMs = 1000;
+    // write cache flush threads of each data directory
+    private int memFlushThreadsPerDisk = 4;
+    // default count of write caches in the ring of a store
+    private int memCacheBufferCnt = 3;
+    // max total size of the write caches of all the stores
+    private long memCacheMaxTotalSize = 4 * 1024 * 1024 * 1024L;
+    // max total size of the write cache buffers pooled for reuse
+    private long memCachePoolMaxSize = 256 * 1024 * 1024L;
+    // idle time of a store before its write cache buffers are released
+    private long memCacheIdleReleaseMs = 60000L;
+    // interval in milliseconds between two pulls of the follower stores from their leaders
+    private long replicaFetchIntervalMs = 1000L;
+    // max data size of a replica block pulled from a leader
+    private int replicaFetchMaxSize = 2 * 1024 * 1024;
+    // messages a consumer of a replicated topic is behind before its reads move to the follower
+    private long replicaReadLagMsgCnt = 100000L;
+    // whether the data files behind the hot window are read through the cold read buffers
+    private boolean coldReadEnable = false;
+    // data bytes before the end of a store that are read through the page cache
+    private long coldReadHotWindowSize = 1024 * 1024 * 1024L;
+    // size of a cold read buffer
+    private int coldReadBufferSize = 1024 * 1024;
+    // count of the cold read buffers, also the max concurrent cold reads
+    private int coldReadBufferCnt = 16;
     // zookeeper config
     private ZKConfig zkConfig = new ZKConfig();
     // tls config
@@ -179,6 +247,22 @@ public class BrokerConfig extends AbstractFileConfig {
         return maxSSDTotalFileSizes;
     }
 
+    public int getSsdTransferThreadCnt() {
+        return ssdTransferThreadCnt;
+    }
+
+    public int getSsdTransferMaxPerDisk() {
+        return ssdTransferMaxPerDisk;
+    }
+
+    public int getSsdTransferQueueSize() {
+        return ssdTransferQueueSize;
+    }
+
+    public long getSsdTransferBytesPerSec() {
+        return ssdTransferBytesPerSec;
+    }
+
     public long getAuthValidTimeStampPeriodMs() {
         return authValidTimeStampPeriodMs;
     }
@@ -250,6 +334,20 @@ public class BrokerConfig extends AbstractFileConfig {
                 this.logClearupDurationMs = 20 * 60 * 1000;
             }
         }
+        if (TStringUtils.isNotBlank(brokerSect.get("logClearupThreadCnt"))) {
+            this.logClearupThreadCnt =
+                    Math.max(1, getInt(brokerSect, "logClearupThreadCnt"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("logClearupBytesPerSec"))) {
+            this.logClearupBytesPerSec = getLong(brokerSect, "logClearupBytesPerSec");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("logRetentionMaxBytes"))) {
+            this.logRetentionMaxBytes = getLong(brokerSect, "logRetentionMaxBytes");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("logRetentionMaxDiskUsage"))) {
+            this.logRetentionMaxDiskUsage =
+                    Math.max(0, Math.min(99, getInt(brokerSect, "logRetentionMaxDiskUsage")));
+        }
         if (TStringUtils.isNotBlank(brokerSect.get("logFlushDiskDurMs"))) {
             this.logFlushDiskDurMs = getLong(brokerSect, "logFlushDiskDurMs");
             if (this.logFlushDiskDurMs < 10000) {
@@ -287,6 +385,21 @@ public class BrokerConfig extends AbstractFileConfig {
         if (TStringUtils.isNotBlank(brokerSect.get("maxSSDTotalFileSizes"))) {
             this.maxSSDTotalFileSizes = getLong(brokerSect, "maxSSDTotalFileSizes");
         }
+        if (TStringUtils.isNotBlank(brokerSect.get("ssdTransferThreadCnt"))) {
+            this.ssdTransferThreadCnt =
+                    Math.max(1, getInt(brokerSect, "ssdTransferThreadCnt"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("ssdTransferMaxPerDisk"))) {
+            this.ssdTransferMaxPerDisk =
+                    Math.max(1, getInt(brokerSect, "ssdTransferMaxPerDisk"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("ssdTransferQueueSize"))) {
+            this.ssdTransferQueueSize =
+                    Math.max(1, getInt(brokerSect, "ssdTransferQueueSize"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("ssdTransferBytesPerSec"))) {
+            this.ssdTransferBytesPerSec = getLong(brokerSect, "ssdTransferBytesPerSec");
+        }
         if (!TStringUtils.isBlank(brokerSect.get("quartzThreadCount"))) {
             this.quartzThreadCount = getInt(brokerSect, "quartzThreadCount");
         }
@@ -340,6 +453,102 @@ public class BrokerConfig extends AbstractFileConfig {
         if (TStringUtils.isNotBlank(brokerSect.get("ioExcptStatsDurationMs"))) {
             this.ioExcptStatsDurationMs = getLong(brokerSect, "ioExcptStatsDurationMs");
         }
+        if (TStringUtils.isNotBlank(brokerSect.get("offsetStorageType"))) {
+            this.offsetStorageType = brokerSect.get("offsetStorageType").trim();
+            if (!TServerConstants.OFFSET_STORAGE_TYPE_ZK.equals(this.offsetStorageType)
+                    && !TServerConstants.OFFSET_STORAGE_TYPE_FILE.equals(this.offsetStorageType)) {
+                throw new IllegalArgumentException(new StringBuilder(256)
+                        .append("Illegal offsetStorageType value in ").append(SECT_TOKEN_BROKER)
+                        .append(" section, allowed values are ")
+                        .append(TServerConstants.OFFSET_STORAGE_TYPE_ZK).append(" and ")
+                        .append(TServerConstants.OFFSET_STORAGE_TYPE_FILE).toString());
+            }
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("offsetStoragePath"))) {
+            this.offsetStoragePath = brokerSect.get("offsetStoragePath").trim();
+        } else {
+            this.offsetStoragePath = this.primaryPath + "/.offsets";
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("tieredStoreEnable"))) {
+            this.tieredStoreEnable = getBoolean(brokerSect, "tieredStoreEnable");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("tieredStoreClass"))) {
+            this.tieredStoreClass = brokerSect.get("tieredStoreClass").trim();
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("tieredStorePath"))) {
+            this.tieredStorePath = brokerSect.get("tieredStorePath").trim();
+        } else {
+            this.tieredStorePath = this.primaryPath + "/.tiered";
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("tieredOffloadAfterMs"))) {
+            this.tieredOffloadAfterMs = getLong(brokerSect, "tieredOffloadAfterMs");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("tieredEvictDiskUsage"))) {
+            this.tieredEvictDiskUsage =
+                    Math.max(0, Math.min(99, getInt(brokerSect, "tieredEvictDiskUsage")));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("tieredCacheMaxBytes"))) {
+            this.tieredCacheMaxBytes = getLong(brokerSect, "tieredCacheMaxBytes");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("tieredCheckIntervalMs"))) {
+            this.tieredCheckIntervalMs =
+                    Math.max(1000L, getLong(brokerSect, "tieredCheckIntervalMs"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("offsetLogCompactSize"))) {
+            this.offsetLogCompactSize = getLong(brokerSect, "offsetLogCompactSize");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("offsetMigrateFromZk"))) {
+            this.offsetMigrateFromZk = getBoolean(brokerSect, "offsetMigrateFromZk");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("writeAdmissionEnable"))) {
+            this.writeAdmissionEnable = getBoolean(brokerSect, "writeAdmissionEnable");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("writeRetryAfterMaxMs"))) {
+            this.writeRetryAfterMaxMs = getLong(brokerSect, "writeRetryAfterMaxMs");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("memFlushThreadsPerDisk"))) {
+            this.memFlushThreadsPerDisk =
+                    Math.max(1, getInt(brokerSect, "memFlushThreadsPerDisk"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("memCacheBufferCnt"))) {
+            this.memCacheBufferCnt =
+                    Math.max(2, getInt(brokerSect, "memCacheBufferCnt"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("memCacheMaxTotalSize"))) {
+            this.memCacheMaxTotalSize = getLong(brokerSect, "memCacheMaxTotalSize");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("memCachePoolMaxSize"))) {
+            this.memCachePoolMaxSize = getLong(brokerSect, "memCachePoolMaxSize");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("memCacheIdleReleaseMs"))) {
+            this.memCacheIdleReleaseMs = getLong(brokerSect, "memCacheIdleReleaseMs");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("replicaFetchIntervalMs"))) {
+            this.replicaFetchIntervalMs =
+                    Math.max(100L, getLong(brokerSect, "replicaFetchIntervalMs"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("replicaFetchMaxSize"))) {
+            this.replicaFetchMaxSize = Math.min(4 * 1024 * 1024,
+                    Math.max(64 * 1024, getInt(brokerSect, "replicaFetchMaxSize")));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("replicaReadLagMsgCnt"))) {
+            this.replicaReadLagMsgCnt = getLong(brokerSect, "replicaReadLagMsgCnt");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("coldReadEnable"))) {
+            this.coldReadEnable = getBoolean(brokerSect, "coldReadEnable");
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("coldReadHotWindowSize"))) {
+            this.coldReadHotWindowSize =
+                    Math.max(0L, getLong(brokerSect, "coldReadHotWindowSize"));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("coldReadBufferSize"))) {
+            this.coldReadBufferSize = Math.min(8 * 1024 * 1024,
+                    Math.max(64 * 1024, getInt(brokerSect, "coldReadBufferSize")));
+        }
+        if (TStringUtils.isNotBlank(brokerSect.get("coldReadBufferCnt"))) {
+            this.coldReadBufferCnt =
+                    Math.max(1, getInt(brokerSect, "coldReadBufferCnt"));
+        }
         if (TStringUtils.isNotBlank(brokerSect.get("visitMasterAuth"))) {
             this.visitMasterAuth = this.getBoolean(brokerSect, "visitMasterAuth");
         }
@@ -362,6 +571,22 @@ public class BrokerConfig extends AbstractFileConfig {
         return logClearupDurationMs;
     }
 
+    public int getLogClearupThreadCnt() {
+        return logClearupThreadCnt;
+    }
+
+    public long getLogClearupBytesPerSec() {
+        return logClearupBytesPerSec;
+    }
+
+    public long getLogRetentionMaxBytes() {
+        return logRetentionMaxBytes;
+    }
+
+    public int getLogRetentionMaxDiskUsage() {
+        return logRetentionMaxDiskUsage;
+    }
+
     public long getLogFlushDiskDurMs() {
         return logFlushDiskDurMs;
     }
@@ -458,6 +683,110 @@ public class BrokerConfig extends AbstractFileConfig {
         return visitPassword;
     }
 
+    public String getOffsetStorageType() {
+        return offsetStorageType;
+    }
+
+    public boolean isFileOffsetStorage() {
+        return TServerConstants.OFFSET_STORAGE_TYPE_FILE.equals(offsetStorageType);
+    }
+
+    public String getOffsetStoragePath() {
+        return offsetStoragePath;
+    }
+
+    public boolean isTieredStoreEnable() {
+        return tieredStoreEnable;
+    }
+
+    public String getTieredStoreClass() {
+        return tieredStoreClass;
+    }
+
+    public String getTieredStorePath() {
+        return tieredStorePath;
+    }
+
+    public long getTieredOffloadAfterMs() {
+        return tieredOffloadAfterMs;
+    }
+
+    public int getTieredEvictDiskUsage() {
+        return tieredEvictDiskUsage;
+    }
+
+    public long getTieredCacheMaxBytes() {
+        return tieredCacheMaxBytes;
+    }
+
+    public long getTieredCheckIntervalMs() {
+        return tieredCheckIntervalMs;
+    }
+
+    public long getOffsetLogCompactSize() {
+        return offsetLogCompactSize;
+    }
+
+    public boolean isOffsetMigrateFromZk() {
+        return offsetMigrateFromZk;
+    }
+
+    public boolean isWriteAdmissionEnable() {
+        return writeAdmissionEnable;
+    }
+
+    public long getWriteRetryAfterMaxMs() {
+        return writeRetryAfterMaxMs;
+    }
+
+    public int getMemFlushThreadsPerDisk() {
+        return memFlushThreadsPerDisk;
+    }
+
+    public int getMemCacheBufferCnt() {
+        return memCacheBufferCnt;
+    }
+
+    public long getMemCacheMaxTotalSize() {
+        return memCacheMaxTotalSize;
+    }
+
+    public long getMemCachePoolMaxSize() {
+        return memCachePoolMaxSize;
+    }
+
+    public long getMemCacheIdleReleaseMs() {
+        return memCacheIdleReleaseMs;
+    }
+
+    public long getReplicaFetchIntervalMs() {
+        return replicaFetchIntervalMs;
+    }
+
+    public int getReplicaFetchMaxSize() {
+        return replicaFetchMaxSize;
+    }
+
+    public long getReplicaReadLagMsgCnt() {
+        return replicaReadLagMsgCnt;
+    }
+
+    public boolean isColdReadEnable() {
+        return coldReadEnable;
+    }
+
+    public long getColdReadHotWindowSize() {
+        return coldReadHotWindowSize;
+    }
+
+    public int getColdReadBufferSize() {
+        return coldReadBufferSize;
+    }
+
+    public int getColdReadBufferCnt() {
+        return coldReadBufferCnt;
+    }
+
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this, ToStringStyle.MULTI_LINE_STYLE);
@@ -17,6 +17,7 @@
 
 package com.tencent.tubemq.server.broker;
 
+import com.google.protobuf.ByteString;
 import com.tencent.tubemq.corebase.Message;
 import com.tencent.tubemq.corebase.TBaseConstants;
 import com.tencent.tubemq.corebase.TErrCodeConstants;
@@ -31,6 +32,8 @@ import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.HeartBeatRequ
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.HeartBeatResponseB2C;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.RegisterRequestC2B;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.RegisterResponseB2C;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.ReplicaFetchRequestB2B;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.ReplicaFetchResponseB2B;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.SendMessageRequestP2B;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.SendMessageResponseB2P;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.TransferedMessage;
@@ -42,24 +45,26 @@ import com.tencent.tubemq.corebase.utils.TStringUtils;
 import com.tencent.tubemq.corerpc.RpcConfig;
 import com.tencent.tubemq.corerpc.RpcConstants;
 import com.tencent.tubemq.corerpc.service.BrokerReadService;
+import com.tencent.tubemq.corerpc.service.BrokerReplicaService;
 import com.tencent.tubemq.corerpc.service.BrokerWriteService;
 import com.tencent.tubemq.server.Server;
 import com.tencent.tubemq.server.broker.metadata.MetadataManage;
+import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
 import com.tencent.tubemq.server.broker.msgstore.MessageStore;
 import com.tencent.tubemq.server.broker.msgstore.MessageStoreManager;
+import com.tencent.tubemq.server.broker.msgstore.WriteAdmissionController;
 import com.tencent.tubemq.server.broker.msgstore.disk.GetMessageResult;
+import com.tencent.tubemq.server.broker.msgstore.disk.ReplicaBlock;
 import com.tencent.tubemq.server.broker.nodeinfo.ConsumerNodeInfo;
+import com.tencent.tubemq.server.broker.nodeinfo.ConsumerRegistry;
 import com.tencent.tubemq.server.broker.offset.OffsetService;
 import com.tencent.tubemq.server.broker.stats.CountService;
 import com.tencent.tubemq.server.broker.stats.GroupCountService;
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
 import com.tencent.tubemq.server.common.TServerConstants;
 import com.tencent.tubemq.server.common.TStatusConstants;
 import com.tencent.tubemq.server.common.aaaserver.CertificateBrokerHandler;
 import com.tencent.tubemq.server.common.aaaserver.CertifiedResult;
-import com.tencent.tubemq.server.common.exception.HeartbeatException;
-import com.tencent.tubemq.server.common.heartbeat.HeartbeatManager;
-import com.tencent.tubemq.server.common.heartbeat.TimeoutInfo;
-import com.tencent.tubemq.server.common.heartbeat.TimeoutListener;
 import com.tencent.tubemq.server.common.offsetstorage.OffsetStorageInfo;
 import com.tencent.tubemq.server.common.paramcheck.PBParameterUtils;
 import com.tencent.tubemq.server.common.paramcheck.ParamCheckResult;
@@ -72,7 +77,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.StringUtils;
 import org.slf4j.Logger;
@@ -81,22 +85,22 @@ import org.slf4j.LoggerFactory;
 /***
  * Broker service. Receive and conduct client's request, store messages, query messages, print statistics, etc.
  */
-public class BrokerServiceServer implements BrokerReadService, BrokerWriteService, Server {
+public class BrokerServiceServer implements BrokerReadService,
+        BrokerWriteService, BrokerReplicaService, Server {
     private static final Logger logger =
             LoggerFactory.getLogger(BrokerServiceServer.class);
     private final TubeBroker tubeBroker;
     private final BrokerConfig tubeConfig;
-    // registered consumers. format : consumer group - topic - partition id  --> consumer info
-    private final ConcurrentHashMap<String/* group:topic-partitionId */, ConsumerNodeInfo> consumerRegisterMap =
-            new ConcurrentHashMap<String, ConsumerNodeInfo>();
+    // registered consumers. consumer group - topic - partition id  --> consumer info
+    private final ConsumerRegistry consumerRegistry;
     // metadata manager.
     private final MetadataManage metadataManage;
     // offset storage manager.
     private final OffsetService offsetManager;
     // message storage manager.
     private final MessageStoreManager storeManager;
-    // heartbeat manager.
-    private final HeartbeatManager heartbeatManager;
+    // admission control of message writes.
+    private final WriteAdmissionController writeAdmission;
     // sequencer id generator.
     private final IdWorker idWorker;
     // row lock.
@@ -127,11 +131,13 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         this.idWorker = new IdWorker(0);
         this.putCounterGroup = new GroupCountService("PutCounterGroup", "Producer", 60 * 1000);
         this.getCounterGroup = new GroupCountService("GetCounterGroup", "Consumer", 60 * 1000);
-        this.heartbeatManager = new HeartbeatManager();
         this.brokerRowLock =
                 new RowLock("Broker-RowLock", this.tubeConfig.getRowLockWaitDurMs());
-        heartbeatManager.regConsumerCheckBusiness(
-                this.tubeConfig.getConsumerRegTimeoutMs(), consumerListener);
+        this.consumerRegistry =
+                new ConsumerRegistry(this.tubeConfig.getConsumerRegTimeoutMs(), consumerListener);
+        this.writeAdmission =
+                new WriteAdmissionController(this.tubeConfig.isWriteAdmissionEnable(),
+                        this.tubeConfig.getWriteRetryAfterMaxMs());
     }
 
     /***
@@ -141,6 +147,7 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
      */
     @Override
     public void start() throws Exception {
+        consumerRegistry.start();
         RpcConfig rpcWriteConfig = new RpcConfig();
         rpcWriteConfig.put(RpcConstants.NETTY_TCP_SENDBUF,
                 this.tubeConfig.getSocketSendBuffer());
@@ -157,6 +164,8 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         rpcReadConfig.put(RpcConstants.WORKER_COUNT, this.tubeConfig.getTcpReadServiceThread());
         tubeBroker.getRpcServiceFactory().publishService(BrokerReadService.class,
                 this, tubeConfig.getPort(), rpcReadConfig);
+        tubeBroker.getRpcServiceFactory().publishService(BrokerReplicaService.class,
+                this, tubeConfig.getPort(), rpcReadConfig);
         if (this.tubeConfig.isTlsEnable()) {
             // add tls config if enable tls. support tcp and tls in different port.
             TLSConfig tlsConfig = this.tubeConfig.getTlsConfig();
@@ -218,19 +227,78 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
             return;
         }
         this.started = false;
-        heartbeatManager.stop();
+        consumerRegistry.stop();
         putCounterGroup.close(-1);
         getCounterGroup.close(-1);
         logger.info("BrokerService server stopped");
     }
 
     /***
-     * Get broker's registered consumer info
+     * Get a snapshot of broker's registered consumer info
      *
      * @return
      */
     public Map<String, ConsumerNodeInfo> getConsumerRegisterMap() {
-        return consumerRegisterMap;
+        return consumerRegistry.getConsumerNodeInfoMap();
+    }
+
+    /***
+     * Get the consumers lagging on the replicated topics, the master moves their reads to the
+     * follower brokers. A consumer on a leader lags beyond the lag count, a consumer on a follower
+     * still lags beyond half of it, so the reads do not move back and forth. The offsets in the
+     * file offset storage are not shared between the brokers, so no consumer is reported.
+     *
+     * @return group:topic:partitionId of the lagging consumers
+     */
+    public List<String> getReplicaReadInfo() {
+        List<String> replicaReadInfo = new ArrayList<String>();
+        final long lagMsgCnt = this.tubeConfig.getReplicaReadLagMsgCnt();
+        if (lagMsgCnt <= 0 || this.tubeConfig.isFileOffsetStorage()) {
+            return replicaReadInfo;
+        }
+        for (String partStr : consumerRegistry.getConsumerNodeInfoMap().keySet()) {
+            String[] groupTopicPart = partStr.split(TokenConstants.ATTR_SEP);
+            TopicMetadata topicMetadata = this.metadataManage.getTopicMetadata(groupTopicPart[1]);
+            if (topicMetadata == null) {
+                continue;
+            }
+            long minLagMsgCnt;
+            if (topicMetadata.isReplica()) {
+                minLagMsgCnt = lagMsgCnt / 2;
+            } else if (topicMetadata.hasReplicaFollowers()) {
+                minLagMsgCnt = lagMsgCnt;
+            } else {
+                continue;
+            }
+            final int partitionId = Integer.parseInt(groupTopicPart[2]);
+            Collection<MessageStore> msgStores =
+                    this.storeManager.getMessageStoresByTopic(groupTopicPart[1]);
+            if (msgStores == null) {
+                continue;
+            }
+            for (MessageStore msgStore : msgStores) {
+                if (msgStore == null
+                        || msgStore.getStoreId() != partitionId / TBaseConstants.META_STORE_INS_BASE) {
+                    continue;
+                }
+                long curOffset = offsetManager.getOffset(groupTopicPart[0], groupTopicPart[1], partitionId);
+                if ((msgStore.getIndexMaxOffset() - curOffset)
+                        / DataStoreUtils.STORE_INDEX_HEAD_LEN > minLagMsgCnt) {
+                    replicaReadInfo.add(partStr);
+                }
+                break;
+            }
+        }
+        return replicaReadInfo;
+    }
+
+    /***
+     * Get the write admission status, including the rejected writes and the pending flush bytes.
+     *
+     * @return
+     */
+    public String getWriteAdmissionStatisInfo() {
+        return writeAdmission.getStatisInfo(storeManager.getMessageStores());
     }
 
     /***
@@ -240,7 +308,7 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
      * @return
      */
     public ConsumerNodeInfo getConsumerNodeInfo(String storeKey) {
-        return consumerRegisterMap.get(storeKey);
+        return consumerRegistry.getConsumerNodeInfo(storeKey);
     }
 
     /***
@@ -251,13 +319,108 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
      * @return
      */
     public Long getConsumerRegisterTime(String consumerId, String partitionStr) {
-        TimeoutInfo timeoutInfo =
-                heartbeatManager.getConsumerRegMap()
-                        .get(getHeartbeatNodeId(consumerId, partitionStr));
-        if (timeoutInfo == null) {
+        ConsumerRegistry.Registration registration =
+                consumerRegistry.getRegistration(partitionStr);
+        if (registration == null || !registration.getConsumerId().equals(consumerId)) {
             return null;
         }
-        return (timeoutInfo.getTimeoutTime() - heartbeatManager.getConsumerTimeoutDlt());
+        return registration.getLastHeartbeatTime();
+    }
+
+    /***
+     * Read the raw index and data records of a store for a follower broker.
+     * Only the brokers configured as followers of the topic are served.
+     *
+     * @param request
+     * @param rmtAddress
+     * @param overtls
+     * @return
+     * @throws Throwable
+     */
+    @Override
+    public ReplicaFetchResponseB2B fetchReplicaB2B(ReplicaFetchRequestB2B request,
+                                                   final String rmtAddress,
+                                                   boolean overtls) throws Throwable {
+        final ReplicaFetchResponseB2B.Builder builder =
+                ReplicaFetchResponseB2B.newBuilder();
+        builder.setSuccess(false);
+        if (ServiceStatusHolder.isReadServiceStop()) {
+            builder.setErrCode(TErrCodeConstants.SERVICE_UNAVILABLE);
+            builder.setErrMsg("Read StoreService temporary unavilable!");
+            return builder.build();
+        }
+        final String topicName = request.getTopicName();
+        if (TStringUtils.isBlank(topicName)) {
+            builder.setErrCode(TErrCodeConstants.BAD_REQUEST);
+            builder.setErrMsg("Request miss necessary topic field info!");
+            return builder.build();
+        }
+        StringBuilder strBuffer = new StringBuilder(512);
+        TopicMetadata topicMetadata = this.metadataManage.getTopicMetadata(topicName);
+        if (topicMetadata == null) {
+            builder.setErrCode(TErrCodeConstants.NOT_FOUND);
+            builder.setErrMsg(strBuffer.append("Topic ").append(topicName)
+                    .append(" not existed, please check your configure").toString());
+            return builder.build();
+        }
+        final int followerId = request.getBrokerId();
+        if (!topicMetadata.isReplicaFollower(followerId, rmtAddress)) {
+            logger.warn(strBuffer.append("[Replica Fetch] reject broker ").append(followerId)
+                    .append(" from ").append(rmtAddress).append(", not a follower of topic ")
+                    .append(topicName).toString());
+            strBuffer.delete(0, strBuffer.length());
+            builder.setErrCode(TErrCodeConstants.FORBIDDEN);
+            builder.setErrMsg(strBuffer.append("Broker ").append(followerId).append(" from ")
+                    .append(rmtAddress).append(" is not a follower of topic ")
+                    .append(topicName).toString());
+            return builder.build();
+        }
+        final int storeId = request.getStoreId();
+        MessageStore dataStore = null;
+        Collection<MessageStore> msgStores = this.storeManager.getMessageStoresByTopic(topicName);
+        if (msgStores != null) {
+            for (MessageStore msgStore : msgStores) {
+                if (msgStore != null && msgStore.getStoreId() == storeId) {
+                    dataStore = msgStore;
+                    break;
+                }
+            }
+        }
+        if (dataStore == null) {
+            builder.setErrCode(TErrCodeConstants.NOT_FOUND);
+            builder.setErrMsg(strBuffer.append("Store ").append(storeId).append(" of topic ")
+                    .append(topicName).append(" not found!").toString());
+            return builder.build();
+        }
+        try {
+            final int maxDataSize = Math.max(1, Math.min(request.getMaxDataSize(),
+                    this.tubeConfig.getReplicaFetchMaxSize()));
+            final ReplicaBlock replicaBlock =
+                    dataStore.readReplicaBlock(request.getIndexOffset(),
+                            request.getDataOffset(), maxDataSize);
+            final byte[] indexData = replicaBlock.getIndexBytes();
+            final byte[] msgData = replicaBlock.getDataBytes();
+            builder.setSuccess(replicaBlock.isSuccess());
+            builder.setErrCode(replicaBlock.retCode);
+            builder.setErrMsg(replicaBlock.errInfo);
+            builder.setIndexOffset(replicaBlock.indexOffset);
+            builder.setDataOffset(replicaBlock.dataOffset);
+            builder.setIndexData(ByteString.copyFrom(indexData));
+            builder.setIndexCheckSum(CheckSum.crc32(indexData));
+            builder.setMsgData(ByteString.copyFrom(msgData));
+            builder.setDataCheckSum(CheckSum.crc32(msgData));
+            builder.setLeaderIndexMaxOffset(replicaBlock.leaderIndexMaxOffset);
+            return builder.build();
+        } catch (Throwable e) {
+            logger.warn(strBuffer.append("[Replica Fetch] read store ").append(storeId)
+                    .append(" of topic ").append(topicName).append(" for ")
+                    .append(rmtAddress).append(" failure").toString(), e);
+            strBuffer.delete(0, strBuffer.length());
+            builder.setErrCode(TErrCodeConstants.INTERNAL_SERVER_ERROR);
+            builder.setErrMsg(strBuffer.append("Read replica block failure:")
+                    .append(e.getMessage()).toString());
+            return builder.build();
+        }
     }
 
     /***
@@ -314,15 +477,12 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         final String topicName = (String) paramCheckResult.checkData;
         final int partitionId = request.getPartitionId();
         boolean isEscFlowCtrl = request.hasEscFlowCtrl() && request.getEscFlowCtrl();
-        String partStr = getPartStr(groupName, topicName, partitionId);
-        String consumerId = null;
-        ConsumerNodeInfo consumerNodeInfo = consumerRegisterMap.get(partStr);
-        if (consumerNodeInfo != null) {
-            consumerId = consumerNodeInfo.getConsumerId();
-        }
-        if (consumerId == null) {
+        final ConsumerRegistry.Registration registration =
+                consumerRegistry.getRegistration(groupName, topicName, partitionId);
+        if (registration == null) {
             logger.warn(strBuffer.append("[UnRegistered Consumer]").append(clientId)
-                    .append(TokenConstants.SEGMENT_SEP).append(partStr).toString());
+                    .append(TokenConstants.SEGMENT_SEP)
+                    .append(getPartStr(groupName, topicName, partitionId)).toString());
             strBuffer.delete(0, strBuffer.length());
             builder.setErrCode(TErrCodeConstants.HB_NO_NODE);
             builder.setErrMsg(strBuffer.append("UnRegistered Consumer:")
@@ -330,8 +490,11 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                     .append(", you have to register firstly!").toString());
             return builder.build();
         }
+        final String consumerId = registration.getConsumerId();
+        final ConsumerNodeInfo consumerNodeInfo = registration.getNodeInfo();
         if (!clientId.equals(consumerId)) {
-            strBuffer.append("[Duplicated Request] Partition=").append(partStr)
+            strBuffer.append("[Duplicated Request] Partition=")
+                    .append(getPartStr(groupName, topicName, partitionId))
                     .append(" of Broker=").append(tubeConfig.getBrokerId())
                     .append(" has been consumed by ").append(consumerId)
                     .append(";Current consumer ").append(clientId);
@@ -341,14 +504,16 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
             return builder.build();
         }
         String rmtAddrInfo = consumerNodeInfo.getRmtAddrInfo();
-        try {
-            heartbeatManager.updConsumerNode(getHeartbeatNodeId(clientId, partStr));
-        } catch (HeartbeatException e) {
+        if (!consumerRegistry.heartbeat(registration)) {
             logger.warn(strBuffer.append("[Invalid Request]").append(clientId)
                     .append(TokenConstants.SEGMENT_SEP).append(topicName)
                     .append(TokenConstants.ATTR_SEP).append(partitionId).toString());
+            strBuffer.delete(0, strBuffer.length());
             builder.setErrCode(TErrCodeConstants.HB_NO_NODE);
-            builder.setErrMsg(e.getMessage());
+            builder.setErrMsg(strBuffer.append("Invalid node id:").append(clientId)
+                    .append(TokenConstants.SEGMENT_SEP)
+                    .append(getPartStr(groupName, topicName, partitionId))
+                    .append(", you have to append node first!").toString());
             return builder.build();
         }
         Integer topicStatusId = this.metadataManage.getCosedTopicStatusId(topicName);
@@ -663,6 +828,17 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         try {
             final MessageStore store =
                     this.storeManager.getOrCreateMessageStore(reqTopic, partition);
+            final long retryAfterMs = this.writeAdmission.admit(store, dataLength);
+            if (retryAfterMs > 0) {
+                builder.setErrCode(TErrCodeConstants.SERVER_RECEIVE_OVERFLOW);
+                builder.setRetryAfterMs(retryAfterMs);
+                builder.setErrMsg(strBuffer.append("Put message rejected from ")
+                        .append(tubeConfig.getHostName())
+                        .append(", server flush overloaded, pending flush bytes ")
+                        .append(store.getPendingFlushBytes()).append(", retry after ")
+                        .append(retryAfterMs).append("ms!").toString());
+                return builder.build();
+            }
             final long messageId = this.idWorker.nextId();
             if (store.appendMsg(messageId, dataLength, checkSum, msgData,
                     msgTypeCode, request.getFlag(), partition, request.getSentAddr())) {
@@ -679,6 +855,10 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                 return builder.build();
             } else {
                 builder.setErrCode(TErrCodeConstants.SERVER_RECEIVE_OVERFLOW);
+                if (this.writeAdmission.isEnable()) {
+                    builder.setRetryAfterMs(
+                            this.writeAdmission.getOverflowRetryAfterMs(store, dataLength));
+                }
                 builder.setErrMsg(strBuffer.append("Put message failed from ")
                         .append(tubeConfig.getHostName())
                         .append(", server receive message overflow!").toString());
@@ -828,12 +1008,14 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                                                           RegisterResponseB2C.Builder builder,
                                                           StringBuilder strBuffer) {
         String consumerId = null;
-        ConsumerNodeInfo consumerNodeInfo = consumerRegisterMap.get(partStr);
-        if (consumerNodeInfo != null) {
-            consumerId = consumerNodeInfo.getConsumerId();
+        ConsumerRegistry.Registration registration =
+                consumerRegistry.getRegistration(groupName, topicName, request.getPartitionId());
+        if (registration != null) {
+            consumerId = registration.getConsumerId();
         }
         if (TStringUtils.isEmpty(consumerId) || consumerId.equals(clientId)) {
-            final long reqOffset = request.hasCurrOffset() ? request.getCurrOffset() : -1;
+            long reqOffset = request.hasCurrOffset() ? request.getCurrOffset() : -1;
+            final long reqStartTimeMs = request.hasStartTimeMs() ? request.getStartTimeMs() : -1;
             long reqSessionTime = request.hasSessionTime() ? request.getSessionTime() : -1;
             String reqSessionKey = request.hasSessionKey() ? request.getSessionKey() : null;
             long reqSsdStoreId = request.hasSsdStoreId()
@@ -843,10 +1025,10 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
             boolean needSsdProc =
                     ((reqSsdStoreId != TBaseConstants.META_VALUE_UNDEFINED)
                             && (reqSsdStoreId == this.metadataManage.getFlowCtrlRuleHandler().getSsdTranslateId()));
-            consumerRegisterMap.put(partStr, new ConsumerNodeInfo(storeManager, reqQryPriorityId,
-                    clientId, filterCondSet, reqSessionKey, reqSessionTime, reqSsdStoreId, needSsdProc,
-                    request.hasSsdStoreId(), partStr));
-            heartbeatManager.regConsumerNode(getHeartbeatNodeId(clientId, partStr), clientId, partStr);
+            consumerRegistry.register(groupName, topicName, request.getPartitionId(), clientId,
+                    new ConsumerNodeInfo(storeManager, reqQryPriorityId, clientId, filterCondSet,
+                            reqSessionKey, reqSessionTime, reqSsdStoreId, needSsdProc,
+                            request.hasSsdStoreId(), partStr));
             MessageStore dataStore = null;
             try {
                 dataStore = this.storeManager.getOrCreateMessageStore(topicName, request.getPartitionId());
@@ -866,6 +1048,9 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                         .append(e0.getMessage()).toString());
                 return builder.build();
             }
+            if (reqOffset < 0 && reqStartTimeMs >= 0) {
+                reqOffset = dataStore.getIndexOffsetByTime(reqStartTimeMs);
+            }
             OffsetStorageInfo offsetInfo =
                     offsetManager.loadOffset(dataStore, groupName, topicName,
                             request.getPartitionId(), request.getReadStatus(), reqOffset, strBuffer);
@@ -873,6 +1058,7 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                     .append(TokenConstants.SEGMENT_SEP).append(partStr)
                     .append(TokenConstants.SEGMENT_SEP).append(offsetInfo)
                     .append(", requestOffset=").append(reqOffset)
+                    .append(", requestStartTime=").append(reqStartTimeMs)
                     .append(", req has SSD storeId=").append(request.hasSsdStoreId())
                     .append(", req qryPriorityId=").append(reqQryPriorityId)
                     .append(", cur SSD storeId=").append(reqSsdStoreId)
@@ -883,10 +1069,7 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
             builder.setCurrOffset(offsetInfo.getOffset());
             return builder.build();
         } else {
-            TimeoutInfo timeoutInfo =
-                    heartbeatManager.getConsumerRegMap().get(getHeartbeatNodeId(consumerId, partStr));
-            if (timeoutInfo == null || System.currentTimeMillis() >= timeoutInfo.getTimeoutTime()) {
-                consumerRegisterMap.remove(partStr);
+            if (consumerRegistry.unregisterExpired(registration)) {
                 strBuffer.append("[Duplicated Register] Remove Invalid Consumer Register ")
                         .append(consumerId).append(TokenConstants.SEGMENT_SEP).append(partStr);
             } else {
@@ -922,8 +1105,9 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         logger.info(strBuffer.append("[Consumer Unregister]").append(clientId)
                 .append(", isOverTLS=").append(overtls).toString());
         strBuffer.delete(0, strBuffer.length());
-        ConsumerNodeInfo consumerNodeInfo = consumerRegisterMap.get(partStr);
-        if (consumerNodeInfo == null) {
+        final ConsumerRegistry.Registration registration =
+                consumerRegistry.getRegistration(groupName, topicName, request.getPartitionId());
+        if (registration == null) {
             logger.warn(strBuffer.append("[UnRegistered Consumer2]").append(clientId)
                     .append(TokenConstants.SEGMENT_SEP).append(partStr).toString());
             strBuffer.delete(0, strBuffer.length());
@@ -932,9 +1116,9 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                     .append(clientId).append(", you have to register firstly!").toString());
             return builder.build();
         }
-        if (!clientId.equals(consumerNodeInfo.getConsumerId())) {
+        if (!clientId.equals(registration.getConsumerId())) {
             String message = strBuffer.append("[Duplicated Request]").append("Partition ").append(partStr)
-                    .append(" has been consumed by ").append(consumerNodeInfo.getConsumerId())
+                    .append(" has been consumed by ").append(registration.getConsumerId())
                     .append(";Current consumer ").append(clientId).toString();
             logger.warn(message);
             builder.setErrCode(TErrCodeConstants.DUPLICATE_PARTITION);
@@ -950,9 +1134,8 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                     .append(groupName).append(" topic:").append(topicName).append(" partition:")
                     .append(request.getPartitionId()).append(" updatedOffset:").append(updatedOffset).toString());
             strBuffer.delete(0, strBuffer.length());
-            consumerRegisterMap.remove(partStr);
-            heartbeatManager.unRegConsumerNode(
-                    getHeartbeatNodeId(clientId, partStr));
+            consumerRegistry.unregister(registration);
+            releaseReplicaOffset(groupName, topicName, request.getPartitionId());
         } catch (Exception e) {
             strBuffer.delete(0, strBuffer.length());
             String message = strBuffer.append("Unregister consumer:")
@@ -1019,24 +1202,26 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         for (Partition partition : partitions) {
             String topic = partition.getTopic();
             int partitionId = partition.getPartitionId();
-            String partStr = getPartStr(groupName, topic, partitionId);
-            ConsumerNodeInfo consumerNodeInfo = consumerRegisterMap.get(partStr);
-            if (consumerNodeInfo == null) {
+            ConsumerRegistry.Registration registration =
+                    consumerRegistry.getRegistration(groupName, topic, partitionId);
+            if (registration == null) {
                 failureInfo.add(strBuffer.append(TErrCodeConstants.HB_NO_NODE)
                         .append(TokenConstants.ATTR_SEP)
                         .append(partition.toString()).toString());
                 strBuffer.delete(0, strBuffer.length());
                 logger.warn(strBuffer.append("[Heartbeat Check] UnRegistered Consumer:")
                         .append(clientId).append(TokenConstants.SEGMENT_SEP)
-                        .append(partStr).toString());
+                        .append(getPartStr(groupName, topic, partitionId)).toString());
                 strBuffer.delete(0, strBuffer.length());
                 continue;
             }
+            ConsumerNodeInfo consumerNodeInfo = registration.getNodeInfo();
             if (!clientId.equals(consumerNodeInfo.getConsumerId())) {
                 failureInfo.add(strBuffer.append(TErrCodeConstants.DUPLICATE_PARTITION)
                         .append(TokenConstants.ATTR_SEP).append(partition.toString()).toString());
                 strBuffer.delete(0, strBuffer.length());
-                strBuffer.append("[Heartbeat Check] Duplicated partition: Partition ").append(partStr)
+                strBuffer.append("[Heartbeat Check] Duplicated partition: Partition ")
+                        .append(consumerNodeInfo.getPartStr())
                         .append(" has been consumed by ").append(consumerNodeInfo.getConsumerId())
                         .append(";Current consumer ").append(clientId);
                 logger.warn(strBuffer.toString());
@@ -1055,10 +1240,7 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
                 }
                 isAuthorized = true;
             }
-            try {
-                heartbeatManager.updConsumerNode(
-                        getHeartbeatNodeId(clientId, partStr));
-            } catch (HeartbeatException e) {
+            if (!consumerRegistry.heartbeat(registration)) {
                 failureInfo.add(strBuffer.append(TErrCodeConstants.HB_NO_NODE)
                         .append(TokenConstants.ATTR_SEP)
                         .append(partition.toString()).toString());
@@ -1134,7 +1316,12 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         }
         final String topicName = (String) paramCheckResult.checkData;
         String partStr = getPartStr(groupName, topicName, partitionId);
-        ConsumerNodeInfo consumerNodeInfo = consumerRegisterMap.get(partStr);
+        ConsumerNodeInfo consumerNodeInfo = null;
+        ConsumerRegistry.Registration registration =
+                consumerRegistry.getRegistration(groupName, topicName, partitionId);
+        if (registration != null) {
+            consumerNodeInfo = registration.getNodeInfo();
+        }
         if (consumerNodeInfo == null) {
             builder.setErrCode(TErrCodeConstants.UNAUTHORIZED);
             builder.setErrMsg("The partition not registered by consumers");
@@ -1175,48 +1362,57 @@ public class BrokerServiceServer implements BrokerReadService, BrokerWriteServic
         return builder.build();
     }
 
+    /***
+     * Store the offset of a released partition of a replicated topic at once, the partition may
+     * be registered next on the leader or the follower broker, which load it from the storage.
+     *
+     * @param group
+     * @param topic
+     * @param partitionId
+     */
+    private void releaseReplicaOffset(String group, String topic, int partitionId) {
+        TopicMetadata topicMetadata = this.metadataManage.getTopicMetadata(topic);
+        if (topicMetadata != null
+                && (topicMetadata.isReplica() || topicMetadata.hasReplicaFollowers())) {
+            offsetManager.releaseOffset(group, topic, partitionId);
+        }
+    }
+
     private String getPartStr(String group, String topic, int partitionId) {
         return new StringBuilder(512).append(group).append(TokenConstants.ATTR_SEP)
                 .append(topic).append(TokenConstants.ATTR_SEP).append(partitionId).toString();
     }
 
-    private String getHeartbeatNodeId(String consumerId, String partStr) {
-        return new StringBuilder(512).append(consumerId)
-                .append(TokenConstants.SEGMENT_SEP).append(partStr).toString();
-
-    }
-
     /***
      * Consumer timeout handler. Update consumer's info if exists consumer timeout.
      */
-    public class ConsumerTimeoutListener implements TimeoutListener {
+    public class ConsumerTimeoutListener implements ConsumerRegistry.ExpireListener {
 
         @Override
-        public void onTimeout(final String nodeId, TimeoutInfo nodeInfo) {
+        public void onExpired(final ConsumerRegistry.Registration registration) {
             Integer lid = null;
             StringBuilder strBuffer = new StringBuilder(512);
+            final ConsumerNodeInfo consumerNodeInfo = registration.getNodeInfo();
             try {
-                lid =
-                        brokerRowLock.getLock(null, StringUtils.getBytesUtf8(nodeInfo.getSecondKey()), true);
+                lid = brokerRowLock.getLock(null,
+                        StringUtils.getBytesUtf8(registration.getConsumerId()), true);
                 Integer partLock = null;
                 try {
-                    partLock =
-                            brokerRowLock.getLock(null, StringUtils.getBytesUtf8(nodeInfo.getThirdKey()), true);
-                    ConsumerNodeInfo consumerNodeInfo =
-                            consumerRegisterMap.get(nodeInfo.getThirdKey());
-                    if (consumerNodeInfo == null) {
-                        return;
-                    }
-                    if (consumerNodeInfo.getConsumerId().equalsIgnoreCase(nodeInfo.getSecondKey())) {
-                        consumerRegisterMap.remove(nodeInfo.getThirdKey());
+                    partLock = brokerRowLock.getLock(null,
+                            StringUtils.getBytesUtf8(consumerNodeInfo.getPartStr()), true);
+                    if (consumerRegistry.unregisterExpired(registration)) {
                         String[] groupTopicPart =
                                 consumerNodeInfo.getPartStr().split(TokenConstants.ATTR_SEP);
                         long updatedOffset =
                                 offsetManager.commitOffset(groupTopicPart[0],
                                         groupTopicPart[1], Integer.valueOf(groupTopicPart[2]), false);
                         logger.info(strBuffer.append("[Consumer-Partition Timeout]")
-                                .append(nodeId).append(",updatedOffset=")
-                                .append(updatedOffset).toString());
+                                .append(registration.getConsumerId())
+                                .append(TokenConstants.SEGMENT_SEP)
+                                .append(consumerNodeInfo.getPartStr())
+                                .append(",updatedOffset=").append(updatedOffset).toString());
+                        releaseReplicaOffset(groupTopicPart[0],
+                                groupTopicPart[1], Integer.valueOf(groupTopicPart[2]));
                     }
                 } catch (IOException e1) {
                     logger.warn("Failed to lock.", e1);
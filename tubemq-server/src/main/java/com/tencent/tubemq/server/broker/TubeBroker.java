@@ -42,6 +42,7 @@ import com.tencent.tubemq.server.broker.msgstore.MessageStoreManager;
 import com.tencent.tubemq.server.broker.nodeinfo.ConsumerNodeInfo;
 import com.tencent.tubemq.server.broker.offset.DefaultOffsetManager;
 import com.tencent.tubemq.server.broker.offset.OffsetService;
+import com.tencent.tubemq.server.broker.replica.ReplicaFetcher;
 import com.tencent.tubemq.server.broker.utils.BrokerSamplePrint;
 import com.tencent.tubemq.server.broker.web.WebServer;
 import com.tencent.tubemq.server.common.TubeServerVersion;
@@ -79,6 +80,8 @@ public class TubeBroker implements Stoppable, Runnable {
     // tube broker's offset manager
     private final OffsetService offsetManager;
     private final BrokerServiceServer brokerServiceServer;
+    // pulls the follower topic stores from their leader brokers
+    private final ReplicaFetcher replicaFetcher;
     private final BrokerSamplePrint samplePrintCtrl =
             new BrokerSamplePrint(logger);
     private final ScheduledExecutorService scheduledExecutorService;
@@ -107,7 +110,7 @@ public class TubeBroker implements Stoppable, Runnable {
         this.tubeConfig = tubeConfig;
         this.brokerId = generateBrokerClientId();
         this.metadataManage = new BrokerMetadataManage();
-        this.offsetManager = new DefaultOffsetManager(tubeConfig);
+        this.offsetManager = new DefaultOffsetManager(tubeConfig, metadataManage);
         this.storeManager = new MessageStoreManager(this, tubeConfig);
         this.serverAuthHandler = new SimpleCertificateBrokerHandler(this);
         // rpc config.
@@ -120,6 +123,9 @@ public class TubeBroker implements Stoppable, Runnable {
         // broker service.
         this.brokerServiceServer =
                 new BrokerServiceServer(this, tubeConfig);
+        // replica fetcher.
+        this.replicaFetcher =
+                new ReplicaFetcher(tubeConfig, metadataManage, storeManager, rpcServiceFactory);
         // web server.
         this.webServer = new WebServer(tubeConfig.getHostName(), tubeConfig.getWebPort(), this);
         this.webServer.start();
@@ -319,6 +325,7 @@ public class TubeBroker implements Stoppable, Runnable {
             TimeUnit.MILLISECONDS);
         this.storeManager.start();
         this.brokerServiceServer.start();
+        this.replicaFetcher.start();
         isOnline = true;
         logger.info(new StringBuilder(512)
                 .append("Start tube server successfully, broker version=")
@@ -362,6 +369,8 @@ public class TubeBroker implements Stoppable, Runnable {
         } catch (InterruptedException e) {
             //
         }
+        TubeBroker.this.replicaFetcher.close();
+        logger.info("Tube replica fetcher stopped.....");
         logger.info("Tube Client StoreService stopping.....");
         TubeBroker.this.brokerServiceServer.stop();
         logger.info("Tube Client StoreService stopped.....");
@@ -559,6 +568,7 @@ public class TubeBroker implements Stoppable, Runnable {
             builder.setTakeRemovedTopicInfo(true);
             builder.addAllRemovedTopicsInfo(removedTopics);
         }
+        builder.addAllReplicaReadInfo(this.brokerServiceServer.getReplicaReadInfo());
         ClientMaster.MasterCertificateInfo.Builder authInfoBuilder = genMasterCertificateInfo();
         if (authInfoBuilder != null) {
             builder.setAuthInfo(authInfoBuilder.build());
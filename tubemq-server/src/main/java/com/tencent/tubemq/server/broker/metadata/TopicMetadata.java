@@ -20,6 +20,8 @@ package com.tencent.tubemq.server.broker.metadata;
 import com.tencent.tubemq.corebase.TokenConstants;
 import com.tencent.tubemq.corebase.utils.TStringUtils;
 import com.tencent.tubemq.server.common.TStatusConstants;
+import java.util.HashMap;
+import java.util.Map;
 
 /***
  * Topic's metadata. Contains topic name, partitions count, etc.
@@ -55,6 +57,14 @@ public class TopicMetadata {
     private int memCacheMsgCnt = 5 * 1024;
     // the max interval(milliseconds) that topic's memory cache will flush to disk.
     private int memCacheFlushIntvl = 20000;
+    // the count of write caches in topic store's ring, not positive means the broker's default.
+    private int memCacheBufferCnt = 0;
+    // leader broker of a follower topic, the topic data is replicated from the leader.
+    private int replicaLeaderId = -1;
+    private String replicaLeaderHost = "";
+    private int replicaLeaderPort = -1;
+    // follower brokers replicating the topic from this broker, brokerId to broker ip.
+    private Map<Integer, String> replicaFollowers = new HashMap<Integer, String>();
 
     /***
      * Build TopicMetadata from brokerDefMetadata(default config) and topicMetaConfInfo(custom config).
@@ -134,6 +144,28 @@ public class TopicMetadata {
         } else {
             this.memCacheFlushIntvl = Integer.parseInt(topicConfInfoArr[13]);
         }
+        if (topicConfInfoArr.length > 14
+                && TStringUtils.isNotBlank(topicConfInfoArr[14])) {
+            this.memCacheBufferCnt = Integer.parseInt(topicConfInfoArr[14]);
+        }
+        if (topicConfInfoArr.length > 15
+                && TStringUtils.isNotBlank(topicConfInfoArr[15])) {
+            // leaderId#leaderHost#leaderPort
+            String[] replicaOfArr = topicConfInfoArr[15].split(TokenConstants.SEGMENT_SEP);
+            this.replicaLeaderId = Integer.parseInt(replicaOfArr[0]);
+            this.replicaLeaderHost = replicaOfArr[1];
+            this.replicaLeaderPort = Integer.parseInt(replicaOfArr[2]);
+            // the follower topic is only written by replication
+            this.acceptPublish = false;
+        }
+        if (topicConfInfoArr.length > 16
+                && TStringUtils.isNotBlank(topicConfInfoArr[16])) {
+            // followerId#followerIp,followerId#followerIp
+            for (String followerInfo : topicConfInfoArr[16].split(TokenConstants.ARRAY_SEP)) {
+                String[] followerArr = followerInfo.trim().split(TokenConstants.SEGMENT_SEP);
+                this.replicaFollowers.put(Integer.parseInt(followerArr[0]), followerArr[1]);
+            }
+        }
     }
 
     private TopicMetadata(String topic, int unflushThreshold,
@@ -142,7 +174,10 @@ public class TopicMetadata {
                           int numPartitions, boolean acceptPublish,
                           boolean acceptSubscribe, int statusId,
                           int numTopicStores, int memCacheMsgSize,
-                          int memCacheMsgCnt, int memCacheFlushIntvl) {
+                          int memCacheMsgCnt, int memCacheFlushIntvl,
+                          int memCacheBufferCnt, int replicaLeaderId,
+                          String replicaLeaderHost, int replicaLeaderPort,
+                          Map<Integer, String> replicaFollowers) {
         this.topic = topic;
         this.unflushThreshold = unflushThreshold;
         this.unflushInterval = unflushInterval;
@@ -157,6 +192,11 @@ public class TopicMetadata {
         this.memCacheMsgSize = memCacheMsgSize;
         this.memCacheMsgCnt = memCacheMsgCnt;
         this.memCacheFlushIntvl = memCacheFlushIntvl;
+        this.memCacheBufferCnt = memCacheBufferCnt;
+        this.replicaLeaderId = replicaLeaderId;
+        this.replicaLeaderHost = replicaLeaderHost;
+        this.replicaLeaderPort = replicaLeaderPort;
+        this.replicaFollowers = replicaFollowers;
     }
 
     @Override
@@ -167,7 +207,10 @@ public class TopicMetadata {
                 this.numPartitions, this.acceptPublish,
                 this.acceptSubscribe, this.statusId,
                 this.numTopicStores, this.memCacheMsgSize,
-                this.memCacheMsgCnt, this.memCacheFlushIntvl);
+                this.memCacheMsgCnt, this.memCacheFlushIntvl,
+                this.memCacheBufferCnt, this.replicaLeaderId,
+                this.replicaLeaderHost, this.replicaLeaderPort,
+                this.replicaFollowers);
     }
 
     public boolean isAcceptPublish() {
@@ -250,6 +293,42 @@ public class TopicMetadata {
         return memCacheFlushIntvl;
     }
 
+    public int getMemCacheBufferCnt() {
+        return memCacheBufferCnt;
+    }
+
+    public boolean isReplica() {
+        return replicaLeaderId >= 0;
+    }
+
+    public int getReplicaLeaderId() {
+        return replicaLeaderId;
+    }
+
+    public String getReplicaLeaderHost() {
+        return replicaLeaderHost;
+    }
+
+    public int getReplicaLeaderPort() {
+        return replicaLeaderPort;
+    }
+
+    /***
+     * Whether the broker is configured to replicate this topic from this broker.
+     *
+     * @param brokerId   broker id of the follower
+     * @param brokerIp   remote ip of the request
+     * @return
+     */
+    public boolean isReplicaFollower(final int brokerId, final String brokerIp) {
+        String followerIp = replicaFollowers.get(brokerId);
+        return followerIp != null && followerIp.equals(brokerIp);
+    }
+
+    public boolean hasReplicaFollowers() {
+        return !replicaFollowers.isEmpty();
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -268,6 +347,11 @@ public class TopicMetadata {
         result = prime * result + this.memCacheMsgSize;
         result = prime * result + this.memCacheMsgCnt;
         result = prime * result + this.memCacheFlushIntvl;
+        result = prime * result + this.memCacheBufferCnt;
+        result = prime * result + this.replicaLeaderId;
+        result = prime * result + this.replicaLeaderHost.hashCode();
+        result = prime * result + this.replicaLeaderPort;
+        result = prime * result + this.replicaFollowers.hashCode();
         return result;
     }
 
@@ -342,6 +426,15 @@ public class TopicMetadata {
         if (this.memCacheFlushIntvl != other.memCacheFlushIntvl) {
             return false;
         }
+        if (this.memCacheBufferCnt != other.memCacheBufferCnt) {
+            return false;
+        }
+        if (this.replicaLeaderId != other.replicaLeaderId
+                || !this.replicaLeaderHost.equals(other.replicaLeaderHost)
+                || this.replicaLeaderPort != other.replicaLeaderPort
+                || !this.replicaFollowers.equals(other.replicaFollowers)) {
+            return false;
+        }
 
         return true;
     }
@@ -358,7 +451,11 @@ public class TopicMetadata {
                 && this.unflushThreshold == other.unflushThreshold
                 && this.memCacheMsgSize == other.memCacheMsgSize
                 && this.memCacheMsgCnt == other.memCacheMsgCnt
-                && this.memCacheFlushIntvl == other.memCacheFlushIntvl);
+                && this.memCacheFlushIntvl == other.memCacheFlushIntvl
+                && this.memCacheBufferCnt == other.memCacheBufferCnt
+                && this.replicaLeaderId == other.replicaLeaderId
+                && this.replicaLeaderHost.equals(other.replicaLeaderHost)
+                && this.replicaLeaderPort == other.replicaLeaderPort);
     }
 
     @Override
@@ -377,6 +474,11 @@ public class TopicMetadata {
                 .append(", memCacheMsgSizeInMs=").append(this.memCacheMsgSize / 1024 / 512)
                 .append(", memCacheMsgCntInK=").append(this.memCacheMsgCnt / 512)
                 .append(", memCacheFlushIntvl=").append(this.memCacheFlushIntvl)
+                .append(", memCacheBufferCnt=").append(this.memCacheBufferCnt)
+                .append(", replicaLeaderId=").append(this.replicaLeaderId)
+                .append(", replicaLeaderHost=").append(this.replicaLeaderHost)
+                .append(", replicaLeaderPort=").append(this.replicaLeaderPort)
+                .append(", replicaFollowers=").append(this.replicaFollowers)
                 .append("]").toString();
     }
 }
@@ -0,0 +1,111 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/***
+ * Min-heap of the stores ordered by the expire time of their oldest segment. The log clear
+ * task only takes out the stores whose expire time is reached, so a clear run is proportional
+ * to the expired stores instead of to all the stores. A store is scheduled at most once, a
+ * later expire time does not replace the scheduled one, the store is scheduled again with
+ * its next expire time after it is checked.
+ */
+public class LogExpireQueue {
+    private final PriorityQueue<ExpireEntry> expireHeap = new PriorityQueue<ExpireEntry>();
+    // store --> its entry in the heap
+    private final Map<MessageStore, ExpireEntry> scheduledStores =
+            new HashMap<MessageStore, ExpireEntry>();
+
+
+    /***
+     * Schedule the store at the expire time, an earlier scheduled time is kept.
+     *
+     * @param messageStore
+     * @param expireTime    Long.MAX_VALUE if the store has no segment to expire
+     */
+    public synchronized void schedule(final MessageStore messageStore, final long expireTime) {
+        if (expireTime == Long.MAX_VALUE) {
+            return;
+        }
+        ExpireEntry curEntry = scheduledStores.get(messageStore);
+        if (curEntry != null) {
+            if (curEntry.expireTime <= expireTime) {
+                return;
+            }
+            expireHeap.remove(curEntry);
+        }
+        ExpireEntry newEntry = new ExpireEntry(messageStore, expireTime);
+        scheduledStores.put(messageStore, newEntry);
+        expireHeap.add(newEntry);
+    }
+
+    /***
+     * Take out the stores whose expire time is reached.
+     *
+     * @param currentTime
+     * @return
+     */
+    public synchronized List<MessageStore> pollExpired(final long currentTime) {
+        List<MessageStore> expiredStores = new ArrayList<MessageStore>();
+        while (!expireHeap.isEmpty()
+                && expireHeap.peek().expireTime <= currentTime) {
+            ExpireEntry entry = expireHeap.poll();
+            scheduledStores.remove(entry.messageStore);
+            expiredStores.add(entry.messageStore);
+        }
+        return expiredStores;
+    }
+
+    public synchronized boolean remove(final MessageStore messageStore) {
+        ExpireEntry curEntry = scheduledStores.remove(messageStore);
+        if (curEntry == null) {
+            return false;
+        }
+        expireHeap.remove(curEntry);
+        return true;
+    }
+
+    public synchronized long getScheduledTime(final MessageStore messageStore) {
+        ExpireEntry curEntry = scheduledStores.get(messageStore);
+        return curEntry == null ? Long.MAX_VALUE : curEntry.expireTime;
+    }
+
+    public synchronized int size() {
+        return expireHeap.size();
+    }
+
+    private static class ExpireEntry implements Comparable<ExpireEntry> {
+        private final MessageStore messageStore;
+        private final long expireTime;
+
+        public ExpireEntry(final MessageStore messageStore, final long expireTime) {
+            this.messageStore = messageStore;
+            this.expireTime = expireTime;
+        }
+
+        @Override
+        public int compareTo(final ExpireEntry o) {
+            return this.expireTime > o.expireTime ? 1 : this.expireTime < o.expireTime ? -1 : 0;
+        }
+    }
+}
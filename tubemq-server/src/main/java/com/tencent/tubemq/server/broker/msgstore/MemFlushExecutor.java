@@ -0,0 +1,190 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Broker-wide executor of the write cache flushes. Each data directory has its own flush
+ * threads, which bound the concurrent flushes against the disk, and runs its flushes in
+ * submission order. A store has at most one flush submitted or running, so the flushes of
+ * a directory are shared fairly among its stores.
+ */
+public class MemFlushExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(MemFlushExecutor.class);
+    // idle time before a flush thread exits
+    private static final long THREAD_KEEP_ALIVE_MS = 60000L;
+    private final int threadsPerDisk;
+    // data directory --> flush executor of the directory
+    private final ConcurrentHashMap<String, DiskFlushExecutor> diskExecutors =
+            new ConcurrentHashMap<String, DiskFlushExecutor>();
+    private volatile boolean closed = false;
+
+
+    public MemFlushExecutor(final int threadsPerDisk) {
+        this.threadsPerDisk = Math.max(1, threadsPerDisk);
+    }
+
+    /***
+     * Run a flush on the flush threads of the data directory.
+     *
+     * @param dataPath    data directory of the flushed store
+     * @param flushTask
+     * @return false if the executor is closed and the flush is not run
+     */
+    public boolean execute(final String dataPath, final Runnable flushTask) {
+        if (this.closed) {
+            return false;
+        }
+        DiskFlushExecutor diskExecutor = this.diskExecutors.get(dataPath);
+        if (diskExecutor == null) {
+            DiskFlushExecutor tmpExecutor = new DiskFlushExecutor(dataPath, this.threadsPerDisk);
+            diskExecutor = this.diskExecutors.putIfAbsent(dataPath, tmpExecutor);
+            if (diskExecutor == null) {
+                diskExecutor = tmpExecutor;
+            } else {
+                tmpExecutor.shutdown();
+            }
+        }
+        return diskExecutor.execute(flushTask);
+    }
+
+    /***
+     * Get the flush statistics of the data directories.
+     *
+     * @return
+     */
+    public String getStatisInfo() {
+        int index = 0;
+        StringBuilder sBuilder = new StringBuilder(512).append("[");
+        for (Map.Entry<String, DiskFlushExecutor> entry : this.diskExecutors.entrySet()) {
+            if (index++ > 0) {
+                sBuilder.append(",");
+            }
+            entry.getValue().getStatisInfo(sBuilder);
+        }
+        return sBuilder.append("]").toString();
+    }
+
+    public void close() {
+        this.closed = true;
+        for (DiskFlushExecutor diskExecutor : this.diskExecutors.values()) {
+            diskExecutor.shutdown();
+        }
+    }
+
+    private static class DiskFlushExecutor {
+        private final String dataPath;
+        private final int threadCnt;
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger runningFlushCnt = new AtomicInteger(0);
+        private final AtomicLong flushCnt = new AtomicLong(0L);
+        private final AtomicLong totalQueueTimeMs = new AtomicLong(0L);
+        private final AtomicLong maxQueueTimeMs = new AtomicLong(0L);
+        private final AtomicLong totalFlushTimeMs = new AtomicLong(0L);
+        private final AtomicLong maxFlushTimeMs = new AtomicLong(0L);
+
+        public DiskFlushExecutor(final String dataPath, final int threadCnt) {
+            this.dataPath = dataPath;
+            this.threadCnt = threadCnt;
+            this.executor = new ThreadPoolExecutor(threadCnt, threadCnt,
+                    THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r);
+                            t.setName(new StringBuilder(256).append("Broker Mem Flush Thread-")
+                                    .append(dataPath).append("-")
+                                    .append(threadIndex.incrementAndGet()).toString());
+                            return t;
+                        }
+                    });
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        public boolean execute(final Runnable flushTask) {
+            final long submitTime = System.currentTimeMillis();
+            try {
+                this.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long startTime = System.currentTimeMillis();
+                        runningFlushCnt.incrementAndGet();
+                        try {
+                            flushTask.run();
+                        } catch (Throwable e) {
+                            logger.error("[Data Store] Error during flush", e);
+                        } finally {
+                            runningFlushCnt.decrementAndGet();
+                            final long endTime = System.currentTimeMillis();
+                            flushCnt.incrementAndGet();
+                            addTimeStatis(totalQueueTimeMs, maxQueueTimeMs, startTime - submitTime);
+                            addTimeStatis(totalFlushTimeMs, maxFlushTimeMs, endTime - startTime);
+                        }
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        public void getStatisInfo(final StringBuilder sBuilder) {
+            final long curFlushCnt = this.flushCnt.get();
+            sBuilder.append("{\"dataPath\":\"").append(this.dataPath)
+                    .append("\",\"threadCnt\":").append(this.threadCnt)
+                    .append(",\"queueDepth\":").append(this.executor.getQueue().size())
+                    .append(",\"runningFlushes\":").append(this.runningFlushCnt.get())
+                    .append(",\"flushCnt\":").append(curFlushCnt)
+                    .append(",\"avgQueueTimeMs\":")
+                    .append(curFlushCnt == 0 ? 0 : this.totalQueueTimeMs.get() / curFlushCnt)
+                    .append(",\"maxQueueTimeMs\":").append(this.maxQueueTimeMs.get())
+                    .append(",\"avgFlushTimeMs\":")
+                    .append(curFlushCnt == 0 ? 0 : this.totalFlushTimeMs.get() / curFlushCnt)
+                    .append(",\"maxFlushTimeMs\":").append(this.maxFlushTimeMs.get()).append("}");
+        }
+
+        public void shutdown() {
+            this.executor.shutdown();
+        }
+
+        private void addTimeStatis(final AtomicLong totalTime,
+                                   final AtomicLong maxTime, final long timeMs) {
+            totalTime.addAndGet(timeMs);
+            long curMaxTime = maxTime.get();
+            while (timeMs > curMaxTime) {
+                if (maxTime.compareAndSet(curMaxTime, timeMs)) {
+                    break;
+                }
+                curMaxTime = maxTime.get();
+            }
+        }
+    }
+}
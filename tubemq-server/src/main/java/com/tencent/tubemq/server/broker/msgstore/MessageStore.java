@@ -17,19 +17,24 @@
 
 package com.tencent.tubemq.server.broker.msgstore;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.tencent.tubemq.corebase.TErrCodeConstants;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker;
 import com.tencent.tubemq.corebase.utils.ThreadUtils;
 import com.tencent.tubemq.server.broker.BrokerConfig;
 import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
+import com.tencent.tubemq.server.broker.msgstore.disk.ColdSegmentReader;
 import com.tencent.tubemq.server.broker.msgstore.disk.GetMessageResult;
 import com.tencent.tubemq.server.broker.msgstore.disk.MsgFileStatisInfo;
 import com.tencent.tubemq.server.broker.msgstore.disk.MsgFileStore;
 import com.tencent.tubemq.server.broker.msgstore.disk.RecordView;
+import com.tencent.tubemq.server.broker.msgstore.disk.ReplicaBlock;
 import com.tencent.tubemq.server.broker.msgstore.mem.GetCacheMsgResult;
+import com.tencent.tubemq.server.broker.msgstore.mem.MemCacheAllocator;
 import com.tencent.tubemq.server.broker.msgstore.mem.MsgMemStatisInfo;
 import com.tencent.tubemq.server.broker.msgstore.mem.MsgMemStore;
 import com.tencent.tubemq.server.broker.msgstore.ssd.SSDSegFound;
+import com.tencent.tubemq.server.broker.msgstore.tiered.TieredStoreManager;
 import com.tencent.tubemq.server.broker.nodeinfo.ConsumerNodeInfo;
 import com.tencent.tubemq.server.broker.stats.CountItem;
 import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
@@ -38,14 +43,11 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.slf4j.Logger;
@@ -57,22 +59,28 @@ import org.slf4j.LoggerFactory;
  */
 public class MessageStore implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(MessageStore.class);
+    // max index size skipped by key code filters in a read
+    private static final int MAX_FILTER_SKIP_SIZE = 256 * 1024 * 1024;
     private final ReentrantLock flushMutex = new ReentrantLock();
-    private final AtomicBoolean hasFlushBeenTriggered = new AtomicBoolean(false);
     private final TopicMetadata topicMetadata;
     private final int storeId;
     private final String storeKey;
     private final BrokerConfig tubeConfig;
     private final String primStorePath;
     private final AtomicLong lastMemFlushTime = new AtomicLong(0);
+    // duration of the last write cache flush
+    private volatile long lastMemFlushDurMs = 0;
+    // start time of the ongoing write cache flush
+    private volatile long memFlushStartTime = 0;
     private final MessageStoreManager msgStoreMgr;
+    // broker-wide allocator of the write cache buffers
+    private final MemCacheAllocator memCacheAllocator;
+    // time of the last message appended
+    private volatile long lastAppendTime = System.currentTimeMillis();
     private final MsgMemStatisInfo msgMemStatisInfo = new MsgMemStatisInfo();
     private final MsgFileStatisInfo msgFileStatisInfo = new MsgFileStatisInfo();
     private final MsgFileStore msgFileStore;
     private final ReentrantReadWriteLock writeCacheMutex = new ReentrantReadWriteLock();
-    private final Condition flushWriteCacheCondition = writeCacheMutex.writeLock().newCondition();
-    private final AtomicBoolean isFlushOngoing = new AtomicBoolean(false);
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private volatile int partitionNum;
     private AtomicInteger unflushInterval = new AtomicInteger(0);
@@ -80,7 +88,11 @@ public class MessageStore implements Closeable {
     private volatile int writeCacheMaxSize;
     private volatile int writeCacheMaxCnt;
     private volatile int writeCacheFlushIntvl;
+    // count of write caches in the ring, the writing one included
+    private volatile int writeCacheBufferCnt;
     private AtomicLong maxFileValidDurMs = new AtomicLong(0);
+    // max size of the data files of the store, 0 means no limit
+    private volatile long maxFileValidSize = 0L;
     private int maxAllowRdSize = 262144;
     private AtomicInteger memMaxIndexReadCnt = new AtomicInteger(6000);
     private AtomicInteger fileMaxIndexReadCnt = new AtomicInteger(8000);
@@ -96,8 +108,11 @@ public class MessageStore implements Closeable {
             = new AtomicInteger(this.fileMaxFilterIndexReadCnt.get() * DataStoreUtils.STORE_INDEX_HEAD_LEN);
     private AtomicInteger fileLowReqMaxFilterIndexReadSize
             = new AtomicInteger(this.fileLowReqMaxFilterIndexReadCnt.get() * DataStoreUtils.STORE_INDEX_HEAD_LEN);
-    private MsgMemStore msgMemStore;
-    private MsgMemStore msgMemStoreBeingFlush;
+    private volatile MsgMemStore msgMemStore;
+    // swapped write caches not flushed yet, in write order
+    private final LinkedList<MsgMemStore> msgMemStoresBeingFlush = new LinkedList<MsgMemStore>();
+    // flushed write cache kept for the next swap
+    private MsgMemStore msgMemStoreSpare;
 
     public MessageStore(final MessageStoreManager messageStoreManager,
                         final TopicMetadata topicMetadata, final int storeId,
@@ -114,16 +129,20 @@ public class MessageStore implements Closeable {
         this.storeId = storeId;
         this.tubeConfig = tubeConfig;
         this.msgStoreMgr = messageStoreManager;
+        this.memCacheAllocator = messageStoreManager == null
+                ? null : messageStoreManager.getMemCacheAllocator();
         this.maxAllowRdSize = (int) (maxMsgRDSize * 0.5);
         this.storeKey = topicMetadata.getTopic() + "-" + this.storeId;
         this.primStorePath = this.tubeConfig.getPrimaryPath();
         this.partitionNum = topicMetadata.getNumPartitions();
         this.unflushInterval.set(topicMetadata.getUnflushInterval());
         this.maxFileValidDurMs.set(parseDeletePolicy(topicMetadata.getDeletePolicy()));
+        this.maxFileValidSize = parseRetentionSize(topicMetadata);
         this.unflushThreshold.set(topicMetadata.getUnflushThreshold());
         this.writeCacheMaxCnt = topicMetadata.getMemCacheMsgCnt();
         this.writeCacheMaxSize = topicMetadata.getMemCacheMsgSize();
         this.writeCacheFlushIntvl = topicMetadata.getMemCacheFlushIntvl();
+        this.writeCacheBufferCnt = getWriteCacheBufferCnt(topicMetadata);
         int tmpIndexReadCnt = tubeConfig.getIndexTransCount() * partitionNum;
         memMaxIndexReadCnt.set(tmpIndexReadCnt <= 6000
                 ? 6000 : (tmpIndexReadCnt >= 10000 ? 10000 : tmpIndexReadCnt));
@@ -137,11 +156,9 @@ public class MessageStore implements Closeable {
         fileLowReqMaxFilterIndexReadSize.set(
                 this.fileLowReqMaxFilterIndexReadCnt.get() * DataStoreUtils.STORE_INDEX_HEAD_LEN);
         this.msgFileStore = new MsgFileStore(this, this.tubeConfig, this.primStorePath, offsetIfCreate);
-        this.msgMemStore = new MsgMemStore(this.writeCacheMaxSize, this.writeCacheMaxCnt, this.tubeConfig);
+        this.msgMemStore = allocWriteCache(true);
         this.msgMemStore.resetStartPos(this.msgFileStore.getDataMaxOffset(), this.msgFileStore.getIndexMaxOffset());
-        this.msgMemStoreBeingFlush = new MsgMemStore(this.writeCacheMaxSize, this.writeCacheMaxCnt, this.tubeConfig);
-        this.msgMemStoreBeingFlush.resetStartPos(
-                this.msgFileStore.getDataMaxOffset(), this.msgFileStore.getIndexMaxOffset());
+        this.msgMemStoreSpare = allocWriteCache(true);
         this.lastMemFlushTime.set(System.currentTimeMillis());
     }
 
@@ -182,7 +199,16 @@ public class MessageStore implements Closeable {
             if (requestOffset >= this.msgFileStore.getIndexMaxOffset()) {
                 this.writeCacheMutex.readLock().lock();
                 try {
-                    result = this.msgMemStoreBeingFlush.isOffsetInHold(requestOffset);
+                    // find the swapped cache holding the offset, oldest first.
+                    result = 1;
+                    MsgMemStore holdMemStore = null;
+                    for (MsgMemStore memStore : this.msgMemStoresBeingFlush) {
+                        result = memStore.isOffsetInHold(requestOffset);
+                        if (result <= 0) {
+                            holdMemStore = memStore;
+                            break;
+                        }
+                    }
                     if (result >= 0) {
                         inMemCache = true;
                         if (result > 0) {
@@ -198,7 +224,7 @@ public class MessageStore implements Closeable {
                         } else {
                             // read from backup memory.
                             memMsgRlt =
-                                    msgMemStoreBeingFlush.getMessages(consumerNodeInfo.getLastDataRdOffset(),
+                                    holdMemStore.getMessages(consumerNodeInfo.getLastDataRdOffset(),
                                             requestOffset, msgStoreMgr.getMaxMsgTransferSize(),
                                             maxIndexReadLength, partitionId, true,
                                             consumerNodeInfo.isFilterConsume(),
@@ -246,9 +272,27 @@ public class MessageStore implements Closeable {
         }
         maxIndexReadLength = consumerNodeInfo.isFilterConsume()
                 ? fileMaxFilterIndexReadSize.get() : fileMaxIndexReadSize.get();
+        // skip the index blocks that can not hold the filter keys.
+        int filterSkipSize = 0;
+        if (consumerNodeInfo.isFilterConsume()) {
+            filterSkipSize = (int) (this.msgFileStore.getFilterCandidateOffset(reqNewOffset,
+                    reqNewOffset + MAX_FILTER_SKIP_SIZE, consumerNodeInfo.getFilterCondCodeSet())
+                    - reqNewOffset);
+            if (filterSkipSize > 0
+                    && reqNewOffset + filterSkipSize >= this.msgFileStore.getIndexMaxHighOffset()) {
+                GetMessageResult skipResult =
+                        new GetMessageResult(true, 0, "Ok", reqNewOffset, filterSkipSize,
+                                consumerNodeInfo.getLastDataRdOffset(), 0,
+                                new HashMap<String, CountItem>(),
+                                new ArrayList<ClientBroker.TransferedMessage>());
+                skipResult.setSlowFreq(true);
+                return skipResult;
+            }
+        }
         final ByteBuffer indexBuffer = ByteBuffer.allocate(maxIndexReadLength);
         final RecordView indexRecordView =
-                this.msgFileStore.indexSlice(reqNewOffset, maxIndexReadLength);
+                this.msgFileStore.indexSlice(reqNewOffset + filterSkipSize,
+                        maxIndexReadLength, consumerNodeInfo.getIndexCursor());
         if (indexRecordView == null) {
             if (reqNewOffset < this.msgFileStore.getIndexMinOffset()) {
                 return new GetMessageResult(false, TErrCodeConstants.MOVED,
@@ -263,11 +307,11 @@ public class MessageStore implements Closeable {
         indexRecordView.getSegment().relViewRef();
         //　judge whether read from ssd or disk.
         if (consumerNodeInfo.processFromSsdFile()) {
-            return msgStoreMgr.getSsdMesssage(storeKey, consumerNodeInfo.getPartStr(),
+            return addFilterSkipSize(msgStoreMgr.getSsdMesssage(storeKey, consumerNodeInfo.getPartStr(),
                     consumerNodeInfo.getStartSsdDataOffset(),
                     consumerNodeInfo.getLastDataRdOffset(),
-                    partitionId, reqNewOffset, indexBuffer,
-                    msgSizeLimit, statisKeyBase);
+                    partitionId, reqNewOffset + filterSkipSize, indexBuffer,
+                    msgSizeLimit, statisKeyBase), reqNewOffset, filterSkipSize);
         } else {
             if ((msgFileStore.getDataHighMaxOffset() - consumerNodeInfo.getLastDataRdOffset()
                     >= this.tubeConfig.getDoubleDefaultDeduceReadSize())
@@ -276,10 +320,11 @@ public class MessageStore implements Closeable {
             }
             GetMessageResult retResult =
                     msgFileStore.getMessages(partitionId,
-                            consumerNodeInfo.getLastDataRdOffset(), reqNewOffset,
+                            consumerNodeInfo.getLastDataRdOffset(), reqNewOffset + filterSkipSize,
                             indexBuffer, consumerNodeInfo.isFilterConsume(),
                             consumerNodeInfo.getFilterCondCodeSet(),
-                            statisKeyBase, msgSizeLimit);
+                            statisKeyBase, msgSizeLimit, consumerNodeInfo.getDataCursor());
+            addFilterSkipSize(retResult, reqNewOffset, filterSkipSize);
             if (consumerNodeInfo.isFilterConsume()
                     && retResult.isSuccess
                     && retResult.getLastReadOffset() > 0) {
@@ -293,6 +338,24 @@ public class MessageStore implements Closeable {
         }
     }
 
+    /***
+     * Count the index size skipped by key code filters into the read result.
+     *
+     * @param retResult
+     * @param reqNewOffset
+     * @param filterSkipSize
+     * @return
+     */
+    private GetMessageResult addFilterSkipSize(final GetMessageResult retResult,
+                                               final long reqNewOffset,
+                                               final int filterSkipSize) {
+        if (filterSkipSize > 0 && retResult.isSuccess) {
+            retResult.reqOffset = reqNewOffset;
+            retResult.lastReadOffset += filterSkipSize;
+        }
+        return retResult;
+    }
+
     /***
      * Append msg to store.
      *
@@ -331,6 +394,7 @@ public class MessageStore implements Closeable {
         buffer.putInt(msgFlag);
         buffer.put(data);
         buffer.flip();
+        this.lastAppendTime = receivedTime;
         int count = 3;
         do {
             this.writeCacheMutex.readLock().lock();
@@ -352,6 +416,61 @@ public class MessageStore implements Closeable {
         return false;
     }
 
+    /***
+     * Get the time to wait before a message can be appended without blocking the caller.
+     * A full write cache is swapped at once if the ring has a free cache, otherwise the append
+     * has to wait until the oldest swapped cache is flushed, which is estimated by the last flush.
+     *
+     * @param dataLength
+     * @return 0 if the message can be appended now
+     */
+    public long getAppendWaitTimeMs(final int dataLength) {
+        this.writeCacheMutex.readLock().lock();
+        try {
+            if (!this.msgMemStore.isFull(DataStoreUtils.STORE_DATA_HEADER_LEN + dataLength)
+                    || isWriteCacheSwappable()) {
+                return 0;
+            }
+        } finally {
+            this.writeCacheMutex.readLock().unlock();
+        }
+        long flushedDurMs = System.currentTimeMillis() - this.memFlushStartTime;
+        return Math.max(1, this.lastMemFlushDurMs - flushedDurMs);
+    }
+
+    /***
+     * Get the bytes not yet flushed to file, including the write caches being flushed.
+     *
+     * @return
+     */
+    public long getPendingFlushBytes() {
+        long pendingBytes = 0L;
+        this.writeCacheMutex.readLock().lock();
+        try {
+            pendingBytes += this.msgMemStore.getCurDataCacheSize();
+            for (MsgMemStore memStore : this.msgMemStoresBeingFlush) {
+                pendingBytes += memStore.getCurDataCacheSize();
+            }
+        } finally {
+            this.writeCacheMutex.readLock().unlock();
+        }
+        return pendingBytes;
+    }
+
+    /***
+     * Get the count of swapped write caches not flushed yet.
+     *
+     * @return
+     */
+    public int getBeingFlushCacheCnt() {
+        this.writeCacheMutex.readLock().lock();
+        try {
+            return this.msgMemStoresBeingFlush.size();
+        } finally {
+            this.writeCacheMutex.readLock().unlock();
+        }
+    }
+
     public String getCurMemMsgSizeStatisInfo(boolean needRefresh) {
         return msgMemStatisInfo.getCurMsgSizeStatisInfo(needRefresh);
     }
@@ -367,16 +486,202 @@ public class MessageStore implements Closeable {
     /***
      * Execute cleanup policy.
      *
-     * @param onlyCheck
-     * @return
+     * @param deleteLimiter  delete rate of the data directory, null means no limit
+     * @return the reclaimed bytes
      */
-    public boolean runClearupPolicy(boolean onlyCheck) {
+    public long runClearupPolicy(final RateLimiter deleteLimiter) {
+        return runClearupPolicy(deleteLimiter, -1L);
+    }
+
+    /***
+     * Execute cleanup policy, and delete the files last modified not later than the given time.
+     *
+     * @param deleteLimiter  delete rate of the data directory, null means no limit
+     * @param expireBefore   -1 means only the cleanup policy
+     * @return the reclaimed bytes
+     */
+    public long runClearupPolicy(final RateLimiter deleteLimiter, final long expireBefore) {
         if (this.closed.get()) {
             throw new IllegalStateException(new StringBuilder(512)
                     .append("[Data Store] Closed MessageStore for storeKey ")
                     .append(this.storeKey).toString());
         }
-        return msgFileStore.runClearupPolicy(onlyCheck);
+        return msgFileStore.runClearupPolicy(deleteLimiter, expireBefore);
+    }
+
+    /***
+     * Schedule the log clearup of this store at the expire time of its oldest file.
+     */
+    public void scheduleLogClearup() {
+        if (this.msgStoreMgr == null || this.closed.get()) {
+            return;
+        }
+        this.msgStoreMgr.scheduleLogClearup(this, msgFileStore.getNextExpireTime());
+    }
+
+    /***
+     * Check the data files of this store and of the broker against their size limits, the
+     * oldest files are deleted early if a limit is exceeded.
+     */
+    public void checkRetentionSize() {
+        if (this.msgStoreMgr == null || this.closed.get()) {
+            return;
+        }
+        this.msgStoreMgr.checkRetentionSize(this);
+    }
+
+    public boolean isOverRetentionSize() {
+        return this.maxFileValidSize > 0
+                && this.msgFileStore.getDataSizeInBytes() > this.maxFileValidSize;
+    }
+
+    public long getOldestFileTime() {
+        return this.msgFileStore.getOldestFileTime();
+    }
+
+    public ColdSegmentReader getColdSegmentReader() {
+        return this.msgStoreMgr == null ? null : this.msgStoreMgr.getColdSegmentReader();
+    }
+
+    public TieredStoreManager getTieredStoreManager() {
+        return this.msgStoreMgr == null ? null : this.msgStoreMgr.getTieredStoreManager();
+    }
+
+    /***
+     * Upload the cold data files of this store to the tiered store.
+     *
+     * @param offloadBefore  the files last modified not later than it are uploaded
+     * @return the count of uploaded files
+     * @throws IOException
+     */
+    public int offloadColdSegments(final long offloadBefore) throws IOException {
+        if (this.closed.get()) {
+            return 0;
+        }
+        return this.msgFileStore.offloadColdSegments(offloadBefore);
+    }
+
+    public long getOldestOffloadedFileTime() {
+        return this.msgFileStore.getOldestOffloadedFileTime();
+    }
+
+    public long evictOldestOffloadedSegment() {
+        if (this.closed.get()) {
+            return 0L;
+        }
+        return this.msgFileStore.evictOldestOffloadedSegment();
+    }
+
+    public void deleteTieredSegments() {
+        this.msgFileStore.deleteTieredSegments();
+    }
+
+    /***
+     * Read a block of raw index and data records from the files for a follower store,
+     * the records still in the write caches are replicated after they are flushed.
+     *
+     * @param indexOffset
+     * @param dataOffset
+     * @param maxDataSize
+     * @return
+     * @throws IOException
+     */
+    public ReplicaBlock readReplicaBlock(final long indexOffset, final long dataOffset,
+                                         final int maxDataSize) throws IOException {
+        if (this.closed.get()) {
+            return new ReplicaBlock(TErrCodeConstants.SERVICE_UNAVILABLE,
+                    "store is closed", indexOffset, dataOffset, 0L);
+        }
+        return this.msgFileStore.readReplicaBlock(indexOffset, dataOffset, maxDataSize);
+    }
+
+    /***
+     * Append a block read from the leader store to the files. A follower store is only
+     * written by replication, so the block is appended when the write caches are empty and
+     * the block starts at the end of the files, the write cache then starts after the block.
+     *
+     * @param replicaBlock
+     * @param strBuffer
+     * @return false if the block is not appended
+     * @throws Throwable
+     */
+    public boolean appendReplicaBlock(final ReplicaBlock replicaBlock,
+                                      final StringBuilder strBuffer) throws Throwable {
+        if (this.closed.get() || !replicaBlock.isSuccess()) {
+            return false;
+        }
+        final int msgCnt = replicaBlock.getMsgCount();
+        final ByteBuffer indexBuffer = replicaBlock.indexBuffer.slice();
+        final ByteBuffer[] dataBufs = new ByteBuffer[msgCnt];
+        long dataOffset = replicaBlock.dataOffset;
+        for (int i = 0; i < msgCnt; i++) {
+            final int dataSize = indexBuffer.getInt(i * DataStoreUtils.STORE_INDEX_HEAD_LEN + 12);
+            final int dataPos = (int) (dataOffset - replicaBlock.dataOffset);
+            if (dataPos + dataSize > replicaBlock.dataBuffer.remaining()) {
+                return false;
+            }
+            dataBufs[i] = replicaBlock.dataBuffer.duplicate();
+            dataBufs[i].position(replicaBlock.dataBuffer.position() + dataPos);
+            dataBufs[i].limit(dataBufs[i].position() + dataSize);
+            dataOffset += dataSize;
+        }
+        flushMutex.lock();
+        try {
+            writeCacheMutex.writeLock().lock();
+            try {
+                if (msgMemStore.getCurMsgCount() > 0
+                        || !msgMemStoresBeingFlush.isEmpty()
+                        || msgFileStore.getIndexMaxOffset() != replicaBlock.indexOffset
+                        || msgFileStore.getDataMaxOffset() != replicaBlock.dataOffset) {
+                    return false;
+                }
+                if (msgCnt > 0) {
+                    msgFileStore.appendMsgs(dataBufs, msgCnt, indexBuffer, strBuffer);
+                    msgMemStore.resetStartPos(msgFileStore.getDataMaxOffset(),
+                            msgFileStore.getIndexMaxOffset());
+                }
+                return msgFileStore.getIndexMaxOffset()
+                        == replicaBlock.indexOffset + indexBuffer.remaining();
+            } finally {
+                writeCacheMutex.writeLock().unlock();
+            }
+        } finally {
+            flushMutex.unlock();
+        }
+    }
+
+    /***
+     * Move an empty follower store to the offsets the leader store restarts from.
+     *
+     * @param indexOffset
+     * @param dataOffset
+     * @param strBuffer
+     * @return false if the store is not empty
+     * @throws IOException
+     */
+    public boolean resetReplicaStart(final long indexOffset, final long dataOffset,
+                                     final StringBuilder strBuffer) throws IOException {
+        if (this.closed.get()) {
+            return false;
+        }
+        flushMutex.lock();
+        try {
+            writeCacheMutex.writeLock().lock();
+            try {
+                if (msgMemStore.getCurMsgCount() > 0
+                        || !msgMemStoresBeingFlush.isEmpty()
+                        || !msgFileStore.resetEmptyStore(indexOffset, dataOffset, strBuffer)) {
+                    return false;
+                }
+                msgMemStore.resetStartPos(msgFileStore.getDataMaxOffset(),
+                        msgFileStore.getIndexMaxOffset());
+                return true;
+            } finally {
+                writeCacheMutex.writeLock().unlock();
+            }
+        } finally {
+            flushMutex.unlock();
+        }
     }
 
     /***
@@ -393,7 +698,16 @@ public class MessageStore implements Closeable {
         partitionNum = topicMetadata.getNumPartitions();
         unflushInterval.set(topicMetadata.getUnflushInterval());
         unflushThreshold.set(topicMetadata.getUnflushThreshold());
-        maxFileValidDurMs.set(parseDeletePolicy(topicMetadata.getDeletePolicy()));
+        long oldFileValidDurMs =
+                maxFileValidDurMs.getAndSet(parseDeletePolicy(topicMetadata.getDeletePolicy()));
+        if (oldFileValidDurMs != maxFileValidDurMs.get()) {
+            scheduleLogClearup();
+        }
+        long oldFileValidSize = maxFileValidSize;
+        maxFileValidSize = parseRetentionSize(topicMetadata);
+        if (oldFileValidSize != maxFileValidSize) {
+            checkRetentionSize();
+        }
         int tmpIndexReadCnt = tubeConfig.getIndexTransCount() * partitionNum;
         memMaxIndexReadCnt.set(tmpIndexReadCnt <= 6000
                 ? 6000 : (tmpIndexReadCnt >= 10000 ? 10000 : tmpIndexReadCnt));
@@ -411,6 +725,7 @@ public class MessageStore implements Closeable {
             writeCacheMaxCnt = topicMetadata.getMemCacheMsgCnt();
             writeCacheMaxSize = topicMetadata.getMemCacheMsgSize();
             writeCacheFlushIntvl = topicMetadata.getMemCacheFlushIntvl();
+            writeCacheBufferCnt = getWriteCacheBufferCnt(topicMetadata);
         } finally {
             writeCacheMutex.readLock().unlock();
         }
@@ -444,7 +759,52 @@ public class MessageStore implements Closeable {
         if (msgMemStore.getCurMsgCount() > 0
                 && (System.currentTimeMillis() - this.lastMemFlushTime.get()) >= this.writeCacheFlushIntvl) {
             triggerFlushAndAddMsg(-1, 0, 0, 0, false, null, true);
+        } else if (this.tubeConfig.getMemCacheIdleReleaseMs() > 0
+                && (System.currentTimeMillis() - this.lastAppendTime) >= this.tubeConfig.getMemCacheIdleReleaseMs()) {
+            releaseIdleWriteCaches();
+        }
+    }
+
+    /***
+     * Return the buffers of the write caches to the broker's budget if the store is idle,
+     * the write cache allocates its buffers again when it is written.
+     */
+    private void releaseIdleWriteCaches() {
+        writeCacheMutex.writeLock().lock();
+        try {
+            if (!msgMemStoresBeingFlush.isEmpty()) {
+                return;
+            }
+            if (msgMemStoreSpare != null) {
+                releaseWriteCache(msgMemStoreSpare);
+                msgMemStoreSpare = null;
+            }
+            msgMemStore.releaseBuffers();
+        } finally {
+            writeCacheMutex.writeLock().unlock();
+        }
+    }
+
+    /***
+     * Get the memory of the write caches allocated now.
+     *
+     * @return
+     */
+    public long getWriteCacheAllocatedSize() {
+        long allocatedSize = 0L;
+        writeCacheMutex.readLock().lock();
+        try {
+            allocatedSize += msgMemStore.getAllocatedSize();
+            if (msgMemStoreSpare != null) {
+                allocatedSize += msgMemStoreSpare.getAllocatedSize();
+            }
+            for (MsgMemStore memStore : msgMemStoresBeingFlush) {
+                allocatedSize += memStore.getAllocatedSize();
+            }
+        } finally {
+            writeCacheMutex.readLock().unlock();
         }
+        return allocatedSize;
     }
 
     @Override
@@ -456,9 +816,10 @@ public class MessageStore implements Closeable {
             strBuffer.delete(0, strBuffer.length());
             ThreadUtils.sleep(100);
             flush(strBuffer);
-            this.msgMemStore.close();
-            this.msgMemStoreBeingFlush.close();
-            this.executor.shutdown();
+            releaseWriteCaches();
+            if (this.msgStoreMgr != null) {
+                this.msgStoreMgr.cancelLogClearup(this);
+            }
             this.msgFileStore.close();
             logger.info(strBuffer.append("[Data Store] Message store stopped")
                     .append(this.storeKey).toString());
@@ -469,6 +830,10 @@ public class MessageStore implements Closeable {
         return this.topicMetadata.getTopic();
     }
 
+    public boolean isClosed() {
+        return this.closed.get();
+    }
+
     public int getStoreId() {
         return this.storeId;
     }
@@ -493,6 +858,10 @@ public class MessageStore implements Closeable {
         return maxFileValidDurMs.get();
     }
 
+    public long getMaxFileValidSize() {
+        return maxFileValidSize;
+    }
+
     public int getUnflushThreshold() {
         return this.unflushThreshold.get();
     }
@@ -512,6 +881,18 @@ public class MessageStore implements Closeable {
         return this.msgFileStore.getIndexMinOffset();
     }
 
+    /***
+     * Get the index offset of the first message received at or after the timestamp.
+     * Messages not flushed yet are newer than those in files, so the files' max
+     * index offset is returned when all messages in files are older.
+     *
+     * @param timestamp
+     * @return
+     */
+    public long getIndexOffsetByTime(final long timestamp) {
+        return this.msgFileStore.getIndexOffsetByTime(timestamp);
+    }
+
     public long getDataMinOffset() {
         return this.msgFileStore.getDataMinOffset();
     }
@@ -534,8 +915,8 @@ public class MessageStore implements Closeable {
             if (this.msgMemStore.getCurMsgCount() > 0) {
                 totalSize += this.msgMemStore.getIndexCacheSize();
             }
-            if (this.msgMemStoreBeingFlush.getCurMsgCount() > 0) {
-                totalSize += this.msgMemStoreBeingFlush.getIndexCacheSize();
+            for (MsgMemStore memStore : this.msgMemStoresBeingFlush) {
+                totalSize += memStore.getIndexCacheSize();
             }
         } finally {
             this.writeCacheMutex.readLock().unlock();
@@ -556,8 +937,8 @@ public class MessageStore implements Closeable {
             if (this.msgMemStore.getCurMsgCount() > 0) {
                 totalSize += this.msgMemStore.getCurDataCacheSize();
             }
-            if (this.msgMemStoreBeingFlush.getCurMsgCount() > 0) {
-                totalSize += this.msgMemStoreBeingFlush.getCurDataCacheSize();
+            for (MsgMemStore memStore : this.msgMemStoresBeingFlush) {
+                totalSize += memStore.getCurDataCacheSize();
             }
         } finally {
             this.writeCacheMutex.readLock().unlock();
@@ -568,7 +949,7 @@ public class MessageStore implements Closeable {
 
     private long parseDeletePolicy(String delPolicy) {
         String[] tmpStrs = delPolicy.split(",");
-        if (tmpStrs.length != 2) {
+        if (tmpStrs.length != 2 && tmpStrs.length != 3) {
             return DataStoreUtils.MAX_FILE_VALID_DURATION;
         }
         String validValStr = tmpStrs[1];
@@ -588,7 +969,47 @@ public class MessageStore implements Closeable {
     }
 
     /***
-     * Append message and trigger flush operation.
+     * Parse the size limit of the topic in the delete policy, such as "delete,168h,100g",
+     * the limit is shared evenly by the stores of the topic.
+     *
+     * @param topicMetadata
+     * @return the size limit of this store, 0 means no limit
+     */
+    private long parseRetentionSize(final TopicMetadata topicMetadata) {
+        String delPolicy = topicMetadata.getDeletePolicy();
+        if (delPolicy == null) {
+            return 0L;
+        }
+        String[] tmpStrs = delPolicy.split(",");
+        if (tmpStrs.length != 3) {
+            return 0L;
+        }
+        String sizeValStr = tmpStrs[2].trim().toLowerCase();
+        long unitSize = 1L;
+        if (sizeValStr.endsWith("k")) {
+            unitSize = 1024L;
+        } else if (sizeValStr.endsWith("m")) {
+            unitSize = 1024L * 1024L;
+        } else if (sizeValStr.endsWith("g")) {
+            unitSize = 1024L * 1024L * 1024L;
+        } else if (sizeValStr.endsWith("t")) {
+            unitSize = 1024L * 1024L * 1024L * 1024L;
+        }
+        if (unitSize > 1L) {
+            sizeValStr = sizeValStr.substring(0, sizeValStr.length() - 1);
+        }
+        try {
+            return Math.max(0L, Long.valueOf(sizeValStr) * unitSize)
+                    / Math.max(1, topicMetadata.getNumTopicStores());
+        } catch (Throwable e) {
+            return 0L;
+        }
+    }
+
+    /***
+     * Append message and trigger flush operation. A full write cache is swapped at once with
+     * the next free cache of the ring, and the swapped caches are flushed in write order on the
+     * flush threads of the data directory, so the caller does not wait for a flush thread.
      *
      * @param partitionId
      * @param keyCode
@@ -604,65 +1025,134 @@ public class MessageStore implements Closeable {
                                           final long receivedTime, final int entryLength,
                                           final boolean needAdd, final ByteBuffer entry,
                                           final boolean isTimeTrigger) throws IOException {
+        boolean isSwapped = false;
         writeCacheMutex.writeLock().lock();
         try {
-            if (!isFlushOngoing.get() && hasFlushBeenTriggered.compareAndSet(false, true)) {
-                this.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            final StringBuilder strBuffer = new StringBuilder(512);
-                            flush(strBuffer);
-                        } catch (Throwable e) {
-                            logger.error("[Data Store] Error during flush", e);
-                        }
-                    }
-                });
+            // the cache may be swapped by another writer meanwhile
+            if ((isTimeTrigger ? msgMemStore.getCurMsgCount() > 0 : msgMemStore.isFull(entryLength))
+                    && swapWriteCache()) {
+                isSwapped = true;
                 msgMemStatisInfo.addMemFlushCount(isTimeTrigger);
             }
-            long startTime = System.currentTimeMillis();
-            long timeoutNs = TimeUnit.MILLISECONDS.toNanos(100);
-            while (hasFlushBeenTriggered.get()) {
-                flushWriteCacheCondition.awaitNanos(timeoutNs);
-                if (System.currentTimeMillis() - startTime > 2000) {
-                    logger.warn(new StringBuilder(512)
-                            .append("[Data Store] StoreKey=").append(storeKey)
-                            .append(" Wait Cache flush write too long! wait time is ")
-                            .append(System.currentTimeMillis() - startTime).toString());
-                    break;
-                }
-            }
             if (needAdd) {
                 return msgMemStore.appendMsg(msgMemStatisInfo,
                         partitionId, keyCode, receivedTime, entryLength, entry);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IOException(new StringBuilder(512)
-                    .append("[Data Store] StoreKey=").append(storeKey)
-                    .append(" Interrupted when triggerFlushAndAddMsg process for storekey ")
-                    .append(storeKey).toString());
         } finally {
             writeCacheMutex.writeLock().unlock();
+            if (isSwapped) {
+                submitSwappedCacheFlush();
+            }
         }
         return false;
     }
 
+    private void submitSwappedCacheFlush() {
+        final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                final StringBuilder strBuffer = new StringBuilder(512);
+                flushMutex.lock();
+                try {
+                    flushSwappedCaches(strBuffer);
+                } catch (Throwable e) {
+                    logger.error("[Data Store] Error during flush", e);
+                } finally {
+                    flushMutex.unlock();
+                }
+            }
+        };
+        if (this.msgStoreMgr == null
+                || !this.msgStoreMgr.getMemFlushExecutor().execute(this.primStorePath, flushTask)) {
+            // the flush executor is closed, flush in the caller
+            flushTask.run();
+        }
+    }
+
+    /***
+     * Flush the swapped write caches and the write cache to file at once. The write cache
+     * lock is held through the flush, so no cache is swapped meanwhile.
+     *
+     * @param strBuffer
+     * @throws IOException
+     */
     private void flush(final StringBuilder strBuffer) throws IOException {
-        long startTime = System.currentTimeMillis();
         flushMutex.lock();
-        this.lastMemFlushTime.set(System.currentTimeMillis());
         try {
-            swapWriteCache(strBuffer);
+            writeCacheMutex.writeLock().lock();
+            try {
+                flushSwappedCaches(strBuffer);
+                if (msgMemStore.getCurMsgCount() > 0) {
+                    long lastDataPos = msgMemStore.getDataLastWritePos();
+                    long lastIndexPos = msgMemStore.getIndexLastWritePos();
+                    flushWriteCache(msgMemStore, strBuffer);
+                    msgMemStore.resetStartPos(lastDataPos, lastIndexPos);
+                }
+            } finally {
+                writeCacheMutex.writeLock().unlock();
+            }
+        } finally {
+            flushMutex.unlock();
+        }
+    }
+
+    /***
+     * Flush the swapped write caches to file in write order, each flushed cache is
+     * removed from the ring then. The caller holds the flush mutex.
+     *
+     * @param strBuffer
+     * @throws IOException
+     */
+    private void flushSwappedCaches(final StringBuilder strBuffer) throws IOException {
+        IOException flushException = null;
+        while (true) {
+            final MsgMemStore flushMemStore;
+            writeCacheMutex.readLock().lock();
+            try {
+                flushMemStore = msgMemStoresBeingFlush.peekFirst();
+            } finally {
+                writeCacheMutex.readLock().unlock();
+            }
+            if (flushMemStore == null) {
+                break;
+            }
+            try {
+                flushWriteCache(flushMemStore, strBuffer);
+            } catch (IOException e) {
+                // go on with the newer caches, a failed cache is not flushed again
+                if (flushException == null) {
+                    flushException = e;
+                }
+            } finally {
+                writeCacheMutex.writeLock().lock();
+                try {
+                    msgMemStoresBeingFlush.pollFirst();
+                    recycleWriteCache(flushMemStore);
+                } finally {
+                    writeCacheMutex.writeLock().unlock();
+                }
+            }
+        }
+        if (flushException != null) {
+            throw flushException;
+        }
+    }
+
+    private void flushWriteCache(final MsgMemStore flushMemStore,
+                                 final StringBuilder strBuffer) throws IOException {
+        long startTime = System.currentTimeMillis();
+        memFlushStartTime = startTime;
+        try {
             if (logger.isDebugEnabled()) {
                 logger.debug(strBuffer.append("[Data Store] StoreKey=").append(storeKey)
                         .append(" Flushing entries.count:")
-                        .append(msgMemStoreBeingFlush.getCurMsgCount())
+                        .append(flushMemStore.getCurMsgCount())
                         .append(" -- getCachedSize ")
-                        .append(msgMemStoreBeingFlush.getCurDataCacheSize() / 1024.0 / 1024)
+                        .append(flushMemStore.getCurDataCacheSize() / 1024.0 / 1024)
                         .append(" Mb").toString());
                 strBuffer.delete(0, strBuffer.length());
             }
+            flushMemStore.flush(msgFileStore, strBuffer);
         } catch (Throwable e) {
             if (e instanceof IOException) {
                 throw (IOException) e;
@@ -670,53 +1160,129 @@ public class MessageStore implements Closeable {
                 throw new IOException(e);
             }
         } finally {
-            try {
-                isFlushOngoing.set(false);
-            } finally {
-                flushMutex.unlock();
-                msgMemStatisInfo.addFlushTimeStatis(System.currentTimeMillis() - startTime);
-                if (logger.isDebugEnabled()) {
-                    logger.debug(strBuffer.append("[Data Store] StoreKey=")
-                            .append(storeKey).append(" Flushed time : ")
-                            .append(System.currentTimeMillis() - startTime).append(" ms").toString());
-                    strBuffer.delete(0, strBuffer.length());
-                }
+            lastMemFlushDurMs = System.currentTimeMillis() - startTime;
+            msgMemStatisInfo.addFlushTimeStatis(System.currentTimeMillis() - startTime);
+            if (logger.isDebugEnabled()) {
+                logger.debug(strBuffer.append("[Data Store] StoreKey=")
+                        .append(storeKey).append(" Flushed time : ")
+                        .append(System.currentTimeMillis() - startTime).append(" ms").toString());
+                strBuffer.delete(0, strBuffer.length());
+            }
+        }
+    }
+
+    /***
+     * Swap the write cache with the spare cache, or with a new cache if the ring is not full
+     * and the broker's write cache budget allows, the caller holds the write cache lock.
+     *
+     * @return whether the write cache is swapped
+     */
+    private boolean swapWriteCache() {
+        MsgMemStore newMemStore = msgMemStoreSpare;
+        msgMemStoreSpare = null;
+        if (newMemStore != null && !isCacheCapacityMatched(newMemStore)) {
+            releaseWriteCache(newMemStore);
+            newMemStore = null;
+            final StringBuilder strBuffer = new StringBuilder(512);
+            logger.info(strBuffer.append("[Data Store] Found ").append(getStoreKey())
+                    .append(" Cache capacity change, new MemSize=")
+                    .append(writeCacheMaxSize).append(", new CacheCnt=")
+                    .append(writeCacheMaxCnt).toString());
+            strBuffer.delete(0, strBuffer.length());
+        }
+        if (newMemStore == null) {
+            if (msgMemStoresBeingFlush.size() + 2 > writeCacheBufferCnt) {
+                return false;
+            }
+            // the first two caches of a store are allocated beyond the budget
+            newMemStore = allocWriteCache(msgMemStoresBeingFlush.isEmpty());
+            if (newMemStore == null) {
+                return false;
             }
         }
+        this.lastMemFlushTime.set(System.currentTimeMillis());
+        long lastDataPos = msgMemStore.getDataLastWritePos();
+        long lastIndexPos = msgMemStore.getIndexLastWritePos();
+        msgMemStoresBeingFlush.addLast(msgMemStore);
+        msgMemStore = newMemStore;
+        msgMemStore.resetStartPos(lastDataPos, lastIndexPos);
+        return true;
+    }
+
+    /***
+     * Check whether the write cache can be swapped now, the caller holds the write cache lock.
+     *
+     * @return
+     */
+    private boolean isWriteCacheSwappable() {
+        if (msgMemStoreSpare != null || msgMemStoresBeingFlush.isEmpty()) {
+            return true;
+        }
+        return msgMemStoresBeingFlush.size() + 2 <= writeCacheBufferCnt
+                && (memCacheAllocator == null || memCacheAllocator.isAvailable(
+                MsgMemStore.getAllocSize(writeCacheMaxSize, writeCacheMaxCnt)));
+    }
+
+    /***
+     * Keep a flushed write cache as the spare cache, or release it,
+     * the caller holds the write cache lock.
+     *
+     * @param flushedMemStore
+     */
+    private void recycleWriteCache(final MsgMemStore flushedMemStore) {
+        if (msgMemStoreSpare == null && isCacheCapacityMatched(flushedMemStore)) {
+            flushedMemStore.clear();
+            msgMemStoreSpare = flushedMemStore;
+        } else {
+            releaseWriteCache(flushedMemStore);
+        }
     }
 
-    private void swapWriteCache(final StringBuilder strBuffer) throws Throwable{
+    /***
+     * Create a write cache, its buffers are allocated from the broker's budget when it is written.
+     *
+     * @param isForced  create the cache even if the budget is exceeded
+     * @return null if the budget is exceeded
+     */
+    private MsgMemStore allocWriteCache(final boolean isForced) {
+        if (!isForced && memCacheAllocator != null && !memCacheAllocator.isAvailable(
+                MsgMemStore.getAllocSize(writeCacheMaxSize, writeCacheMaxCnt))) {
+            return null;
+        }
+        return new MsgMemStore(writeCacheMaxSize,
+                writeCacheMaxCnt, tubeConfig, memCacheAllocator, getTopic());
+    }
+
+    private void releaseWriteCache(final MsgMemStore memStore) {
+        memStore.close();
+    }
+
+    private void releaseWriteCaches() {
         writeCacheMutex.writeLock().lock();
         try {
-            long lastDataPos = msgMemStore.getDataLastWritePos();
-            long lastIndexPos = msgMemStore.getIndexLastWritePos();
-            MsgMemStore tmp = msgMemStoreBeingFlush;
-            msgMemStoreBeingFlush = msgMemStore;
-            if (tmp.getMaxAllowedMsgCount() == writeCacheMaxCnt
-                    && tmp.getMaxDataCacheSize() == writeCacheMaxSize) {
-                msgMemStore = tmp;
-                msgMemStore.clear();
-            } else {
-                tmp.close();
-                msgMemStore =
-                        new MsgMemStore(writeCacheMaxSize, writeCacheMaxCnt, tubeConfig);
-                logger.info(strBuffer.append("[Data Store] Found ").append(getStoreKey())
-                        .append(" Cache capacity change, new MemSize=")
-                        .append(writeCacheMaxSize).append(", new CacheCnt=")
-                        .append(writeCacheMaxCnt).toString());
-                strBuffer.delete(0, strBuffer.length());
+            releaseWriteCache(msgMemStore);
+            if (msgMemStoreSpare != null) {
+                releaseWriteCache(msgMemStoreSpare);
+                msgMemStoreSpare = null;
             }
-            msgMemStore.resetStartPos(lastDataPos, lastIndexPos);
-            hasFlushBeenTriggered.set(false);
-            flushWriteCacheCondition.signalAll();
-        } finally {
-            try {
-                isFlushOngoing.set(true);
-            } finally {
-                writeCacheMutex.writeLock().unlock();
+            for (MsgMemStore memStore : msgMemStoresBeingFlush) {
+                releaseWriteCache(memStore);
             }
+            msgMemStoresBeingFlush.clear();
+        } finally {
+            writeCacheMutex.writeLock().unlock();
         }
-        msgMemStoreBeingFlush.flush(msgFileStore, strBuffer);
+    }
+
+    private boolean isCacheCapacityMatched(final MsgMemStore memStore) {
+        return memStore.getMaxAllowedMsgCount() == writeCacheMaxCnt
+                && memStore.getMaxDataCacheSize() == writeCacheMaxSize;
+    }
+
+    private int getWriteCacheBufferCnt(final TopicMetadata topicMetadata) {
+        int bufferCnt = topicMetadata.getMemCacheBufferCnt() > 0
+                ? topicMetadata.getMemCacheBufferCnt() : tubeConfig.getMemCacheBufferCnt();
+        return Math.max(2, bufferCnt);
     }
 
 }
@@ -17,6 +17,7 @@
 
 package com.tencent.tubemq.server.broker.msgstore;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.tencent.tubemq.corebase.TBaseConstants;
 import com.tencent.tubemq.corebase.TErrCodeConstants;
 import com.tencent.tubemq.corebase.utils.TStringUtils;
@@ -26,9 +27,12 @@ import com.tencent.tubemq.server.broker.TubeBroker;
 import com.tencent.tubemq.server.broker.exception.StartupException;
 import com.tencent.tubemq.server.broker.metadata.MetadataManage;
 import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
+import com.tencent.tubemq.server.broker.msgstore.disk.ColdSegmentReader;
 import com.tencent.tubemq.server.broker.msgstore.disk.GetMessageResult;
+import com.tencent.tubemq.server.broker.msgstore.mem.MemCacheAllocator;
 import com.tencent.tubemq.server.broker.msgstore.ssd.MsgSSDStoreManager;
 import com.tencent.tubemq.server.broker.msgstore.ssd.SSDSegFound;
+import com.tencent.tubemq.server.broker.msgstore.tiered.TieredStoreManager;
 import com.tencent.tubemq.server.broker.nodeinfo.ConsumerNodeInfo;
 import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
 import com.tencent.tubemq.server.common.TStatusConstants;
@@ -40,6 +44,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -51,11 +56,14 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,6 +72,8 @@ import org.slf4j.LoggerFactory;
  */
 public class MessageStoreManager implements StoreService {
     private static final Logger logger = LoggerFactory.getLogger(MessageStoreManager.class);
+    // min interval of checking the broker size limits
+    private static final long BROKER_SIZE_CHECK_INTERVAL_MS = 1000L;
     private final BrokerConfig tubeConfig;
     private final TubeBroker tubeBroker;
     // metadata manager, get metadata from master.
@@ -78,10 +88,34 @@ public class MessageStoreManager implements StoreService {
     private final AtomicBoolean stopped = new AtomicBoolean(false);
     // data expire operation scheduler.
     private final ScheduledExecutorService logClearScheduler;
+    // stores ordered by the expire time of their oldest file.
+    private final LogExpireQueue logExpireQueue = new LogExpireQueue();
+    // expired file delete threads, each data directory is cleared by one thread at a time.
+    private final ExecutorService logClearExecutor;
+    // data directory --> delete rate limiter of the directory.
+    private final ConcurrentHashMap<String, RateLimiter> logDeleteLimiters =
+            new ConcurrentHashMap<String, RateLimiter>();
+    // stores whose size limit clear is submitted.
+    private final Set<MessageStore> sizeClearingStores =
+            Collections.newSetFromMap(new ConcurrentHashMap<MessageStore, Boolean>());
+    // the status that is clearing the files over the broker size limits.
+    private final AtomicBoolean isBrokerSizeClearing = new AtomicBoolean(false);
+    // last time the broker size limits were checked.
+    private final AtomicLong lastBrokerSizeCheckTime = new AtomicLong(0L);
+    // reader of the data files behind the hot window, null if the cold read is disabled.
+    private final ColdSegmentReader coldSegmentReader;
+    // tiered store manager, null if the tiered store is disabled.
+    private final TieredStoreManager tieredStoreManager;
+    // cold data files offload and local eviction scheduler.
+    private final ScheduledExecutorService tieredStoreScheduler;
     // flush operation scheduler.
     private final ScheduledExecutorService unFlushDiskScheduler;
     // message on memory sink to disk operation scheduler.
     private final ScheduledExecutorService unFlushMemkScheduler;
+    // write cache flush executor shared by the stores.
+    private final MemFlushExecutor memFlushExecutor;
+    // write cache buffer allocator shared by the stores.
+    private final MemCacheAllocator memCacheAllocator;
     // max transfer size.
     private int maxMsgTransferSize;
     // the status that is deleting topic.
@@ -117,6 +151,18 @@ public class MessageStoreManager implements StoreService {
                         return new Thread(r, "Broker Log Clear Thread");
                     }
                 });
+        this.logClearExecutor =
+                Executors.newFixedThreadPool(this.tubeConfig.getLogClearupThreadCnt(),
+                        new ThreadFactory() {
+                            private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                return new Thread(r, new StringBuilder(256)
+                                        .append("Broker Log Delete Thread-")
+                                        .append(threadIndex.incrementAndGet()).toString());
+                            }
+                        });
         this.unFlushDiskScheduler =
                 Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
                     @Override
@@ -131,6 +177,26 @@ public class MessageStoreManager implements StoreService {
                         return new Thread(r, "Broker Log Mem Flush Thread");
                     }
                 });
+        this.memFlushExecutor =
+                new MemFlushExecutor(this.tubeConfig.getMemFlushThreadsPerDisk());
+        this.memCacheAllocator =
+                new MemCacheAllocator(this.tubeConfig.getMemCacheMaxTotalSize(),
+                        this.tubeConfig.getMemCachePoolMaxSize());
+        this.coldSegmentReader = this.tubeConfig.isColdReadEnable()
+                ? new ColdSegmentReader(this.tubeConfig) : null;
+        if (this.tubeConfig.isTieredStoreEnable()) {
+            this.tieredStoreManager = new TieredStoreManager(this.tubeConfig);
+            this.tieredStoreScheduler =
+                    Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "Broker Tiered Store Thread");
+                        }
+                    });
+        } else {
+            this.tieredStoreManager = null;
+            this.tieredStoreScheduler = null;
+        }
 
     }
 
@@ -160,6 +226,13 @@ public class MessageStoreManager implements StoreService {
                 tubeConfig.getLogFlushMemDurMs(),
                 TimeUnit.MILLISECONDS);
 
+        if (this.tieredStoreScheduler != null) {
+            this.tieredStoreScheduler.scheduleWithFixedDelay(new TieredStoreRunner(),
+                    tubeConfig.getTieredCheckIntervalMs(),
+                    tubeConfig.getTieredCheckIntervalMs(),
+                    TimeUnit.MILLISECONDS);
+        }
+
     }
 
     @Override
@@ -170,6 +243,10 @@ public class MessageStoreManager implements StoreService {
         if (this.stopped.compareAndSet(false, true)) {
             logger.info("[Store Manager] begin close store manager......");
             this.logClearScheduler.shutdownNow();
+            this.logClearExecutor.shutdownNow();
+            if (this.tieredStoreScheduler != null) {
+                this.tieredStoreScheduler.shutdownNow();
+            }
             this.unFlushDiskScheduler.shutdownNow();
             this.unFlushMemkScheduler.shutdownNow();
             this.msgSsdStoreManager.close();
@@ -191,6 +268,14 @@ public class MessageStoreManager implements StoreService {
                 }
             }
             this.dataStores.clear();
+            this.memFlushExecutor.close();
+            this.memCacheAllocator.close();
+            if (this.coldSegmentReader != null) {
+                this.coldSegmentReader.close();
+            }
+            if (this.tieredStoreManager != null) {
+                this.tieredStoreManager.close();
+            }
             logger.info("[Store Manager] Store Manager stopped!");
         }
     }
@@ -232,6 +317,7 @@ public class MessageStoreManager implements StoreService {
                         try {
                             MessageStore tmpStore = topicStores.remove(storeId);
                             tmpStore.close();
+                            tmpStore.deleteTieredSegments();
                             if (topicStores.isEmpty()) {
                                 this.dataStores.remove(tmpTopic);
                             }
@@ -330,6 +416,7 @@ public class MessageStoreManager implements StoreService {
                     messageStore = dataMap.putIfAbsent(storeId, tmpMessageStore);
                     if (messageStore == null) {
                         messageStore = tmpMessageStore;
+                        messageStore.scheduleLogClearup();
                         logger.info(sBuilder
                                 .append("[Store Manager] Created a new message storage, storeKey=")
                                 .append(topic).append("-").append(storeId).toString());
@@ -350,10 +437,124 @@ public class MessageStoreManager implements StoreService {
         return this.msgSsdStoreManager.isSsdServiceInUse();
     }
 
-    public boolean putSsdTransferReq(final String partStr,
-                                     final String storeKey, final long startOffset) {
+    public String getSsdTransferStatisInfo() {
+        return this.msgSsdStoreManager.getSsdTransferStatisInfo();
+    }
+
+    public MemFlushExecutor getMemFlushExecutor() {
+        return this.memFlushExecutor;
+    }
+
+    public String getMemFlushStatisInfo() {
+        return this.memFlushExecutor.getStatisInfo();
+    }
+
+    public MemCacheAllocator getMemCacheAllocator() {
+        return this.memCacheAllocator;
+    }
+
+    public ColdSegmentReader getColdSegmentReader() {
+        return this.coldSegmentReader;
+    }
+
+    public String getColdReadStatisInfo() {
+        return this.coldSegmentReader == null
+                ? "{}" : this.coldSegmentReader.getStatisInfo();
+    }
+
+    public TieredStoreManager getTieredStoreManager() {
+        return this.tieredStoreManager;
+    }
+
+    public String getTieredStoreStatisInfo() {
+        return this.tieredStoreManager == null
+                ? "{}" : this.tieredStoreManager.getStatisInfo();
+    }
+
+    /***
+     * Schedule the log clearup of the store, an earlier scheduled time is kept.
+     *
+     * @param messageStore
+     * @param expireTime    expire time of the oldest file of the store
+     */
+    public void scheduleLogClearup(final MessageStore messageStore, final long expireTime) {
+        this.logExpireQueue.schedule(messageStore, expireTime);
+    }
+
+    public void cancelLogClearup(final MessageStore messageStore) {
+        this.logExpireQueue.remove(messageStore);
+    }
+
+    /***
+     * Check the data files of the store and of the broker against their size limits when a store
+     * rolls a data file, and delete the oldest files on the log delete threads if a limit is
+     * exceeded, without waiting for the log clear task.
+     *
+     * @param messageStore
+     */
+    public void checkRetentionSize(final MessageStore messageStore) {
+        if (this.stopped.get()) {
+            return;
+        }
+        if (messageStore.isOverRetentionSize()
+                && this.sizeClearingStores.add(messageStore)) {
+            try {
+                this.logClearExecutor.execute(new StoreSizeClearTask(messageStore));
+            } catch (RejectedExecutionException e) {
+                this.sizeClearingStores.remove(messageStore);
+            }
+        }
+        checkBrokerRetentionSize();
+    }
+
+    /***
+     * Get the bytes of the data files over the broker size limit or the disk usage limit.
+     *
+     * @return 0 if not over the limits
+     */
+    public long getBrokerOverRetentionSize() {
+        long overSize = 0L;
+        if (tubeConfig.getLogRetentionMaxBytes() > 0) {
+            long totalSize = 0L;
+            for (Map<Integer, MessageStore> storeMap : dataStores.values()) {
+                for (MessageStore msgStore : storeMap.values()) {
+                    totalSize += msgStore.getDataStoreSize();
+                }
+            }
+            overSize = Math.max(overSize, totalSize - tubeConfig.getLogRetentionMaxBytes());
+        }
+        if (tubeConfig.getLogRetentionMaxDiskUsage() > 0) {
+            overSize = Math.max(overSize,
+                    getDiskOverUsageSize(tubeConfig.getLogRetentionMaxDiskUsage()));
+        }
+        return overSize;
+    }
+
+    /***
+     * Get the used bytes of the disk of the primary path over the given used percent.
+     *
+     * @param maxUsage
+     * @return
+     */
+    private long getDiskOverUsageSize(final int maxUsage) {
+        File dataDir = new File(tubeConfig.getPrimaryPath());
+        long totalSpace = dataDir.getTotalSpace();
+        if (totalSpace <= 0) {
+            return 0L;
+        }
+        long usedSpace = totalSpace - dataDir.getUsableSpace();
+        return usedSpace - totalSpace / 100 * maxUsage;
+    }
+
+    public String getMemCacheStatisInfo() {
+        return this.memCacheAllocator.getStatisInfo();
+    }
+
+    public boolean putSsdTransferReq(final String partStr, final String storeKey,
+                                     final long startOffset, final long dataLag) {
         if (this.msgSsdStoreManager.isSsdServiceInUse()) {
-            return this.msgSsdStoreManager.requestSsdTransfer(partStr, storeKey, startOffset, 1);
+            return this.msgSsdStoreManager.requestSsdTransfer(partStr,
+                    storeKey, startOffset, 1, dataLag);
         }
         return false;
     }
@@ -518,6 +719,10 @@ public class MessageStoreManager implements StoreService {
                     continue;
                 }
                 final String name = subDir.getName();
+                // hidden directories hold broker files such as the local offsets
+                if (name.startsWith(".")) {
+                    continue;
+                }
                 final int index = name.lastIndexOf('-');
                 if (index < 0) {
                     logger.warn(sBuilder.append("[Store Manager] Ignore invlaid directory:")
@@ -605,7 +810,9 @@ public class MessageStoreManager implements StoreService {
                     }
                 }
                 MessageStore oldMsgStore = map.putIfAbsent(messageStore.getStoreId(), messageStore);
-                if (oldMsgStore != null) {
+                if (oldMsgStore == null) {
+                    messageStore.scheduleLogClearup();
+                } else {
                     try {
                         logger.info(new StringBuilder(512)
                                 .append("[Store Manager] Close duplicated messageStore ")
@@ -672,6 +879,45 @@ public class MessageStoreManager implements StoreService {
         }
     }
 
+    private RateLimiter getLogDeleteLimiter(final String dataPath) {
+        if (tubeConfig.getLogClearupBytesPerSec() <= 0) {
+            return null;
+        }
+        RateLimiter deleteLimiter = logDeleteLimiters.get(dataPath);
+        if (deleteLimiter == null) {
+            RateLimiter tmpLimiter =
+                    RateLimiter.create(tubeConfig.getLogClearupBytesPerSec());
+            deleteLimiter = logDeleteLimiters.putIfAbsent(dataPath, tmpLimiter);
+            if (deleteLimiter == null) {
+                deleteLimiter = tmpLimiter;
+            }
+        }
+        return deleteLimiter;
+    }
+
+    private void checkBrokerRetentionSize() {
+        if (tubeConfig.getLogRetentionMaxBytes() <= 0
+                && tubeConfig.getLogRetentionMaxDiskUsage() <= 0) {
+            return;
+        }
+        // the broker limits are summed from all the stores, check them once in an interval
+        long curCheckTime = System.currentTimeMillis();
+        long lastCheckTime = lastBrokerSizeCheckTime.get();
+        if (curCheckTime - lastCheckTime < BROKER_SIZE_CHECK_INTERVAL_MS
+                || !lastBrokerSizeCheckTime.compareAndSet(lastCheckTime, curCheckTime)) {
+            return;
+        }
+        long overSize = getBrokerOverRetentionSize();
+        if (overSize <= 0 || !isBrokerSizeClearing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            logClearExecutor.execute(new BrokerSizeClearTask(overSize));
+        } catch (RejectedExecutionException e) {
+            isBrokerSizeClearing.set(false);
+        }
+    }
+
     private class LogClearRunner implements Runnable {
 
         public LogClearRunner() {
@@ -682,32 +928,39 @@ public class MessageStoreManager implements StoreService {
         public void run() {
             StringBuilder sBuilder = new StringBuilder(256);
             long startTime = System.currentTimeMillis();
-            Set<String> expiredTopic = getExpiredTopicSet(sBuilder);
-            if (!expiredTopic.isEmpty()) {
-                logger.info(sBuilder.append("Found ").append(expiredTopic.size())
-                        .append(" files expired, start delete files!").toString());
-                sBuilder.delete(0, sBuilder.length());
-                for (String topicName : expiredTopic) {
-                    if (topicName == null) {
-                        continue;
-                    }
-                    Map<Integer, MessageStore> storeMap = dataStores.get(topicName);
-                    if (storeMap == null || storeMap.isEmpty()) {
-                        continue;
-                    }
-                    for (Map.Entry<Integer, MessageStore> entry : storeMap.entrySet()) {
-                        if (entry.getValue() == null) {
-                            continue;
-                        }
-                        try {
-                            entry.getValue().runClearupPolicy(false);
-                        } catch (final Throwable e) {
-                            logger.error(sBuilder.append("Try to run delete policy with ")
-                                    .append(entry.getValue().getStoreKey())
-                                    .append("'s log file  failed").toString(), e);
-                            sBuilder.delete(0, sBuilder.length());
-                        }
-                    }
+            checkBrokerRetentionSize();
+            List<MessageStore> expiredStores = logExpireQueue.pollExpired(startTime);
+            if (expiredStores.isEmpty()) {
+                return;
+            }
+            // the stores of a data directory are cleared in turn, the directories in parallel
+            Map<String, List<MessageStore>> dirStoreMap = new HashMap<String, List<MessageStore>>();
+            for (MessageStore msgStore : expiredStores) {
+                List<MessageStore> dirStores = dirStoreMap.get(msgStore.getPrimStorePath());
+                if (dirStores == null) {
+                    dirStores = new ArrayList<MessageStore>();
+                    dirStoreMap.put(msgStore.getPrimStorePath(), dirStores);
+                }
+                dirStores.add(msgStore);
+            }
+            logger.info(sBuilder.append("[Store Manager] Found ").append(expiredStores.size())
+                    .append(" stores expired in ").append(dirStoreMap.size())
+                    .append(" data paths, start delete files!").toString());
+            sBuilder.delete(0, sBuilder.length());
+            List<Future<Long>> clearFutures = new ArrayList<Future<Long>>();
+            for (Map.Entry<String, List<MessageStore>> entry : dirStoreMap.entrySet()) {
+                clearFutures.add(logClearExecutor.submit(
+                        new DirLogClearTask(entry.getKey(), entry.getValue())));
+            }
+            long reclaimedSize = 0L;
+            for (Future<Long> clearFuture : clearFutures) {
+                try {
+                    reclaimedSize += clearFuture.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    logger.error("[Store Manager] Log clear task failed", e);
                 }
             }
             long dltTime = System.currentTimeMillis() - startTime;
@@ -717,34 +970,190 @@ public class MessageStoreManager implements StoreService {
                         .append(tubeConfig.getLogClearupDurationMs()).toString());
                 sBuilder.delete(0, sBuilder.length());
             }
-            if (!expiredTopic.isEmpty()) {
-                logger.info("Log Clear Scheduler finished file delete!");
-            }
+            logger.info(sBuilder.append("[Store Manager] Log Clear Scheduler finished file delete, reclaimed ")
+                    .append(reclaimedSize).append(" bytes of ").append(expiredStores.size())
+                    .append(" stores, used ").append(dltTime).append(" ms").toString());
+            sBuilder.delete(0, sBuilder.length());
         }
+    }
 
-        private Set<String> getExpiredTopicSet(final StringBuilder sb) {
-            Set<String> expiredTopic = new HashSet<String>();
-            for (Map<Integer, MessageStore> storeMap : dataStores.values()) {
-                if (storeMap == null || storeMap.isEmpty()) {
+    private class DirLogClearTask implements Callable<Long> {
+        private final String dataPath;
+        private final List<MessageStore> expiredStores;
+
+        public DirLogClearTask(final String dataPath, final List<MessageStore> expiredStores) {
+            this.dataPath = dataPath;
+            this.expiredStores = expiredStores;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            long reclaimedSize = 0L;
+            RateLimiter deleteLimiter = getLogDeleteLimiter(dataPath);
+            for (MessageStore msgStore : expiredStores) {
+                if (msgStore.isClosed()) {
                     continue;
                 }
+                try {
+                    reclaimedSize += msgStore.runClearupPolicy(deleteLimiter);
+                } catch (final Throwable e) {
+                    logger.error(new StringBuilder(512).append("Try to run delete policy with ")
+                            .append(msgStore.getStoreKey())
+                            .append("'s log file  failed").toString(), e);
+                } finally {
+                    msgStore.scheduleLogClearup();
+                }
+            }
+            return reclaimedSize;
+        }
+    }
+
+    private class StoreSizeClearTask implements Runnable {
+        private final MessageStore msgStore;
+
+        public StoreSizeClearTask(final MessageStore msgStore) {
+            this.msgStore = msgStore;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (msgStore.isClosed()) {
+                    return;
+                }
+                long reclaimedSize =
+                        msgStore.runClearupPolicy(getLogDeleteLimiter(msgStore.getPrimStorePath()));
+                msgStore.scheduleLogClearup();
+                logger.info(new StringBuilder(512).append("[Store Manager] ")
+                        .append(msgStore.getStoreKey()).append(" is over the size limit ")
+                        .append(msgStore.getMaxFileValidSize()).append(", reclaimed ")
+                        .append(reclaimedSize).append(" bytes").toString());
+            } catch (final Throwable e) {
+                logger.error(new StringBuilder(512).append("Try to run size limit with ")
+                        .append(msgStore.getStoreKey())
+                        .append("'s log file  failed").toString(), e);
+            } finally {
+                sizeClearingStores.remove(msgStore);
+            }
+        }
+    }
+
+    /***
+     * Delete the oldest data files of all the stores, one store at a time, until the over size
+     * is reclaimed. The deletes are not rate limited, the disk is being filled.
+     */
+    private class BrokerSizeClearTask implements Runnable {
+        private final long overSize;
+
+        public BrokerSizeClearTask(final long overSize) {
+            this.overSize = overSize;
+        }
+
+        @Override
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            long reclaimedSize = 0L;
+            try {
+                while (reclaimedSize < overSize && !stopped.get()) {
+                    MessageStore oldestStore = null;
+                    long oldestFileTime = Long.MAX_VALUE;
+                    for (Map<Integer, MessageStore> storeMap : dataStores.values()) {
+                        for (MessageStore msgStore : storeMap.values()) {
+                            if (msgStore.isClosed()) {
+                                continue;
+                            }
+                            long fileTime = msgStore.getOldestFileTime();
+                            if (fileTime < oldestFileTime) {
+                                oldestFileTime = fileTime;
+                                oldestStore = msgStore;
+                            }
+                        }
+                    }
+                    if (oldestStore == null) {
+                        break;
+                    }
+                    long deletedSize = oldestStore.runClearupPolicy(null, oldestFileTime);
+                    oldestStore.scheduleLogClearup();
+                    if (deletedSize <= 0) {
+                        break;
+                    }
+                    reclaimedSize += deletedSize;
+                }
+            } catch (final Throwable e) {
+                logger.error("[Store Manager] Try to run broker size limit failed", e);
+            } finally {
+                isBrokerSizeClearing.set(false);
+            }
+            logger.warn(new StringBuilder(512)
+                    .append("[Store Manager] Broker is over the size limit by ").append(overSize)
+                    .append(" bytes, reclaimed ").append(reclaimedSize).append(" bytes, used ")
+                    .append(System.currentTimeMillis() - startTime).append(" ms").toString());
+        }
+    }
+
+    /***
+     * Upload the cold data files of the stores to the tiered store, and remove the oldest
+     * offloaded local files of all the stores while the disk is over the eviction usage.
+     */
+    private class TieredStoreRunner implements Runnable {
+
+        public TieredStoreRunner() {
+            //
+        }
+
+        @Override
+        public void run() {
+            final StringBuilder sBuilder = new StringBuilder(512);
+            final long startTime = System.currentTimeMillis();
+            final long offloadBefore = startTime - tubeConfig.getTieredOffloadAfterMs();
+            int offloadCnt = 0;
+            for (Map<Integer, MessageStore> storeMap : dataStores.values()) {
                 for (MessageStore msgStore : storeMap.values()) {
-                    if (msgStore == null) {
-                        continue;
+                    if (stopped.get()) {
+                        return;
                     }
                     try {
-                        if (msgStore.runClearupPolicy(true)) {
-                            expiredTopic.add(msgStore.getTopic());
-                        }
+                        offloadCnt += msgStore.offloadColdSegments(offloadBefore);
                     } catch (final Throwable e) {
-                        logger.error(sb.append("Try to run delete policy with ")
+                        logger.error(sBuilder.append("[Tiered Store] Try to offload ")
                                 .append(msgStore.getStoreKey())
-                                .append("'s log file  failed").toString(), e);
-                        sb.delete(0, sb.length());
+                                .append("'s data files failed").toString(), e);
+                        sBuilder.delete(0, sBuilder.length());
+                    }
+                }
+            }
+            long evictedSize = 0L;
+            if (tubeConfig.getTieredEvictDiskUsage() > 0) {
+                final long overSize = getDiskOverUsageSize(tubeConfig.getTieredEvictDiskUsage());
+                while (evictedSize < overSize && !stopped.get()) {
+                    MessageStore oldestStore = null;
+                    long oldestFileTime = Long.MAX_VALUE;
+                    for (Map<Integer, MessageStore> storeMap : dataStores.values()) {
+                        for (MessageStore msgStore : storeMap.values()) {
+                            long fileTime = msgStore.getOldestOffloadedFileTime();
+                            if (fileTime < oldestFileTime) {
+                                oldestFileTime = fileTime;
+                                oldestStore = msgStore;
+                            }
+                        }
+                    }
+                    if (oldestStore == null) {
+                        break;
+                    }
+                    long fileSize = oldestStore.evictOldestOffloadedSegment();
+                    if (fileSize <= 0) {
+                        break;
                     }
+                    evictedSize += fileSize;
                 }
             }
-            return expiredTopic;
+            if (offloadCnt > 0 || evictedSize > 0) {
+                logger.info(sBuilder.append("[Tiered Store] Offloaded ").append(offloadCnt)
+                        .append(" data files, evicted ").append(evictedSize)
+                        .append(" local bytes, used ").append(System.currentTimeMillis() - startTime)
+                        .append(" ms").toString());
+                sBuilder.delete(0, sBuilder.length());
+            }
         }
     }
 
@@ -0,0 +1,116 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Admission control of message writes. A write to a store whose write cache is full while
+ * the previous cache is still being flushed is rejected at once with a retry-after hint,
+ * instead of holding the rpc thread in the append retries of the store.
+ */
+public class WriteAdmissionController {
+    // min retry-after hint returned to producers
+    private static final long MIN_RETRY_AFTER_MS = 10;
+    private final boolean enable;
+    private final long maxRetryAfterMs;
+    // count of the rejected writes
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+
+    public WriteAdmissionController(final boolean enable, final long maxRetryAfterMs) {
+        this.enable = enable;
+        this.maxRetryAfterMs = Math.max(MIN_RETRY_AFTER_MS, maxRetryAfterMs);
+    }
+
+    /***
+     * Check whether a message can be written to the store now.
+     *
+     * @param store
+     * @param dataLength
+     * @return 0 if the message is admitted, otherwise the retry-after hint in milliseconds
+     */
+    public long admit(final MessageStore store, final int dataLength) {
+        if (!this.enable) {
+            return 0;
+        }
+        long waitTimeMs = store.getAppendWaitTimeMs(dataLength);
+        if (waitTimeMs <= 0) {
+            return 0;
+        }
+        this.rejectedCount.incrementAndGet();
+        return getRetryAfterMs(waitTimeMs);
+    }
+
+    /***
+     * Get the retry-after hint of a write that failed to append.
+     *
+     * @param store
+     * @param dataLength
+     * @return
+     */
+    public long getOverflowRetryAfterMs(final MessageStore store, final int dataLength) {
+        return getRetryAfterMs(store.getAppendWaitTimeMs(dataLength));
+    }
+
+    public boolean isEnable() {
+        return this.enable;
+    }
+
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /***
+     * Get the admission status, with the pending flush bytes of the stores having data to flush.
+     *
+     * @param messageStores
+     * @return
+     */
+    public String getStatisInfo(final Map<String, ConcurrentHashMap<Integer, MessageStore>> messageStores) {
+        int index = 0;
+        long totalPendingBytes = 0L;
+        StringBuilder storesBuilder = new StringBuilder(512);
+        for (Map.Entry<String, ConcurrentHashMap<Integer, MessageStore>> entry : messageStores.entrySet()) {
+            for (Map.Entry<Integer, MessageStore> subEntry : entry.getValue().entrySet()) {
+                final long pendingBytes = subEntry.getValue().getPendingFlushBytes();
+                if (pendingBytes <= 0) {
+                    continue;
+                }
+                totalPendingBytes += pendingBytes;
+                if (index++ > 0) {
+                    storesBuilder.append(",");
+                }
+                storesBuilder.append("{\"topicName\":\"").append(entry.getKey())
+                        .append("\",\"storeId\":").append(subEntry.getKey())
+                        .append(",\"pendingFlushBytes\":").append(pendingBytes).append("}");
+            }
+        }
+        return new StringBuilder(1024)
+                .append("{\"enable\":").append(this.enable)
+                .append(",\"maxRetryAfterMs\":").append(this.maxRetryAfterMs)
+                .append(",\"rejectCnt\":").append(this.rejectedCount.get())
+                .append(",\"pendingFlushBytes\":").append(totalPendingBytes)
+                .append(",\"stores\":[").append(storesBuilder).append("]}").toString();
+    }
+
+    private long getRetryAfterMs(final long waitTimeMs) {
+        return Math.min(this.maxRetryAfterMs, Math.max(MIN_RETRY_AFTER_MS, waitTimeMs));
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Broker-wide reader of the data segments behind the hot window of the stores, which are read
+ * by the catch-up consumers. The segment files are read with direct I/O into a pool of aligned
+ * buffers, so the old data does not pass through the page cache and evict the recent data read
+ * by the real-time consumers. Direct I/O is opened with the DIRECT option of JDK 10 or later,
+ * without it the files are read through the page cache, and a file the file system refuses
+ * to read with direct I/O is read through the page cache alone. The buffer count bounds the
+ * concurrent cold reads, the cold reads over it are left to the caller to read as hot reads,
+ * so that the RPC threads never wait for a buffer.
+ */
+public class ColdSegmentReader {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ColdSegmentReader.class);
+    // alignment of the positions, sizes and addresses of the direct reads
+    private static final int DIRECT_ALIGN_SIZE = 4096;
+    // ByteBuffer.alignedSlice of JDK 9 or later, null if not supported
+    private static final Method ALIGNED_SLICE = getAlignedSliceMethod();
+    // data bytes before the end of a store that are read through the page cache
+    private final long hotWindowSize;
+    private final int bufferSize;
+    private final int bufferCnt;
+    // direct I/O open option of the JDK, null if the JDK does not support direct I/O
+    private volatile OpenOption directOption;
+    // permits of the concurrent cold reads, a direct read holds one buffer with its permit
+    private final Semaphore readPermits;
+    private final LinkedBlockingQueue<ByteBuffer> freeBuffers =
+            new LinkedBlockingQueue<ByteBuffer>();
+    private final AtomicInteger allocatedCnt = new AtomicInteger(0);
+    private final AtomicLong readCnt = new AtomicLong(0L);
+    private final AtomicLong readBytes = new AtomicLong(0L);
+    private final AtomicLong directReadCnt = new AtomicLong(0L);
+    // cold reads left to the caller as all the read permits are held
+    private final AtomicLong busyCnt = new AtomicLong(0L);
+
+
+    public ColdSegmentReader(final BrokerConfig tubeConfig) {
+        this(tubeConfig.getColdReadHotWindowSize(),
+                tubeConfig.getColdReadBufferSize(), tubeConfig.getColdReadBufferCnt());
+    }
+
+    public ColdSegmentReader(final long hotWindowSize,
+                             final int bufferSize, final int bufferCnt) {
+        this.hotWindowSize = Math.max(0L, hotWindowSize);
+        this.bufferSize = alignUp(Math.max(DIRECT_ALIGN_SIZE, bufferSize));
+        this.bufferCnt = Math.max(1, bufferCnt);
+        this.readPermits = new Semaphore(this.bufferCnt);
+        this.directOption = ALIGNED_SLICE == null ? null : getDirectOpenOption();
+        if (this.directOption == null) {
+            logger.warn("[Cold Read] Direct I/O is not supported by the JDK, "
+                    + "the cold segments are read through the page cache");
+        }
+    }
+
+    /***
+     * Whether the segment is behind the hot window of its store.
+     *
+     * @param segment
+     * @param dataMaxOffset  max data offset of the store
+     * @return
+     */
+    public boolean isCold(final Segment segment, final long dataMaxOffset) {
+        return !segment.isMutable()
+                && segment.getStart() + segment.getCommitSize() + hotWindowSize <= dataMaxOffset;
+    }
+
+    /***
+     * Read the segment file from the offset until the buffer is full or the end of the file,
+     * as FileReadView does. The read is not done if all the read permits are held.
+     *
+     * @param segment
+     * @param bf
+     * @param offset   offset in the segment file
+     * @return false if the read is not done, the caller reads it through its record view
+     * @throws IOException
+     */
+    public boolean read(final Segment segment,
+                        final ByteBuffer bf, final long offset) throws IOException {
+        if (!readPermits.tryAcquire()) {
+            busyCnt.incrementAndGet();
+            return false;
+        }
+        final int startPos = bf.position();
+        ByteBuffer buffer = null;
+        try {
+            final OpenOption curOption = this.directOption;
+            if (curOption != null) {
+                final FileChannel directChannel = segment.getDirectChannel(curOption);
+                if (directChannel != null) {
+                    buffer = borrowBuffer(segment);
+                    if (buffer != null) {
+                        try {
+                            readDirect(directChannel, buffer, bf, offset);
+                            directReadCnt.incrementAndGet();
+                            return true;
+                        } catch (IOException e) {
+                            bf.position(startPos);
+                            segment.disableDirectRead(e);
+                        }
+                    }
+                }
+            }
+            final FileChannel channel = segment.getFileChannel();
+            int size = 0;
+            while (bf.hasRemaining()) {
+                final int l = channel.read(bf, offset + size);
+                if (l < 0) {
+                    break;
+                }
+                size += l;
+            }
+            return true;
+        } finally {
+            if (buffer != null) {
+                freeBuffers.offer(buffer);
+            }
+            readPermits.release();
+            readCnt.incrementAndGet();
+            readBytes.addAndGet(bf.position() - startPos);
+        }
+    }
+
+    public boolean isDirectReadEnabled() {
+        return this.directOption != null;
+    }
+
+    public long getDirectReadCnt() {
+        return directReadCnt.get();
+    }
+
+    public long getReadCnt() {
+        return readCnt.get();
+    }
+
+    public void close() {
+        // the direct buffers are freed by the garbage collector
+        freeBuffers.clear();
+    }
+
+    public String getStatisInfo() {
+        return new StringBuilder(512)
+                .append("{\"directRead\":").append(this.directOption != null)
+                .append(",\"hotWindowSize\":").append(this.hotWindowSize)
+                .append(",\"bufferSize\":").append(this.bufferSize)
+                .append(",\"bufferCnt\":").append(this.bufferCnt)
+                .append(",\"allocatedCnt\":").append(this.allocatedCnt.get())
+                .append(",\"readCnt\":").append(this.readCnt.get())
+                .append(",\"readBytes\":").append(this.readBytes.get())
+                .append(",\"directReadCnt\":").append(this.directReadCnt.get())
+                .append(",\"busyCnt\":").append(this.busyCnt.get())
+                .append("}").toString();
+    }
+
+    /***
+     * Read the aligned blocks covering the range into the aligned buffer, and copy the range out.
+     * A read shorter than the requested blocks is the end of the file.
+     */
+    private void readDirect(final FileChannel channel, final ByteBuffer buffer,
+                            final ByteBuffer bf, final long offset) throws IOException {
+        long readPos = offset;
+        while (bf.hasRemaining()) {
+            final long alignedPos = readPos & ~((long) DIRECT_ALIGN_SIZE - 1);
+            final int skipSize = (int) (readPos - alignedPos);
+            final int readSize = (int) Math.min(buffer.capacity(),
+                    alignUp((long) skipSize + bf.remaining()));
+            buffer.clear();
+            buffer.limit(readSize);
+            int size = 0;
+            while (buffer.hasRemaining()) {
+                final int l = channel.read(buffer, alignedPos + size);
+                if (l <= 0) {
+                    break;
+                }
+                size += l;
+                if ((size & (DIRECT_ALIGN_SIZE - 1)) != 0) {
+                    break;
+                }
+            }
+            if (size <= skipSize) {
+                break;
+            }
+            buffer.flip();
+            buffer.position(skipSize);
+            if (buffer.remaining() > bf.remaining()) {
+                buffer.limit(skipSize + bf.remaining());
+            }
+            readPos += buffer.remaining();
+            bf.put(buffer);
+            if (size < readSize) {
+                break;
+            }
+        }
+    }
+
+    /***
+     * Borrow an aligned buffer, the read permits bound the allocated buffers to the buffer count.
+     * A failure of the allocation, such as a LinkageError of the JDK, disables direct read
+     * of the broker as the JDK does not support it.
+     *
+     * @return null if the aligned buffer can not be allocated
+     */
+    private ByteBuffer borrowBuffer(final Segment segment) {
+        final ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        try {
+            final ByteBuffer newBuffer = allocateAligned();
+            allocatedCnt.incrementAndGet();
+            return newBuffer;
+        } catch (Throwable e) {
+            disableDirectRead(segment, e);
+            return null;
+        }
+    }
+
+    private ByteBuffer allocateAligned() throws Exception {
+        final ByteBuffer rawBuffer =
+                ByteBuffer.allocateDirect(bufferSize + DIRECT_ALIGN_SIZE - 1);
+        final ByteBuffer alignedBuffer =
+                (ByteBuffer) ALIGNED_SLICE.invoke(rawBuffer, DIRECT_ALIGN_SIZE);
+        alignedBuffer.limit(bufferSize);
+        return alignedBuffer.slice();
+    }
+
+    private void disableDirectRead(final Segment segment, final Throwable e) {
+        if (this.directOption == null) {
+            return;
+        }
+        this.directOption = null;
+        logger.warn(new StringBuilder(512)
+                .append("[Cold Read] Allocate aligned buffer failure, file=")
+                .append(segment.getFile().getAbsolutePath())
+                .append(", the cold segments are read through the page cache").toString(), e);
+    }
+
+    private static long alignUp(final long size) {
+        return (size + DIRECT_ALIGN_SIZE - 1) & ~((long) DIRECT_ALIGN_SIZE - 1);
+    }
+
+    private static int alignUp(final int size) {
+        return (int) alignUp((long) size);
+    }
+
+    /***
+     * Get ByteBuffer.alignedSlice of JDK 9 or later, it is missing in the older JDKs.
+     */
+    private static Method getAlignedSliceMethod() {
+        try {
+            return ByteBuffer.class.getMethod("alignedSlice", int.class);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /***
+     * Get the DIRECT open option of JDK 10 or later by name, it is missing in the older JDKs.
+     */
+    private static OpenOption getDirectOpenOption() {
+        try {
+            final Class<?> optionClass = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object option : optionClass.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) option).name())) {
+                    return (OpenOption) option;
+                }
+            }
+        } catch (Throwable e) {
+            //
+        }
+        return null;
+    }
+}
@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
@@ -39,6 +41,10 @@ public class FileSegment implements Segment, Comparable<FileSegment> {
     private final long start;
     private final File file;
     private final FileChannel channel;
+    // read only channel opened with direct I/O for the cold reads, opened when first used
+    private volatile FileChannel directChannel;
+    // whether the file failed to be opened with direct I/O
+    private volatile boolean directFailed = false;
     private final AtomicLong cachedSize;
     private final AtomicLong flushedSize;
     private final SegmentType segmentType;
@@ -131,11 +137,7 @@ public class FileSegment implements Segment, Comparable<FileSegment> {
             if (this.mutable) {
                 this.flush(true);
             }
-            try {
-                channel.close();
-            } catch (IOException e2) {
-                //
-            }
+            closeChannels();
             return 0;
         }
         return 0;
@@ -150,18 +152,7 @@ public class FileSegment implements Segment, Comparable<FileSegment> {
      */
     @Override
     public long append(final ByteBuffer buf) throws IOException {
-        if (!this.mutable) {
-            //　只有最后一个segment为可修改状态
-            if (this.segmentType == SegmentType.DATA) {
-                throw new UnsupportedOperationException("[File Store] Data Segment is immutable!");
-            } else {
-                throw new UnsupportedOperationException(
-                        "[File Store] Index Segment is immutable!");
-            }
-        }
-        if (this.closed.get()) {
-            throw new UnsupportedOperationException("[File Store] Segment is closed!");
-        }
+        checkAppendable();
         final long offset = this.cachedSize.get();
         int sizeInBytes = 0;
         while (buf.hasRemaining()) {
@@ -171,6 +162,33 @@ public class FileSegment implements Segment, Comparable<FileSegment> {
         return this.start + offset;
     }
 
+    /***
+     * Append the buffers with gathering writes.
+     *
+     * @param bufs
+     * @param offset  index of the first buffer to append
+     * @param length  count of the buffers to append
+     * @return the offset of the first appended byte
+     * @throws IOException
+     */
+    @Override
+    public long append(final ByteBuffer[] bufs, final int offset, final int length) throws IOException {
+        checkAppendable();
+        final long startOffset = this.cachedSize.get();
+        final int endIndex = offset + length;
+        int curIndex = offset;
+        long sizeInBytes = 0;
+        while (curIndex < endIndex) {
+            sizeInBytes += this.channel.write(bufs, curIndex, endIndex - curIndex);
+            // skip the buffers written completely
+            while (curIndex < endIndex && !bufs[curIndex].hasRemaining()) {
+                curIndex++;
+            }
+        }
+        this.cachedSize.addAndGet(sizeInBytes);
+        return this.start + startOffset;
+    }
+
     /***
      * Flush file cache to disk.
      *
@@ -209,6 +227,35 @@ public class FileSegment implements Segment, Comparable<FileSegment> {
         return this.channel;
     }
 
+    /***
+     * Get the read only channel of the file opened with direct I/O, it is closed with the segment.
+     *
+     * @param directOption  the direct I/O open option of the JDK
+     * @return null if the file can not be opened with direct I/O
+     */
+    @Override
+    public FileChannel getDirectChannel(final OpenOption directOption) {
+        final FileChannel curChannel = this.directChannel;
+        if (curChannel != null || this.directFailed) {
+            return curChannel;
+        }
+        synchronized (this) {
+            if (this.directChannel == null
+                    && !this.directFailed && !this.closed.get()) {
+                try {
+                    this.directChannel = FileChannel.open(this.file.toPath(),
+                            StandardOpenOption.READ, directOption);
+                } catch (Throwable e) {
+                    this.directFailed = true;
+                    logger.debug(new StringBuilder(512)
+                            .append("[File Store] Open file with direct I/O failure, file=")
+                            .append(this.file.getAbsolutePath()).toString(), e);
+                }
+            }
+            return this.directChannel;
+        }
+    }
+
     /***
      * Get the read view of this FileSegment.
      *
@@ -247,11 +294,53 @@ public class FileSegment implements Segment, Comparable<FileSegment> {
     public void relViewRef() {
         if (useRef.decrementAndGet() == 0) {
             if (this.closed.compareAndSet(false, true)) {
+                closeChannels();
+            }
+        }
+    }
+
+    /***
+     * Stop reading the file with direct I/O after a direct read failure, the other files are
+     * still read with direct I/O.
+     *
+     * @param e  the direct read failure
+     */
+    @Override
+    public void disableDirectRead(final Throwable e) {
+        synchronized (this) {
+            if (this.directFailed) {
+                return;
+            }
+            this.directFailed = true;
+            if (this.directChannel != null) {
                 try {
-                    channel.close();
+                    this.directChannel.close();
                 } catch (IOException e1) {
                     //
                 }
+                this.directChannel = null;
+            }
+        }
+        logger.warn(new StringBuilder(512)
+                .append("[File Store] Read file with direct I/O failure, file=")
+                .append(this.file.getAbsolutePath())
+                .append(", the file is read through the page cache").toString(), e);
+    }
+
+    private void closeChannels() {
+        try {
+            channel.close();
+        } catch (IOException e1) {
+            //
+        }
+        synchronized (this) {
+            if (this.directChannel != null) {
+                try {
+                    this.directChannel.close();
+                } catch (IOException e2) {
+                    //
+                }
+                this.directChannel = null;
             }
         }
     }
@@ -333,6 +422,21 @@ public class FileSegment implements Segment, Comparable<FileSegment> {
         return 0;
     }
 
+    private void checkAppendable() {
+        if (!this.mutable) {
+            //　只有最后一个segment为可修改状态
+            if (this.segmentType == SegmentType.DATA) {
+                throw new UnsupportedOperationException("[File Store] Data Segment is immutable!");
+            } else {
+                throw new UnsupportedOperationException(
+                        "[File Store] Index Segment is immutable!");
+            }
+        }
+        if (this.closed.get()) {
+            throw new UnsupportedOperationException("[File Store] Segment is closed!");
+        }
+    }
+
     private RecoverResult recoverData(final long checkOffset) throws IOException {
         if (!this.mutable) {
             throw new UnsupportedOperationException(
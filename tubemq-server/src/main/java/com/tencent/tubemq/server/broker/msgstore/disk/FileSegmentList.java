@@ -17,14 +17,19 @@
 
 package com.tencent.tubemq.server.broker.msgstore.disk;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.tencent.tubemq.corebase.utils.ThreadUtils;
 import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +40,8 @@ import org.slf4j.LoggerFactory;
 public class FileSegmentList implements SegmentList {
     private static final Logger logger =
             LoggerFactory.getLogger(FileSegmentList.class);
+    // bytes truncated at a time when deleting a file under a delete rate
+    private static final long DELETE_CHUNK_SIZE = 4 * 1024 * 1024L;
     // directory to store file.
     private final File segListDir;
     // filesegment type: DATA, INDEX.
@@ -43,9 +50,9 @@ public class FileSegmentList implements SegmentList {
     private final String fileSuffix;
     // filesegment type in String: Data, Index.
     private final String segTypeStr;
-    // list of segments.
-    private AtomicReference<List<Segment>> segmentList =
-            new AtomicReference<List<Segment>>();
+    // list of segments, replaced as a whole on change.
+    private AtomicReference<SegmentArray> segmentList =
+            new AtomicReference<SegmentArray>();
 
 
     public FileSegmentList(final File segListDir, final SegmentType type,
@@ -135,7 +142,7 @@ public class FileSegmentList implements SegmentList {
                 accum.add(mutable);
             }
         }
-        this.segmentList.set(accum);
+        this.segmentList.set(new SegmentArray(accum));
         logger.info(sBuilder.append("[File Store] Loaded ")
                 .append(segTypeStr).append(" ").append(accum.size()).append(" segments ")
                 .append(this.segListDir.getAbsolutePath()).toString());
@@ -185,7 +192,22 @@ public class FileSegmentList implements SegmentList {
      */
     @Override
     public RecordView getRecordView(final long offset, final int maxSize) throws IOException {
-        final Segment segment = this.findSegment(offset);
+        return getRecordView(offset, maxSize, null);
+    }
+
+    /***
+     * Return RecordView by the given offset, the segment is first looked up at the reader's cursor.
+     *
+     * @param offset
+     * @param maxSize
+     * @param cursor   last segment resolved for the reader, null if the reader has none
+     * @return
+     * @throws IOException
+     */
+    @Override
+    public RecordView getRecordView(final long offset, final int maxSize,
+                                    final SegmentCursor cursor) throws IOException {
+        final Segment segment = this.findSegment(offset, cursor);
         if (segment == null) {
             return null;
         } else {
@@ -214,10 +236,10 @@ public class FileSegmentList implements SegmentList {
     @Override
     public void append(final Segment segment) {
         while (true) {
-            List<Segment> currList = segmentList.get();
+            SegmentArray currList = segmentList.get();
             List<Segment> updateList = new ArrayList<Segment>(currList);
             updateList.add(segment);
-            if (segmentList.compareAndSet(currList, updateList)) {
+            if (segmentList.compareAndSet(currList, new SegmentArray(updateList))) {
                 return;
             }
         }
@@ -249,19 +271,123 @@ public class FileSegmentList implements SegmentList {
         return hasExpired;
     }
 
+    /***
+     * Set the FileSegments last modified not later than the given time expired, from the oldest one.
+     *
+     * @param lastModifiedTime
+     * @return
+     */
+    @Override
+    public boolean checkExpiredSegmentsBefore(final long lastModifiedTime) {
+        // a FileSegment modified at the given time is over a valid duration of -1
+        return checkExpiredSegments(lastModifiedTime, -1L);
+    }
+
+    /***
+     * Return the time when the oldest FileSegment expires.
+     *
+     * @param fileValidTimeMs
+     * @return 0 if an expired FileSegment is waiting to be deleted,
+     *         Long.MAX_VALUE if there is only the last FileSegment
+     */
+    @Override
+    public long getNextExpireTime(final long fileValidTimeMs) {
+        final List<Segment> curViews = segmentList.get();
+        if (curViews == null || curViews.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        for (final Segment segment : curViews) {
+            if (segment == null) {
+                continue;
+            }
+            if (segment.isExpired()) {
+                return 0L;
+            }
+            if (segment.isMutable()) {
+                return Long.MAX_VALUE;
+            }
+            return segment.getFile().lastModified() + fileValidTimeMs + 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /***
+     * Return the last modified time of the oldest FileSegment that can expire.
+     *
+     * @return Long.MAX_VALUE if there is only the last FileSegment
+     */
+    @Override
+    public long getOldestFileTime() {
+        final List<Segment> curViews = segmentList.get();
+        if (curViews == null || curViews.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        for (final Segment segment : curViews) {
+            if (segment == null || segment.isExpired()) {
+                continue;
+            }
+            if (segment.isMutable()) {
+                return Long.MAX_VALUE;
+            }
+            return segment.getFile().lastModified();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /***
+     * Return the last modified time of the newest FileSegment that is deleted, from the oldest one,
+     * so that the size of the other FileSegments is not over the given size.
+     *
+     * @param maxSizeInBytes
+     * @return -1 if the FileSegments are not over the size
+     */
+    @Override
+    public long getSizeExpireTime(final long maxSizeInBytes) {
+        final List<Segment> curViews = segmentList.get();
+        if (maxSizeInBytes <= 0 || curViews == null || curViews.isEmpty()) {
+            return -1L;
+        }
+        long totalSize = 0L;
+        for (final Segment segment : curViews) {
+            if (segment != null && !segment.isExpired()) {
+                totalSize += segment.getCachedSize();
+            }
+        }
+        long expireTime = -1L;
+        for (final Segment segment : curViews) {
+            if (totalSize <= maxSizeInBytes) {
+                break;
+            }
+            if (segment == null || segment.isExpired()) {
+                continue;
+            }
+            if (segment.isMutable()) {
+                break;
+            }
+            totalSize -= segment.getCachedSize();
+            expireTime = segment.getFile().lastModified();
+        }
+        return expireTime;
+    }
+
     /***
      * Check FileSegments whether is expired, close all expired FileSegments, and then delete these files.
+     * Under a delete limiter, a file without reader is truncated chunk by chunk at the limited rate
+     * before it is unlinked, so that deleting large files does not stall the disk.
      *
      * @param sb
+     * @param deleteLimiter  delete rate in bytes per second, null means no limit
+     * @return the reclaimed bytes
      */
     @Override
-    public void delExpiredSegments(final StringBuilder sb) {
+    public long delExpiredSegments(final StringBuilder sb, final RateLimiter deleteLimiter) {
         //　删除过期segment，采用的是两阶段方式进行，避免异常
+        long reclaimedSize = 0L;
         List<Segment> rmvSegList = new ArrayList<>();
         List<Segment> delayRmvSegList = new ArrayList<>();
         while (true) {
             rmvSegList.clear();
-            final List<Segment> currList = this.segmentList.get();
+            final SegmentArray currList = this.segmentList.get();
             int curListSize = currList.size();
             List<Segment> updateList = new ArrayList<Segment>();
             for (int i = 0; i < curListSize; i++) {
@@ -278,7 +404,7 @@ public class FileSegmentList implements SegmentList {
             if (rmvSegList.isEmpty()) {
                 break;
             }
-            if (segmentList.compareAndSet(currList, updateList)) {
+            if (segmentList.compareAndSet(currList, new SegmentArray(updateList))) {
                 break;
             }
         }
@@ -290,7 +416,7 @@ public class FileSegmentList implements SegmentList {
                 if (segment.close() > 0) {
                     delayRmvSegList.add(segment);
                 } else {
-                    segment.getFile().delete();
+                    reclaimedSize += deleteFile(segment.getFile(), deleteLimiter, sb);
                 }
             } catch (Throwable e) {
                 logger.error(
@@ -304,19 +430,21 @@ public class FileSegmentList implements SegmentList {
                     continue;
                 }
                 try {
-                    segment.getFile().delete();
+                    // still read, unlink it without truncating
+                    reclaimedSize += deleteFile(segment.getFile(), null, sb);
                 } catch (Throwable e) {
                     logger.error(
                             "[File Store] failure to close and delete file ", e);
                 }
             }
         }
+        return reclaimedSize;
     }
 
     @Override
     public void delete(final Segment segment) {
         while (true) {
-            final List<Segment> currList = this.segmentList.get();
+            final SegmentArray currList = this.segmentList.get();
             int index = -1;
             int curListSize = currList.size();
             List<Segment> updateList = new ArrayList<Segment>(curListSize - 1);
@@ -334,7 +462,7 @@ public class FileSegmentList implements SegmentList {
             if (index == -1) {
                 return;
             }
-            if (segmentList.compareAndSet(currList, updateList)) {
+            if (segmentList.compareAndSet(currList, new SegmentArray(updateList))) {
                 return;
             }
         }
@@ -443,36 +571,49 @@ public class FileSegmentList implements SegmentList {
 
     @Override
     public Segment findSegment(final long offset) {
-        // 二分法查找包含offset的segment
-        final List<Segment> curViews = segmentList.get();
+        return findSegment(offset, null);
+    }
+
+    /***
+     * Return the segment containing the offset. The reader's cached segment is returned if it still
+     * contains the offset and the list is not changed since it was cached, otherwise the segment is
+     * binary searched over the start offsets of the list and cached for the reader.
+     *
+     * @param offset
+     * @param cursor   last segment resolved for the reader, null if the reader has none
+     * @return null if the offset is not lower than the max offset
+     */
+    @Override
+    public Segment findSegment(final long offset, final SegmentCursor cursor) {
+        final SegmentArray curViews = segmentList.get();
         if (curViews == null || curViews.isEmpty()) {
             return null;
         }
-        int curSize = curViews.size();
-        final Segment start = curViews.get(0);
+        if (cursor != null) {
+            final int index = cursor.getIndex(curViews);
+            if (index >= 0 && curViews.segments[index].contains(offset)) {
+                return curViews.segments[index];
+            }
+        }
+        final Segment start = curViews.segments[0];
         if (offset < start.getStart()) {
             throw new ArrayIndexOutOfBoundsException(new StringBuilder(512)
                     .append("Request offsets is ").append(offset)
                     .append(", the start is ").append(start.getStart()).toString());
         }
-        final Segment last = curViews.get(curSize - 1);
+        final Segment last = curViews.segments[curViews.segments.length - 1];
         if (offset >= last.getStart() + last.getCachedSize()) {
             return null;
         }
-        int low = 0;
-        int high = curSize - 1;
-        while (low <= high) {
-            final int mid = high + low >>> 1;
-            final Segment found = curViews.get(mid);
-            if (found.contains(offset)) {
-                return found;
-            } else if (offset < found.getStart()) {
-                high = mid - 1;
-            } else {
-                low = mid + 1;
-            }
+        final int index = curViews.floorIndex(offset);
+        final Segment found = curViews.segments[index];
+        if (!found.contains(offset)) {
+            return null;
         }
-        return null;
+        if (cursor != null) {
+            cursor.update(curViews, index);
+        }
+        return found;
     }
 
     private void validateSegments(final List<Segment> segments) {
@@ -490,4 +631,72 @@ public class FileSegmentList implements SegmentList {
         }
     }
 
+    private long deleteFile(final File file, final RateLimiter deleteLimiter,
+                            final StringBuilder sb) throws IOException {
+        final long fileSize = file.length();
+        if (deleteLimiter != null && fileSize > DELETE_CHUNK_SIZE) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                long remaining = fileSize;
+                while (remaining > 0 && !Thread.currentThread().isInterrupted()) {
+                    long chunkSize = Math.min(DELETE_CHUNK_SIZE, remaining);
+                    deleteLimiter.acquire((int) chunkSize);
+                    remaining -= chunkSize;
+                    channel.truncate(remaining);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            logger.warn(sb.append("[File Store] failure to delete ").append(segTypeStr)
+                    .append(" file ").append(file.getAbsolutePath()).toString());
+            sb.delete(0, sb.length());
+            return 0L;
+        }
+        return fileSize;
+    }
+
+    /***
+     * Immutable snapshot of the segments, with their start offsets kept in an array
+     * for the binary search of the segment containing an offset.
+     */
+    private static class SegmentArray extends AbstractList<Segment> implements RandomAccess {
+        private final Segment[] segments;
+        private final long[] starts;
+
+        SegmentArray(final List<Segment> segments) {
+            this.segments = segments.toArray(new Segment[segments.size()]);
+            this.starts = new long[this.segments.length];
+            for (int i = 0; i < this.segments.length; i++) {
+                this.starts[i] = this.segments[i].getStart();
+            }
+        }
+
+        @Override
+        public Segment get(final int index) {
+            return segments[index];
+        }
+
+        @Override
+        public int size() {
+            return segments.length;
+        }
+
+        // index of the last segment starting not after the offset, the first one if none
+        int floorIndex(final long offset) {
+            int low = 0;
+            int high = starts.length - 1;
+            while (low < high) {
+                final int mid = (low + high + 1) >>> 1;
+                if (starts[mid] <= offset) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
 }
@@ -17,12 +17,16 @@
 
 package com.tencent.tubemq.server.broker.msgstore.disk;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.tencent.tubemq.corebase.TErrCodeConstants;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker;
 import com.tencent.tubemq.corebase.utils.ServiceStatusHolder;
 import com.tencent.tubemq.server.broker.BrokerConfig;
 import com.tencent.tubemq.server.broker.msgstore.MessageStore;
 import com.tencent.tubemq.server.broker.msgstore.ssd.SSDSegFound;
+import com.tencent.tubemq.server.broker.msgstore.tiered.TieredSegmentList;
+import com.tencent.tubemq.server.broker.msgstore.tiered.TieredSegmentList.RemoteSegment;
+import com.tencent.tubemq.server.broker.msgstore.tiered.TieredStoreManager;
 import com.tencent.tubemq.server.broker.stats.CountItem;
 import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
 import com.tencent.tubemq.server.broker.utils.DiskSamplePrint;
@@ -49,6 +53,8 @@ import org.slf4j.LoggerFactory;
 public class MsgFileStore implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(MsgFileStore.class);
     private static final int MAX_META_REFRESH_DUR = 1000 * 60 * 60;
+    private static final int MAX_REPLICA_INDEX_READ_SIZE =
+            8000 * DataStoreUtils.STORE_INDEX_HEAD_LEN;
     private static final DiskSamplePrint samplePrintCtrl =
         new DiskSamplePrint(logger);
     // storage ID
@@ -78,6 +84,17 @@ public class MsgFileStore implements Closeable {
     private final SegmentList indexSegments;
     // close status
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    // sparse time index of index records
+    private final MsgTimeIndex timeIndex =
+            new MsgTimeIndex(DataStoreUtils.STORE_TIME_INDEX_INTERVAL);
+    // key code block filters of index segments
+    private final MsgKeyFilterIndex keyFilterIndex;
+    // reader of the data files behind the hot window, null if the cold read is disabled
+    private final ColdSegmentReader coldSegmentReader;
+    // tiered store manager, null if the tiered store is disabled
+    private final TieredStoreManager tieredStoreManager;
+    // data files offloaded to the tiered store
+    private final TieredSegmentList tieredSegments;
 
 
     public MsgFileStore(final MessageStore messageStore,
@@ -103,6 +120,17 @@ public class MsgFileStore implements Closeable {
         this.indexSegments =
                 new FileSegmentList(this.indexDir,
                         SegmentType.INDEX, true, offsetIfCreate, Long.MAX_VALUE, sBuilder);
+        this.rebuildTimeIndex();
+        this.keyFilterIndex =
+                new MsgKeyFilterIndex(this.indexDir,
+                        DataStoreUtils.STORE_KEY_FILTER_BLOCK_RECORDS,
+                        DataStoreUtils.STORE_KEY_FILTER_BITMAP_WORDS,
+                        DataStoreUtils.STORE_KEY_FILTER_CACHED_SEGMENTS);
+        this.keyFilterIndex.load(this.indexSegments.getView());
+        this.coldSegmentReader = messageStore.getColdSegmentReader();
+        this.tieredStoreManager = messageStore.getTieredStoreManager();
+        this.tieredSegments = this.tieredStoreManager == null
+                ? null : this.tieredStoreManager.loadSegmentList(this.storeKey);
         this.lastFlushTime.set(System.currentTimeMillis());
     }
 
@@ -118,8 +146,6 @@ public class MsgFileStore implements Closeable {
         }
         boolean isDataFlushed = false;
         boolean isIndexFlushed = false;
-        boolean isMsgCntFlushed = false;
-        boolean isMsgTimeFushed = false;
         final MsgFileStatisInfo msgFileStatisInfo =
                 messageStore.getFileMsgSizeStatisInfo();
         this.writeLock.lock();
@@ -132,15 +158,7 @@ public class MsgFileStore implements Closeable {
             // judge whether need to create a new data segment.
             if (curDataSeg.getCachedSize() >= this.tubeConfig.getMaxSegmentSize()) {
                 isDataFlushed = true;
-                final long newDataOffset = curDataSeg.flush(true);
-                final File newDataFile =
-                        new File(this.dataDir,
-                                DataStoreUtils.nameFromOffset(newDataOffset, DataStoreUtils.DATA_FILE_SUFFIX));
-                curDataSeg.setMutable(false);
-                logger.info(sb.append("[File Store] Created data segment ")
-                        .append(newDataFile.getAbsolutePath()).toString());
-                sb.delete(0, sb.length());
-                this.dataSegments.append(new FileSegment(newDataOffset, newDataFile, SegmentType.DATA));
+                rollDataSegment(curDataSeg, sb);
             }
             // filling index data.
             this.byteBufferIndex.clear();
@@ -152,48 +170,17 @@ public class MsgFileStore implements Closeable {
             this.byteBufferIndex.flip();
             final Segment curIndexSeg = this.indexSegments.last();
             final long indexOffset = curIndexSeg.append(this.byteBufferIndex);
+            this.timeIndex.onAppend(indexOffset, timeRecv, indexOffset == curIndexSeg.getStart());
+            this.keyFilterIndex.onAppend(curIndexSeg.getStart(), indexOffset, keyCode);
             // judge whether need to create a new index segment.
             if (curIndexSeg.getCachedSize()
                     >= this.tubeConfig.getMaxIndexSegmentSize()) {
                 isIndexFlushed = true;
-                final long newIndexOffset = curIndexSeg.flush(true);
-                final File newIndexFile =
-                        new File(this.indexDir,
-                                DataStoreUtils.nameFromOffset(newIndexOffset, DataStoreUtils.INDEX_FILE_SUFFIX));
-                curIndexSeg.setMutable(false);
-                logger.info(sb.append("[File Store] Created index segment ")
-                        .append(newIndexFile.getAbsolutePath()).toString());
-                sb.delete(0, sb.length());
-                this.indexSegments.append(new FileSegment(newIndexOffset,
-                        newIndexFile, SegmentType.INDEX));
+                rollIndexSegment(curIndexSeg, sb);
             }
             // check whether need to flush to disk.
-            long currTime = System.currentTimeMillis();
-            if ((isMsgCntFlushed = this.curUnflushed.addAndGet(1)
-                    >= messageStore.getUnflushThreshold())
-                    || (isMsgTimeFushed = currTime - this.lastFlushTime.get()
-                    >= messageStore.getUnflushInterval())
-                    || isDataFlushed || isIndexFlushed) {
-                boolean forceMetadata = (isDataFlushed
-                        || isIndexFlushed
-                        || (currTime - this.lastMetaFlushTime.get() > MAX_META_REFRESH_DUR));
-                if (!isDataFlushed) {
-                    curDataSeg.flush(forceMetadata);
-                }
-                if (!isIndexFlushed) {
-                    curIndexSeg.flush(forceMetadata);
-                }
-                // add statistics.
-                msgFileStatisInfo.addFullTypeCount(currTime,
-                        isDataFlushed, isIndexFlushed, isMsgCntFlushed, isMsgTimeFushed,
-                        this.curUnflushSize.get(), this.curUnflushed.get());
-                this.curUnflushSize.set(0);
-                this.curUnflushed.set(0);
-                this.lastFlushTime.set(System.currentTimeMillis());
-                if (forceMetadata) {
-                    this.lastMetaFlushTime.set(System.currentTimeMillis());
-                }
-            }
+            checkAndFlush(msgFileStatisInfo, curDataSeg, curIndexSeg,
+                    1, isDataFlushed, isIndexFlushed);
             if (inIndexOffset != indexOffset || inDataOffset != dataOffset) {
                 ServiceStatusHolder.addWriteIOErrCnt();
                 logger.error(sb.append("[File Store]: appendMsg data Error, storekey=")
@@ -215,6 +202,108 @@ public class MsgFileStore implements Closeable {
         }
     }
 
+    /***
+     * Append messages in bulk. The data records and the index records are each written
+     * with a gathering write, split only where a segment is rolled, and the flush
+     * thresholds are checked once per write instead of once per message.
+     *
+     * @param dataBufs     data records of the messages
+     * @param msgCnt       count of the messages
+     * @param indexBuffer  index records of the messages from position 0, the data offsets
+     *                     are the expected ones and are set to the written ones
+     * @param sb
+     * @throws Throwable
+     */
+    public void appendMsgs(final ByteBuffer[] dataBufs, final int msgCnt,
+                           final ByteBuffer indexBuffer, final StringBuilder sb) throws Throwable {
+        if (this.closed.get()) {
+            throw new IllegalStateException(new StringBuilder(512)
+                    .append("Closed MessageStore for storeKey ")
+                    .append(this.storeKey).toString());
+        }
+        final MsgFileStatisInfo msgFileStatisInfo =
+                messageStore.getFileMsgSizeStatisInfo();
+        this.writeLock.lock();
+        try {
+            int startIndex = 0;
+            while (startIndex < msgCnt) {
+                final Segment curDataSeg = this.dataSegments.last();
+                final Segment curIndexSeg = this.indexSegments.last();
+                final long maxDataSize =
+                        this.tubeConfig.getMaxSegmentSize() - curDataSeg.getCachedSize();
+                final long maxIndexSize =
+                        this.tubeConfig.getMaxIndexSegmentSize() - curIndexSeg.getCachedSize();
+                // take the messages up to the one filling a segment
+                boolean isDataFlushed = false;
+                boolean isIndexFlushed = false;
+                long dataSize = 0;
+                long indexSize = 0;
+                int endIndex = startIndex;
+                while (endIndex < msgCnt && !isDataFlushed && !isIndexFlushed) {
+                    dataSize += dataBufs[endIndex].remaining();
+                    indexSize += DataStoreUtils.STORE_INDEX_HEAD_LEN;
+                    isDataFlushed = dataSize >= maxDataSize;
+                    isIndexFlushed = indexSize >= maxIndexSize;
+                    endIndex++;
+                }
+                // set the data offsets of the index records to the written ones
+                long dataOffset = curDataSeg.getLast();
+                long indexOffset = curIndexSeg.getLast();
+                for (int i = startIndex; i < endIndex; i++) {
+                    final int indexPos = i * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+                    final long inDataOffset = indexBuffer.getLong(indexPos + 4);
+                    final long inIndexOffset = dataBufs[i].getLong(dataBufs[i].position()
+                            + DataStoreUtils.STORE_HEADER_POS_QUEUE_LOGICOFF);
+                    if (inIndexOffset != indexOffset || inDataOffset != dataOffset) {
+                        ServiceStatusHolder.addWriteIOErrCnt();
+                        logger.error(sb.append("[File Store]: appendMsgs data Error, storekey=")
+                                .append(this.storeKey).append(",msgSize=")
+                                .append(dataBufs[i].remaining())
+                                .append(", inIndexOffset=").append(inIndexOffset)
+                                .append(", indexOffset=").append(indexOffset)
+                                .append(",inDataOffset=").append(inDataOffset)
+                                .append(",dataOffset=").append(dataOffset).toString());
+                        sb.delete(0, sb.length());
+                    }
+                    indexBuffer.putLong(indexPos + 4, dataOffset);
+                    dataOffset += dataBufs[i].remaining();
+                    indexOffset += DataStoreUtils.STORE_INDEX_HEAD_LEN;
+                }
+                this.curUnflushSize.addAndGet(dataSize);
+                curDataSeg.append(dataBufs, startIndex, endIndex - startIndex);
+                if (isDataFlushed) {
+                    rollDataSegment(curDataSeg, sb);
+                }
+                final ByteBuffer indexSlice = indexBuffer.duplicate();
+                indexSlice.limit(endIndex * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+                indexSlice.position(startIndex * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+                indexOffset = curIndexSeg.append(indexSlice);
+                for (int i = startIndex; i < endIndex; i++) {
+                    final int indexPos = i * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+                    this.timeIndex.onAppend(indexOffset, indexBuffer.getLong(indexPos + 20),
+                            indexOffset == curIndexSeg.getStart());
+                    this.keyFilterIndex.onAppend(curIndexSeg.getStart(),
+                            indexOffset, indexBuffer.getInt(indexPos + 16));
+                    indexOffset += DataStoreUtils.STORE_INDEX_HEAD_LEN;
+                }
+                if (isIndexFlushed) {
+                    rollIndexSegment(curIndexSeg, sb);
+                }
+                // check whether need to flush to disk.
+                checkAndFlush(msgFileStatisInfo, curDataSeg, curIndexSeg,
+                        endIndex - startIndex, isDataFlushed, isIndexFlushed);
+                startIndex = endIndex;
+            }
+        } catch (Throwable e) {
+            if (!closed.get()) {
+                ServiceStatusHolder.addWriteIOErrCnt();
+            }
+            samplePrintCtrl.printExceptionCaught(e);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
     /***
      * Get message from index and data files.
      *
@@ -226,6 +315,7 @@ public class MsgFileStore implements Closeable {
      * @param filterKeySet
      * @param statisKeyBase
      * @param maxMsgTransferSize
+     * @param dataCursor          last data segment resolved for the consumer partition
      * @return
      */
     public GetMessageResult getMessages(final int partitionId, final long lastRdOffset,
@@ -233,7 +323,8 @@ public class MsgFileStore implements Closeable {
                                         final boolean isFilterConsume,
                                         final Set<Integer> filterKeySet,
                                         final String statisKeyBase,
-                                        final int maxMsgTransferSize) {
+                                        final int maxMsgTransferSize,
+                                        final SegmentCursor dataCursor) {
         // #lizard forgives
         //　Orderly read from index file, then random read from data file.
         int retCode = 0;
@@ -251,9 +342,15 @@ public class MsgFileStore implements Closeable {
         long recvTimeInMillsec = 0L;
         long maxDataLimitOffset = 0L;
         long lastRdDataOffset = 0L;
+        // data range held in dataBuffer, contiguous messages are read in one pass
+        long readAheadStart = -1L;
+        int readAheadSize = 0;
+        ByteBuffer msgBuffer = null;
         final StringBuilder sBuilder = new StringBuilder(512);
         final long curDataMaxOffset = getDataMaxOffset();
-        final long curDataMinOffset = getDataMinOffset();
+        // the offloaded data files are read as the local ones
+        final long curDataMinOffset = tieredSegments == null
+                ? getDataMinOffset() : Math.min(getDataMinOffset(), tieredSegments.getMinOffset());
         HashMap<String, CountItem> countMap = new HashMap<String, CountItem>();
         ByteBuffer dataBuffer =
                 ByteBuffer.allocate(TServerConstants.CFG_STORE_DEFAULT_MSG_READ_UNIT);
@@ -293,32 +390,58 @@ public class MsgFileStore implements Closeable {
                 continue;
             }
             try {
-                // get data from data file by index one by one.
-                if (recordView == null
-                        || !((curIndexDataOffset >= recordView.getStartOffset())
-                        && (maxDataLimitOffset <= recordView.getStartOffset() + recordView.getCommitSize()))) {
-                    if (recordView != null) {
-                        dataSegments.relRecordView(recordView);
-                        recordView = null;
+                // get data from data file by index, read the following contiguous messages together.
+                if (readAheadStart < 0
+                        || curIndexDataOffset < readAheadStart
+                        || maxDataLimitOffset > readAheadStart + readAheadSize) {
+                    readAheadStart = -1L;
+                    if (recordView == null
+                            || !((curIndexDataOffset >= recordView.getStartOffset())
+                            && (maxDataLimitOffset <= recordView.getStartOffset() + recordView.getCommitSize()))) {
+                        if (recordView != null) {
+                            dataSegments.relRecordView(recordView);
+                            recordView = null;
+                        }
+                        recordView = dataSegments.getRecordView(curIndexDataOffset,
+                                maxSegmentSize, dataCursor);
+                        if (recordView == null) {
+                            recordView = getTieredRecordView(curIndexDataOffset, maxSegmentSize);
+                            if (recordView == null) {
+                                continue;
+                            }
+                        }
+                    }
+                    final int readSize = getContiguousReadSize(indexBuffer,
+                            curIndexDataOffset, curIndexDataSize,
+                            Math.min(curDataMaxOffset, recordView.getStartOffset() + recordView.getCommitSize()),
+                            Math.max(curIndexDataSize, maxMsgTransferSize - totalSize));
+                    if (dataBuffer.capacity() < readSize) {
+                        dataBuffer = ByteBuffer.allocate(readSize);
                     }
-                    recordView = dataSegments.getRecordView(curIndexDataOffset, maxSegmentSize);
-                    if (recordView == null) {
+                    dataBuffer.clear();
+                    dataBuffer.limit(readSize);
+                    // catch-up read kept out of the page cache of the recent data,
+                    // read as a hot read when the cold reads are all busy
+                    if (coldSegmentReader == null
+                            || !coldSegmentReader.isCold(recordView.getSegment(), curDataMaxOffset)
+                            || !coldSegmentReader.read(recordView.getSegment(), dataBuffer,
+                            curIndexDataOffset - recordView.getStartOffset())) {
+                        recordView.read(dataBuffer, curIndexDataOffset - recordView.getStartOffset());
+                    }
+                    dataBuffer.flip();
+                    dataRealLimit = dataBuffer.limit();
+                    if (dataRealLimit < curIndexDataSize) {
+                        lastRdDataOffset = curIndexDataOffset;
+                        readedOffset = curIndexOffset + DataStoreUtils.STORE_INDEX_HEAD_LEN;
                         continue;
                     }
+                    readAheadStart = curIndexDataOffset;
+                    readAheadSize = dataRealLimit;
                 }
-                if (dataBuffer.capacity() < curIndexDataSize) {
-                    dataBuffer = ByteBuffer.allocate(curIndexDataSize);
-                }
-                dataBuffer.clear();
-                dataBuffer.limit(curIndexDataSize);
-                recordView.read(dataBuffer, curIndexDataOffset - recordView.getStartOffset());
-                dataBuffer.flip();
-                dataRealLimit = dataBuffer.limit();
-                if (dataRealLimit < curIndexDataSize) {
-                    lastRdDataOffset = curIndexDataOffset;
-                    readedOffset = curIndexOffset + DataStoreUtils.STORE_INDEX_HEAD_LEN;
-                    continue;
-                }
+                msgBuffer = dataBuffer.duplicate();
+                msgBuffer.position((int) (curIndexDataOffset - readAheadStart));
+                msgBuffer.limit(msgBuffer.position() + curIndexDataSize);
+                msgBuffer = msgBuffer.slice();
             } catch (Throwable e2) {
                 if (e2 instanceof IOException) {
                     ServiceStatusHolder.addReadIOErrCnt();
@@ -337,7 +460,7 @@ public class MsgFileStore implements Closeable {
             readedOffset = curIndexOffset + DataStoreUtils.STORE_INDEX_HEAD_LEN;
             lastRdDataOffset = maxDataLimitOffset;
             ClientBroker.TransferedMessage transferedMessage =
-                    DataStoreUtils.getTransferMsg(dataBuffer,
+                    DataStoreUtils.getTransferMsg(msgBuffer,
                             curIndexDataSize, countMap, statisKeyBase, sBuilder);
             if (transferedMessage == null) {
                 continue;
@@ -368,6 +491,228 @@ public class MsgFileStore implements Closeable {
                 totalSize, countMap, transferedMessageList);
     }
 
+    /***
+     * Get the index offset of the first index record received at or after the timestamp.
+     * The sparse time index narrows the range, then the index records in the range are
+     * binary searched. Returns the max index offset if all records are received before the timestamp.
+     *
+     * @param timestamp
+     * @return
+     */
+    public long getIndexOffsetByTime(final long timestamp) {
+        final long minIndexOffset = getIndexMinOffset();
+        final long maxIndexOffset = getIndexMaxOffset();
+        timeIndex.removeBefore(minIndexOffset);
+        final long[] range = timeIndex.getSearchRange(timestamp, minIndexOffset, maxIndexOffset);
+        long low = 0L;
+        long high = (range[1] - range[0]) / DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        final ByteBuffer timeBuffer = ByteBuffer.allocate(8);
+        while (low < high) {
+            final long mid = (low + high) >>> 1;
+            final long recordOffset = range[0] + mid * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+            if (readIndexRecvTime(recordOffset, timeBuffer) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (range[0] + low * DataStoreUtils.STORE_INDEX_HEAD_LEN >= range[1]) {
+            return range[1];
+        }
+        return range[0] + low * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+    }
+
+    public int getTimeIndexEntryCount() {
+        return timeIndex.getEntryCount();
+    }
+
+    /***
+     * Get the first index offset at or after the request offset whose index block may
+     * hold one of the filter keys, the skip does not exceed the limit offset.
+     *
+     * @param reqOffset
+     * @param limitOffset
+     * @param filterKeySet
+     * @return
+     */
+    public long getFilterCandidateOffset(final long reqOffset, final long limitOffset,
+                                         final Set<Integer> filterKeySet) {
+        return keyFilterIndex.getNextCandidateOffset(reqOffset,
+                Math.min(limitOffset, getIndexMaxHighOffset()), filterKeySet);
+    }
+
+    public MsgKeyFilterIndex getKeyFilterIndex() {
+        return keyFilterIndex;
+    }
+
+    private RecordView getTieredRecordView(final long offset,
+                                           final int maxSize) throws IOException {
+        if (tieredSegments == null) {
+            return null;
+        }
+        RemoteSegment remoteSegment = tieredSegments.find(offset);
+        if (remoteSegment == null) {
+            return null;
+        }
+        return tieredStoreManager.getRecordView(remoteSegment, offset, maxSize);
+    }
+
+    private void rollDataSegment(final Segment curDataSeg, final StringBuilder sb) throws IOException {
+        final long newDataOffset = curDataSeg.flush(true);
+        final File newDataFile =
+                new File(this.dataDir,
+                        DataStoreUtils.nameFromOffset(newDataOffset, DataStoreUtils.DATA_FILE_SUFFIX));
+        curDataSeg.setMutable(false);
+        logger.info(sb.append("[File Store] Created data segment ")
+                .append(newDataFile.getAbsolutePath()).toString());
+        sb.delete(0, sb.length());
+        this.dataSegments.append(new FileSegment(newDataOffset, newDataFile, SegmentType.DATA));
+        this.messageStore.scheduleLogClearup();
+        this.messageStore.checkRetentionSize();
+    }
+
+    private void rollIndexSegment(final Segment curIndexSeg, final StringBuilder sb) throws IOException {
+        final long newIndexOffset = curIndexSeg.flush(true);
+        final File newIndexFile =
+                new File(this.indexDir,
+                        DataStoreUtils.nameFromOffset(newIndexOffset, DataStoreUtils.INDEX_FILE_SUFFIX));
+        curIndexSeg.setMutable(false);
+        logger.info(sb.append("[File Store] Created index segment ")
+                .append(newIndexFile.getAbsolutePath()).toString());
+        sb.delete(0, sb.length());
+        this.indexSegments.append(new FileSegment(newIndexOffset,
+                newIndexFile, SegmentType.INDEX));
+        this.keyFilterIndex.onSegmentRolled(newIndexOffset);
+        this.messageStore.scheduleLogClearup();
+    }
+
+    private void checkAndFlush(final MsgFileStatisInfo msgFileStatisInfo,
+                               final Segment curDataSeg, final Segment curIndexSeg,
+                               final int appendedCnt, final boolean isDataFlushed,
+                               final boolean isIndexFlushed) throws IOException {
+        boolean isMsgCntFlushed = false;
+        boolean isMsgTimeFushed = false;
+        long currTime = System.currentTimeMillis();
+        if ((isMsgCntFlushed = this.curUnflushed.addAndGet(appendedCnt)
+                >= messageStore.getUnflushThreshold())
+                || (isMsgTimeFushed = currTime - this.lastFlushTime.get()
+                >= messageStore.getUnflushInterval())
+                || isDataFlushed || isIndexFlushed) {
+            boolean forceMetadata = (isDataFlushed
+                    || isIndexFlushed
+                    || (currTime - this.lastMetaFlushTime.get() > MAX_META_REFRESH_DUR));
+            if (!isDataFlushed) {
+                curDataSeg.flush(forceMetadata);
+            }
+            if (!isIndexFlushed) {
+                curIndexSeg.flush(forceMetadata);
+            }
+            // add statistics.
+            msgFileStatisInfo.addFullTypeCount(currTime,
+                    isDataFlushed, isIndexFlushed, isMsgCntFlushed, isMsgTimeFushed,
+                    this.curUnflushSize.get(), this.curUnflushed.get());
+            this.curUnflushSize.set(0);
+            this.curUnflushed.set(0);
+            this.lastFlushTime.set(System.currentTimeMillis());
+            if (forceMetadata) {
+                this.lastMetaFlushTime.set(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /***
+     * Read the receive time of the index record at the index offset,
+     * return Long.MIN_VALUE if the record can not be read.
+     *
+     * @param indexOffset
+     * @param timeBuffer
+     * @return
+     */
+    private long readIndexRecvTime(final long indexOffset, final ByteBuffer timeBuffer) {
+        RecordView recordView = null;
+        try {
+            recordView = indexSegments.getRecordView(indexOffset, DataStoreUtils.STORE_INDEX_HEAD_LEN);
+            if (recordView == null) {
+                return Long.MIN_VALUE;
+            }
+            timeBuffer.clear();
+            recordView.read(timeBuffer, indexOffset - recordView.getStartOffset()
+                    + DataStoreUtils.STORE_INDEX_POS_TIMERECV);
+            if (timeBuffer.hasRemaining()) {
+                return Long.MIN_VALUE;
+            }
+            return timeBuffer.getLong(0);
+        } catch (Throwable e) {
+            samplePrintCtrl.printExceptionCaught(e);
+            return Long.MIN_VALUE;
+        } finally {
+            if (recordView != null) {
+                indexSegments.relRecordView(recordView);
+            }
+        }
+    }
+
+    /***
+     * Rebuild the sparse time index with the first record of each index segment,
+     * records appended later are sampled during append.
+     */
+    private void rebuildTimeIndex() {
+        final ByteBuffer timeBuffer = ByteBuffer.allocate(8);
+        for (Segment segment : indexSegments.getView()) {
+            if (segment == null
+                    || segment.isExpired()
+                    || segment.getCachedSize() < DataStoreUtils.STORE_INDEX_HEAD_LEN) {
+                continue;
+            }
+            try {
+                timeBuffer.clear();
+                while (timeBuffer.hasRemaining()) {
+                    if (segment.getFileChannel().read(timeBuffer,
+                            DataStoreUtils.STORE_INDEX_POS_TIMERECV + timeBuffer.position()) < 0) {
+                        break;
+                    }
+                }
+                if (!timeBuffer.hasRemaining()) {
+                    timeIndex.addEntry(segment.getStart(), timeBuffer.getLong(0));
+                }
+            } catch (Throwable e) {
+                samplePrintCtrl.printExceptionCaught(e);
+            }
+        }
+    }
+
+    /***
+     * Get the size of the data run that starts with the current message and continues with
+     * the following index entries whose data are contiguous, so that the run is read at once.
+     *
+     * @param indexBuffer      index buffer positioned after the current index entry
+     * @param startDataOffset  data offset of the current message
+     * @param startDataSize    data size of the current message
+     * @param maxDataOffset    the run can not exceed this data offset
+     * @param maxReadSize      the run can not exceed this size unless the current message does
+     * @return
+     */
+    static int getContiguousReadSize(final ByteBuffer indexBuffer,
+                                     final long startDataOffset, final int startDataSize,
+                                     final long maxDataOffset, final int maxReadSize) {
+        long runEndOffset = startDataOffset + startDataSize;
+        for (int pos = indexBuffer.position();
+             pos + DataStoreUtils.STORE_INDEX_HEAD_LEN <= indexBuffer.limit();
+             pos += DataStoreUtils.STORE_INDEX_HEAD_LEN) {
+            final long dataOffset = indexBuffer.getLong(pos + 4);
+            final int dataSize = indexBuffer.getInt(pos + 12);
+            if (dataOffset != runEndOffset
+                    || dataSize <= 0
+                    || dataSize > DataStoreUtils.STORE_MAX_MESSAGE_STORE_LEN
+                    || runEndOffset + dataSize > maxDataOffset
+                    || runEndOffset + dataSize - startDataOffset > maxReadSize) {
+                break;
+            }
+            runEndOffset += dataSize;
+        }
+        return (int) (runEndOffset - startDataOffset);
+    }
+
     @Override
     public void close() throws IOException {
         if (this.closed.compareAndSet(false, true)) {
@@ -384,26 +729,174 @@ public class MsgFileStore implements Closeable {
     /***
      * Clean expired data files and index files.
      *
-     * @param onlyCheck
-     * @return
+     * @param deleteLimiter  delete rate of the data directory, null means no limit
+     * @return the reclaimed bytes
      */
-    public boolean runClearupPolicy(boolean onlyCheck) {
+    public long runClearupPolicy(final RateLimiter deleteLimiter) {
+        return runClearupPolicy(deleteLimiter, -1L);
+    }
+
+    /***
+     * Clean expired data files and index files. Besides the files over the valid duration, the
+     * oldest data files are deleted while the data files are over the valid size of the store,
+     * with the index files last modified before them.
+     *
+     * @param deleteLimiter  delete rate of the data directory, null means no limit
+     * @param expireBefore   the files last modified not later than it are deleted too, -1 means none
+     * @return the reclaimed bytes
+     */
+    public long runClearupPolicy(final RateLimiter deleteLimiter, final long expireBefore) {
         final StringBuilder sBuilder = new StringBuilder(512);
         final long start = System.currentTimeMillis();
         boolean hasExpiredDataSegs =
                 dataSegments.checkExpiredSegments(start, messageStore.getMaxFileValidDurMs());
         boolean hasExpiredIndexSegs =
                 indexSegments.checkExpiredSegments(start, messageStore.getMaxFileValidDurMs());
-        if (onlyCheck) {
-            return (hasExpiredDataSegs || hasExpiredIndexSegs);
+        final long sizeExpireTime = Math.max(expireBefore,
+                dataSegments.getSizeExpireTime(messageStore.getMaxFileValidSize()));
+        if (sizeExpireTime >= 0) {
+            if (dataSegments.checkExpiredSegmentsBefore(sizeExpireTime)) {
+                hasExpiredDataSegs = true;
+            }
+            if (indexSegments.checkExpiredSegmentsBefore(sizeExpireTime)) {
+                hasExpiredIndexSegs = true;
+            }
         }
+        long reclaimedSize = 0L;
         if (hasExpiredDataSegs) {
-            dataSegments.delExpiredSegments(sBuilder);
+            reclaimedSize += dataSegments.delExpiredSegments(sBuilder, deleteLimiter);
         }
         if (hasExpiredIndexSegs) {
-            indexSegments.delExpiredSegments(sBuilder);
+            reclaimedSize += indexSegments.delExpiredSegments(sBuilder, deleteLimiter);
+            timeIndex.removeBefore(indexSegments.getMinOffset());
+            keyFilterIndex.removeBefore(indexSegments.getMinOffset());
+        }
+        if (tieredSegments != null) {
+            List<RemoteSegment> expiredSegments =
+                    tieredSegments.removeExpired(start, messageStore.getMaxFileValidDurMs());
+            if (!expiredSegments.isEmpty()) {
+                tieredStoreManager.deleteSegments(expiredSegments);
+            }
+        }
+        return reclaimedSize;
+    }
+
+    /***
+     * Return the last modified time of the oldest data file that can be deleted.
+     *
+     * @return Long.MAX_VALUE if there is only the data file being written
+     */
+    public long getOldestFileTime() {
+        return dataSegments.getOldestFileTime();
+    }
+
+    /***
+     * Return the time when the oldest data or index file expires.
+     *
+     * @return Long.MAX_VALUE if there are only the files being written
+     */
+    public long getNextExpireTime() {
+        final long fileValidTimeMs = messageStore.getMaxFileValidDurMs();
+        long nextExpireTime = Math.min(dataSegments.getNextExpireTime(fileValidTimeMs),
+                indexSegments.getNextExpireTime(fileValidTimeMs));
+        if (tieredSegments != null && tieredSegments.getOldestFileTime() != Long.MAX_VALUE) {
+            nextExpireTime = Math.min(nextExpireTime,
+                    tieredSegments.getOldestFileTime() + fileValidTimeMs + 1);
+        }
+        return nextExpireTime;
+    }
+
+    /***
+     * Upload the immutable data files last modified not later than the given time to the
+     * tiered store, from the oldest one.
+     *
+     * @param offloadBefore
+     * @return the count of uploaded files
+     * @throws IOException
+     */
+    public int offloadColdSegments(final long offloadBefore) throws IOException {
+        if (tieredSegments == null) {
+            return 0;
+        }
+        int offloadCnt = 0;
+        for (Segment segment : dataSegments.getView()) {
+            if (segment == null || segment.isExpired()) {
+                continue;
+            }
+            if (segment.isMutable() || segment.getFile().lastModified() > offloadBefore) {
+                break;
+            }
+            if (tieredSegments.contains(segment.getStart())) {
+                continue;
+            }
+            tieredStoreManager.upload(tieredSegments, segment);
+            offloadCnt++;
+        }
+        return offloadCnt;
+    }
+
+    /***
+     * Return the last modified time of the oldest local data file if it is offloaded.
+     *
+     * @return Long.MAX_VALUE if the oldest local data file is not offloaded
+     */
+    public long getOldestOffloadedFileTime() {
+        if (tieredSegments == null) {
+            return Long.MAX_VALUE;
+        }
+        for (Segment segment : dataSegments.getView()) {
+            if (segment == null || segment.isExpired()) {
+                continue;
+            }
+            if (segment.isMutable() || !tieredSegments.contains(segment.getStart())) {
+                return Long.MAX_VALUE;
+            }
+            return segment.getFile().lastModified();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /***
+     * Remove the oldest local data file if it is offloaded, its messages are read from the
+     * tiered store after.
+     *
+     * @return the reclaimed bytes
+     */
+    public long evictOldestOffloadedSegment() {
+        if (tieredSegments == null) {
+            return 0L;
+        }
+        for (Segment segment : dataSegments.getView()) {
+            if (segment == null || segment.isExpired()) {
+                continue;
+            }
+            if (segment.isMutable() || !tieredSegments.contains(segment.getStart())) {
+                return 0L;
+            }
+            dataSegments.delete(segment);
+            final long fileSize = segment.getCachedSize();
+            try {
+                segment.close();
+            } catch (Throwable e) {
+                //
+            }
+            // the readers holding the file go on reading the opened file
+            if (!segment.getFile().delete()) {
+                return 0L;
+            }
+            tieredStoreManager.addEvictedFile(fileSize);
+            return fileSize;
+        }
+        return 0L;
+    }
+
+    /***
+     * Delete all the offloaded data files of the store.
+     */
+    public void deleteTieredSegments() {
+        if (tieredSegments != null) {
+            tieredStoreManager.deleteSegments(tieredSegments.removeAll());
         }
-        return (hasExpiredDataSegs || hasExpiredIndexSegs);
     }
 
     /***
@@ -441,6 +934,193 @@ public class MsgFileStore implements Closeable {
         return;
     }
 
+    /***
+     * Read a block of raw index records from the index offset and their data records for a
+     * follower store. The data records of the block are contiguous from the data offset, the
+     * block ends at an index segment end, at the written data end, or when the data size
+     * reaches the max data size.
+     *
+     * @param indexOffset   index offset the follower appends at
+     * @param dataOffset    data offset the follower appends at
+     * @param maxDataSize   max size of the data records, at least one record is read
+     * @return MOVED to the restart offsets if the records at the offsets are expired
+     * @throws IOException
+     */
+    public ReplicaBlock readReplicaBlock(final long indexOffset, final long dataOffset,
+                                         final int maxDataSize) throws IOException {
+        final long indexMaxOffset = getIndexMaxOffset();
+        final long dataMaxOffset = getDataMaxOffset();
+        final long dataMinOffset = tieredSegments == null
+                ? getDataMinOffset() : Math.min(getDataMinOffset(), tieredSegments.getMinOffset());
+        if (indexOffset > indexMaxOffset) {
+            return new ReplicaBlock(TErrCodeConstants.BAD_REQUEST,
+                    "index offset is over the max offset", indexOffset, dataOffset, indexMaxOffset);
+        }
+        if (indexOffset == indexMaxOffset) {
+            return new ReplicaBlock(TErrCodeConstants.SUCCESS, "Ok",
+                    indexOffset, dataOffset, indexMaxOffset);
+        }
+        if (indexOffset < getIndexMinOffset()) {
+            return seekReplicaStart(getIndexMinOffset(), indexMaxOffset, dataMinOffset);
+        }
+        final ByteBuffer indexBuffer =
+                readIndexRecords(indexOffset, indexMaxOffset, MAX_REPLICA_INDEX_READ_SIZE);
+        if (indexBuffer == null || !indexBuffer.hasRemaining()) {
+            return seekReplicaStart(indexOffset, indexMaxOffset, dataMinOffset);
+        }
+        if (indexBuffer.getLong(4) < dataMinOffset) {
+            return seekReplicaStart(indexOffset, indexMaxOffset, dataMinOffset);
+        }
+        if (indexBuffer.getLong(4) != dataOffset) {
+            return new ReplicaBlock(TErrCodeConstants.BAD_REQUEST,
+                    "data offset mismatches the index record", indexOffset, dataOffset, indexMaxOffset);
+        }
+        // take the records with contiguous and written data up to the max data size
+        long dataEndOffset = dataOffset;
+        int recordCnt = 0;
+        for (int pos = 0; pos < indexBuffer.limit(); pos += DataStoreUtils.STORE_INDEX_HEAD_LEN) {
+            final long recDataOffset = indexBuffer.getLong(pos + 4);
+            final int recDataSize = indexBuffer.getInt(pos + 12);
+            if (recDataOffset != dataEndOffset
+                    || recDataSize <= 0
+                    || dataEndOffset + recDataSize > dataMaxOffset
+                    || (recordCnt > 0 && dataEndOffset + recDataSize - dataOffset > maxDataSize)) {
+                break;
+            }
+            dataEndOffset += recDataSize;
+            recordCnt++;
+        }
+        indexBuffer.limit(recordCnt * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        final ByteBuffer dataBuffer = ByteBuffer.allocate((int) (dataEndOffset - dataOffset));
+        while (dataBuffer.hasRemaining()) {
+            final long readOffset = dataOffset + dataBuffer.position();
+            RecordView recordView =
+                    dataSegments.getRecordView(readOffset, dataBuffer.remaining());
+            if (recordView == null) {
+                recordView = getTieredRecordView(readOffset, dataBuffer.remaining());
+                if (recordView == null) {
+                    return seekReplicaStart(indexOffset, indexMaxOffset, getDataMinOffset());
+                }
+            }
+            try {
+                recordView.read(dataBuffer, readOffset - recordView.getStartOffset());
+            } finally {
+                dataSegments.relRecordView(recordView);
+            }
+            if (dataBuffer.position() == readOffset - dataOffset) {
+                return new ReplicaBlock(TErrCodeConstants.INTERNAL_SERVER_ERROR,
+                        "data records are not readable", indexOffset, dataOffset, indexMaxOffset);
+            }
+        }
+        dataBuffer.flip();
+        return new ReplicaBlock(indexOffset, dataOffset, indexBuffer, dataBuffer, indexMaxOffset);
+    }
+
+    /***
+     * Move an empty store to start at the given offsets, used when a follower store starts
+     * to replicate a leader store whose oldest records are beyond the empty store.
+     *
+     * @param indexOffset
+     * @param dataOffset
+     * @param sb
+     * @return false if the store is not empty
+     * @throws IOException
+     */
+    public boolean resetEmptyStore(final long indexOffset, final long dataOffset,
+                                   final StringBuilder sb) throws IOException {
+        this.writeLock.lock();
+        try {
+            if (this.dataSegments.getView().size() != 1
+                    || this.indexSegments.getView().size() != 1
+                    || this.dataSegments.getSizeInBytes() != 0
+                    || this.indexSegments.getSizeInBytes() != 0) {
+                return false;
+            }
+            replaceEmptySegment(this.dataSegments, this.dataDir,
+                    SegmentType.DATA, DataStoreUtils.DATA_FILE_SUFFIX, dataOffset);
+            replaceEmptySegment(this.indexSegments, this.indexDir,
+                    SegmentType.INDEX, DataStoreUtils.INDEX_FILE_SUFFIX, indexOffset);
+            this.keyFilterIndex.onSegmentRolled(indexOffset);
+            logger.info(sb.append("[File Store] Reset empty store ").append(this.storeKey)
+                    .append(" to indexOffset=").append(indexOffset)
+                    .append(", dataOffset=").append(dataOffset).toString());
+            sb.delete(0, sb.length());
+            return true;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void replaceEmptySegment(final SegmentList segments, final File segmentDir,
+                                     final SegmentType type, final String fileSuffix,
+                                     final long offset) throws IOException {
+        final Segment curSegment = segments.last();
+        if (curSegment.getStart() == offset) {
+            return;
+        }
+        segments.append(new FileSegment(offset,
+                new File(segmentDir, DataStoreUtils.nameFromOffset(offset, fileSuffix)), type));
+        segments.delete(curSegment);
+        curSegment.close();
+        if (!curSegment.getFile().delete()) {
+            logger.warn(new StringBuilder(256).append("[File Store] failure to delete file ")
+                    .append(curSegment.getFile().getAbsolutePath()).toString());
+        }
+    }
+
+    private ReplicaBlock seekReplicaStart(final long fromOffset, final long indexMaxOffset,
+                                          final long dataMinOffset) throws IOException {
+        // the first index record whose data is kept
+        long offset = fromOffset;
+        while (offset < indexMaxOffset) {
+            offset = Math.max(offset, getIndexMinOffset());
+            final ByteBuffer indexBuffer =
+                    readIndexRecords(offset, indexMaxOffset, MAX_REPLICA_INDEX_READ_SIZE);
+            if (indexBuffer == null || !indexBuffer.hasRemaining()) {
+                break;
+            }
+            for (int pos = 0; pos < indexBuffer.limit(); pos += DataStoreUtils.STORE_INDEX_HEAD_LEN) {
+                final long recDataOffset = indexBuffer.getLong(pos + 4);
+                if (recDataOffset >= dataMinOffset) {
+                    return new ReplicaBlock(TErrCodeConstants.MOVED, "offset is expired",
+                            offset + pos, recDataOffset, indexMaxOffset);
+                }
+            }
+            offset += indexBuffer.limit();
+        }
+        // no record kept, restart at the end
+        final long indexEndOffset;
+        final long dataEndOffset;
+        this.writeLock.lock();
+        try {
+            indexEndOffset = getIndexMaxOffset();
+            dataEndOffset = getDataMaxOffset();
+        } finally {
+            this.writeLock.unlock();
+        }
+        return new ReplicaBlock(TErrCodeConstants.MOVED, "offset is expired",
+                indexEndOffset, dataEndOffset, indexEndOffset);
+    }
+
+    private ByteBuffer readIndexRecords(final long offset, final long indexMaxOffset,
+                                        final int maxSize) throws IOException {
+        final int readSize = (int) Math.min(maxSize, indexMaxOffset - offset);
+        final RecordView recordView = indexSegments.getRecordView(offset, readSize);
+        if (recordView == null) {
+            return null;
+        }
+        final ByteBuffer indexBuffer = ByteBuffer.allocate(readSize);
+        try {
+            recordView.read(indexBuffer);
+        } finally {
+            indexSegments.relRecordView(recordView);
+        }
+        indexBuffer.flip();
+        indexBuffer.limit(indexBuffer.limit()
+                - indexBuffer.limit() % DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        return indexBuffer;
+    }
+
     public long getDataSizeInBytes() {
         return dataSegments.getSizeInBytes();
     }
@@ -500,4 +1180,9 @@ public class MsgFileStore implements Closeable {
         return indexSegments.getRecordView(offset, maxSize);
     }
 
+    public RecordView indexSlice(final long offset, final int maxSize,
+                                 final SegmentCursor indexCursor) throws IOException {
+        return indexSegments.getRecordView(offset, maxSize, indexCursor);
+    }
+
 }
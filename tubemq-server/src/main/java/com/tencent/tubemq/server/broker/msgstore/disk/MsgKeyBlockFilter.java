@@ -0,0 +1,271 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+
+/***
+ * Bloom filters over the key codes of an index segment. The index records of the segment are
+ * divided into blocks of blockRecordCnt records, each block has a bitmap of the key codes of
+ * its records, so a filter consumer can skip the blocks that can not contain the wanted keys.
+ */
+public class MsgKeyBlockFilter {
+    private static final int FILTER_FILE_MAGIC = 0x4B424C46;
+    private static final int FILTER_FILE_VERSION = 1;
+    // magic, version, blockRecordCnt, bitmapWords, segStart, recordCnt
+    private static final int FILTER_FILE_HEAD_LEN = 4 + 4 + 4 + 4 + 8 + 4;
+    // start index offset of the segment
+    private final long segStart;
+    // index records of a block
+    private final int blockRecordCnt;
+    // long words of a block bitmap
+    private final int bitmapWords;
+    // bitmaps of blocks, block i uses words [i * bitmapWords, (i + 1) * bitmapWords)
+    private long[] bitmaps;
+    // index records added
+    private int recordCnt = 0;
+
+
+    public MsgKeyBlockFilter(final long segStart,
+                             final int blockRecordCnt,
+                             final int bitmapWords) {
+        this.segStart = segStart;
+        this.blockRecordCnt = Math.max(1, blockRecordCnt);
+        this.bitmapWords = Math.max(1, bitmapWords);
+        this.bitmaps = new long[this.bitmapWords * 4];
+    }
+
+    /***
+     * Add the key code of the index record at the index offset, records must be added in order.
+     *
+     * @param indexOffset
+     * @param keyCode
+     */
+    public synchronized void add(final long indexOffset, final int keyCode) {
+        final long recordIdx = (indexOffset - segStart) / DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        if (recordIdx != recordCnt) {
+            return;
+        }
+        final int wordBase = (recordCnt / blockRecordCnt) * bitmapWords;
+        if (wordBase + bitmapWords > bitmaps.length) {
+            bitmaps = Arrays.copyOf(bitmaps, Math.max(bitmaps.length * 2, wordBase + bitmapWords));
+        }
+        final int bitCnt = bitmapWords * 64;
+        int bitPos = firstHash(keyCode) & (bitCnt - 1);
+        bitmaps[wordBase + (bitPos >>> 6)] |= 1L << bitPos;
+        bitPos = secondHash(keyCode) & (bitCnt - 1);
+        bitmaps[wordBase + (bitPos >>> 6)] |= 1L << bitPos;
+        recordCnt++;
+    }
+
+    /***
+     * Get the first index offset at or after the from offset that may hold one of the keys,
+     * the returned offset is not larger than the limit offset unless the from offset is.
+     * Returns getEndOffset() if no block after the from offset may hold the keys.
+     *
+     * @param fromOffset
+     * @param limitOffset
+     * @param keyBitPositions  bit positions of the wanted keys, see getKeyBitPositions()
+     * @return
+     */
+    public synchronized long getNextCandidateOffset(final long fromOffset,
+                                                    final long limitOffset,
+                                                    final int[] keyBitPositions) {
+        long curOffset = fromOffset;
+        final long endOffset = segStart + (long) recordCnt * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        while (curOffset < endOffset) {
+            final long recordIdx = (curOffset - segStart) / DataStoreUtils.STORE_INDEX_HEAD_LEN;
+            final int blockIdx = (int) (recordIdx / blockRecordCnt);
+            if (mayContain(blockIdx * bitmapWords, keyBitPositions)) {
+                return curOffset;
+            }
+            final long blockEnd = Math.min(endOffset, segStart
+                    + (long) (blockIdx + 1) * blockRecordCnt * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+            if (blockEnd > limitOffset) {
+                return curOffset;
+            }
+            curOffset = blockEnd;
+        }
+        return curOffset;
+    }
+
+    public long getSegStart() {
+        return segStart;
+    }
+
+    public synchronized long getEndOffset() {
+        return segStart + (long) recordCnt * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+    }
+
+    public synchronized int getRecordCnt() {
+        return recordCnt;
+    }
+
+    public synchronized int getBlockCnt() {
+        return (recordCnt + blockRecordCnt - 1) / blockRecordCnt;
+    }
+
+    /***
+     * Write the filter to file, the file is written to a temporary file and then renamed.
+     *
+     * @param filterFile
+     * @throws IOException
+     */
+    public synchronized void writeToFile(final File filterFile) throws IOException {
+        final int wordCnt = getBlockCnt() * bitmapWords;
+        final ByteBuffer buffer = ByteBuffer.allocate(FILTER_FILE_HEAD_LEN + wordCnt * 8);
+        buffer.putInt(FILTER_FILE_MAGIC);
+        buffer.putInt(FILTER_FILE_VERSION);
+        buffer.putInt(blockRecordCnt);
+        buffer.putInt(bitmapWords);
+        buffer.putLong(segStart);
+        buffer.putInt(recordCnt);
+        for (int i = 0; i < wordCnt; i++) {
+            buffer.putLong(bitmaps[i]);
+        }
+        buffer.flip();
+        final File tmpFile = new File(filterFile.getAbsolutePath() + ".tmp");
+        final FileOutputStream outStream = new FileOutputStream(tmpFile);
+        try {
+            final FileChannel channel = outStream.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            outStream.close();
+        }
+        if (!tmpFile.renameTo(filterFile)) {
+            filterFile.delete();
+            if (!tmpFile.renameTo(filterFile)) {
+                tmpFile.delete();
+                throw new IOException(new StringBuilder(256)
+                        .append("Rename filter file failure, file=")
+                        .append(filterFile.getAbsolutePath()).toString());
+            }
+        }
+    }
+
+    /***
+     * Load a filter from file, return null if the file is missing or does not match
+     * the segment start, the record count or the block layout.
+     *
+     * @param filterFile
+     * @param segStart
+     * @param recordCnt
+     * @param blockRecordCnt
+     * @param bitmapWords
+     * @return
+     */
+    public static MsgKeyBlockFilter loadFromFile(final File filterFile, final long segStart,
+                                                 final int recordCnt, final int blockRecordCnt,
+                                                 final int bitmapWords) {
+        if (!filterFile.isFile() || filterFile.length() < FILTER_FILE_HEAD_LEN) {
+            return null;
+        }
+        try {
+            final FileInputStream inStream = new FileInputStream(filterFile);
+            try {
+                final FileChannel channel = inStream.getChannel();
+                final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        return null;
+                    }
+                }
+                buffer.flip();
+                if (buffer.getInt() != FILTER_FILE_MAGIC
+                        || buffer.getInt() != FILTER_FILE_VERSION
+                        || buffer.getInt() != blockRecordCnt
+                        || buffer.getInt() != bitmapWords
+                        || buffer.getLong() != segStart
+                        || buffer.getInt() != recordCnt) {
+                    return null;
+                }
+                final MsgKeyBlockFilter filter =
+                        new MsgKeyBlockFilter(segStart, blockRecordCnt, bitmapWords);
+                final int wordCnt = filter.toBlockCnt(recordCnt) * bitmapWords;
+                if (buffer.remaining() != wordCnt * 8) {
+                    return null;
+                }
+                filter.bitmaps = new long[Math.max(wordCnt, bitmapWords)];
+                for (int i = 0; i < wordCnt; i++) {
+                    filter.bitmaps[i] = buffer.getLong();
+                }
+                filter.recordCnt = recordCnt;
+                return filter;
+            } finally {
+                inStream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /***
+     * Get the bitmap bit positions of the keys, the positions are shared by all blocks.
+     *
+     * @param keyCodes
+     * @param bitmapWords
+     * @return
+     */
+    public static int[] getKeyBitPositions(final Set<Integer> keyCodes, final int bitmapWords) {
+        final int bitCnt = Math.max(1, bitmapWords) * 64;
+        final int[] positions = new int[keyCodes.size() * 2];
+        int index = 0;
+        for (Integer keyCode : keyCodes) {
+            positions[index++] = firstHash(keyCode) & (bitCnt - 1);
+            positions[index++] = secondHash(keyCode) & (bitCnt - 1);
+        }
+        return positions;
+    }
+
+    private boolean mayContain(final int wordBase, final int[] keyBitPositions) {
+        for (int i = 0; i + 1 < keyBitPositions.length; i += 2) {
+            final int firstPos = keyBitPositions[i];
+            final int secondPos = keyBitPositions[i + 1];
+            if ((bitmaps[wordBase + (firstPos >>> 6)] & (1L << firstPos)) != 0
+                    && (bitmaps[wordBase + (secondPos >>> 6)] & (1L << secondPos)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int toBlockCnt(final int records) {
+        return (records + blockRecordCnt - 1) / blockRecordCnt;
+    }
+
+    private static int firstHash(final int keyCode) {
+        final int hash = keyCode * 0x9E3779B1;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int secondHash(final int keyCode) {
+        final int hash = Integer.rotateLeft(keyCode, 16) * 0x85EBCA6B;
+        return hash ^ (hash >>> 13);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Key code block filters of the index segments of a message file store.
+ * The filter of the segment being written is kept in memory and updated during append, it is
+ * persisted beside the index file as a filter file when the segment rolls. Filters of the
+ * other segments are loaded from their filter files on demand, and a few recently used ones
+ * are cached in memory.
+ */
+public class MsgKeyFilterIndex {
+    private static final Logger logger = LoggerFactory.getLogger(MsgKeyFilterIndex.class);
+    private final File indexDir;
+    // index records of a block
+    private final int blockRecordCnt;
+    // long words of a block bitmap
+    private final int bitmapWords;
+    // record counts of the rolled index segments, keyed by segment start
+    private final TreeMap<Long, Integer> rolledSegRecordCnts = new TreeMap<Long, Integer>();
+    // recently used filters of the rolled index segments
+    private final LinkedHashMap<Long, MsgKeyBlockFilter> cachedFilters;
+    // filter of the index segment being written
+    private volatile MsgKeyBlockFilter curFilter = null;
+
+
+    public MsgKeyFilterIndex(final File indexDir,
+                             final int blockRecordCnt,
+                             final int bitmapWords,
+                             final int maxCachedFilters) {
+        this.indexDir = indexDir;
+        this.blockRecordCnt = blockRecordCnt;
+        this.bitmapWords = bitmapWords;
+        final int maxCachedCnt = Math.max(1, maxCachedFilters);
+        this.cachedFilters = new LinkedHashMap<Long, MsgKeyBlockFilter>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MsgKeyBlockFilter> eldest) {
+                return size() > maxCachedCnt;
+            }
+        };
+    }
+
+    /***
+     * Load the filters of the index segments, the filter of a rolled segment is rebuilt
+     * and persisted if its filter file is missing or invalid, the filter of the segment
+     * being written is always rebuilt.
+     *
+     * @param indexSegments
+     */
+    public synchronized void load(final List<Segment> indexSegments) {
+        for (Segment segment : indexSegments) {
+            if (segment == null || segment.isExpired()) {
+                continue;
+            }
+            final int recordCnt =
+                    (int) (segment.getCachedSize() / DataStoreUtils.STORE_INDEX_HEAD_LEN);
+            try {
+                if (segment.isMutable()) {
+                    curFilter = scanSegment(segment, recordCnt);
+                    continue;
+                }
+                final File filterFile = getFilterFile(segment.getStart());
+                MsgKeyBlockFilter filter =
+                        MsgKeyBlockFilter.loadFromFile(filterFile, segment.getStart(),
+                                recordCnt, blockRecordCnt, bitmapWords);
+                if (filter == null) {
+                    filter = scanSegment(segment, recordCnt);
+                    filter.writeToFile(filterFile);
+                }
+                rolledSegRecordCnts.put(segment.getStart(), recordCnt);
+                cachedFilters.put(segment.getStart(), filter);
+            } catch (Throwable e) {
+                logger.warn(new StringBuilder(256)
+                        .append("[File Store] load key filter failure, index segment=")
+                        .append(segment.getFile().getAbsolutePath()).toString(), e);
+            }
+        }
+    }
+
+    /***
+     * Record the key code of an appended index record.
+     *
+     * @param segStart
+     * @param indexOffset
+     * @param keyCode
+     */
+    public void onAppend(final long segStart, final long indexOffset, final int keyCode) {
+        MsgKeyBlockFilter filter = curFilter;
+        if (filter == null || filter.getSegStart() != segStart) {
+            synchronized (this) {
+                filter = curFilter;
+                if (filter == null || filter.getSegStart() != segStart) {
+                    filter = new MsgKeyBlockFilter(segStart, blockRecordCnt, bitmapWords);
+                    curFilter = filter;
+                }
+            }
+        }
+        filter.add(indexOffset, keyCode);
+    }
+
+    /***
+     * Persist the filter of the rolled index segment, and start the filter of the new one.
+     *
+     * @param newSegStart
+     */
+    public void onSegmentRolled(final long newSegStart) {
+        final MsgKeyBlockFilter rolledFilter;
+        synchronized (this) {
+            rolledFilter = curFilter;
+            curFilter = new MsgKeyBlockFilter(newSegStart, blockRecordCnt, bitmapWords);
+            if (rolledFilter == null || rolledFilter.getSegStart() >= newSegStart) {
+                return;
+            }
+            rolledSegRecordCnts.put(rolledFilter.getSegStart(), rolledFilter.getRecordCnt());
+            cachedFilters.put(rolledFilter.getSegStart(), rolledFilter);
+        }
+        try {
+            rolledFilter.writeToFile(getFilterFile(rolledFilter.getSegStart()));
+        } catch (Throwable e) {
+            logger.warn(new StringBuilder(256)
+                    .append("[File Store] persist key filter failure, segment start=")
+                    .append(rolledFilter.getSegStart()).toString(), e);
+        }
+    }
+
+    /***
+     * Get the first index offset at or after the from offset that may hold one of the keys,
+     * the blocks that can not hold the keys are skipped, the skip stops at the limit offset.
+     *
+     * @param fromOffset
+     * @param limitOffset
+     * @param keyCodes
+     * @return
+     */
+    public long getNextCandidateOffset(final long fromOffset,
+                                       final long limitOffset,
+                                       final Set<Integer> keyCodes) {
+        if (keyCodes == null || keyCodes.isEmpty()) {
+            return fromOffset;
+        }
+        final int[] keyBitPositions =
+                MsgKeyBlockFilter.getKeyBitPositions(keyCodes, bitmapWords);
+        long curOffset = fromOffset;
+        while (curOffset < limitOffset) {
+            final MsgKeyBlockFilter filter = getFilter(curOffset);
+            if (filter == null) {
+                break;
+            }
+            final long nextOffset =
+                    filter.getNextCandidateOffset(curOffset, limitOffset, keyBitPositions);
+            if (nextOffset == curOffset || nextOffset < filter.getEndOffset()) {
+                return nextOffset;
+            }
+            curOffset = nextOffset;
+        }
+        return curOffset;
+    }
+
+    /***
+     * Remove the filters and filter files of the index segments before the min index offset.
+     *
+     * @param minIndexOffset
+     */
+    public synchronized void removeBefore(final long minIndexOffset) {
+        Iterator<Long> iterator = rolledSegRecordCnts.keySet().iterator();
+        while (iterator.hasNext()) {
+            final long segStart = iterator.next();
+            if (segStart >= minIndexOffset) {
+                break;
+            }
+            iterator.remove();
+            cachedFilters.remove(segStart);
+        }
+        final File[] files = indexDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String fileName = file.getName();
+            if (!fileName.endsWith(DataStoreUtils.FILTER_FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                final long segStart = Long.parseLong(fileName.substring(0,
+                        fileName.length() - DataStoreUtils.FILTER_FILE_SUFFIX.length()));
+                if (segStart < minIndexOffset) {
+                    file.delete();
+                }
+            } catch (NumberFormatException e) {
+                //
+            }
+        }
+    }
+
+    public synchronized int getCachedFilterCnt() {
+        return cachedFilters.size();
+    }
+
+    public File getFilterFile(final long segStart) {
+        return new File(indexDir,
+                DataStoreUtils.nameFromOffset(segStart, DataStoreUtils.FILTER_FILE_SUFFIX));
+    }
+
+    private synchronized MsgKeyBlockFilter getFilter(final long indexOffset) {
+        final MsgKeyBlockFilter filter = curFilter;
+        if (filter != null && indexOffset >= filter.getSegStart()) {
+            return filter;
+        }
+        final Map.Entry<Long, Integer> segEntry = rolledSegRecordCnts.floorEntry(indexOffset);
+        if (segEntry == null) {
+            return null;
+        }
+        MsgKeyBlockFilter rolledFilter = cachedFilters.get(segEntry.getKey());
+        if (rolledFilter == null) {
+            rolledFilter = MsgKeyBlockFilter.loadFromFile(getFilterFile(segEntry.getKey()),
+                    segEntry.getKey(), segEntry.getValue(), blockRecordCnt, bitmapWords);
+            if (rolledFilter == null) {
+                // not usable, stop looking up the segment
+                rolledSegRecordCnts.remove(segEntry.getKey());
+                return null;
+            }
+            cachedFilters.put(segEntry.getKey(), rolledFilter);
+        }
+        return rolledFilter;
+    }
+
+    private MsgKeyBlockFilter scanSegment(final Segment segment,
+                                          final int recordCnt) throws IOException {
+        final MsgKeyBlockFilter filter =
+                new MsgKeyBlockFilter(segment.getStart(), blockRecordCnt, bitmapWords);
+        final ByteBuffer readBuffer =
+                ByteBuffer.allocate(DataStoreUtils.STORE_INDEX_HEAD_LEN * blockRecordCnt);
+        final long readLimit = (long) recordCnt * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        long readPos = 0L;
+        while (readPos < readLimit) {
+            readBuffer.clear();
+            if (readLimit - readPos < readBuffer.capacity()) {
+                readBuffer.limit((int) (readLimit - readPos));
+            }
+            while (readBuffer.hasRemaining()) {
+                if (segment.getFileChannel().read(readBuffer, readPos + readBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            readBuffer.flip();
+            for (int pos = 0;
+                 pos + DataStoreUtils.STORE_INDEX_HEAD_LEN <= readBuffer.limit();
+                 pos += DataStoreUtils.STORE_INDEX_HEAD_LEN) {
+                filter.add(segment.getStart() + readPos + pos,
+                        readBuffer.getInt(pos + DataStoreUtils.STORE_INDEX_POS_KEYCODE));
+            }
+            if (readBuffer.limit() < DataStoreUtils.STORE_INDEX_HEAD_LEN) {
+                break;
+            }
+            readPos += readBuffer.limit() - readBuffer.limit() % DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+import java.util.Arrays;
+
+/***
+ * Sparse time index of a message file store. It keeps the receive time of the first
+ * record of each index segment and of one record out of every recordInterval appended
+ * records, ordered by index offset. A lookup narrows the index records to be searched
+ * for a timestamp to the range between two neighbouring entries.
+ */
+public class MsgTimeIndex {
+    // sampled record count interval
+    private final int recordInterval;
+    // index offsets of sampled records
+    private long[] indexOffsets = new long[64];
+    // receive times of sampled records
+    private long[] recvTimes = new long[64];
+    private int entryCnt = 0;
+    // records appended since the last sampled record
+    private int unsampledCnt = 0;
+
+
+    public MsgTimeIndex(final int recordInterval) {
+        this.recordInterval = Math.max(1, recordInterval);
+    }
+
+    /***
+     * Add an entry, the entry is ignored if its index offset is not larger than the last one.
+     *
+     * @param indexOffset
+     * @param timeRecv
+     */
+    public synchronized void addEntry(final long indexOffset, final long timeRecv) {
+        if (entryCnt > 0 && indexOffset <= indexOffsets[entryCnt - 1]) {
+            return;
+        }
+        if (entryCnt == indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, entryCnt * 2);
+            recvTimes = Arrays.copyOf(recvTimes, entryCnt * 2);
+        }
+        indexOffsets[entryCnt] = indexOffset;
+        recvTimes[entryCnt] = timeRecv;
+        entryCnt++;
+        unsampledCnt = 0;
+    }
+
+    /***
+     * Record an appended index record, sample it if it is the first record of
+     * an index segment or the interval is reached.
+     *
+     * @param indexOffset
+     * @param timeRecv
+     * @param isSegmentFirst
+     */
+    public synchronized void onAppend(final long indexOffset, final long timeRecv,
+                                      final boolean isSegmentFirst) {
+        if (isSegmentFirst || entryCnt == 0 || ++unsampledCnt >= recordInterval) {
+            addEntry(indexOffset, timeRecv);
+        }
+    }
+
+    /***
+     * Remove entries of the index records before the min index offset.
+     *
+     * @param minIndexOffset
+     */
+    public synchronized void removeBefore(final long minIndexOffset) {
+        int rmvCnt = 0;
+        while (rmvCnt < entryCnt && indexOffsets[rmvCnt] < minIndexOffset) {
+            rmvCnt++;
+        }
+        if (rmvCnt == 0) {
+            return;
+        }
+        System.arraycopy(indexOffsets, rmvCnt, indexOffsets, 0, entryCnt - rmvCnt);
+        System.arraycopy(recvTimes, rmvCnt, recvTimes, 0, entryCnt - rmvCnt);
+        entryCnt -= rmvCnt;
+    }
+
+    /***
+     * Get the index offset range that contains the first record received at or after the timestamp.
+     * The range starts at the last entry received before the timestamp and ends at the next entry,
+     * both are limited by [minIndexOffset, maxIndexOffset].
+     *
+     * @param timestamp
+     * @param minIndexOffset
+     * @param maxIndexOffset
+     * @return  the start and the end index offset of the range
+     */
+    public synchronized long[] getSearchRange(final long timestamp,
+                                              final long minIndexOffset,
+                                              final long maxIndexOffset) {
+        // find the first entry received at or after the timestamp
+        int low = 0;
+        int high = entryCnt;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (recvTimes[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        long startOffset = low > 0 ? indexOffsets[low - 1] : minIndexOffset;
+        long endOffset = low < entryCnt ? indexOffsets[low] : maxIndexOffset;
+        startOffset = Math.min(Math.max(startOffset, minIndexOffset), maxIndexOffset);
+        endOffset = Math.min(Math.max(endOffset, startOffset), maxIndexOffset);
+        return new long[]{startOffset, endOffset};
+    }
+
+    public synchronized int getEntryCount() {
+        return entryCnt;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+import com.tencent.tubemq.corebase.TErrCodeConstants;
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.nio.ByteBuffer;
+
+/***
+ * Raw index and data records read from a leader store for a follower store. The index
+ * records start at the index offset, their data records are contiguous from the data offset.
+ * When the requested offsets are no longer readable, the result is MOVED to the offsets
+ * the follower can restart from.
+ */
+public class ReplicaBlock {
+    public int retCode = TErrCodeConstants.SUCCESS;
+    public String errInfo = "Ok";
+    // index offset of the first index record
+    public long indexOffset;
+    // data offset of the first data record
+    public long dataOffset;
+    // index records, empty if caught up
+    public ByteBuffer indexBuffer;
+    // data records of the index records
+    public ByteBuffer dataBuffer;
+    // max index offset of the leader store when read
+    public long leaderIndexMaxOffset;
+
+
+    public ReplicaBlock(final long indexOffset, final long dataOffset,
+                        final ByteBuffer indexBuffer, final ByteBuffer dataBuffer,
+                        final long leaderIndexMaxOffset) {
+        this.indexOffset = indexOffset;
+        this.dataOffset = dataOffset;
+        this.indexBuffer = indexBuffer;
+        this.dataBuffer = dataBuffer;
+        this.leaderIndexMaxOffset = leaderIndexMaxOffset;
+    }
+
+    public ReplicaBlock(final int retCode, final String errInfo,
+                        final long indexOffset, final long dataOffset,
+                        final long leaderIndexMaxOffset) {
+        this(indexOffset, dataOffset, ByteBuffer.allocate(0),
+                ByteBuffer.allocate(0), leaderIndexMaxOffset);
+        this.retCode = retCode;
+        this.errInfo = errInfo;
+    }
+
+    public boolean isSuccess() {
+        return retCode == TErrCodeConstants.SUCCESS;
+    }
+
+    public int getMsgCount() {
+        return indexBuffer.remaining() / DataStoreUtils.STORE_INDEX_HEAD_LEN;
+    }
+
+    public byte[] getIndexBytes() {
+        return toBytes(indexBuffer);
+    }
+
+    public byte[] getDataBytes() {
+        return toBytes(dataBuffer);
+    }
+
+    private static byte[] toBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
 
 /***
  * Storage segment, usually implemented in file format.
@@ -31,6 +32,8 @@ public interface Segment {
 
     long append(final ByteBuffer buf) throws IOException;
 
+    long append(final ByteBuffer[] bufs, final int offset, final int length) throws IOException;
+
     long flush(boolean force) throws IOException;
 
     int checkAndSetExpired(final long checkTimestamp, final long maxValidTimeMs);
@@ -55,6 +58,10 @@ public interface Segment {
 
     FileChannel getFileChannel();
 
+    FileChannel getDirectChannel(final OpenOption directOption);
+
+    void disableDirectRead(final Throwable e);
+
     boolean isMutable();
 
     void setMutable(boolean mutable);
@@ -0,0 +1,72 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+/***
+ * Last segment resolved for a reader of a segment list. A reader mostly reads on from the
+ * segment of its previous read, so the segment is checked before the list is searched. The
+ * position belongs to a snapshot of the list and is only used while the list is not changed,
+ * so a segment appended, deleted or expired since then is never returned from it.
+ */
+public class SegmentCursor {
+    // last resolved position, replaced as a whole
+    private volatile Position position;
+
+
+    public SegmentCursor() {
+        //
+    }
+
+    /***
+     * Return the index of the cached segment if it is of the given list snapshot.
+     *
+     * @param snapshot
+     * @return -1 if there is no cached segment of the snapshot
+     */
+    int getIndex(final Object snapshot) {
+        final Position curPosition = this.position;
+        if (curPosition == null || curPosition.snapshot != snapshot) {
+            return -1;
+        }
+        return curPosition.index;
+    }
+
+    void update(final Object snapshot, final int index) {
+        final Position curPosition = this.position;
+        if (curPosition != null
+                && curPosition.snapshot == snapshot
+                && curPosition.index == index) {
+            return;
+        }
+        this.position = new Position(snapshot, index);
+    }
+
+    public void clear() {
+        this.position = null;
+    }
+
+    private static class Position {
+        private final Object snapshot;
+        private final int index;
+
+        Position(final Object snapshot, final int index) {
+            this.snapshot = snapshot;
+            this.index = index;
+        }
+    }
+}
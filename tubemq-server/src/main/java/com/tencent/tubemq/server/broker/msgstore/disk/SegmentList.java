@@ -17,6 +17,7 @@
 
 package com.tencent.tubemq.server.broker.msgstore.disk;
 
+import com.google.common.util.concurrent.RateLimiter;
 import java.io.IOException;
 import java.util.List;
 
@@ -31,6 +32,8 @@ public interface SegmentList {
 
     Segment findSegment(final long offset);
 
+    Segment findSegment(final long offset, final SegmentCursor cursor);
+
     List<Segment> getView();
 
     long getSizeInBytes();
@@ -39,7 +42,15 @@ public interface SegmentList {
 
     boolean checkExpiredSegments(final long checkTimestamp, final long fileValidTimeMs);
 
-    void delExpiredSegments(final StringBuilder sb);
+    boolean checkExpiredSegmentsBefore(final long lastModifiedTime);
+
+    long getNextExpireTime(final long fileValidTimeMs);
+
+    long getOldestFileTime();
+
+    long getSizeExpireTime(final long maxSizeInBytes);
+
+    long delExpiredSegments(final StringBuilder sb, final RateLimiter deleteLimiter);
 
     void flushLast(boolean force) throws IOException;
 
@@ -53,6 +64,9 @@ public interface SegmentList {
 
     RecordView getRecordView(final long offset, final int maxSize) throws IOException;
 
+    RecordView getRecordView(final long offset, final int maxSize,
+                             final SegmentCursor cursor) throws IOException;
+
     void relRecordView(RecordView recordView);
 
 
@@ -0,0 +1,217 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.mem;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import sun.nio.ch.DirectBuffer;
+
+/***
+ * Broker-wide allocator of the direct buffers of the write caches. Buffers are handed out when
+ * a cache is first written and returned when the cache is released or idle, the returned buffers
+ * are pooled by capacity for the caches of the same size. The buffers handed out and pooled are
+ * accounted in a broker-wide budget, pooled buffers are freed first when the budget is exceeded.
+ */
+public class MemCacheAllocator {
+    // max total size of the buffers handed out and pooled
+    private final long maxTotalSize;
+    // max total size of the pooled buffers
+    private final long maxPooledSize;
+    // size of the buffers handed out
+    private final AtomicLong usedSize = new AtomicLong(0L);
+    // size of the pooled buffers
+    private final AtomicLong pooledSize = new AtomicLong(0L);
+    // buffer capacity --> pooled buffers
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> bufferPools =
+            new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+    // topic --> size of the buffers handed out to the topic
+    private final ConcurrentHashMap<String, AtomicLong> topicUsedSizes =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong allocCnt = new AtomicLong(0L);
+    private final AtomicLong poolHitCnt = new AtomicLong(0L);
+    private final AtomicLong rejectCnt = new AtomicLong(0L);
+
+
+    public MemCacheAllocator(final long maxTotalSize, final long maxPooledSize) {
+        this.maxTotalSize = maxTotalSize;
+        this.maxPooledSize = Math.max(0L, maxPooledSize);
+    }
+
+    /***
+     * Check whether buffers of the size can be handed out within the budget.
+     *
+     * @param size
+     * @return
+     */
+    public boolean isAvailable(final long size) {
+        return this.usedSize.get() + size <= this.maxTotalSize;
+    }
+
+    /***
+     * Allocate a buffer for a write cache of the topic, a pooled buffer of the capacity is reused.
+     *
+     * @param topic
+     * @param capacity
+     * @param isForced   allocate even if the budget is exceeded
+     * @return null if the budget is exceeded
+     */
+    public ByteBuffer allocate(final String topic, final int capacity, final boolean isForced) {
+        if (isForced) {
+            this.usedSize.addAndGet(capacity);
+        } else {
+            long curUsedSize;
+            do {
+                curUsedSize = this.usedSize.get();
+                if (curUsedSize + capacity > this.maxTotalSize) {
+                    this.rejectCnt.incrementAndGet();
+                    return null;
+                }
+            } while (!this.usedSize.compareAndSet(curUsedSize, curUsedSize + capacity));
+        }
+        this.allocCnt.incrementAndGet();
+        ByteBuffer buffer = null;
+        ConcurrentLinkedQueue<ByteBuffer> bufferPool = this.bufferPools.get(capacity);
+        if (bufferPool != null) {
+            buffer = bufferPool.poll();
+        }
+        if (buffer != null) {
+            this.pooledSize.addAndGet(-capacity);
+            this.poolHitCnt.incrementAndGet();
+            buffer.clear();
+        } else {
+            // free the pooled buffers beyond the budget before a new allocation
+            trimPool(this.maxTotalSize - this.usedSize.get());
+            try {
+                buffer = ByteBuffer.allocateDirect(capacity);
+            } catch (OutOfMemoryError e) {
+                this.usedSize.addAndGet(-capacity);
+                throw e;
+            }
+        }
+        getTopicUsedCounter(topic).addAndGet(capacity);
+        return buffer;
+    }
+
+    /***
+     * Return a buffer allocated for the topic, the buffer is pooled within the pool size and the budget.
+     *
+     * @param topic
+     * @param buffer
+     */
+    public void release(final String topic, final ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        this.usedSize.addAndGet(-capacity);
+        getTopicUsedCounter(topic).addAndGet(-capacity);
+        if (this.pooledSize.get() + capacity <= this.maxPooledSize
+                && this.usedSize.get() + this.pooledSize.get() + capacity <= this.maxTotalSize) {
+            ConcurrentLinkedQueue<ByteBuffer> bufferPool = this.bufferPools.get(capacity);
+            if (bufferPool == null) {
+                ConcurrentLinkedQueue<ByteBuffer> tmpPool = new ConcurrentLinkedQueue<ByteBuffer>();
+                bufferPool = this.bufferPools.putIfAbsent(capacity, tmpPool);
+                if (bufferPool == null) {
+                    bufferPool = tmpPool;
+                }
+            }
+            this.pooledSize.addAndGet(capacity);
+            bufferPool.offer(buffer);
+        } else {
+            freeBuffer(buffer);
+        }
+    }
+
+    public long getUsedSize() {
+        return this.usedSize.get();
+    }
+
+    public long getPooledSize() {
+        return this.pooledSize.get();
+    }
+
+    public long getTopicUsedSize(final String topic) {
+        AtomicLong topicUsedSize = this.topicUsedSizes.get(topic);
+        return topicUsedSize == null ? 0L : topicUsedSize.get();
+    }
+
+    /***
+     * Free all the pooled buffers.
+     */
+    public void close() {
+        trimPool(0L);
+    }
+
+    /***
+     * Get the budget and the usage of the topics.
+     *
+     * @return
+     */
+    public String getStatisInfo() {
+        int index = 0;
+        StringBuilder sBuilder = new StringBuilder(512)
+                .append("{\"maxTotalSize\":").append(this.maxTotalSize)
+                .append(",\"maxPooledSize\":").append(this.maxPooledSize)
+                .append(",\"usedSize\":").append(this.usedSize.get())
+                .append(",\"pooledSize\":").append(this.pooledSize.get())
+                .append(",\"allocCnt\":").append(this.allocCnt.get())
+                .append(",\"poolHitCnt\":").append(this.poolHitCnt.get())
+                .append(",\"rejectCnt\":").append(this.rejectCnt.get())
+                .append(",\"topics\":[");
+        for (Map.Entry<String, AtomicLong> entry : this.topicUsedSizes.entrySet()) {
+            if (entry.getValue().get() <= 0) {
+                continue;
+            }
+            if (index++ > 0) {
+                sBuilder.append(",");
+            }
+            sBuilder.append("{\"topicName\":\"").append(entry.getKey())
+                    .append("\",\"usedSize\":").append(entry.getValue().get()).append("}");
+        }
+        return sBuilder.append("]}").toString();
+    }
+
+    private AtomicLong getTopicUsedCounter(final String topic) {
+        AtomicLong topicUsedSize = this.topicUsedSizes.get(topic);
+        if (topicUsedSize == null) {
+            AtomicLong tmpUsedSize = new AtomicLong(0L);
+            topicUsedSize = this.topicUsedSizes.putIfAbsent(topic, tmpUsedSize);
+            if (topicUsedSize == null) {
+                topicUsedSize = tmpUsedSize;
+            }
+        }
+        return topicUsedSize;
+    }
+
+    private void trimPool(final long maxPooled) {
+        for (ConcurrentLinkedQueue<ByteBuffer> bufferPool : this.bufferPools.values()) {
+            while (this.pooledSize.get() > maxPooled) {
+                ByteBuffer buffer = bufferPool.poll();
+                if (buffer == null) {
+                    break;
+                }
+                this.pooledSize.addAndGet(-buffer.capacity());
+                freeBuffer(buffer);
+            }
+        }
+    }
+
+    private void freeBuffer(final ByteBuffer buffer) {
+        ((DirectBuffer) buffer).cleaner().clean();
+    }
+}
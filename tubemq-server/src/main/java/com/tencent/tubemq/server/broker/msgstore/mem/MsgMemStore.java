@@ -37,11 +37,13 @@ import sun.nio.ch.DirectBuffer;
 
 /***
  * Message's memory storage. It use direct memory store messages that received but not have been flushed to disk.
+ * The direct buffers are allocated when the cache is first written, and can be released when the cache is empty.
  */
 public class MsgMemStore implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(MsgMemStore.class);
     //　used for align
     private static final int MASK_64_ALIGN = ~(64 - 1);
+    private static final int INDEX_UNIT_LENGTH = 32;
     //　statistics of memory store
     private final AtomicInteger cacheDataSize = new AtomicInteger(0);
     private final AtomicInteger cacheDataOffset = new AtomicInteger(0);
@@ -57,20 +59,28 @@ public class MsgMemStore implements Closeable {
             new ConcurrentHashMap<Integer, Integer>(100);
     //　where messages in memory will sink to disk
     private long writeDataStartPos = -1;
-    private ByteBuffer cacheDataSegment;
+    private volatile ByteBuffer cacheDataSegment;
     private int maxDataCacheSize;
     private long writeIndexStartPos = -1;
-    private ByteBuffer cachedIndexSegment;
+    private volatile ByteBuffer cachedIndexSegment;
     private int maxIndexCacheSize;
     private int maxAllowedMsgCount;
-    private int indexUnitLength = 32;
+    private int indexUnitLength = INDEX_UNIT_LENGTH;
+    // broker-wide allocator of the buffers, null if allocated directly
+    private final MemCacheAllocator memCacheAllocator;
+    private final String topic;
 
     public MsgMemStore(int maxCacheSize, int maxMsgCount, final BrokerConfig tubeConfig) {
+        this(maxCacheSize, maxMsgCount, tubeConfig, null, null);
+    }
+
+    public MsgMemStore(int maxCacheSize, int maxMsgCount, final BrokerConfig tubeConfig,
+                       final MemCacheAllocator memCacheAllocator, final String topic) {
         this.maxDataCacheSize = maxCacheSize;
         this.maxAllowedMsgCount = maxMsgCount;
         this.maxIndexCacheSize = this.maxAllowedMsgCount * this.indexUnitLength;
-        this.cacheDataSegment = ByteBuffer.allocateDirect(this.maxDataCacheSize);
-        this.cachedIndexSegment = ByteBuffer.allocateDirect(this.maxIndexCacheSize);
+        this.memCacheAllocator = memCacheAllocator;
+        this.topic = topic;
     }
 
     public void resetStartPos(long writeDataStartPos, long writeIndexStartPos) {
@@ -89,6 +99,9 @@ public class MsgMemStore implements Closeable {
         boolean fullCount = false;
         this.writeLock.lock();
         try {
+            if (this.cacheDataSegment == null) {
+                allocBuffers();
+            }
             //　judge whether can write to memory or not.
             int dataOffset = this.cacheDataOffset.get();
             int indexOffset = this.cacheIndexOffset.get();
@@ -275,11 +288,13 @@ public class MsgMemStore implements Closeable {
      * @throws IOException
      */
     public boolean flush(MsgFileStore msgFileStore, final StringBuilder strBuffer) throws Throwable {
-        if (this.curMessageCount.get() == 0) {
+        final int msgCount = this.curMessageCount.get();
+        if (msgCount == 0) {
             return true;
         }
         int count = 0;
         int readPos = 0;
+        int validCount = 0;
         int cPartitionId = 0;
         int cKeyCode = 0;
         int cDataOffset = 0;
@@ -288,8 +303,12 @@ public class MsgMemStore implements Closeable {
         long cDataPos = 0;
         ByteBuffer tmpBuffer = this.cachedIndexSegment.asReadOnlyBuffer();
         final ByteBuffer tmpReadBuf = this.cacheDataSegment.asReadOnlyBuffer();
-        // flush one by one.
-        while (count++ < this.curMessageCount.get()) {
+        // the data records are sliced from the cache without the alignment padding,
+        // and the index records are built in file format, then flushed in bulk.
+        final ByteBuffer[] dataBufs = new ByteBuffer[msgCount];
+        final ByteBuffer indexBuffer =
+                ByteBuffer.allocate(msgCount * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        while (count++ < msgCount) {
             tmpBuffer.position(readPos);
             cPartitionId = tmpBuffer.getInt();
             cKeyCode = tmpBuffer.getInt();
@@ -310,13 +329,18 @@ public class MsgMemStore implements Closeable {
                 strBuffer.delete(0, strBuffer.length());
                 continue;
             }
-            byte[] tmpArray = new byte[cDataSize];
-            final ByteBuffer buffer = ByteBuffer.wrap(tmpArray);
+            tmpReadBuf.clear();
             tmpReadBuf.position(cDataOffset);
-            tmpReadBuf.get(tmpArray);
-            msgFileStore.appendMsg(cPartitionId, cKeyCode,
-                    cTimeRecv, cDataPos, cDataSize, buffer, strBuffer);
+            tmpReadBuf.limit(cDataOffset + cDataSize);
+            dataBufs[validCount++] = tmpReadBuf.slice();
+            indexBuffer.putInt(cPartitionId);
+            indexBuffer.putLong(cDataPos);
+            indexBuffer.putInt(cDataSize);
+            indexBuffer.putInt(cKeyCode);
+            indexBuffer.putLong(cTimeRecv);
         }
+        indexBuffer.flip();
+        msgFileStore.appendMsgs(dataBufs, validCount, indexBuffer, strBuffer);
         return true;
     }
 
@@ -340,6 +364,40 @@ public class MsgMemStore implements Closeable {
         return this.maxAllowedMsgCount;
     }
 
+    /***
+     * Get the memory of the buffers allocated now.
+     *
+     * @return
+     */
+    public long getAllocatedSize() {
+        return this.cacheDataSegment == null
+                ? 0L : getAllocSize(this.maxDataCacheSize, this.maxAllowedMsgCount);
+    }
+
+    /***
+     * Get the memory allocated by a cache of the capacity.
+     *
+     * @param maxCacheSize
+     * @param maxMsgCount
+     * @return
+     */
+    public static long getAllocSize(final int maxCacheSize, final int maxMsgCount) {
+        return (long) maxCacheSize + (long) maxMsgCount * INDEX_UNIT_LENGTH;
+    }
+
+    /***
+     * Check whether an entry of the length can not be appended to the cache.
+     *
+     * @param entryLength
+     * @return
+     */
+    public boolean isFull(final int entryLength) {
+        int alignedSize = (entryLength + 64 - 1) & MASK_64_ALIGN;
+        return (this.cacheDataOffset.get() + alignedSize > this.maxDataCacheSize)
+                || (this.cacheIndexOffset.get() + this.indexUnitLength > this.maxIndexCacheSize)
+                || (this.curMessageCount.get() + 1 > this.maxAllowedMsgCount);
+    }
+
     public int isOffsetInHold(long requestOffset) {
         if (requestOffset < this.writeIndexStartPos) {
             return -1;
@@ -369,11 +427,61 @@ public class MsgMemStore implements Closeable {
         this.keysMap.clear();
     }
 
+    /***
+     * Release the buffers of an empty cache, they are allocated again when the cache is written.
+     *
+     * @return false if the cache holds messages
+     */
+    public boolean releaseBuffers() {
+        this.writeLock.lock();
+        try {
+            if (this.curMessageCount.get() > 0) {
+                return false;
+            }
+            freeBuffers();
+        } finally {
+            this.writeLock.unlock();
+        }
+        return true;
+    }
+
     @Override
     public void close() {
-        this.clear();
-        ((DirectBuffer) this.cacheDataSegment).cleaner().clean();
-        ((DirectBuffer) this.cachedIndexSegment).cleaner().clean();
+        this.writeLock.lock();
+        try {
+            this.clear();
+            freeBuffers();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    private void allocBuffers() {
+        if (this.memCacheAllocator == null) {
+            this.cachedIndexSegment = ByteBuffer.allocateDirect(this.maxIndexCacheSize);
+            this.cacheDataSegment = ByteBuffer.allocateDirect(this.maxDataCacheSize);
+        } else {
+            // the budget is checked when a cache is added to the ring of a store
+            this.cachedIndexSegment =
+                    this.memCacheAllocator.allocate(this.topic, this.maxIndexCacheSize, true);
+            this.cacheDataSegment =
+                    this.memCacheAllocator.allocate(this.topic, this.maxDataCacheSize, true);
+        }
+    }
+
+    private void freeBuffers() {
+        if (this.cacheDataSegment == null) {
+            return;
+        }
+        if (this.memCacheAllocator == null) {
+            ((DirectBuffer) this.cacheDataSegment).cleaner().clean();
+            ((DirectBuffer) this.cachedIndexSegment).cleaner().clean();
+        } else {
+            this.memCacheAllocator.release(this.topic, this.cacheDataSegment);
+            this.memCacheAllocator.release(this.topic, this.cachedIndexSegment);
+        }
+        this.cacheDataSegment = null;
+        this.cachedIndexSegment = null;
     }
 
 }
@@ -17,11 +17,14 @@
 
 package com.tencent.tubemq.server.broker.msgstore.ssd;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.tencent.tubemq.corebase.TErrCodeConstants;
+import com.tencent.tubemq.corebase.utils.CheckSum;
 import com.tencent.tubemq.corebase.utils.ConcurrentHashSet;
 import com.tencent.tubemq.corebase.utils.TStringUtils;
 import com.tencent.tubemq.corebase.utils.ThreadUtils;
 import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.BrokerServiceServer;
 import com.tencent.tubemq.server.broker.exception.StartupException;
 import com.tencent.tubemq.server.broker.metadata.MetadataManage;
 import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
@@ -33,20 +36,22 @@ import com.tencent.tubemq.server.common.utils.FileUtil;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -62,16 +67,41 @@ public class MsgSSDStoreManager implements Closeable {
     private static final Logger logger = LoggerFactory.getLogger(MsgSSDStoreManager.class);
     // file suffix
     private static final String DATA_FILE_SUFFIX = ".tube";
+    // bytes handed to one transferTo call when copying to ssd
+    private static final long SSD_COPY_CHUNK_SIZE = 4 * 1024 * 1024;
+    // sampled blocks compared after copying to ssd
+    private static final int SSD_CHECK_BLOCK_CNT = 8;
+    private static final int SSD_CHECK_BLOCK_SIZE = 4096;
     // tube config
     private final BrokerConfig tubeConfig;
     private final String primStorePath;
     private final String secdStorePath;
     // ssd data directory
     private final File ssdBaseDataDir;
-    private final BlockingQueue<SSDSegEvent> reqSSDEvents
-            = new ArrayBlockingQueue<SSDSegEvent>(60);
+    // pending transfer requests, the request with the largest data lag first
+    private final PriorityBlockingQueue<SSDSegEvent> reqSSDEvents;
+    // partitions that have a transfer request in the queue
+    private final ConcurrentHashSet<String> queuedPartStrs = new ConcurrentHashSet<String>();
+    // source segments being copied, keyed by storeKey and segment start offset
+    private final ConcurrentHashMap<String, CountDownLatch> inTransferSegments =
+            new ConcurrentHashMap<String, CountDownLatch>();
+    // copy permits of each source disk
+    private final ConcurrentHashMap<String, Semaphore> diskTransferPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+    // copy throughput limiter, null if not limited
+    private final RateLimiter copyRateLimiter;
     private final ExecutorService statusCheckExecutor = Executors.newSingleThreadExecutor();
-    private final ExecutorService reqExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService reqExecutor;
+    // transfer statistics
+    private final AtomicLong transferReqCnt = new AtomicLong(0L);
+    private final AtomicLong transferMergedCnt = new AtomicLong(0L);
+    private final AtomicLong transferDroppedCnt = new AtomicLong(0L);
+    private final AtomicLong transferSuccCnt = new AtomicLong(0L);
+    private final AtomicLong transferFailCnt = new AtomicLong(0L);
+    private final AtomicLong transferBytes = new AtomicLong(0L);
+    private final AtomicLong transferTotalTimeMs = new AtomicLong(0L);
+    private final AtomicLong transferMaxTimeMs = new AtomicLong(0L);
+    private final AtomicInteger runningTransferCnt = new AtomicInteger(0);
     // total ssd files size
     private final AtomicLong totalSsdFileSize = new AtomicLong(0L);
     // total ssd file count
@@ -93,6 +123,21 @@ public class MsgSSDStoreManager implements Closeable {
                               final BrokerConfig tubeConfig) throws IOException {
         this.tubeConfig = tubeConfig;
         this.msgStoreMgr = msgStoreMgr;
+        this.reqSSDEvents = new PriorityBlockingQueue<SSDSegEvent>(
+                this.tubeConfig.getSsdTransferQueueSize());
+        this.copyRateLimiter = this.tubeConfig.getSsdTransferBytesPerSec() > 0
+                ? RateLimiter.create(this.tubeConfig.getSsdTransferBytesPerSec()) : null;
+        this.reqExecutor = Executors.newFixedThreadPool(
+                this.tubeConfig.getSsdTransferThreadCnt(), new ThreadFactory() {
+                    private final AtomicInteger threadCnt = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setName("SSD Transfer Thread-" + threadCnt.incrementAndGet());
+                        return t;
+                    }
+                });
         this.primStorePath = this.tubeConfig.getPrimaryPath();
         this.secdStorePath = TStringUtils.isBlank(this.tubeConfig.getSecondDataPath())
                 ? null : this.tubeConfig.getSecondDataPath();
@@ -132,7 +177,9 @@ public class MsgSSDStoreManager implements Closeable {
                 }
             });
 
-            this.reqExecutor.execute(new SsdStoreRunner());
+            for (int i = 0; i < tubeConfig.getSsdTransferThreadCnt(); i++) {
+                this.reqExecutor.execute(new SsdStoreRunner());
+            }
         } catch (final IOException e) {
             logger.error("[SSD Manager] load SSD data files failed", e);
             throw new StartupException("Initialize SSD data files failed", e);
@@ -146,27 +193,68 @@ public class MsgSSDStoreManager implements Closeable {
     }
 
     /***
-     * Request ssd transfer to disk.
+     * Request ssd transfer to disk. A partition keeps at most one request in the queue,
+     * the request is dropped if the queue is full.
      *
      * @param partStr
      * @param storeKey
      * @param startOffset
      * @param segCnt
+     * @param dataLag
      * @return
      */
     public boolean requestSsdTransfer(final String partStr, final String storeKey,
-                                      final long startOffset, final int segCnt) {
+                                      final long startOffset, final int segCnt,
+                                      final long dataLag) {
         if (this.isStart && !this.closed) {
+            this.transferReqCnt.incrementAndGet();
+            if (!this.queuedPartStrs.add(partStr)) {
+                this.transferMergedCnt.incrementAndGet();
+                return true;
+            }
+            if (this.reqSSDEvents.size() >= tubeConfig.getSsdTransferQueueSize()) {
+                this.queuedPartStrs.remove(partStr);
+                this.transferDroppedCnt.incrementAndGet();
+                return false;
+            }
             try {
-                this.reqSSDEvents.put(new SSDSegEvent(partStr, storeKey, startOffset, segCnt));
+                this.reqSSDEvents.offer(new SSDSegEvent(partStr,
+                        storeKey, startOffset, segCnt, dataLag));
                 return true;
             } catch (Throwable e1) {
+                this.queuedPartStrs.remove(partStr);
                 logger.warn("[SSD Store] request SSD Event failure : ", e1);
             }
         }
         return false;
     }
 
+    /***
+     * Get ssd transfer statistics info in json format.
+     *
+     * @return
+     */
+    public String getSsdTransferStatisInfo() {
+        final long succCnt = this.transferSuccCnt.get();
+        final long totalTimeMs = this.transferTotalTimeMs.get();
+        return new StringBuilder(512).append("{\"isSsdServiceInUse\":")
+                .append(isSsdServiceInUse()).append(",\"queueDepth\":")
+                .append(this.reqSSDEvents.size()).append(",\"queueCapacity\":")
+                .append(tubeConfig.getSsdTransferQueueSize()).append(",\"runningTransfers\":")
+                .append(this.runningTransferCnt.get()).append(",\"workerCnt\":")
+                .append(tubeConfig.getSsdTransferThreadCnt()).append(",\"requestCnt\":")
+                .append(this.transferReqCnt.get()).append(",\"mergedCnt\":")
+                .append(this.transferMergedCnt.get()).append(",\"droppedCnt\":")
+                .append(this.transferDroppedCnt.get()).append(",\"copySuccCnt\":")
+                .append(succCnt).append(",\"copyFailCnt\":")
+                .append(this.transferFailCnt.get()).append(",\"copyBytes\":")
+                .append(this.transferBytes.get()).append(",\"avgCopyTimeMs\":")
+                .append(succCnt == 0 ? 0 : totalTimeMs / succCnt).append(",\"maxCopyTimeMs\":")
+                .append(this.transferMaxTimeMs.get()).append(",\"totalSsdFileCnt\":")
+                .append(this.totalSsdFileCnt.get()).append(",\"totalSsdFileSize\":")
+                .append(this.totalSsdFileSize.get()).append("}").toString();
+    }
+
     /***
      * Get messages from ssd.
      *
@@ -189,9 +277,8 @@ public class MsgSSDStoreManager implements Closeable {
         final StringBuilder strBuffer = new StringBuilder(512);
         ConcurrentHashMap<Long, MsgSSDSegment> msgSSDSegmentMap =
                 ssdSegmentsMap.get(storeKey);
-        Map<String, ConsumerNodeInfo> consumerNodeInfoMap =
-                msgStoreMgr.getTubeBroker().getBrokerServiceServer().getConsumerRegisterMap();
-        ConsumerNodeInfo consumerNodeInfo = consumerNodeInfoMap.get(partStr);
+        ConsumerNodeInfo consumerNodeInfo =
+                msgStoreMgr.getTubeBroker().getBrokerServiceServer().getConsumerNodeInfo(partStr);
         if (consumerNodeInfo == null) {
             return new GetMessageResult(false, TErrCodeConstants.INTERNAL_SERVER_ERROR,
                     reqOffset, 0, "Consumer unregistered!");
@@ -318,15 +405,15 @@ public class MsgSSDStoreManager implements Closeable {
             return;
         }
         try {
-            Map<String, ConsumerNodeInfo> consumerNodeInfoMap =
-                    msgStoreMgr.getTubeBroker().getBrokerServiceServer().getConsumerRegisterMap();
+            BrokerServiceServer brokerServiceServer =
+                    msgStoreMgr.getTubeBroker().getBrokerServiceServer();
             ConcurrentHashMap<String, SSDVisitInfo> ssdVisitInfoMap =
                     msgSsdSegment.getVisitMap();
             if (ssdVisitInfoMap != null) {
                 List<String> rmvPartStrList = new ArrayList<String>();
                 for (String partStr : ssdVisitInfoMap.keySet()) {
                     ConsumerNodeInfo consumerNodeInfo =
-                            consumerNodeInfoMap.get(partStr);
+                            brokerServiceServer.getConsumerNodeInfo(partStr);
                     if (consumerNodeInfo == null) {
                         rmvPartStrList.add(partStr);
                         continue;
@@ -504,23 +591,47 @@ public class MsgSSDStoreManager implements Closeable {
         if (msgSsdSegment1 == null) {
             boolean isSuccess = false;
             FileInputStream fosfrom = null;
-            FileOutputStream fosto = null;
+            RandomAccessFile rafto = null;
             final File targetFile =
                     new File(toFileDir, DataStoreUtils.nameFromOffset(start, DATA_FILE_SUFFIX));
             try {
                 fosfrom = new FileInputStream(fromFile);
-                fosto = new FileOutputStream(targetFile);
-                byte[] bt = new byte[65536];
-                int c;
-                while ((c = fosfrom.read(bt)) > 0) {
-                    fosto.write(bt, 0, c);
+                // the copied file is read back for the checksum, so open it read-write
+                rafto = new RandomAccessFile(targetFile, "rw");
+                rafto.setLength(0L);
+                final FileChannel srcChannel = fosfrom.getChannel();
+                final FileChannel dstChannel = rafto.getChannel();
+                // copy the segment content known at request time, the source may still grow
+                final long copyLength = endOffset - startOffset;
+                long copiedSize = 0L;
+                while (copiedSize < copyLength) {
+                    long chunkSize = Math.min(SSD_COPY_CHUNK_SIZE, copyLength - copiedSize);
+                    if (copyRateLimiter != null) {
+                        copyRateLimiter.acquire((int) chunkSize);
+                    }
+                    long transferred =
+                            srcChannel.transferTo(copiedSize, chunkSize, dstChannel);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    copiedSize += transferred;
+                }
+                if (copiedSize != copyLength || dstChannel.size() != copyLength) {
+                    logger.warn(sb.append("[SSD Manager] copied SSD file length not equal source: sourceFile=")
+                            .append(fromFile.getAbsolutePath()).append(",expected=")
+                            .append(copyLength).append(",copied=").append(copiedSize)
+                            .append(",dstSize=").append(dstChannel.size()).toString());
+                    sb.delete(0, sb.length());
+                } else if (!isSampledChecksumEqual(srcChannel, dstChannel, copyLength)) {
+                    logger.warn(sb.append("[SSD Manager] copied SSD file checksum not equal source: sourceFile=")
+                            .append(fromFile.getAbsolutePath()).toString());
+                    sb.delete(0, sb.length());
+                } else {
+                    isSuccess = true;
+                    isNew = true;
                 }
-                isSuccess = true;
-                isNew = true;
-            } catch (FileNotFoundException e) {
-                logger.warn("[SSD Manager] copy File to SSD FileNotFoundException failure ", e);
-            } catch (IOException e) {
-                logger.warn("[SSD Manager] copy File to SSD IOException failure ", e);
+            } catch (Throwable e) {
+                logger.warn("[SSD Manager] copy File to SSD failure ", e);
             } finally {
                 if (fosfrom != null) {
                     try {
@@ -529,11 +640,11 @@ public class MsgSSDStoreManager implements Closeable {
                         logger.warn("[SSD Manager] Close FileInputStream failure! ", e2);
                     }
                 }
-                if (fosto != null) {
+                if (rafto != null) {
                     try {
-                        fosto.close();
+                        rafto.close();
                     } catch (Throwable e2) {
-                        logger.warn("[SSD Manager] Close FileOutputStream failure! ", e2);
+                        logger.warn("[SSD Manager] Close RandomAccessFile failure! ", e2);
                     }
                 }
             }
@@ -595,7 +706,7 @@ public class MsgSSDStoreManager implements Closeable {
 
     private void checkSegmentTransferStatus(final String topicName, final SSDSegEvent ssdSegEvent,
                                             final SSDSegFound ssdSegFound, final ConsumerNodeInfo consumerNodeInfo,
-                                            final StringBuilder strBuffer) {
+                                            final StringBuilder strBuffer) throws InterruptedException {
         consumerNodeInfo.setSSDProcing();
         ConcurrentHashMap<Long, MsgSSDSegment> msgSegmentMap =
                 ssdSegmentsMap.get(ssdSegEvent.storeKey);
@@ -633,9 +744,8 @@ public class MsgSSDStoreManager implements Closeable {
                 consumerNodeInfo.setSSDTransferFinished(false, -2, -2);
                 return;
             }
-            boolean result = copyFileToSSD(ssdSegEvent.storeKey, topicName,
-                    ssdSegEvent.partStr, ssdSegFound.sourceFile,
-                    ssdSegFound.startOffset, ssdSegFound.endOffset, strBuffer);
+            boolean result = transferSegment(ssdSegEvent.storeKey, topicName,
+                    ssdSegEvent.partStr, ssdSegFound, strBuffer);
             if (result) {
                 consumerNodeInfo.setSSDTransferFinished(true,
                         ssdSegFound.startOffset, ssdSegFound.endOffset);
@@ -646,6 +756,137 @@ public class MsgSSDStoreManager implements Closeable {
         }
     }
 
+    /***
+     * Compare the crc32 of sampled blocks of the source and the copied file.
+     * The first and the last block are always sampled.
+     *
+     * @param srcChannel
+     * @param dstChannel
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private boolean isSampledChecksumEqual(final FileChannel srcChannel,
+                                           final FileChannel dstChannel,
+                                           final long length) throws IOException {
+        if (length <= 0) {
+            return true;
+        }
+        final ByteBuffer srcBuffer = ByteBuffer.allocate(SSD_CHECK_BLOCK_SIZE);
+        final ByteBuffer dstBuffer = ByteBuffer.allocate(SSD_CHECK_BLOCK_SIZE);
+        final long lastBlockPos = Math.max(0L, length - SSD_CHECK_BLOCK_SIZE);
+        for (int i = 0; i < SSD_CHECK_BLOCK_CNT; i++) {
+            final long position = lastBlockPos * i / (SSD_CHECK_BLOCK_CNT - 1);
+            final int blockSize = (int) Math.min(SSD_CHECK_BLOCK_SIZE, length - position);
+            if (!readFully(srcChannel, srcBuffer, position, blockSize)
+                    || !readFully(dstChannel, dstBuffer, position, blockSize)) {
+                return false;
+            }
+            if (CheckSum.crc32(srcBuffer.array(), 0, blockSize)
+                    != CheckSum.crc32(dstBuffer.array(), 0, blockSize)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readFully(final FileChannel channel, final ByteBuffer buffer,
+                              final long position, final int size) throws IOException {
+        buffer.clear();
+        buffer.limit(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /***
+     * Copy a source segment to ssd. Requests for a segment already in copying wait
+     * for that copy instead of copying again, copies reading the same disk are limited.
+     *
+     * @param storeKey
+     * @param topicName
+     * @param partStr
+     * @param ssdSegFound
+     * @param strBuffer
+     * @return
+     * @throws InterruptedException
+     */
+    private boolean transferSegment(final String storeKey, final String topicName,
+                                    final String partStr, final SSDSegFound ssdSegFound,
+                                    final StringBuilder strBuffer) throws InterruptedException {
+        final String segKey = strBuffer.append(storeKey)
+                .append("-").append(ssdSegFound.startOffset).toString();
+        strBuffer.delete(0, strBuffer.length());
+        CountDownLatch copyLatch = new CountDownLatch(1);
+        CountDownLatch curLatch = inTransferSegments.putIfAbsent(segKey, copyLatch);
+        if (curLatch != null) {
+            transferMergedCnt.incrementAndGet();
+            curLatch.await();
+            ConcurrentHashMap<Long, MsgSSDSegment> msgSsdSegMap = ssdSegmentsMap.get(storeKey);
+            if (msgSsdSegMap == null || msgSsdSegMap.get(ssdSegFound.startOffset) == null) {
+                return false;
+            }
+            // the segment is copied by the other request, only bind it to this partition
+            return copyFileToSSD(storeKey, topicName, partStr,
+                    ssdSegFound.sourceFile, ssdSegFound.startOffset,
+                    ssdSegFound.endOffset, strBuffer);
+        }
+        Semaphore diskPermits = getDiskTransferPermits(ssdSegFound.sourceFile);
+        diskPermits.acquire();
+        runningTransferCnt.incrementAndGet();
+        final long startTime = System.currentTimeMillis();
+        boolean result = false;
+        try {
+            result = copyFileToSSD(storeKey, topicName, partStr,
+                    ssdSegFound.sourceFile, ssdSegFound.startOffset,
+                    ssdSegFound.endOffset, strBuffer);
+        } finally {
+            runningTransferCnt.decrementAndGet();
+            diskPermits.release();
+            inTransferSegments.remove(segKey);
+            copyLatch.countDown();
+        }
+        final long wastTime = System.currentTimeMillis() - startTime;
+        if (result) {
+            transferSuccCnt.incrementAndGet();
+            transferBytes.addAndGet(ssdSegFound.endOffset - ssdSegFound.startOffset);
+            transferTotalTimeMs.addAndGet(wastTime);
+            long curMaxTime = transferMaxTimeMs.get();
+            while (wastTime > curMaxTime
+                    && !transferMaxTimeMs.compareAndSet(curMaxTime, wastTime)) {
+                curMaxTime = transferMaxTimeMs.get();
+            }
+        } else {
+            transferFailCnt.incrementAndGet();
+        }
+        logger.info(strBuffer.append("[SSD Manager] transfer segment ").append(segKey)
+                .append(" finished, result=").append(result).append(", wast time ")
+                .append(wastTime).append("ms").toString());
+        strBuffer.delete(0, strBuffer.length());
+        return result;
+    }
+
+    private Semaphore getDiskTransferPermits(final File sourceFile) {
+        // data files are placed at {dataPath}/{storeKey}/{offset}.tube
+        File diskDir = sourceFile.getAbsoluteFile().getParentFile();
+        if (diskDir.getParentFile() != null) {
+            diskDir = diskDir.getParentFile();
+        }
+        final String diskKey = diskDir.getAbsolutePath();
+        Semaphore permits = diskTransferPermits.get(diskKey);
+        if (permits == null) {
+            Semaphore tmpPermits = new Semaphore(tubeConfig.getSsdTransferMaxPerDisk());
+            permits = diskTransferPermits.putIfAbsent(diskKey, tmpPermits);
+            if (permits == null) {
+                permits = tmpPermits;
+            }
+        }
+        return permits;
+    }
+
     private void loadSsdFile(final String storeKey, final String topicName,
                              final StringBuilder strBuffer) throws IOException {
         final File storeKeydataDir =
@@ -721,10 +962,10 @@ public class MsgSSDStoreManager implements Closeable {
                             ThreadUtils.sleep(1000);
                             continue;
                         }
-                        Map<String, ConsumerNodeInfo> consumerNodeInfoMap =
-                                msgStoreMgr.getTubeBroker().getBrokerServiceServer().getConsumerRegisterMap();
+                        queuedPartStrs.remove(ssdSegEvent.partStr);
                         ConsumerNodeInfo consumerNodeInfo =
-                                consumerNodeInfoMap.get(ssdSegEvent.partStr);
+                                msgStoreMgr.getTubeBroker().getBrokerServiceServer()
+                                        .getConsumerNodeInfo(ssdSegEvent.partStr);
                         if (consumerNodeInfo == null) {
                             continue;
                         }
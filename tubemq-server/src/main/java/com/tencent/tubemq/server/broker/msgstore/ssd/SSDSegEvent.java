@@ -18,21 +18,44 @@
 package com.tencent.tubemq.server.broker.msgstore.ssd;
 
 /***
- * Transfer files on disk to ssd event.
+ * Transfer files on disk to ssd event. Events are ordered by data lag,
+ * the partition which falls behind most is served first.
  */
-public class SSDSegEvent {
+public class SSDSegEvent implements Comparable<SSDSegEvent> {
     public final String storeKey;
     public final String partStr;
     public final long startOffset;
     public final int segCnt;
+    // data lag of the consumer in bytes when the request is made
+    public final long dataLag;
+    public final long createTime;
 
 
     public SSDSegEvent(final String partStr, final String storeKey,
                        final long startOffset, final int segCnt) {
+        this(partStr, storeKey, startOffset, segCnt, 0L);
+    }
+
+    public SSDSegEvent(final String partStr, final String storeKey,
+                       final long startOffset, final int segCnt,
+                       final long dataLag) {
         this.partStr = partStr;
         this.storeKey = storeKey;
         this.startOffset = startOffset;
         this.segCnt = segCnt;
+        this.dataLag = dataLag;
+        this.createTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public int compareTo(SSDSegEvent other) {
+        if (this.dataLag != other.dataLag) {
+            return this.dataLag > other.dataLag ? -1 : 1;
+        }
+        if (this.createTime != other.createTime) {
+            return this.createTime < other.createTime ? -1 : 1;
+        }
+        return 0;
     }
 
     @Override
@@ -40,7 +63,7 @@ public class SSDSegEvent {
         return new StringBuilder(512).append("{storeKey=").append(storeKey)
                 .append(",partStr=").append(partStr).append(",startOffset=")
                 .append(startOffset).append(",segCnt=").append(segCnt)
-                .append("}").toString();
+                .append(",dataLag=").append(dataLag).append("}").toString();
     }
 
 
@@ -0,0 +1,43 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.tiered;
+
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/***
+ * Object store holding the offloaded data files. Implementations are set by the
+ * tieredStoreClass of the broker configure and need a constructor without parameter.
+ * A key is a "/" separated path, an object is written once and not modified.
+ */
+public interface BlobStore {
+
+    void open(final BrokerConfig tubeConfig) throws IOException;
+
+    void put(final String key, final File srcFile) throws IOException;
+
+    void get(final String key, final File dstFile) throws IOException;
+
+    List<BlobInfo> list(final String prefix) throws IOException;
+
+    void delete(final String key) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,108 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.tiered;
+
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/***
+ * Blob store on a local or mounted file system under the tieredStorePath of the broker,
+ * an object is a file at the path of its key. It is used by the tests and by the
+ * deployments that mount a shared storage.
+ */
+public class LocalFileBlobStore implements BlobStore {
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+    private File baseDir;
+
+
+    public LocalFileBlobStore() {
+        //
+    }
+
+    @Override
+    public void open(final BrokerConfig tubeConfig) throws IOException {
+        this.baseDir = new File(tubeConfig.getTieredStorePath());
+        if (!this.baseDir.exists() && !this.baseDir.mkdirs()) {
+            throw new IOException(new StringBuilder(512)
+                    .append("Could not make tiered store directory ")
+                    .append(this.baseDir.getAbsolutePath()).toString());
+        }
+    }
+
+    @Override
+    public void put(final String key, final File srcFile) throws IOException {
+        copyFile(srcFile, new File(this.baseDir, key));
+    }
+
+    @Override
+    public void get(final String key, final File dstFile) throws IOException {
+        copyFile(new File(this.baseDir, key), dstFile);
+    }
+
+    @Override
+    public List<BlobInfo> list(final String prefix) throws IOException {
+        List<BlobInfo> blobInfos = new ArrayList<BlobInfo>();
+        int index = prefix.lastIndexOf('/');
+        File dir = index < 0 ? this.baseDir : new File(this.baseDir, prefix.substring(0, index));
+        String namePrefix = prefix.substring(index + 1);
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return blobInfos;
+        }
+        for (File file : files) {
+            if (file.isFile()
+                    && file.getName().startsWith(namePrefix)
+                    && !file.getName().endsWith(TMP_FILE_SUFFIX)) {
+                blobInfos.add(new BlobInfo(prefix.substring(0, index + 1)
+                        + file.getName(), file.length()));
+            }
+        }
+        return blobInfos;
+    }
+
+    @Override
+    public void delete(final String key) throws IOException {
+        File file = new File(this.baseDir, key);
+        if (!file.delete() && file.exists()) {
+            throw new IOException(new StringBuilder(512)
+                    .append("Could not delete tiered file ")
+                    .append(file.getAbsolutePath()).toString());
+        }
+    }
+
+    @Override
+    public void close() {
+        //
+    }
+
+    // copy to a temporary file first, so that a partly copied file is never seen by its name
+    private void copyFile(final File srcFile, final File dstFile) throws IOException {
+        File tmpFile = new File(dstFile.getPath() + TMP_FILE_SUFFIX);
+        FileUtils.copyFile(srcFile, tmpFile);
+        if (!tmpFile.renameTo(dstFile)) {
+            FileUtils.deleteQuietly(tmpFile);
+            throw new IOException(new StringBuilder(512)
+                    .append("Could not rename ").append(tmpFile.getAbsolutePath())
+                    .append(" to ").append(dstFile.getAbsolutePath()).toString());
+        }
+    }
+}
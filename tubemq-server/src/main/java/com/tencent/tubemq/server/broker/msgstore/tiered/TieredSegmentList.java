@@ -0,0 +1,191 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.tiered;
+
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/***
+ * Data files of a store offloaded to the blob store, ordered by start offset. The key of an
+ * offloaded file holds its start offset and last modified time, so the list is rebuilt from
+ * the blob store and the files expire by the time they were written as the local ones.
+ */
+public class TieredSegmentList {
+    private static final String KEY_TIME_SEP = "_";
+    private final String storeKey;
+    // start offset --> offloaded data file
+    private final ConcurrentSkipListMap<Long, RemoteSegment> remoteSegments =
+            new ConcurrentSkipListMap<Long, RemoteSegment>();
+
+
+    public TieredSegmentList(final String storeKey) {
+        this.storeKey = storeKey;
+    }
+
+    public static String getKeyPrefix(final String storeKey) {
+        return storeKey + "/";
+    }
+
+    public static String getBlobKey(final String storeKey,
+                                    final long start, final long lastModified) {
+        return new StringBuilder(128).append(getKeyPrefix(storeKey))
+                .append(DataStoreUtils.nameFromOffset(start, KEY_TIME_SEP))
+                .append(lastModified).append(DataStoreUtils.DATA_FILE_SUFFIX).toString();
+    }
+
+    /***
+     * Rebuild the list from the objects of the store, the objects of other names are ignored.
+     *
+     * @param blobInfos
+     */
+    public void load(final List<BlobInfo> blobInfos) {
+        for (BlobInfo blobInfo : blobInfos) {
+            String name = blobInfo.getKey().substring(getKeyPrefix(storeKey).length());
+            int index = name.indexOf(KEY_TIME_SEP);
+            if (index <= 0 || !name.endsWith(DataStoreUtils.DATA_FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                long start = Long.parseLong(name.substring(0, index));
+                long lastModified = Long.parseLong(name.substring(index + 1,
+                        name.length() - DataStoreUtils.DATA_FILE_SUFFIX.length()));
+                add(new RemoteSegment(blobInfo.getKey(), start, blobInfo.getSize(), lastModified));
+            } catch (NumberFormatException e) {
+                //
+            }
+        }
+    }
+
+    public void add(final RemoteSegment remoteSegment) {
+        remoteSegments.put(remoteSegment.getStart(), remoteSegment);
+    }
+
+    public boolean contains(final long start) {
+        return remoteSegments.containsKey(start);
+    }
+
+    /***
+     * Find the offloaded data file holding the offset.
+     *
+     * @param offset
+     * @return null if not offloaded
+     */
+    public RemoteSegment find(final long offset) {
+        Map.Entry<Long, RemoteSegment> entry = remoteSegments.floorEntry(offset);
+        if (entry == null
+                || offset >= entry.getValue().getStart() + entry.getValue().getSize()) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    /***
+     * Remove the files over the valid duration, from the oldest one.
+     *
+     * @param checkTimestamp
+     * @param fileValidTimeMs
+     * @return the removed files
+     */
+    public List<RemoteSegment> removeExpired(final long checkTimestamp, final long fileValidTimeMs) {
+        List<RemoteSegment> expiredSegments = new ArrayList<RemoteSegment>();
+        for (RemoteSegment remoteSegment : remoteSegments.values()) {
+            if (checkTimestamp - remoteSegment.getLastModified() <= fileValidTimeMs) {
+                break;
+            }
+            remoteSegments.remove(remoteSegment.getStart());
+            expiredSegments.add(remoteSegment);
+        }
+        return expiredSegments;
+    }
+
+    public List<RemoteSegment> removeAll() {
+        List<RemoteSegment> allSegments = new ArrayList<RemoteSegment>(remoteSegments.values());
+        remoteSegments.clear();
+        return allSegments;
+    }
+
+    /***
+     * Return the start offset of the oldest offloaded file.
+     *
+     * @return Long.MAX_VALUE if no file is offloaded
+     */
+    public long getMinOffset() {
+        Map.Entry<Long, RemoteSegment> entry = remoteSegments.firstEntry();
+        return entry == null ? Long.MAX_VALUE : entry.getKey();
+    }
+
+    /***
+     * Return the last modified time of the oldest offloaded file.
+     *
+     * @return Long.MAX_VALUE if no file is offloaded
+     */
+    public long getOldestFileTime() {
+        Map.Entry<Long, RemoteSegment> entry = remoteSegments.firstEntry();
+        return entry == null ? Long.MAX_VALUE : entry.getValue().getLastModified();
+    }
+
+    public int size() {
+        return remoteSegments.size();
+    }
+
+    public long getSizeInBytes() {
+        long totalSize = 0L;
+        for (RemoteSegment remoteSegment : remoteSegments.values()) {
+            totalSize += remoteSegment.getSize();
+        }
+        return totalSize;
+    }
+
+    public String getStoreKey() {
+        return storeKey;
+    }
+
+    public static class RemoteSegment {
+        private final String key;
+        private final long start;
+        private final long size;
+        private final long lastModified;
+
+        public RemoteSegment(final String key, final long start,
+                             final long size, final long lastModified) {
+            this.key = key;
+            this.start = start;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.tiered;
+
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.msgstore.disk.FileSegment;
+import com.tencent.tubemq.server.broker.msgstore.disk.RecordView;
+import com.tencent.tubemq.server.broker.msgstore.disk.Segment;
+import com.tencent.tubemq.server.broker.msgstore.disk.SegmentType;
+import com.tencent.tubemq.server.broker.msgstore.tiered.TieredSegmentList.RemoteSegment;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Broker-wide manager of the tiered store. It uploads the cold data files of the stores to the
+ * blob store, and fetches the offloaded files read by the consumers into a local cache
+ * directory, where the least recently read files are removed above the cache size.
+ */
+public class TieredStoreManager {
+    private static final Logger logger = LoggerFactory.getLogger(TieredStoreManager.class);
+    private static final String CACHE_DIR_NAME = ".tiered_cache";
+    private final BlobStore blobStore;
+    // directory of the fetched files
+    private final File cacheDir;
+    private final long cacheMaxSize;
+    // blob key --> fetched file, in read order
+    private final LinkedHashMap<String, Segment> cachedSegments =
+            new LinkedHashMap<String, Segment>(16, 0.75f, true);
+    // total size of the fetched files, guarded by cachedSegments
+    private long cachedSize = 0L;
+    // blob key --> fetch in flight
+    private final ConcurrentHashMap<String, FutureTask<Void>> fetchingSegments =
+            new ConcurrentHashMap<String, FutureTask<Void>>();
+    private final AtomicLong uploadCnt = new AtomicLong(0L);
+    private final AtomicLong uploadBytes = new AtomicLong(0L);
+    private final AtomicLong fetchCnt = new AtomicLong(0L);
+    private final AtomicLong fetchBytes = new AtomicLong(0L);
+    private final AtomicLong cacheHitCnt = new AtomicLong(0L);
+    private final AtomicLong localEvictCnt = new AtomicLong(0L);
+    private final AtomicLong localEvictBytes = new AtomicLong(0L);
+
+
+    public TieredStoreManager(final BrokerConfig tubeConfig) throws IOException {
+        this(tubeConfig, createBlobStore(tubeConfig.getTieredStoreClass()));
+    }
+
+    public TieredStoreManager(final BrokerConfig tubeConfig,
+                              final BlobStore blobStore) throws IOException {
+        this.blobStore = blobStore;
+        this.blobStore.open(tubeConfig);
+        this.cacheMaxSize = tubeConfig.getTieredCacheMaxBytes();
+        this.cacheDir = new File(tubeConfig.getPrimaryPath(), CACHE_DIR_NAME);
+        // the fetched files are not kept over restart
+        FileUtils.deleteQuietly(this.cacheDir);
+        if (!this.cacheDir.mkdirs()) {
+            throw new IOException(new StringBuilder(512)
+                    .append("Could not make tiered cache directory ")
+                    .append(this.cacheDir.getAbsolutePath()).toString());
+        }
+    }
+
+    /***
+     * Load the offloaded files of a store.
+     *
+     * @param storeKey
+     * @return
+     * @throws IOException
+     */
+    public TieredSegmentList loadSegmentList(final String storeKey) throws IOException {
+        TieredSegmentList tieredSegments = new TieredSegmentList(storeKey);
+        tieredSegments.load(blobStore.list(TieredSegmentList.getKeyPrefix(storeKey)));
+        return tieredSegments;
+    }
+
+    /***
+     * Upload an immutable data file of the store.
+     *
+     * @param tieredSegments
+     * @param segment
+     * @throws IOException
+     */
+    public void upload(final TieredSegmentList tieredSegments,
+                       final Segment segment) throws IOException {
+        final long lastModified = segment.getFile().lastModified();
+        final String key = TieredSegmentList.getBlobKey(tieredSegments.getStoreKey(),
+                segment.getStart(), lastModified);
+        blobStore.put(key, segment.getFile());
+        if (segment.isExpired() || segment.isClosed()) {
+            // deleted while uploaded, the copy may be partial
+            blobStore.delete(key);
+            return;
+        }
+        tieredSegments.add(new RemoteSegment(key,
+                segment.getStart(), segment.getCachedSize(), lastModified));
+        uploadCnt.incrementAndGet();
+        uploadBytes.addAndGet(segment.getCachedSize());
+    }
+
+    /***
+     * Get the read view of an offloaded file at the offset, the file is fetched if not cached.
+     *
+     * @param remoteSegment
+     * @param offset
+     * @param maxSize
+     * @return
+     * @throws IOException
+     */
+    public RecordView getRecordView(final RemoteSegment remoteSegment,
+                                    final long offset, final int maxSize) throws IOException {
+        boolean isFetched = false;
+        while (true) {
+            final RecordView recordView = getCachedRecordView(remoteSegment, offset, maxSize);
+            if (recordView != null) {
+                if (!isFetched) {
+                    cacheHitCnt.incrementAndGet();
+                }
+                return recordView;
+            }
+            isFetched = fetchSegment(remoteSegment);
+        }
+    }
+
+    /***
+     * Fetch an offloaded file into the cache, the concurrent reads of the file wait for
+     * the one fetch in flight instead of fetching it again.
+     *
+     * @param remoteSegment
+     * @return true if the file is fetched by the current thread
+     * @throws IOException
+     */
+    private boolean fetchSegment(final RemoteSegment remoteSegment) throws IOException {
+        final FutureTask<Void> fetchTask = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                loadSegment(remoteSegment);
+                return null;
+            }
+        });
+        FutureTask<Void> curTask = fetchingSegments.putIfAbsent(remoteSegment.getKey(), fetchTask);
+        if (curTask == null) {
+            curTask = fetchTask;
+            try {
+                fetchTask.run();
+            } finally {
+                fetchingSegments.remove(remoteSegment.getKey(), fetchTask);
+            }
+        }
+        try {
+            curTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(new StringBuilder(512)
+                    .append("Interrupted while fetching offloaded file ")
+                    .append(remoteSegment.getKey()).toString());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(new StringBuilder(512)
+                    .append("Failure to fetch offloaded file ")
+                    .append(remoteSegment.getKey()).toString(), e.getCause());
+        }
+        return curTask == fetchTask;
+    }
+
+    private void loadSegment(final RemoteSegment remoteSegment) throws IOException {
+        synchronized (cachedSegments) {
+            if (cachedSegments.containsKey(remoteSegment.getKey())) {
+                return;
+            }
+        }
+        final File cacheFile = new File(cacheDir, remoteSegment.getKey().replace('/', '_'));
+        blobStore.get(remoteSegment.getKey(), cacheFile);
+        fetchCnt.incrementAndGet();
+        fetchBytes.addAndGet(cacheFile.length());
+        final Segment segment = new FileSegment(remoteSegment.getStart(),
+                cacheFile, false, SegmentType.DATA);
+        List<Segment> evictedSegments = new ArrayList<Segment>();
+        synchronized (cachedSegments) {
+            cachedSegments.put(remoteSegment.getKey(), segment);
+            cachedSize += segment.getCachedSize();
+            Iterator<Map.Entry<String, Segment>> it = cachedSegments.entrySet().iterator();
+            while (cachedSize > cacheMaxSize && it.hasNext()) {
+                Segment oldSegment = it.next().getValue();
+                if (oldSegment == segment) {
+                    continue;
+                }
+                it.remove();
+                cachedSize -= oldSegment.getCachedSize();
+                evictedSegments.add(oldSegment);
+            }
+        }
+        for (Segment oldSegment : evictedSegments) {
+            releaseSegment(oldSegment);
+        }
+    }
+
+    /***
+     * Delete the offloaded files from the blob store and the cache.
+     *
+     * @param remoteSegments
+     */
+    public void deleteSegments(final List<RemoteSegment> remoteSegments) {
+        for (RemoteSegment remoteSegment : remoteSegments) {
+            Segment segment;
+            synchronized (cachedSegments) {
+                segment = cachedSegments.remove(remoteSegment.getKey());
+                if (segment != null) {
+                    cachedSize -= segment.getCachedSize();
+                }
+            }
+            if (segment != null) {
+                releaseSegment(segment);
+            }
+            try {
+                blobStore.delete(remoteSegment.getKey());
+            } catch (Throwable e) {
+                logger.error(new StringBuilder(512)
+                        .append("[Tiered Store] failure to delete offloaded file ")
+                        .append(remoteSegment.getKey()).toString(), e);
+            }
+        }
+    }
+
+    public String getStatisInfo() {
+        int cachedCnt;
+        long curCachedSize;
+        synchronized (cachedSegments) {
+            cachedCnt = cachedSegments.size();
+            curCachedSize = cachedSize;
+        }
+        return new StringBuilder(512)
+                .append("{\"blobStore\":\"").append(blobStore.getClass().getName())
+                .append("\",\"cacheMaxSize\":").append(cacheMaxSize)
+                .append(",\"cachedCnt\":").append(cachedCnt)
+                .append(",\"cachedSize\":").append(curCachedSize)
+                .append(",\"uploadCnt\":").append(uploadCnt.get())
+                .append(",\"uploadBytes\":").append(uploadBytes.get())
+                .append(",\"fetchCnt\":").append(fetchCnt.get())
+                .append(",\"fetchBytes\":").append(fetchBytes.get())
+                .append(",\"cacheHitCnt\":").append(cacheHitCnt.get())
+                .append(",\"localEvictCnt\":").append(localEvictCnt.get())
+                .append(",\"localEvictBytes\":").append(localEvictBytes.get())
+                .append("}").toString();
+    }
+
+    /***
+     * Count a local data file removed after it was offloaded.
+     *
+     * @param size
+     */
+    public void addEvictedFile(final long size) {
+        localEvictCnt.incrementAndGet();
+        localEvictBytes.addAndGet(size);
+    }
+
+    public void close() {
+        List<Segment> segments;
+        synchronized (cachedSegments) {
+            segments = new ArrayList<Segment>(cachedSegments.values());
+            cachedSegments.clear();
+            cachedSize = 0L;
+        }
+        for (Segment segment : segments) {
+            releaseSegment(segment);
+        }
+        blobStore.close();
+    }
+
+    private RecordView getCachedRecordView(final RemoteSegment remoteSegment,
+                                           final long offset, final int maxSize) {
+        synchronized (cachedSegments) {
+            Segment segment = cachedSegments.get(remoteSegment.getKey());
+            if (segment == null) {
+                return null;
+            }
+            return getViewRef(segment, offset, maxSize);
+        }
+    }
+
+    private RecordView getViewRef(final Segment segment, final long offset, final int maxSize) {
+        return segment.getViewRef(segment.getStart(),
+                offset - segment.getStart(), offset - segment.getStart() + maxSize);
+    }
+
+    // the file is removed at once, the readers holding it go on reading the opened file
+    private void releaseSegment(final Segment segment) {
+        try {
+            segment.close();
+        } catch (Throwable e) {
+            //
+        }
+        FileUtils.deleteQuietly(segment.getFile());
+    }
+
+    private static BlobStore createBlobStore(final String className) throws IOException {
+        try {
+            return (BlobStore) Class.forName(className).newInstance();
+        } catch (Throwable e) {
+            throw new IOException(new StringBuilder(512)
+                    .append("Could not create blob store ").append(className).toString(), e);
+        }
+    }
+}
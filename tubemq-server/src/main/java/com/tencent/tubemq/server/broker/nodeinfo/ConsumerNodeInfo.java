@@ -22,6 +22,7 @@ import com.tencent.tubemq.corebase.policies.FlowCtrlResult;
 import com.tencent.tubemq.corebase.policies.FlowCtrlRuleHandler;
 import com.tencent.tubemq.corebase.policies.SSDCtrlResult;
 import com.tencent.tubemq.server.broker.msgstore.MessageStoreManager;
+import com.tencent.tubemq.server.broker.msgstore.disk.SegmentCursor;
 import com.tencent.tubemq.server.common.TServerConstants;
 import java.util.HashSet;
 import java.util.Set;
@@ -77,6 +78,9 @@ public class ConsumerNodeInfo {
     private AtomicInteger qryPriorityId =
             new AtomicInteger(TBaseConstants.META_VALUE_UNDEFINED);
     private long createTime = System.currentTimeMillis();
+    // last index and data segments resolved for the partition's reads
+    private final SegmentCursor indexCursor = new SegmentCursor();
+    private final SegmentCursor dataCursor = new SegmentCursor();
 
 
     public ConsumerNodeInfo(final MessageStoreManager storeManager,
@@ -150,7 +154,7 @@ public class ConsumerNodeInfo {
                         if (curDataDlt >= curSsdDltLimit.dataStartDltInSize
                                 && currTime - this.lastOpTime > 20 * 1000) {
                             if (this.storeManager.putSsdTransferReq(partStr,
-                                    storeKey, lastDataRdOffset)) {
+                                    storeKey, lastDataRdOffset, curDataDlt)) {
                                 ssdProcStatus.set(0);
                             }
                             this.lastOpTime = System.currentTimeMillis();
@@ -161,7 +165,7 @@ public class ConsumerNodeInfo {
                         if (curDataDlt >= curSsdDltLimit.dataStartDltInSize
                                 && currTime - this.lastOpTime > 2 * 60 * 1000) {
                             if (this.storeManager.putSsdTransferReq(partStr,
-                                    storeKey, lastDataRdOffset)) {
+                                    storeKey, lastDataRdOffset, curDataDlt)) {
                                 ssdProcStatus.set(0);
                             }
                             this.lastOpTime = System.currentTimeMillis();
@@ -178,7 +182,7 @@ public class ConsumerNodeInfo {
                             if (curDataDlt >= curSsdDltLimit.dataEndDLtInSz) {
                                 resetSSDProcSeg(false);
                                 if (this.storeManager.putSsdTransferReq(partStr,
-                                        storeKey, lastDataRdOffset)) {
+                                        storeKey, lastDataRdOffset, curDataDlt)) {
                                     ssdProcStatus.set(0);
                                 }
                                 this.lastOpTime = System.currentTimeMillis();
@@ -192,7 +196,7 @@ public class ConsumerNodeInfo {
                         if (curDataDlt >= curSsdDltLimit.dataEndDLtInSz
                                 && currTime - this.lastOpTime > 20 * 1000) {
                             if (this.storeManager.putSsdTransferReq(partStr,
-                                    storeKey, lastDataRdOffset)) {
+                                    storeKey, lastDataRdOffset, curDataDlt)) {
                                 ssdProcStatus.set(0);
                             }
                             this.lastOpTime = System.currentTimeMillis();
@@ -397,6 +401,14 @@ public class ConsumerNodeInfo {
         return this.rmtAddrInfo;
     }
 
+    public SegmentCursor getIndexCursor() {
+        return indexCursor;
+    }
+
+    public SegmentCursor getDataCursor() {
+        return dataCursor;
+    }
+
     /***
      * Recalculate message limit value.
      *
@@ -0,0 +1,530 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.nodeinfo;
+
+import com.tencent.tubemq.corebase.TokenConstants;
+import com.tencent.tubemq.server.common.heartbeat.TimerWheel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Consumer partition registrations of the broker. The (group, topic) pairs are interned to
+ * numeric ids, a registration is keyed by the id and the partition id in a lock striped
+ * open addressing table, so a lookup on the fetch path does not build strings or box keys.
+ * An id is released when the last registration of its pair is removed.
+ * The heartbeat deadlines are kept in a timing wheel, a heartbeat only extends the deadline,
+ * and the expiry work is proportional to the registrations reaching their deadline.
+ */
+public class ConsumerRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerRegistry.class);
+    private static final int DEFAULT_SHARD_CNT = 64;
+    private static final long DEFAULT_TICK_MS = 100L;
+    private static final int DEFAULT_WHEEL_SIZE = 1024;
+    // group name -> topic name -> interned id
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, GroupTopicId>> groupTopicIds =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, GroupTopicId>>();
+    private final AtomicInteger maxGroupTopicId = new AtomicInteger(0);
+    // guards the reference counts of the interned ids
+    private final Object groupTopicSync = new Object();
+    private final Shard[] shards;
+    private final int shardMask;
+    private final TimerWheel<Registration> timerWheel;
+    // heartbeat timeout of a registration
+    private final long timeoutMs;
+    private final ExpireListener listener;
+    private Thread expireThread;
+    private volatile boolean isStopped = false;
+
+
+    public ConsumerRegistry(final long timeoutMs, final ExpireListener listener) {
+        this(timeoutMs, listener, DEFAULT_SHARD_CNT, DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+    }
+
+    public ConsumerRegistry(final long timeoutMs, final ExpireListener listener,
+                            final int shardCnt, final long tickMs, final int wheelSize) {
+        this.timeoutMs = timeoutMs;
+        this.listener = listener;
+        int tmpShardCnt = 1;
+        while (tmpShardCnt < shardCnt) {
+            tmpShardCnt <<= 1;
+        }
+        this.shards = new Shard[tmpShardCnt];
+        for (int i = 0; i < tmpShardCnt; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.shardMask = tmpShardCnt - 1;
+        this.timerWheel = new TimerWheel<Registration>(tickMs, wheelSize, System.currentTimeMillis());
+    }
+
+    /***
+     * Start the expire thread.
+     */
+    public void start() {
+        expireThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!isStopped) {
+                    try {
+                        expire(System.currentTimeMillis());
+                        Thread.sleep(timerWheel.getTickMs());
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Throwable t) {
+                        logger.error("Consumer registration expire error!", t);
+                    }
+                }
+            }
+        }, "Consumer_Registry_Expire");
+        expireThread.setDaemon(true);
+        expireThread.start();
+    }
+
+    public void stop() {
+        isStopped = true;
+        if (expireThread != null) {
+            expireThread.interrupt();
+        }
+    }
+
+    /***
+     * Get the registration of the partition.
+     *
+     * @param groupName
+     * @param topicName
+     * @param partitionId
+     * @return null if the partition is not registered
+     */
+    public Registration getRegistration(final String groupName,
+                                        final String topicName,
+                                        final int partitionId) {
+        final ConcurrentHashMap<String, GroupTopicId> topicIds = groupTopicIds.get(groupName);
+        if (topicIds == null) {
+            return null;
+        }
+        final GroupTopicId groupTopicId = topicIds.get(topicName);
+        if (groupTopicId == null) {
+            return null;
+        }
+        final long partKey = toPartKey(groupTopicId.id, partitionId);
+        return getShard(partKey).get(partKey);
+    }
+
+    /***
+     * Get the registration of the partition by its group:topic:partitionId string.
+     *
+     * @param partStr
+     * @return null if the partition is not registered
+     */
+    public Registration getRegistration(final String partStr) {
+        if (partStr == null) {
+            return null;
+        }
+        final int topicPos = partStr.indexOf(TokenConstants.ATTR_SEP);
+        final int partPos = partStr.lastIndexOf(TokenConstants.ATTR_SEP);
+        if (topicPos <= 0 || partPos <= topicPos) {
+            return null;
+        }
+        try {
+            return getRegistration(partStr.substring(0, topicPos),
+                    partStr.substring(topicPos + 1, partPos),
+                    Integer.parseInt(partStr.substring(partPos + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public ConsumerNodeInfo getConsumerNodeInfo(final String partStr) {
+        final Registration registration = getRegistration(partStr);
+        return registration == null ? null : registration.getNodeInfo();
+    }
+
+    /***
+     * Register a consumer to the partition, the previous registration is replaced.
+     *
+     * @param groupName
+     * @param topicName
+     * @param partitionId
+     * @param consumerId
+     * @param nodeInfo
+     * @return the new registration
+     */
+    public Registration register(final String groupName, final String topicName,
+                                 final int partitionId, final String consumerId,
+                                 final ConsumerNodeInfo nodeInfo) {
+        final GroupTopicId groupTopicId = acquireGroupTopicId(groupName, topicName);
+        final long partKey = toPartKey(groupTopicId.id, partitionId);
+        final long currentTime = System.currentTimeMillis();
+        final Registration registration =
+                new Registration(partKey, consumerId, nodeInfo, currentTime);
+        registration.groupTopicId = groupTopicId;
+        final Registration oldRegistration = getShard(partKey).put(partKey, registration);
+        if (oldRegistration != null) {
+            timerWheel.cancel(oldRegistration);
+            // the replaced registration held a reference of the same id
+            releaseGroupTopicId(groupTopicId);
+        }
+        timerWheel.schedule(registration, currentTime + timeoutMs);
+        return registration;
+    }
+
+    /***
+     * Remove the registration if it is still the registration of its partition.
+     *
+     * @param registration
+     * @return true if removed
+     */
+    public boolean unregister(final Registration registration) {
+        if (registration == null
+                || !getShard(registration.partKey).remove(registration.partKey, registration)) {
+            return false;
+        }
+        timerWheel.cancel(registration);
+        releaseGroupTopicId(registration.groupTopicId);
+        return true;
+    }
+
+    /***
+     * Remove the registration if it is still registered and its heartbeat deadline is passed.
+     *
+     * @param registration
+     * @return true if removed
+     */
+    public boolean unregisterExpired(final Registration registration) {
+        if (registration == null
+                || registration.getDeadline() > System.currentTimeMillis()) {
+            return false;
+        }
+        return unregister(registration);
+    }
+
+    /***
+     * Extend the heartbeat deadline of the registration.
+     *
+     * @param registration
+     * @return false if the registration has been removed
+     */
+    public boolean heartbeat(final Registration registration) {
+        if (registration.removed) {
+            return false;
+        }
+        final long currentTime = System.currentTimeMillis();
+        registration.lastHeartbeatTime = currentTime;
+        registration.extendDeadline(currentTime + timeoutMs);
+        return !registration.removed;
+    }
+
+    /***
+     * Get a snapshot of the registered consumers, keyed by group:topic:partitionId string.
+     *
+     * @return
+     */
+    public Map<String, ConsumerNodeInfo> getConsumerNodeInfoMap() {
+        final Map<String, ConsumerNodeInfo> result = new HashMap<String, ConsumerNodeInfo>();
+        final List<Registration> registrations = new ArrayList<Registration>();
+        for (Shard shard : shards) {
+            registrations.clear();
+            shard.getAll(registrations);
+            for (Registration registration : registrations) {
+                result.put(registration.getNodeInfo().getPartStr(), registration.getNodeInfo());
+            }
+        }
+        return result;
+    }
+
+    public int getRegistrationCnt() {
+        int count = 0;
+        for (Shard shard : shards) {
+            count += shard.size();
+        }
+        return count;
+    }
+
+    public int getGroupTopicCnt() {
+        int count = 0;
+        for (ConcurrentHashMap<String, GroupTopicId> topicIds : groupTopicIds.values()) {
+            count += topicIds.size();
+        }
+        return count;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /***
+     * Notify the registrations whose heartbeat deadline is passed, the listener is expected
+     * to remove them through unregisterExpired(), the ones still registered afterwards are
+     * scheduled again.
+     *
+     * @param currentTime
+     */
+    public void expire(final long currentTime) {
+        final List<Registration> expired = new ArrayList<Registration>();
+        timerWheel.expire(currentTime, expired);
+        for (Registration registration : expired) {
+            if (registration.removed) {
+                continue;
+            }
+            try {
+                listener.onExpired(registration);
+            } catch (Throwable t) {
+                logger.warn("Consumer registration expire listener error!", t);
+            }
+            if (!registration.removed && !timerWheel.isScheduled(registration)) {
+                timerWheel.schedule(registration,
+                        Math.max(registration.getDeadline(), currentTime + timerWheel.getTickMs()));
+            }
+        }
+    }
+
+    /***
+     * Get the interned id of the (group, topic) pair and add a reference to it.
+     *
+     * @param groupName
+     * @param topicName
+     * @return the interned id
+     */
+    private GroupTopicId acquireGroupTopicId(final String groupName, final String topicName) {
+        synchronized (groupTopicSync) {
+            ConcurrentHashMap<String, GroupTopicId> topicIds = groupTopicIds.get(groupName);
+            if (topicIds == null) {
+                topicIds = new ConcurrentHashMap<String, GroupTopicId>();
+                groupTopicIds.put(groupName, topicIds);
+            }
+            GroupTopicId groupTopicId = topicIds.get(topicName);
+            if (groupTopicId == null) {
+                groupTopicId = new GroupTopicId(groupName, topicName,
+                        maxGroupTopicId.incrementAndGet());
+                topicIds.put(topicName, groupTopicId);
+            }
+            groupTopicId.refCnt++;
+            return groupTopicId;
+        }
+    }
+
+    /***
+     * Remove a reference of the interned id, the id is released with its last reference.
+     *
+     * @param groupTopicId
+     */
+    private void releaseGroupTopicId(final GroupTopicId groupTopicId) {
+        if (groupTopicId == null) {
+            return;
+        }
+        synchronized (groupTopicSync) {
+            if (--groupTopicId.refCnt > 0) {
+                return;
+            }
+            final ConcurrentHashMap<String, GroupTopicId> topicIds =
+                    groupTopicIds.get(groupTopicId.groupName);
+            if (topicIds == null) {
+                return;
+            }
+            topicIds.remove(groupTopicId.topicName, groupTopicId);
+            if (topicIds.isEmpty()) {
+                groupTopicIds.remove(groupTopicId.groupName, topicIds);
+            }
+        }
+    }
+
+    private static long toPartKey(final int groupTopicId, final int partitionId) {
+        return ((long) groupTopicId << 32) | (partitionId & 0xFFFFFFFFL);
+    }
+
+    private Shard getShard(final long partKey) {
+        // the low hash bits index the slots inside a shard
+        return shards[(mix(partKey) >>> 16) & shardMask];
+    }
+
+    private static int mix(final long partKey) {
+        final long hash = partKey * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /***
+     * Consumer registration of a partition.
+     */
+    public static class Registration extends TimerWheel.Timeout {
+        private final long partKey;
+        private final String consumerId;
+        private final ConsumerNodeInfo nodeInfo;
+        private volatile long lastHeartbeatTime;
+        private volatile boolean removed = false;
+        // interned id of the group and topic, referenced while registered
+        private GroupTopicId groupTopicId;
+
+        public Registration(final long partKey, final String consumerId,
+                            final ConsumerNodeInfo nodeInfo, final long registerTime) {
+            this.partKey = partKey;
+            this.consumerId = consumerId;
+            this.nodeInfo = nodeInfo;
+            this.lastHeartbeatTime = registerTime;
+        }
+
+        public String getConsumerId() {
+            return consumerId;
+        }
+
+        public ConsumerNodeInfo getNodeInfo() {
+            return nodeInfo;
+        }
+
+        public long getLastHeartbeatTime() {
+            return lastHeartbeatTime;
+        }
+
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+
+    /***
+     * Interned id of a (group, topic) pair, counting the registrations of the pair.
+     */
+    private static class GroupTopicId {
+        private final String groupName;
+        private final String topicName;
+        private final int id;
+        private int refCnt = 0;
+
+        public GroupTopicId(final String groupName, final String topicName, final int id) {
+            this.groupName = groupName;
+            this.topicName = topicName;
+            this.id = id;
+        }
+    }
+
+    public interface ExpireListener {
+        void onExpired(Registration registration) throws Exception;
+    }
+
+    /***
+     * Open addressing table of a stripe, the part key 0 marks an empty slot since the
+     * interned ids start from 1.
+     */
+    private static class Shard {
+        private long[] keys = new long[16];
+        private Registration[] values = new Registration[16];
+        private int size = 0;
+
+        public synchronized Registration get(final long partKey) {
+            final int mask = keys.length - 1;
+            int index = mix(partKey) & mask;
+            while (keys[index] != 0L) {
+                if (keys[index] == partKey) {
+                    return values[index];
+                }
+                index = (index + 1) & mask;
+            }
+            return null;
+        }
+
+        public synchronized Registration put(final long partKey, final Registration value) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            final int mask = keys.length - 1;
+            int index = mix(partKey) & mask;
+            while (keys[index] != 0L) {
+                if (keys[index] == partKey) {
+                    final Registration oldValue = values[index];
+                    values[index] = value;
+                    oldValue.removed = true;
+                    return oldValue;
+                }
+                index = (index + 1) & mask;
+            }
+            keys[index] = partKey;
+            values[index] = value;
+            size++;
+            return null;
+        }
+
+        public synchronized boolean remove(final long partKey, final Registration value) {
+            final int mask = keys.length - 1;
+            int index = mix(partKey) & mask;
+            while (keys[index] != 0L) {
+                if (keys[index] == partKey) {
+                    if (values[index] != value) {
+                        return false;
+                    }
+                    value.removed = true;
+                    deleteSlot(index);
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+            return false;
+        }
+
+        public synchronized void getAll(final List<Registration> result) {
+            for (Registration value : values) {
+                if (value != null) {
+                    result.add(value);
+                }
+            }
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        private void deleteSlot(int index) {
+            // shift back the following entries of the probe run
+            final int mask = keys.length - 1;
+            int next = (index + 1) & mask;
+            while (keys[next] != 0L) {
+                final int home = mix(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - index) & mask)) {
+                    keys[index] = keys[next];
+                    values[index] = values[next];
+                    index = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[index] = 0L;
+            values[index] = null;
+            size--;
+        }
+
+        private void resize(final int capacity) {
+            final long[] oldKeys = keys;
+            final Registration[] oldValues = values;
+            keys = new long[capacity];
+            values = new Registration[capacity];
+            final int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0L) {
+                    continue;
+                }
+                int index = mix(oldKeys[i]) & mask;
+                while (keys[index] != 0L) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+}
@@ -21,11 +21,19 @@ import com.tencent.tubemq.corebase.TBaseConstants;
 import com.tencent.tubemq.corebase.daemon.AbstractDaemonService;
 import com.tencent.tubemq.corebase.utils.TStringUtils;
 import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.exception.StartupException;
+import com.tencent.tubemq.server.broker.metadata.MetadataManage;
+import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
 import com.tencent.tubemq.server.broker.msgstore.MessageStore;
 import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import com.tencent.tubemq.server.common.offsetstorage.FileOffsetStorage;
 import com.tencent.tubemq.server.common.offsetstorage.OffsetStorage;
 import com.tencent.tubemq.server.common.offsetstorage.OffsetStorageInfo;
 import com.tencent.tubemq.server.common.offsetstorage.ZkOffsetStorage;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
@@ -38,7 +46,9 @@ import org.slf4j.LoggerFactory;
 public class DefaultOffsetManager extends AbstractDaemonService implements OffsetService {
     private static final Logger logger = LoggerFactory.getLogger(DefaultOffsetManager.class);
     private final BrokerConfig brokerConfig;
-    private final OffsetStorage zkOffsetStorage;
+    // topic metadata of the broker, the follower topics store their offsets as the leader's
+    private final MetadataManage metadataManage;
+    private final OffsetStorage offsetStorage;
     private final ConcurrentHashMap<String/* group */,
             ConcurrentHashMap<String/* topic - partitionId*/, OffsetStorageInfo>> cfmOffsetMap =
             new ConcurrentHashMap<String, ConcurrentHashMap<String/* topic */, OffsetStorageInfo>>();
@@ -46,14 +56,41 @@ public class DefaultOffsetManager extends AbstractDaemonService implements Offse
             ConcurrentHashMap<String/* topic - partitionId*/, Long>> tmpOffsetMap =
             new ConcurrentHashMap<String, ConcurrentHashMap<String, Long>>();
 
-    public DefaultOffsetManager(final BrokerConfig brokerConfig) {
+    public DefaultOffsetManager(final BrokerConfig brokerConfig,
+                                final MetadataManage metadataManage) {
         super("[Offset Manager]", brokerConfig.getZkConfig().getZkCommitPeriodMs());
         this.brokerConfig = brokerConfig;
-        zkOffsetStorage = new ZkOffsetStorage(brokerConfig.getZkConfig());
+        this.metadataManage = metadataManage;
+        offsetStorage = createOffsetStorage(brokerConfig);
         super.start();
     }
 
 
+    /***
+     * Create the offset storage selected by broker config.
+     *
+     * @param brokerConfig
+     * @return the offset storage
+     */
+    private static OffsetStorage createOffsetStorage(final BrokerConfig brokerConfig) {
+        if (!brokerConfig.isFileOffsetStorage()) {
+            return new ZkOffsetStorage(brokerConfig.getZkConfig());
+        }
+        OffsetStorage migrateStorage = null;
+        if (brokerConfig.isOffsetMigrateFromZk()) {
+            migrateStorage = new ZkOffsetStorage(brokerConfig.getZkConfig());
+        }
+        try {
+            return new FileOffsetStorage(brokerConfig.getOffsetStoragePath(),
+                    brokerConfig.getOffsetLogCompactSize(), migrateStorage);
+        } catch (IOException e) {
+            if (migrateStorage != null) {
+                migrateStorage.close();
+            }
+            throw new StartupException("[Offset Manager] Load file offset storage failure", e);
+        }
+    }
+
     @Override
     protected void loopProcess(long intervalMs) {
         while (!super.isStopped()) {
@@ -78,7 +115,7 @@ public class DefaultOffsetManager extends AbstractDaemonService implements Offse
         this.commitTmpOffsets();
         logger.info("[Offset Manager] begin reserve final Offset.....");
         this.commitCfmOffsets(true);
-        this.zkOffsetStorage.close();
+        this.offsetStorage.close();
         logger.info("[Offset Manager] Offset Manager service stopped!");
     }
 
@@ -390,14 +427,43 @@ public class DefaultOffsetManager extends AbstractDaemonService implements Offse
         }
     }
 
+    /***
+     * Store the offset of a partition and drop it from the cache, so the next register of the
+     * partition on this broker or on another broker sharing the offset loads the stored offset.
+     *
+     * @param group
+     * @param topic
+     * @param partitionId
+     */
+    @Override
+    public void releaseOffset(final String group, final String topic, int partitionId) {
+        ConcurrentHashMap<String, OffsetStorageInfo> regInfoMap = cfmOffsetMap.get(group);
+        if (regInfoMap == null) {
+            return;
+        }
+        OffsetStorageInfo regInfo =
+                regInfoMap.remove(getOffsetCacheKey(topic, partitionId));
+        if (regInfo != null) {
+            offsetStorage.commitOffset(group,
+                    Collections.singletonList(regInfo), true);
+            // keep the offset failed to store, the commit cycle writes it again
+            if (regInfo.isModified()) {
+                regInfoMap.putIfAbsent(getOffsetCacheKey(topic, partitionId), regInfo);
+            }
+        }
+    }
+
     private void commitCfmOffsets(boolean retryable) {
+        Map<String, Collection<OffsetStorageInfo>> groupOffsetMap =
+                new HashMap<String, Collection<OffsetStorageInfo>>();
         for (Map.Entry<String, ConcurrentHashMap<String, OffsetStorageInfo>> entry : cfmOffsetMap.entrySet()) {
             if (TStringUtils.isBlank(entry.getKey())
                     || entry.getValue() == null || entry.getValue().isEmpty()) {
                 continue;
             }
-            zkOffsetStorage.commitOffset(entry.getKey(), entry.getValue().values(), retryable);
+            groupOffsetMap.put(entry.getKey(), entry.getValue().values());
         }
+        offsetStorage.commitOffset(groupOffsetMap, retryable);
     }
 
     /***
@@ -424,11 +490,12 @@ public class DefaultOffsetManager extends AbstractDaemonService implements Offse
         }
         OffsetStorageInfo regInfo = regInfoMap.get(offsetCacheKey);
         if (regInfo == null) {
+            final int storeBrokerId = getStoreBrokerId(topic);
             OffsetStorageInfo tmpRegInfo =
-                    zkOffsetStorage.loadOffset(group, topic, brokerConfig.getBrokerId(), partitionId);
+                    offsetStorage.loadOffset(group, topic, storeBrokerId, partitionId);
             if (tmpRegInfo == null) {
                 tmpRegInfo =
-                        new OffsetStorageInfo(topic, brokerConfig.getBrokerId(), partitionId, defOffset, 0);
+                        new OffsetStorageInfo(topic, storeBrokerId, partitionId, defOffset, 0);
             }
             regInfo = regInfoMap.putIfAbsent(offsetCacheKey, tmpRegInfo);
             if (regInfo == null) {
@@ -438,6 +505,23 @@ public class DefaultOffsetManager extends AbstractDaemonService implements Offse
         return regInfo;
     }
 
+    /***
+     * Get the broker id the offsets of the topic are stored under. A follower topic has the
+     * offsets of its leader, the consumers read the same offsets from either broker.
+     *
+     * @param topic
+     * @return
+     */
+    private int getStoreBrokerId(final String topic) {
+        if (metadataManage != null) {
+            TopicMetadata topicMetadata = metadataManage.getTopicMetadata(topic);
+            if (topicMetadata != null && topicMetadata.isReplica()) {
+                return topicMetadata.getReplicaLeaderId();
+            }
+        }
+        return brokerConfig.getBrokerId();
+    }
+
     private String getOffsetCacheKey(String topic, int partitionId) {
         return new StringBuilder(256).append(topic)
                 .append("-").append(partitionId).toString();
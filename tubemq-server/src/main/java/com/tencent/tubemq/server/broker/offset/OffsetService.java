@@ -51,4 +51,6 @@ public interface OffsetService {
 
     long getTmpOffset(final String group, final String topic, int partitionId);
 
+    void releaseOffset(final String group, final String topic, int partitionId);
+
 }
@@ -0,0 +1,237 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.replica;
+
+import com.tencent.tubemq.corebase.TBaseConstants;
+import com.tencent.tubemq.corebase.TErrCodeConstants;
+import com.tencent.tubemq.corebase.cluster.BrokerInfo;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.ReplicaFetchRequestB2B;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.ReplicaFetchResponseB2B;
+import com.tencent.tubemq.corebase.utils.CheckSum;
+import com.tencent.tubemq.corebase.utils.ConcurrentHashSet;
+import com.tencent.tubemq.corerpc.RpcConfig;
+import com.tencent.tubemq.corerpc.RpcConstants;
+import com.tencent.tubemq.corerpc.RpcServiceFactory;
+import com.tencent.tubemq.corerpc.service.BrokerReplicaService;
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.metadata.MetadataManage;
+import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
+import com.tencent.tubemq.server.broker.msgstore.MessageStore;
+import com.tencent.tubemq.server.broker.msgstore.MessageStoreManager;
+import com.tencent.tubemq.server.broker.msgstore.disk.ReplicaBlock;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Follower side of the asynchronous replication. The stores of the topics configured with a
+ * replica leader are pulled from the leader broker's files periodically, and appended to the
+ * local files at the same index and data offsets, so consumers can read them from either broker.
+ */
+public class ReplicaFetcher {
+    private static final Logger logger = LoggerFactory.getLogger(ReplicaFetcher.class);
+    // max blocks pulled for a store in a round, so each store gets its turn
+    private static final int MAX_FETCH_ROUNDS = 16;
+    private final BrokerConfig tubeConfig;
+    private final MetadataManage metadataManage;
+    private final MessageStoreManager storeManager;
+    private final RpcServiceFactory rpcServiceFactory;
+    private final RpcConfig rpcConfig = new RpcConfig();
+    private final ScheduledExecutorService fetchScheduler;
+    // follower stores whose replication stopped, logged once
+    private final ConcurrentHashSet<String> stoppedStores =
+            new ConcurrentHashSet<String>();
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+
+
+    public ReplicaFetcher(final BrokerConfig tubeConfig,
+                          final MetadataManage metadataManage,
+                          final MessageStoreManager storeManager,
+                          final RpcServiceFactory rpcServiceFactory) {
+        this.tubeConfig = tubeConfig;
+        this.metadataManage = metadataManage;
+        this.storeManager = storeManager;
+        this.rpcServiceFactory = rpcServiceFactory;
+        this.rpcConfig.put(RpcConstants.CONNECT_TIMEOUT, 3000);
+        this.rpcConfig.put(RpcConstants.REQUEST_TIMEOUT, tubeConfig.getRpcReadTimeoutMs());
+        this.fetchScheduler =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Broker Replica Fetch Thread");
+                    }
+                });
+    }
+
+    public void start() {
+        this.fetchScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                fetchFollowerStores();
+            }
+        }, tubeConfig.getReplicaFetchIntervalMs(),
+                tubeConfig.getReplicaFetchIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (this.stopped.compareAndSet(false, true)) {
+            this.fetchScheduler.shutdownNow();
+        }
+    }
+
+    /***
+     * Pull each store of the follower topics from its leader broker.
+     */
+    public void fetchFollowerStores() {
+        final StringBuilder sBuilder = new StringBuilder(512);
+        for (String topic : metadataManage.getTopics()) {
+            final TopicMetadata topicMetadata = metadataManage.getTopicMetadata(topic);
+            if (topicMetadata == null
+                    || !topicMetadata.isReplica()
+                    || metadataManage.isClosedTopic(topic)) {
+                continue;
+            }
+            final BrokerReplicaService leaderService =
+                    rpcServiceFactory.getService(BrokerReplicaService.class,
+                            new BrokerInfo(topicMetadata.getReplicaLeaderId(),
+                                    topicMetadata.getReplicaLeaderHost(),
+                                    topicMetadata.getReplicaLeaderPort()), rpcConfig);
+            for (int storeId = 0; storeId < topicMetadata.getNumTopicStores(); storeId++) {
+                if (stopped.get()) {
+                    return;
+                }
+                try {
+                    final MessageStore msgStore = storeManager.getOrCreateMessageStore(topic,
+                            storeId * TBaseConstants.META_STORE_INS_BASE);
+                    fetchStore(msgStore, leaderService, sBuilder);
+                } catch (final Throwable e) {
+                    logger.warn(sBuilder.append("[Replica] Pull store ").append(topic)
+                            .append("-").append(storeId).append(" from leader broker ")
+                            .append(topicMetadata.getReplicaLeaderId()).append(" failed").toString(), e);
+                    sBuilder.delete(0, sBuilder.length());
+                }
+            }
+        }
+    }
+
+    /***
+     * Pull the blocks of a follower store after its max offsets from the leader broker, until
+     * caught up or the max rounds are pulled.
+     *
+     * @param msgStore
+     * @param leaderService
+     * @param sBuilder
+     * @return the count of appended messages
+     * @throws Throwable
+     */
+    public int fetchStore(final MessageStore msgStore,
+                          final BrokerReplicaService leaderService,
+                          final StringBuilder sBuilder) throws Throwable {
+        int appendedCnt = 0;
+        for (int round = 0; round < MAX_FETCH_ROUNDS; round++) {
+            final long indexOffset = msgStore.getIndexMaxOffset();
+            final long dataOffset = msgStore.getDataMaxOffset();
+            final ReplicaFetchRequestB2B request = ReplicaFetchRequestB2B.newBuilder()
+                    .setBrokerId(tubeConfig.getBrokerId())
+                    .setTopicName(msgStore.getTopic())
+                    .setStoreId(msgStore.getStoreId())
+                    .setIndexOffset(indexOffset)
+                    .setDataOffset(dataOffset)
+                    .setMaxDataSize(tubeConfig.getReplicaFetchMaxSize())
+                    .build();
+            final ReplicaBlock replicaBlock = toReplicaBlock(
+                    leaderService.fetchReplicaB2B(request, tubeConfig.getHostName(), false));
+            if (replicaBlock.retCode == TErrCodeConstants.MOVED) {
+                // the records after the store are expired in the leader, restart at its oldest ones
+                if (!msgStore.resetReplicaStart(replicaBlock.indexOffset,
+                        replicaBlock.dataOffset, sBuilder)) {
+                    onReplicaStopped(msgStore, replicaBlock, indexOffset, dataOffset,
+                            "the store is not empty and behind the leader's oldest records", sBuilder);
+                    return appendedCnt;
+                }
+                continue;
+            }
+            if (!replicaBlock.isSuccess()) {
+                if (replicaBlock.retCode != TErrCodeConstants.NOT_FOUND) {
+                    onReplicaStopped(msgStore, replicaBlock, indexOffset, dataOffset,
+                            replicaBlock.errInfo, sBuilder);
+                }
+                return appendedCnt;
+            }
+            if (replicaBlock.getMsgCount() == 0) {
+                break;
+            }
+            if (replicaBlock.indexOffset != indexOffset
+                    || replicaBlock.dataOffset != dataOffset
+                    || !msgStore.appendReplicaBlock(replicaBlock, sBuilder)) {
+                onReplicaStopped(msgStore, replicaBlock, indexOffset, dataOffset,
+                        "the block does not follow the store", sBuilder);
+                return appendedCnt;
+            }
+            appendedCnt += replicaBlock.getMsgCount();
+        }
+        if (stoppedStores.remove(msgStore.getStoreKey())) {
+            logger.info(sBuilder.append("[Replica] Replication of store ")
+                    .append(msgStore.getStoreKey()).append(" resumed").toString());
+            sBuilder.delete(0, sBuilder.length());
+        }
+        return appendedCnt;
+    }
+
+    /***
+     * Decode the fetch response, a block failing the check sum is returned as an error.
+     *
+     * @param response
+     * @return
+     */
+    private ReplicaBlock toReplicaBlock(final ReplicaFetchResponseB2B response) {
+        final byte[] indexData = response.getIndexData().toByteArray();
+        final byte[] msgData = response.getMsgData().toByteArray();
+        if (CheckSum.crc32(indexData) != response.getIndexCheckSum()
+                || CheckSum.crc32(msgData) != response.getDataCheckSum()) {
+            return new ReplicaBlock(TErrCodeConstants.INTERNAL_SERVER_ERROR,
+                    "check sum of the replica block mismatches", response.getIndexOffset(),
+                    response.getDataOffset(), response.getLeaderIndexMaxOffset());
+        }
+        final ReplicaBlock replicaBlock = new ReplicaBlock(response.getIndexOffset(),
+                response.getDataOffset(), ByteBuffer.wrap(indexData),
+                ByteBuffer.wrap(msgData), response.getLeaderIndexMaxOffset());
+        replicaBlock.retCode = response.getErrCode();
+        replicaBlock.errInfo = response.getErrMsg();
+        return replicaBlock;
+    }
+
+    private void onReplicaStopped(final MessageStore msgStore, final ReplicaBlock replicaBlock,
+                                  final long indexOffset, final long dataOffset,
+                                  final String reason, final StringBuilder sBuilder) {
+        if (!stoppedStores.add(msgStore.getStoreKey())) {
+            return;
+        }
+        logger.warn(sBuilder.append("[Replica] Replication of store ")
+                .append(msgStore.getStoreKey()).append(" stopped at indexOffset=")
+                .append(indexOffset).append(", dataOffset=").append(dataOffset)
+                .append(", leader errCode=").append(replicaBlock.retCode)
+                .append(", reason: ").append(reason).toString());
+        sBuilder.delete(0, sBuilder.length());
+    }
+}
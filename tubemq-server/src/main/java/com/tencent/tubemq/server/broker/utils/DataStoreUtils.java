@@ -21,6 +21,7 @@ import com.google.protobuf.ByteString;
 import com.tencent.tubemq.corebase.TBaseConstants;
 import com.tencent.tubemq.corebase.TokenConstants;
 import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker;
+import com.tencent.tubemq.corebase.utils.MessageAttrUtils;
 import com.tencent.tubemq.corebase.utils.MessageFlagUtils;
 import com.tencent.tubemq.corebase.utils.TStringUtils;
 import com.tencent.tubemq.server.broker.stats.CountItem;
@@ -79,11 +80,22 @@ public class DataStoreUtils {
     // + keyCode           4
     // + timeInMillSec     8
     public static final int STORE_INDEX_HEAD_LEN = 28;
+    public static final int STORE_INDEX_POS_KEYCODE = 16;
+    public static final int STORE_INDEX_POS_TIMERECV = 20;
+    // index records between two entries of the sparse time index
+    public static final int STORE_TIME_INDEX_INTERVAL = 1024;
+    // index records of a key code filter block
+    public static final int STORE_KEY_FILTER_BLOCK_RECORDS = 1024;
+    // long words of a key code filter block bitmap, must be a power of 2
+    public static final int STORE_KEY_FILTER_BITMAP_WORDS = 16;
+    // key code filters of rolled index segments cached in memory per store
+    public static final int STORE_KEY_FILTER_CACHED_SEGMENTS = 8;
     public static final int STORE_MAX_MESSAGE_STORE_LEN
             = STORE_DATA_HEADER_LEN + MAX_MSG_DATA_STORE_SIZE;
 
     public static final String DATA_FILE_SUFFIX = ".tube";
     public static final String INDEX_FILE_SUFFIX = ".index";
+    public static final String FILTER_FILE_SUFFIX = ".filter";
 
 
     public static int getInt(final int offset, final byte[] data) {
@@ -112,7 +124,7 @@ public class DataStoreUtils {
                                                                 final HashMap<String, CountItem> countMap,
                                                                 final String statisKeyBase,
                                                                 final StringBuilder sBuilder) {
-        if (dataBuffer.array().length < dataTotalSize) {
+        if (dataBuffer.capacity() < dataTotalSize) {
             return null;
         }
         final int msgLen =
@@ -132,7 +144,8 @@ public class DataStoreUtils {
         final int flag = dataBuffer.getInt(DataStoreUtils.STORE_HEADER_POS_MSGFLAG);
         final int payLoadLen2 = payLoadLen;
         final byte[] payLoadData = new byte[payLoadLen];
-        System.arraycopy(dataBuffer.array(), payLoadOffset, payLoadData, 0, payLoadLen);
+        System.arraycopy(dataBuffer.array(),
+                dataBuffer.arrayOffset() + payLoadOffset, payLoadData, 0, payLoadLen);
         ClientBroker.TransferedMessage.Builder dataBuilder =
                 ClientBroker.TransferedMessage.newBuilder();
         dataBuilder.setMessageId(msgId);
@@ -141,7 +154,7 @@ public class DataStoreUtils {
         dataBuilder.setPayLoadData(ByteString.copyFrom(payLoadData));
         // get statistic data
         int attrLen = 0;
-        String attribute = null;
+        String messageTIme = "";
         if (MessageFlagUtils.hasAttribute(flag)) {
             if (payLoadLen < 4) {
                 return null;
@@ -153,15 +166,43 @@ public class DataStoreUtils {
                 return null;
             }
             if (attrLen > 0) {
-                final byte[] attrData = new byte[attrLen];
-                System.arraycopy(dataBuffer.array(), payLoadOffset, attrData, 0, attrLen);
-                try {
-                    attribute = new String(attrData, TBaseConstants.META_DEFAULT_CHARSET_NAME);
-                } catch (final UnsupportedEncodingException e) {
-                    throw new RuntimeException(e);
+                if (MessageFlagUtils.hasBinaryAttribute(flag)) {
+                    // the message time is at a fixed position of a binary attribute
+                    final String binMsgTime = MessageAttrUtils.getMsgTime(dataBuffer,
+                            payLoadOffset, attrLen);
+                    if (binMsgTime != null) {
+                        messageTIme = binMsgTime;
+                    }
+                } else {
+                    messageTIme = getTextMsgTime(dataBuffer, payLoadOffset, attrLen);
                 }
             }
         }
+        String baseKey = sBuilder.append(statisKeyBase)
+                .append("#").append(messageTIme).toString();
+        sBuilder.delete(0, sBuilder.length());
+        CountItem getCount = countMap.get(baseKey);
+        if (getCount == null) {
+            countMap.put(baseKey, new CountItem(1L, payLoadLen2));
+        } else {
+            getCount.appendMsg(1L, payLoadLen2);
+        }
+        ClientBroker.TransferedMessage transferedMessage = dataBuilder.build();
+        dataBuilder.clear();
+        return transferedMessage;
+    }
+
+    private static String getTextMsgTime(final ByteBuffer dataBuffer,
+                                         final int attrOffset, final int attrLen) {
+        String attribute = null;
+        final byte[] attrData = new byte[attrLen];
+        System.arraycopy(dataBuffer.array(),
+                dataBuffer.arrayOffset() + attrOffset, attrData, 0, attrLen);
+        try {
+            attribute = new String(attrData, TBaseConstants.META_DEFAULT_CHARSET_NAME);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
         String messageTIme = "";
         if (TStringUtils.isNotBlank(attribute)) {
             if (attribute.contains(TokenConstants.TOKEN_MSG_TIME)) {
@@ -179,17 +220,6 @@ public class DataStoreUtils {
                 }
             }
         }
-        String baseKey = sBuilder.append(statisKeyBase)
-                .append("#").append(messageTIme).toString();
-        sBuilder.delete(0, sBuilder.length());
-        CountItem getCount = countMap.get(baseKey);
-        if (getCount == null) {
-            countMap.put(baseKey, new CountItem(1L, payLoadLen2));
-        } else {
-            getCount.appendMsg(1L, payLoadLen2);
-        }
-        ClientBroker.TransferedMessage transferedMessage = dataBuilder.build();
-        dataBuilder.clear();
-        return transferedMessage;
+        return messageTIme;
     }
 }
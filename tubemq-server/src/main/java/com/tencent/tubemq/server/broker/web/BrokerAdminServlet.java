@@ -66,6 +66,9 @@ public class BrokerAdminServlet extends HttpServlet {
             } else if ("admin_query_group_offset".equals(method)) {
                 // query consumer group's offset
                 sBuilder = this.adminQueryCurrentGroupOffSet(req);
+            } else if ("admin_query_offset_by_time".equals(method)) {
+                // query the offset of the first message received after a time
+                sBuilder = this.adminQueryOffsetByTime(req);
             } else if ("admin_snapshot_message".equals(method)) {
                 // query snapshot message
                 sBuilder = this.adminQuerySnapshotMessageSet(req);
@@ -78,6 +81,30 @@ public class BrokerAdminServlet extends HttpServlet {
             } else if ("admin_query_broker_all_store_info".equals(method)) {
                 // query broker's all message store info
                 sBuilder = this.adminQueryBrokerAllMessageStoreInfo(req);
+            } else if ("admin_query_ssd_transfer_info".equals(method)) {
+                // get ssd transfer status info
+                sBuilder.append("{\"result\":true,\"errCode\":0,\"errMsg\":\"Success!\",\"data\":")
+                        .append(broker.getStoreManager().getSsdTransferStatisInfo()).append("}");
+            } else if ("admin_query_mem_flush_info".equals(method)) {
+                // get write cache flush status info
+                sBuilder.append("{\"result\":true,\"errCode\":0,\"errMsg\":\"Success!\",\"data\":")
+                        .append(broker.getStoreManager().getMemFlushStatisInfo()).append("}");
+            } else if ("admin_query_mem_cache_info".equals(method)) {
+                // get write cache memory budget and usage info
+                sBuilder.append("{\"result\":true,\"errCode\":0,\"errMsg\":\"Success!\",\"data\":")
+                        .append(broker.getStoreManager().getMemCacheStatisInfo()).append("}");
+            } else if ("admin_query_tiered_store_info".equals(method)) {
+                // get tiered store upload, fetch and local cache info
+                sBuilder.append("{\"result\":true,\"errCode\":0,\"errMsg\":\"Success!\",\"data\":")
+                        .append(broker.getStoreManager().getTieredStoreStatisInfo()).append("}");
+            } else if ("admin_query_cold_read_info".equals(method)) {
+                // get cold segment read buffers and direct I/O info
+                sBuilder.append("{\"result\":true,\"errCode\":0,\"errMsg\":\"Success!\",\"data\":")
+                        .append(broker.getStoreManager().getColdReadStatisInfo()).append("}");
+            } else if ("admin_query_write_admission_info".equals(method)) {
+                // get write admission reject count and pending flush bytes
+                sBuilder.append("{\"result\":true,\"errCode\":0,\"errMsg\":\"Success!\",\"data\":")
+                        .append(broker.getBrokerServiceServer().getWriteAdmissionStatisInfo()).append("}");
             } else if ("admin_query_consumer_regmap".equals(method)) {
                 Map<String, ConsumerNodeInfo> map =
                         broker.getBrokerServiceServer().getConsumerRegisterMap();
@@ -427,6 +454,54 @@ public class BrokerAdminServlet extends HttpServlet {
         return sBuilder;
     }
 
+    /***
+     * Query the index offset of the first message received at or after the timestamp.
+     *
+     * @param req
+     * @return
+     * @throws Exception
+     */
+    private StringBuilder adminQueryOffsetByTime(HttpServletRequest req) throws Exception {
+        StringBuilder sBuilder = new StringBuilder(512);
+        final String topicName =
+                WebParameterUtils.validStringParameter("topicName",
+                        req.getParameter("topicName"),
+                        TBaseConstants.META_MAX_TOPICNAME_LENGTH, true, "");
+        int partitionId =
+                WebParameterUtils.validIntDataParameter("partitionId",
+                        req.getParameter("partitionId"), true, -1, 0);
+        long timestamp =
+                WebParameterUtils.validLongDataParameter("timestamp",
+                        req.getParameter("timestamp"), true, -1);
+        List<String> topicList = broker.getMetadataManage().getTopics();
+        if (!topicList.contains(topicName)) {
+            sBuilder.append("{\"result\":false,\"errCode\":400,\"errMsg\":\"")
+                    .append("Invalid parameter: not found the topicName configure!")
+                    .append("\"}");
+            return sBuilder;
+        }
+        MessageStore store = null;
+        try {
+            store = broker.getStoreManager().getOrCreateMessageStore(topicName, partitionId);
+        } catch (Throwable e) {
+            //
+        }
+        if (store == null) {
+            sBuilder.append("{\"result\":false,\"errCode\":400,\"errMsg\":\"")
+                    .append("Invalid parameter: not found the store by topicName!")
+                    .append("\"}");
+            return sBuilder;
+        }
+        sBuilder.append("{\"result\":true,\"errCode\":0,\"errMsg\":\"Success!\"")
+                .append(",\"topicName\":\"").append(topicName)
+                .append("\",\"partitionId\":").append(partitionId)
+                .append(",\"timestamp\":").append(timestamp)
+                .append(",\"offset\":").append(store.getIndexOffsetByTime(timestamp))
+                .append(",\"minOffset\":").append(store.getIndexMinOffset())
+                .append(",\"maxOffset\":").append(store.getIndexMaxOffset()).append("}");
+        return sBuilder;
+    }
+
     /***
      * Query snapshot message set.
      *
@@ -26,10 +26,13 @@ public final class TServerConstants {
     public static final String TOKEN_JOB_STORE_MGR = "messageStoreManager";
     public static final String TOKEN_DEFAULT_FLOW_CONTROL = "default_master_ctrl";
     public static final String TOKEN_BLANK_FILTER_CONDITION = ",,";
+    public static final String OFFSET_STORAGE_TYPE_ZK = "zookeeper";
+    public static final String OFFSET_STORAGE_TYPE_FILE = "file";
 
     public static final int CFG_MODAUTHTOKEN_MAX_LENGTH = 128;
     public static final int CFG_ROWLOCK_DEFAULT_DURATION = 30000;
     public static final int CFG_ZK_COMMIT_DEFAULT_RETRIES = 10;
+    public static final long CFG_OFFSET_LOG_DEFAULT_COMPACT_SIZE = 64 * 1024 * 1024L;
     public static final int CFG_STORE_DEFAULT_MSG_READ_UNIT = 327680;
     public static final int CFG_BATCH_BROKER_OPERATE_MAX_COUNT = 50;
     public static final int CFG_BATCH_RECORD_OPERATE_MAX_COUNT = 100;
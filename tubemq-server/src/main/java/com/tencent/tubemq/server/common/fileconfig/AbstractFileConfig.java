@@ -278,6 +278,12 @@ public abstract class AbstractFileConfig {
         if (TStringUtils.isNotBlank(zkeeperSect.get("zkCommitFailRetries"))) {
             zkConfig.setZkCommitFailRetries(getInt(zkeeperSect, "zkCommitFailRetries"));
         }
+        if (TStringUtils.isNotBlank(zkeeperSect.get("zkCommitBatchSize"))) {
+            zkConfig.setZkCommitBatchSize(getInt(zkeeperSect, "zkCommitBatchSize"));
+        }
+        if (TStringUtils.isNotBlank(zkeeperSect.get("zkCommitMaxParallel"))) {
+            zkConfig.setZkCommitMaxParallel(getInt(zkeeperSect, "zkCommitMaxParallel"));
+        }
         return zkConfig;
     }
 
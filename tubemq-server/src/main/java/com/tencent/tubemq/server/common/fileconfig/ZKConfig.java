@@ -30,6 +30,10 @@ public class ZKConfig {
     private int zkSyncTimeMs = 1000;
     private long zkCommitPeriodMs = 5000L;
     private int zkCommitFailRetries = TServerConstants.CFG_ZK_COMMIT_DEFAULT_RETRIES;
+    // max count of offset nodes updated in one ZooKeeper transaction
+    private int zkCommitBatchSize = 200;
+    // max count of transactions in flight during one commit cycle
+    private int zkCommitMaxParallel = 4;
 
     public ZKConfig() {
 
@@ -91,6 +95,22 @@ public class ZKConfig {
         this.zkCommitPeriodMs = zkCommitPeriodMs;
     }
 
+    public int getZkCommitBatchSize() {
+        return zkCommitBatchSize;
+    }
+
+    public void setZkCommitBatchSize(int zkCommitBatchSize) {
+        this.zkCommitBatchSize = zkCommitBatchSize;
+    }
+
+    public int getZkCommitMaxParallel() {
+        return zkCommitMaxParallel;
+    }
+
+    public void setZkCommitMaxParallel(int zkCommitMaxParallel) {
+        this.zkCommitMaxParallel = zkCommitMaxParallel;
+    }
+
     @Override
     public String toString() {
         return new StringBuilder(512)
@@ -101,6 +121,8 @@ public class ZKConfig {
                 .append(",\"zkSyncTimeMs\":").append(zkSyncTimeMs)
                 .append(",\"zkCommitPeriodMs\":").append(zkCommitPeriodMs)
                 .append(",\"zkCommitFailRetries\":").append(zkCommitFailRetries)
+                .append(",\"zkCommitBatchSize\":").append(zkCommitBatchSize)
+                .append(",\"zkCommitMaxParallel\":").append(zkCommitMaxParallel)
                 .append("}").toString();
     }
 }
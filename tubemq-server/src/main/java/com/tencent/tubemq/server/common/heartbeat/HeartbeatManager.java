@@ -17,11 +17,9 @@
 
 package com.tencent.tubemq.server.common.heartbeat;
 
-import com.tencent.tubemq.corebase.utils.TStringUtils;
 import com.tencent.tubemq.server.common.exception.HeartbeatException;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -32,18 +30,16 @@ import org.slf4j.LoggerFactory;
 public class HeartbeatManager {
 
     private static final Logger logger = LoggerFactory.getLogger(HeartbeatManager.class);
+    // tick of the timeout check, a timeout is found at most a tick late
+    private static final long TIMEOUT_CHECK_TICK_MS = 100L;
+    // bucket count of each level of the timing wheels
+    private static final int TIMEOUT_WHEEL_SIZE = 512;
 
-    private final ConcurrentHashMap<String, TimeoutInfo> brokerRegMap =
-            new ConcurrentHashMap<String, TimeoutInfo>();
-    private final ConcurrentHashMap<String, TimeoutInfo> producerRegMap =
-            new ConcurrentHashMap<String, TimeoutInfo>();
-    private final ConcurrentHashMap<String, TimeoutInfo> consumerRegMap =
-            new ConcurrentHashMap<String, TimeoutInfo>();
+    private final NodeHeartbeat brokerHeartbeat = new NodeHeartbeat("Broker Node");
+    private final NodeHeartbeat producerHeartbeat = new NodeHeartbeat("Producer Node");
+    private final NodeHeartbeat consumerHeartbeat = new NodeHeartbeat("Consumer Node");
     private final ExecutorService timeoutScanService = Executors.newCachedThreadPool();
-    private long brokerTimeoutDlt = 0;
-    private long producerTimeoutDlt = 0;
-    private long consumerTimeoutDlt = 0;
-    private boolean isStopped = false;
+    private volatile boolean isStopped = false;
 
     public HeartbeatManager() {
 
@@ -55,7 +51,7 @@ public class HeartbeatManager {
      * @return the map of timeout info of brokers' nodes.
      */
     public ConcurrentHashMap<String, TimeoutInfo> getBrokerRegMap() {
-        return brokerRegMap;
+        return brokerHeartbeat.regMap;
     }
 
     /**
@@ -64,7 +60,7 @@ public class HeartbeatManager {
      * @return the map of timeout info of producers' nodes
      */
     public ConcurrentHashMap<String, TimeoutInfo> getProducerRegMap() {
-        return producerRegMap;
+        return producerHeartbeat.regMap;
     }
 
     /**
@@ -73,7 +69,7 @@ public class HeartbeatManager {
      * @return the map of timeout info of consumers' nodes
      */
     public ConcurrentHashMap<String, TimeoutInfo> getConsumerRegMap() {
-        return consumerRegMap;
+        return consumerHeartbeat.regMap;
     }
 
     /**
@@ -82,7 +78,7 @@ public class HeartbeatManager {
      * @return the timeout delta of a consumer
      */
     public long getConsumerTimeoutDlt() {
-        return consumerTimeoutDlt;
+        return consumerHeartbeat.timeoutDlt;
     }
 
     /**
@@ -92,8 +88,8 @@ public class HeartbeatManager {
      * @param listener the listener used in the broker for timeout business
      */
     public void regBrokerCheckBusiness(final long timeout, final TimeoutListener listener) {
-        this.brokerTimeoutDlt = timeout;
-        this.registerCheckBusiness("Broker Node", this.brokerRegMap, listener);
+        this.brokerHeartbeat.timeoutDlt = timeout;
+        this.registerCheckBusiness(this.brokerHeartbeat, listener);
     }
 
     /**
@@ -103,8 +99,8 @@ public class HeartbeatManager {
      * @param listener the listener used in the producer for timeout business
      */
     public void regProducerCheckBusiness(final long timeout, final TimeoutListener listener) {
-        this.producerTimeoutDlt = timeout;
-        this.registerCheckBusiness("Producer Node", this.producerRegMap, listener);
+        this.producerHeartbeat.timeoutDlt = timeout;
+        this.registerCheckBusiness(this.producerHeartbeat, listener);
     }
 
     /**
@@ -114,45 +110,24 @@ public class HeartbeatManager {
      * @param listener the listener used in the consumer for timeout business
      */
     public void regConsumerCheckBusiness(final long timeout, final TimeoutListener listener) {
-        this.consumerTimeoutDlt = timeout;
-        this.registerCheckBusiness("Consumer Node", this.consumerRegMap, listener);
+        this.consumerHeartbeat.timeoutDlt = timeout;
+        this.registerCheckBusiness(this.consumerHeartbeat, listener);
     }
 
-    private void registerCheckBusiness(final String businessType,
-                                       final Map<String, TimeoutInfo> nodeMap,
+    private void registerCheckBusiness(final NodeHeartbeat nodeHeartbeat,
                                        final TimeoutListener listener) {
 
         timeoutScanService.submit(new Runnable() {
             @Override
             public void run() {
+                final List<TimeoutInfo> expired = new ArrayList<TimeoutInfo>();
                 while (!isStopped) {
                     try {
-                        long currentTime = System.currentTimeMillis();
-                        Set<String> removedNodeKey = new HashSet<String>();
-                        for (Map.Entry<String, TimeoutInfo> entry : nodeMap.entrySet()) {
-                            if (TStringUtils.isBlank(entry.getKey()) || entry.getValue() == null) {
-                                continue;
-                            }
-                            if (currentTime >= entry.getValue().getTimeoutTime()) {
-                                removedNodeKey.add(entry.getKey());
-                            }
-                        }
-                        if (!removedNodeKey.isEmpty()) {
-                            for (String nodeKey : removedNodeKey) {
-                                TimeoutInfo timeoutInfo = nodeMap.get(nodeKey);
-                                if (timeoutInfo == null) {
-                                    continue;
-                                }
-                                if (currentTime >= timeoutInfo.getTimeoutTime()) {
-                                    nodeMap.remove(nodeKey);
-                                    listener.onTimeout(nodeKey, timeoutInfo);
-                                }
-                            }
-                        }
-                        Thread.sleep(1000 * 1);
+                        nodeHeartbeat.checkTimeout(System.currentTimeMillis(), listener, expired);
+                        Thread.sleep(TIMEOUT_CHECK_TICK_MS);
                     } catch (Throwable t) {
-                        logger.error(new StringBuilder(256)
-                                .append(businessType).append(" heartbeat scan error!").toString(), t);
+                        logger.error(new StringBuilder(256).append(nodeHeartbeat.businessType)
+                                .append(" heartbeat scan error!").toString(), t);
                     }
                 }
             }
@@ -166,8 +141,8 @@ public class HeartbeatManager {
      * @return the timeout info for the registered node
      */
     public TimeoutInfo regBrokerNode(final String nodeId) {
-        return this.brokerRegMap.put(nodeId,
-                new TimeoutInfo(System.currentTimeMillis() + this.brokerTimeoutDlt));
+        return brokerHeartbeat.regNode(nodeId,
+                new TimeoutInfo(brokerHeartbeat.timeoutDlt));
     }
 
     /**
@@ -177,8 +152,8 @@ public class HeartbeatManager {
      * @return the timeout info of the registered node
      */
     public TimeoutInfo regProducerNode(final String nodeId) {
-        return this.producerRegMap.put(nodeId,
-                new TimeoutInfo(System.currentTimeMillis() + this.producerTimeoutDlt));
+        return producerHeartbeat.regNode(nodeId,
+                new TimeoutInfo(producerHeartbeat.timeoutDlt));
     }
 
     /**
@@ -188,8 +163,8 @@ public class HeartbeatManager {
      * @return the timeout info of the registered node
      */
     public TimeoutInfo regConsumerNode(final String nodeId) {
-        return this.consumerRegMap.put(nodeId,
-                new TimeoutInfo(System.currentTimeMillis() + this.consumerTimeoutDlt));
+        return consumerHeartbeat.regNode(nodeId,
+                new TimeoutInfo(consumerHeartbeat.timeoutDlt));
     }
 
     /**
@@ -203,9 +178,8 @@ public class HeartbeatManager {
     public TimeoutInfo regConsumerNode(final String nodeId,
                                        final String consumerId,
                                        final String partStr) {
-        return this.consumerRegMap.put(nodeId,
-                new TimeoutInfo(consumerId, partStr,
-                        System.currentTimeMillis() + this.consumerTimeoutDlt));
+        return consumerHeartbeat.regNode(nodeId,
+                new TimeoutInfo(consumerId, partStr, consumerHeartbeat.timeoutDlt));
     }
 
     /**
@@ -215,7 +189,7 @@ public class HeartbeatManager {
      * @return the timeout of the node
      */
     public TimeoutInfo unRegBrokerNode(final String nodeId) {
-        return brokerRegMap.remove(nodeId);
+        return brokerHeartbeat.unRegNode(nodeId);
     }
 
     /**
@@ -225,7 +199,7 @@ public class HeartbeatManager {
      * @return the timeout of the node
      */
     public TimeoutInfo unRegProducerNode(final String nodeId) {
-        return producerRegMap.remove(nodeId);
+        return producerHeartbeat.unRegNode(nodeId);
     }
 
     /**
@@ -235,7 +209,7 @@ public class HeartbeatManager {
      * @return the timeout of the node
      */
     public TimeoutInfo unRegConsumerNode(final String nodeId) {
-        return consumerRegMap.remove(nodeId);
+        return consumerHeartbeat.unRegNode(nodeId);
     }
 
     /**
@@ -245,13 +219,7 @@ public class HeartbeatManager {
      * @throws HeartbeatException if the timeout info of the node is not found
      */
     public void updBrokerNode(final String nodeId) throws HeartbeatException {
-        TimeoutInfo timeoutInfo = brokerRegMap.get(nodeId);
-        if (timeoutInfo == null) {
-            throw new HeartbeatException(new StringBuilder(512)
-                    .append("Invalid node id:").append(nodeId)
-                    .append(", you have to append node first!").toString());
-        }
-        timeoutInfo.setTimeoutTime(System.currentTimeMillis() + this.brokerTimeoutDlt);
+        brokerHeartbeat.updNode(nodeId);
     }
 
     /**
@@ -261,13 +229,7 @@ public class HeartbeatManager {
      * @throws HeartbeatException if the timeout of the node is not found.
      */
     public void updProducerNode(final String nodeId) throws HeartbeatException {
-        TimeoutInfo timeoutInfo = producerRegMap.get(nodeId);
-        if (timeoutInfo == null) {
-            throw new HeartbeatException(new StringBuilder(512)
-                    .append("Invalid node id:").append(nodeId)
-                    .append(", you have to append node first!").toString());
-        }
-        timeoutInfo.setTimeoutTime(System.currentTimeMillis() + this.producerTimeoutDlt);
+        producerHeartbeat.updNode(nodeId);
     }
 
     /**
@@ -277,13 +239,7 @@ public class HeartbeatManager {
      * @throws HeartbeatException if the timeout of node is not found
      */
     public void updConsumerNode(final String nodeId) throws HeartbeatException {
-        TimeoutInfo timeoutInfo = consumerRegMap.get(nodeId);
-        if (timeoutInfo == null) {
-            throw new HeartbeatException(new StringBuilder(512)
-                    .append("Invalid node id:").append(nodeId)
-                    .append(", you have to append node first!").toString());
-        }
-        timeoutInfo.setTimeoutTime(System.currentTimeMillis() + this.consumerTimeoutDlt);
+        consumerHeartbeat.updNode(nodeId);
     }
 
     /**
@@ -297,8 +253,87 @@ public class HeartbeatManager {
      * Clear all registered heartbeat business.
      */
     public void clearAllHeartbeat() {
-        brokerRegMap.clear();
-        producerRegMap.clear();
-        consumerRegMap.clear();
+        brokerHeartbeat.clear();
+        producerHeartbeat.clear();
+        consumerHeartbeat.clear();
+    }
+
+    /**
+     * Registered nodes of a node type, their timeouts are kept in a hierarchical timing
+     * wheel, so a heartbeat only extends the deadline of the node and the timeout check
+     * only visits the nodes whose wheel bucket is reached.
+     */
+    private static class NodeHeartbeat {
+        private final String businessType;
+        private final ConcurrentHashMap<String, TimeoutInfo> regMap =
+                new ConcurrentHashMap<String, TimeoutInfo>();
+        private final TimerWheel<TimeoutInfo> timerWheel =
+                new TimerWheel<TimeoutInfo>(TIMEOUT_CHECK_TICK_MS,
+                        TIMEOUT_WHEEL_SIZE, System.currentTimeMillis());
+        private volatile long timeoutDlt = 0;
+
+        public NodeHeartbeat(final String businessType) {
+            this.businessType = businessType;
+        }
+
+        public TimeoutInfo regNode(final String nodeId, final TimeoutInfo timeoutInfo) {
+            timeoutInfo.setNodeId(nodeId);
+            TimeoutInfo oldTimeoutInfo = regMap.put(nodeId, timeoutInfo);
+            if (oldTimeoutInfo != null) {
+                timerWheel.cancel(oldTimeoutInfo);
+            }
+            timerWheel.schedule(timeoutInfo, timeoutInfo.getTimeoutTime());
+            return oldTimeoutInfo;
+        }
+
+        public TimeoutInfo unRegNode(final String nodeId) {
+            TimeoutInfo timeoutInfo = regMap.remove(nodeId);
+            if (timeoutInfo != null) {
+                timerWheel.cancel(timeoutInfo);
+            }
+            return timeoutInfo;
+        }
+
+        public void updNode(final String nodeId) throws HeartbeatException {
+            TimeoutInfo timeoutInfo = regMap.get(nodeId);
+            if (timeoutInfo == null) {
+                throw new HeartbeatException(new StringBuilder(512)
+                        .append("Invalid node id:").append(nodeId)
+                        .append(", you have to append node first!").toString());
+            }
+            timeoutInfo.setTimeoutTime(System.currentTimeMillis() + this.timeoutDlt);
+        }
+
+        public void checkTimeout(final long currentTime,
+                                 final TimeoutListener listener,
+                                 final List<TimeoutInfo> expired) {
+            expired.clear();
+            timerWheel.expire(currentTime, expired);
+            for (TimeoutInfo timeoutInfo : expired) {
+                if (currentTime < timeoutInfo.getTimeoutTime()) {
+                    // the node heartbeat after the wheel took it out
+                    if (regMap.get(timeoutInfo.getNodeId()) == timeoutInfo) {
+                        timerWheel.schedule(timeoutInfo, timeoutInfo.getTimeoutTime());
+                    }
+                    continue;
+                }
+                if (!regMap.remove(timeoutInfo.getNodeId(), timeoutInfo)) {
+                    continue;
+                }
+                try {
+                    listener.onTimeout(timeoutInfo.getNodeId(), timeoutInfo);
+                } catch (Throwable t) {
+                    logger.error(new StringBuilder(256).append(businessType)
+                            .append(" timeout process error, node id is ")
+                            .append(timeoutInfo.getNodeId()).toString(), t);
+                }
+            }
+            expired.clear();
+        }
+
+        public void clear() {
+            regMap.clear();
+            timerWheel.clear();
+        }
     }
 }
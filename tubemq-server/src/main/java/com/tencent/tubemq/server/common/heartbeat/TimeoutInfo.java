@@ -17,32 +17,46 @@
 
 package com.tencent.tubemq.server.common.heartbeat;
 
-public class TimeoutInfo {
-    private long timeoutTime = 0L;
+public class TimeoutInfo extends TimerWheel.Timeout {
+    private String nodeId = "";
     private String secondKey = "";
     private String thirdKey = "";
 
     public TimeoutInfo(final String secondKey, final String thirdKey, long timeoutDelta) {
         this.secondKey = secondKey;
         this.thirdKey = thirdKey;
-        this.timeoutTime = timeoutDelta + System.currentTimeMillis();
+        extendDeadline(timeoutDelta + System.currentTimeMillis());
     }
 
     public TimeoutInfo(final String secondKey, long timeoutDelta) {
         this.secondKey = secondKey;
-        this.timeoutTime = timeoutDelta + System.currentTimeMillis();
+        extendDeadline(timeoutDelta + System.currentTimeMillis());
     }
 
     public TimeoutInfo(long timeoutDelta) {
-        this.timeoutTime = timeoutDelta + System.currentTimeMillis();
+        extendDeadline(timeoutDelta + System.currentTimeMillis());
     }
 
     public long getTimeoutTime() {
-        return timeoutTime;
+        return getDeadline();
     }
 
+    /**
+     * Set the timeout time, a registered node is checked at its
+     * scheduled time, so the timeout time should only be extended.
+     *
+     * @param timeoutTime
+     */
     public void setTimeoutTime(long timeoutTime) {
-        this.timeoutTime = timeoutTime;
+        extendDeadline(timeoutTime);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
     }
 
     public String getSecondKey() {
@@ -0,0 +1,271 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.common.heartbeat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel of heartbeat timeouts. Level 0 has a bucket per tick, each
+ * upper level has a bucket per round of the level below it; a timeout is linked into the
+ * lowest level that can hold its deadline, and moves down a level when its bucket is
+ * reached. Extending the deadline of a scheduled timeout only updates the deadline field,
+ * the timeout is moved to its new bucket when its old bucket is reached. So a heartbeat is
+ * O(1) and without lock, and the expiry work is proportional to the timeouts in the reached
+ * buckets instead of to all the registered timeouts.
+ *
+ * @param <T> the timeout type
+ */
+public class TimerWheel<T extends TimerWheel.Timeout> {
+    private static final int DEF_LEVEL_CNT = 4;
+    // duration of a tick
+    private final long tickMs;
+    // bits of the bucket index of a level
+    private final int levelBits;
+    private final int levelCnt;
+    private final int bucketMask;
+    // ticks covered by all the levels
+    private final long maxTickSpan;
+    // bucket heads of all the levels, each bucket is a circular doubly linked list
+    private final Timeout[] buckets;
+    // last processed tick
+    private long curTick;
+    // scheduled timeouts
+    private int size = 0;
+
+
+    /**
+     * Create a timing wheel with the default level count
+     *
+     * @param tickMs      duration of a tick
+     * @param wheelSize   bucket count of a level, rounded up to a power of 2
+     * @param startTime   start time of the wheel
+     */
+    public TimerWheel(final long tickMs, final int wheelSize, final long startTime) {
+        this(tickMs, wheelSize, DEF_LEVEL_CNT, startTime);
+    }
+
+    /**
+     * Create a timing wheel
+     *
+     * @param tickMs      duration of a tick
+     * @param wheelSize   bucket count of a level, rounded up to a power of 2
+     * @param levelCnt    level count, deadlines beyond all the levels are checked
+     *                    once per round of the top level
+     * @param startTime   start time of the wheel
+     */
+    public TimerWheel(final long tickMs, final int wheelSize,
+                      final int levelCnt, final long startTime) {
+        this.tickMs = Math.max(1L, tickMs);
+        int bits = 1;
+        while ((1 << bits) < wheelSize && bits < 20) {
+            bits++;
+        }
+        this.levelBits = bits;
+        this.levelCnt = Math.max(1, Math.min(levelCnt, 62 / bits));
+        this.bucketMask = (1 << bits) - 1;
+        this.maxTickSpan = 1L << (bits * this.levelCnt);
+        this.buckets = new Timeout[this.levelCnt << bits];
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new Timeout();
+        }
+        this.curTick = startTime / this.tickMs;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /**
+     * Schedule a timeout at the deadline, a scheduled timeout is moved to the new deadline.
+     *
+     * @param task
+     * @param deadline
+     */
+    public synchronized void schedule(final T task, final long deadline) {
+        final Timeout timeout = task;
+        if (timeout.scheduled) {
+            unlink(timeout);
+        }
+        timeout.deadline = deadline;
+        link(timeout, deadline, curTick + 1);
+    }
+
+    /**
+     * Cancel a timeout.
+     *
+     * @param task
+     * @return true if the timeout was scheduled
+     */
+    public synchronized boolean cancel(final T task) {
+        final Timeout timeout = task;
+        if (!timeout.scheduled) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Advance the wheel to the current time, and take out the timeouts whose deadline is
+     * reached, the timeouts whose deadline has been extended are moved to their new buckets.
+     *
+     * @param currentTime  current time
+     * @param expired      receives the expired timeouts
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void expire(final long currentTime, final List<T> expired) {
+        final long endTick = currentTime / tickMs;
+        if (endTick <= curTick) {
+            return;
+        }
+        if (endTick - curTick > bucketMask) {
+            // far behind, place all the timeouts again instead of walking every tick
+            final List<Timeout> timeouts = drainAll();
+            curTick = endTick;
+            for (Timeout timeout : timeouts) {
+                if (timeout.deadline <= currentTime) {
+                    expired.add((T) timeout);
+                } else {
+                    link(timeout, timeout.deadline, curTick + 1);
+                }
+            }
+            return;
+        }
+        while (curTick < endTick) {
+            curTick++;
+            // move the upper level buckets reached by this tick down
+            for (int level = 1; level < levelCnt; level++) {
+                final int shift = level * levelBits;
+                if ((curTick & ((1L << shift) - 1)) != 0) {
+                    break;
+                }
+                final Timeout head =
+                        buckets[(level << levelBits) + (int) ((curTick >>> shift) & bucketMask)];
+                Timeout timeout = head.next;
+                while (timeout != head) {
+                    final Timeout next = timeout.next;
+                    unlink(timeout);
+                    link(timeout, timeout.deadline, curTick);
+                    timeout = next;
+                }
+            }
+            final Timeout head = buckets[(int) (curTick & bucketMask)];
+            Timeout timeout = head.next;
+            while (timeout != head) {
+                final Timeout next = timeout.next;
+                unlink(timeout);
+                if (timeout.deadline <= currentTime) {
+                    expired.add((T) timeout);
+                } else {
+                    link(timeout, timeout.deadline, curTick + 1);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    public synchronized boolean isScheduled(final T task) {
+        return ((Timeout) task).scheduled;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Cancel all the timeouts.
+     */
+    public synchronized void clear() {
+        drainAll();
+    }
+
+    private List<Timeout> drainAll() {
+        final List<Timeout> timeouts = new ArrayList<Timeout>(size);
+        for (Timeout head : buckets) {
+            Timeout timeout = head.next;
+            while (timeout != head) {
+                final Timeout next = timeout.next;
+                unlink(timeout);
+                timeouts.add(timeout);
+                timeout = next;
+            }
+        }
+        return timeouts;
+    }
+
+    private void link(final Timeout timeout, final long deadline, final long minTick) {
+        long tick = deadline / tickMs;
+        if (tick * tickMs < deadline) {
+            tick++;
+        }
+        tick = Math.max(minTick, tick);
+        long delta = tick - curTick;
+        if (delta >= maxTickSpan) {
+            // beyond the top level, checked again when its bucket is reached
+            delta = maxTickSpan - 1;
+            tick = curTick + delta;
+        }
+        int level = 0;
+        while (level < levelCnt - 1 && delta >= (1L << ((level + 1) * levelBits))) {
+            level++;
+        }
+        final Timeout head = buckets[(level << levelBits)
+                + (int) ((tick >>> (level * levelBits)) & bucketMask)];
+        timeout.scheduled = true;
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+        size++;
+    }
+
+    private void unlink(final Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+    }
+
+    /**
+     * A timeout of the wheel, subclasses carry the timed out object.
+     */
+    public static class Timeout {
+        // deadline, may be extended without lock while scheduled
+        private volatile long deadline;
+        // whether the timeout is linked in a bucket
+        private boolean scheduled = false;
+        private Timeout prev = this;
+        private Timeout next = this;
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Extend the deadline, the scheduled bucket is not changed until it is reached.
+         *
+         * @param deadline  must not be earlier than the scheduled deadline
+         */
+        public void extendDeadline(final long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.common.offsetstorage;
+
+import com.tencent.tubemq.corebase.TokenConstants;
+import com.tencent.tubemq.corebase.utils.CheckSum;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A offset storage implementation with local files.
+ *
+ * Offsets are appended to a log file on every commit, and the whole offset table is
+ * written to a snapshot file when the log grows over the compact size, after which
+ * the log is truncated. On startup the snapshot and the log are loaded into memory
+ * in one pass. Offsets not found locally can be read from another storage, such as
+ * the zookeeper storage, to migrate the existing offsets.
+ */
+public class FileOffsetStorage implements OffsetStorage {
+    private static final Logger logger = LoggerFactory.getLogger(FileOffsetStorage.class);
+    private static final String SNAPSHOT_FILE_NAME = "offsets.snapshot";
+    private static final String LOG_FILE_NAME = "offsets.log";
+    // record length and checksum
+    private static final int RECORD_HEAD_LEN = 8;
+    private static final int RECORD_MAX_LEN = 64 * 1024;
+
+    private final File storeDir;
+    private final File snapshotFile;
+    private final File logFile;
+    private final long maxLogSize;
+    // storage to read the offsets missing locally, may be null
+    private final OffsetStorage migrateStorage;
+    private final ConcurrentHashMap<String/* group */,
+            ConcurrentHashMap<String/* topic-brokerId-partitionId */, OffsetRecord>> offsetMap =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, OffsetRecord>>();
+    private final Object fileLock = new Object();
+    private RandomAccessFile logRaf;
+    private FileChannel logChannel;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor of FileOffsetStorage
+     *
+     * @param storePath      the directory of offset files
+     * @param maxLogSize     the log size that triggers a snapshot
+     * @param migrateStorage the storage to read offsets missing locally, may be null
+     */
+    public FileOffsetStorage(final String storePath, long maxLogSize,
+                             final OffsetStorage migrateStorage) throws IOException {
+        this.storeDir = new File(storePath);
+        if (!this.storeDir.exists() && !this.storeDir.mkdirs()) {
+            throw new IOException(new StringBuilder(256)
+                    .append("Create offset storage directory failure: ")
+                    .append(this.storeDir.getAbsolutePath()).toString());
+        }
+        this.snapshotFile = new File(this.storeDir, SNAPSHOT_FILE_NAME);
+        this.logFile = new File(this.storeDir, LOG_FILE_NAME);
+        this.maxLogSize = maxLogSize;
+        this.migrateStorage = migrateStorage;
+        final long startTime = System.currentTimeMillis();
+        int recordCnt = loadFile(this.snapshotFile, false);
+        recordCnt += loadFile(this.logFile, true);
+        this.logRaf = new RandomAccessFile(this.logFile, "rw");
+        this.logChannel = this.logRaf.getChannel();
+        this.logChannel.position(this.logChannel.size());
+        logger.info(new StringBuilder(512).append("File Offset Storage initiated, path=")
+                .append(this.storeDir.getAbsolutePath()).append(", loaded records=")
+                .append(recordCnt).append(", groups=").append(this.offsetMap.size())
+                .append(", wast time ").append(System.currentTimeMillis() - startTime)
+                .append("ms").toString());
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.fileLock) {
+            if (this.closed) {
+                return;
+            }
+            logger.info("File Offset Storage closing .......");
+            try {
+                compact();
+            } catch (Throwable e) {
+                logger.error("Write offset snapshot failure when close", e);
+            }
+            try {
+                this.logChannel.close();
+                this.logRaf.close();
+            } catch (Throwable e) {
+                logger.error("Close offset log failure", e);
+            }
+            this.closed = true;
+        }
+        if (this.migrateStorage != null) {
+            this.migrateStorage.close();
+        }
+        logger.info("File Offset Storage closed!");
+    }
+
+    @Override
+    public OffsetStorageInfo loadOffset(final String group, final String topic,
+                                        int brokerId, int partitionId) {
+        String offsetKey = getOffsetKey(topic, brokerId, partitionId);
+        ConcurrentHashMap<String, OffsetRecord> groupOffsetMap = this.offsetMap.get(group);
+        if (groupOffsetMap != null) {
+            OffsetRecord record = groupOffsetMap.get(offsetKey);
+            if (record != null) {
+                return new OffsetStorageInfo(topic, brokerId, partitionId,
+                        record.offset, record.messageId, false);
+            }
+        }
+        if (this.migrateStorage == null) {
+            return null;
+        }
+        OffsetStorageInfo offsetInfo =
+                this.migrateStorage.loadOffset(group, topic, brokerId, partitionId);
+        if (offsetInfo == null) {
+            return null;
+        }
+        // store the migrated offset locally, it is read from the old storage only once
+        OffsetRecord record = new OffsetRecord(group, topic, brokerId,
+                partitionId, offsetInfo.getOffset(), offsetInfo.getMessageId());
+        try {
+            appendRecords(Collections.singletonList(record));
+            logger.info(new StringBuilder(512).append("Migrated offset, group=")
+                    .append(group).append(", key=").append(offsetKey)
+                    .append(", offset=").append(record.offset).toString());
+        } catch (Throwable e) {
+            logger.error("Store migrated offset failure", e);
+        }
+        return offsetInfo;
+    }
+
+    @Override
+    public void commitOffset(final String group,
+                             final Collection<OffsetStorageInfo> offsetInfoList,
+                             boolean isFailRetry) {
+        if (offsetInfoList == null || offsetInfoList.isEmpty()) {
+            return;
+        }
+        commitOffset(Collections.singletonMap(group, offsetInfoList), isFailRetry);
+    }
+
+    @Override
+    public void commitOffset(final Map<String, Collection<OffsetStorageInfo>> groupOffsetMap,
+                             boolean isFailRetry) {
+        if (this.closed || groupOffsetMap == null || groupOffsetMap.isEmpty()) {
+            return;
+        }
+        List<OffsetStorageInfo> modifiedInfos = new ArrayList<OffsetStorageInfo>();
+        List<OffsetRecord> records = new ArrayList<OffsetRecord>();
+        for (Map.Entry<String, Collection<OffsetStorageInfo>> entry : groupOffsetMap.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+            for (final OffsetStorageInfo info : entry.getValue()) {
+                long newOffset = -1;
+                long msgId = -1;
+                synchronized (info) {
+                    if (!info.isModified()) {
+                        continue;
+                    }
+                    newOffset = info.getOffset();
+                    msgId = info.getMessageId();
+                    info.setModified(false);
+                }
+                modifiedInfos.add(info);
+                OffsetRecord curRecord = getRecord(entry.getKey(),
+                        getOffsetKey(info.getTopic(), info.getBrokerId(), info.getPartitionId()));
+                if (curRecord != null
+                        && curRecord.offset == newOffset
+                        && curRecord.messageId == msgId) {
+                    continue;
+                }
+                records.add(new OffsetRecord(entry.getKey(), info.getTopic(),
+                        info.getBrokerId(), info.getPartitionId(), newOffset, msgId));
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            appendRecords(records);
+        } catch (Throwable e) {
+            logger.error("Error when commit offsets to local file", e);
+            // keep the failed offsets modified, the next commit cycle will write them again
+            for (OffsetStorageInfo info : modifiedInfos) {
+                synchronized (info) {
+                    info.setModified(true);
+                }
+            }
+        }
+    }
+
+    /***
+     * Append offset records to the log in one write, then update the offset table.
+     * A snapshot is written when the log size exceeds the compact size.
+     *
+     * @param records
+     * @throws IOException
+     */
+    private void appendRecords(final List<OffsetRecord> records) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(records.size() * 128);
+        DataOutputStream out = new DataOutputStream(bos);
+        for (OffsetRecord record : records) {
+            record.writeTo(out);
+        }
+        out.flush();
+        synchronized (this.fileLock) {
+            if (this.closed) {
+                throw new IOException("File Offset Storage has been closed");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bos.toByteArray());
+            while (buffer.hasRemaining()) {
+                this.logChannel.write(buffer);
+            }
+            this.logChannel.force(false);
+            for (OffsetRecord record : records) {
+                putRecord(record);
+            }
+            if (this.logChannel.size() > this.maxLogSize) {
+                compact();
+            }
+        }
+    }
+
+    /***
+     * Write all the offsets to a new snapshot file and truncate the log.
+     * The snapshot is renamed into place only after it is synced to disk,
+     * replaying a log left over by a crash after the rename is harmless.
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        final long startTime = System.currentTimeMillis();
+        File tmpFile = new File(this.storeDir, SNAPSHOT_FILE_NAME + ".tmp");
+        int recordCnt = 0;
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            for (ConcurrentHashMap<String, OffsetRecord> groupOffsetMap : this.offsetMap.values()) {
+                for (OffsetRecord record : groupOffsetMap.values()) {
+                    record.writeTo(out);
+                    recordCnt++;
+                }
+            }
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+        Files.move(tmpFile.toPath(), this.snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.logChannel.truncate(0);
+        this.logChannel.position(0);
+        this.logChannel.force(true);
+        logger.info(new StringBuilder(512).append("Compacted offset log, snapshot records=")
+                .append(recordCnt).append(", wast time ")
+                .append(System.currentTimeMillis() - startTime).append("ms").toString());
+    }
+
+    /***
+     * Load offset records from file, stop at the first broken record.
+     *
+     * @param file
+     * @param truncBroken whether to cut the broken tail off the file
+     * @return the count of records loaded
+     * @throws IOException
+     */
+    private int loadFile(final File file, boolean truncBroken) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int recordCnt = 0;
+        long validPos = 0;
+        final long fileSize = file.length();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            byte[] body = new byte[256];
+            while (validPos + RECORD_HEAD_LEN <= fileSize) {
+                int bodyLen = in.readInt();
+                int checkSum = in.readInt();
+                if (bodyLen <= 0 || bodyLen > RECORD_MAX_LEN
+                        || validPos + RECORD_HEAD_LEN + bodyLen > fileSize) {
+                    break;
+                }
+                if (body.length < bodyLen) {
+                    body = new byte[bodyLen];
+                }
+                in.readFully(body, 0, bodyLen);
+                if (CheckSum.crc32(body, 0, bodyLen) != checkSum) {
+                    break;
+                }
+                putRecord(OffsetRecord.readFrom(body, bodyLen));
+                validPos += RECORD_HEAD_LEN + bodyLen;
+                recordCnt++;
+            }
+        } catch (EOFException e) {
+            // broken tail, handled below
+        } finally {
+            in.close();
+        }
+        if (validPos < fileSize) {
+            logger.warn(new StringBuilder(512).append("Found broken offset records in ")
+                    .append(file.getAbsolutePath()).append(", valid size=").append(validPos)
+                    .append(", file size=").append(fileSize).toString());
+            if (truncBroken) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(validPos);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        return recordCnt;
+    }
+
+    private OffsetRecord getRecord(final String group, final String offsetKey) {
+        ConcurrentHashMap<String, OffsetRecord> groupOffsetMap = this.offsetMap.get(group);
+        if (groupOffsetMap == null) {
+            return null;
+        }
+        return groupOffsetMap.get(offsetKey);
+    }
+
+    private void putRecord(final OffsetRecord record) {
+        ConcurrentHashMap<String, OffsetRecord> groupOffsetMap = this.offsetMap.get(record.group);
+        if (groupOffsetMap == null) {
+            ConcurrentHashMap<String, OffsetRecord> tmpOffsetMap =
+                    new ConcurrentHashMap<String, OffsetRecord>();
+            groupOffsetMap = this.offsetMap.putIfAbsent(record.group, tmpOffsetMap);
+            if (groupOffsetMap == null) {
+                groupOffsetMap = tmpOffsetMap;
+            }
+        }
+        groupOffsetMap.put(getOffsetKey(record.topic,
+                record.brokerId, record.partitionId), record);
+    }
+
+    private String getOffsetKey(final String topic, int brokerId, int partitionId) {
+        return new StringBuilder(256).append(topic)
+                .append(TokenConstants.HYPHEN).append(brokerId)
+                .append(TokenConstants.HYPHEN).append(partitionId).toString();
+    }
+
+    private static class OffsetRecord {
+        private final String group;
+        private final String topic;
+        private final int brokerId;
+        private final int partitionId;
+        private final long offset;
+        private final long messageId;
+
+        public OffsetRecord(String group, String topic, int brokerId,
+                            int partitionId, long offset, long messageId) {
+            this.group = group;
+            this.topic = topic;
+            this.brokerId = brokerId;
+            this.partitionId = partitionId;
+            this.offset = offset;
+            this.messageId = messageId;
+        }
+
+        public static OffsetRecord readFrom(final byte[] body, int bodyLen) throws IOException {
+            DataInputStream in =
+                    new DataInputStream(new ByteArrayInputStream(body, 0, bodyLen));
+            String group = in.readUTF();
+            String topic = in.readUTF();
+            int brokerId = in.readInt();
+            int partitionId = in.readInt();
+            long offset = in.readLong();
+            long messageId = in.readLong();
+            return new OffsetRecord(group, topic, brokerId, partitionId, offset, messageId);
+        }
+
+        /***
+         * Write record as: body length, body checksum, body.
+         *
+         * @param out
+         * @throws IOException
+         */
+        public void writeTo(final DataOutputStream out) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+            DataOutputStream bodyOut = new DataOutputStream(bos);
+            bodyOut.writeUTF(group);
+            bodyOut.writeUTF(topic);
+            bodyOut.writeInt(brokerId);
+            bodyOut.writeInt(partitionId);
+            bodyOut.writeLong(offset);
+            bodyOut.writeLong(messageId);
+            bodyOut.flush();
+            byte[] body = bos.toByteArray();
+            out.writeInt(body.length);
+            out.writeInt(CheckSum.crc32(body));
+            out.write(body);
+        }
+    }
+}
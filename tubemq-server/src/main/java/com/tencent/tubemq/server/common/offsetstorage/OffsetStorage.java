@@ -18,6 +18,7 @@
 package com.tencent.tubemq.server.common.offsetstorage;
 
 import java.util.Collection;
+import java.util.Map;
 
 
 public interface OffsetStorage {
@@ -30,4 +31,7 @@ public interface OffsetStorage {
     void commitOffset(final String group,
                       final Collection<OffsetStorageInfo> offsetInfoList,
                       boolean isFailRetry);
+
+    void commitOffset(final Map<String, Collection<OffsetStorageInfo>> groupOffsetMap,
+                      boolean isFailRetry);
 }
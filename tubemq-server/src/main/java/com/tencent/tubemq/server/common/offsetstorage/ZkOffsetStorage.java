@@ -18,12 +18,23 @@
 package com.tencent.tubemq.server.common.offsetstorage;
 
 import com.tencent.tubemq.corebase.TokenConstants;
-import com.tencent.tubemq.server.broker.exception.OffsetStoreException;
 import com.tencent.tubemq.server.common.TServerConstants;
 import com.tencent.tubemq.server.common.fileconfig.ZKConfig;
 import com.tencent.tubemq.server.common.offsetstorage.zookeeper.ZKUtil;
 import com.tencent.tubemq.server.common.offsetstorage.zookeeper.ZooKeeperWatcher;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.zookeeper.KeeperException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,6 +64,7 @@ public class ZkOffsetStorage implements OffsetStorage {
     private final String consumerZkDir;
     private ZKConfig zkConfig;
     private ZooKeeperWatcher zkw;
+    private ExecutorService commitExecutor;
 
     /**
      * Constructor of ZkOffsetStorage
@@ -71,6 +83,20 @@ public class ZkOffsetStorage implements OffsetStorage {
                     .append(this.zkConfig.getZkServerAddr()).append(") !").toString(), e);
             System.exit(1);
         }
+        if (this.zkConfig.getZkCommitMaxParallel() > 1) {
+            this.commitExecutor = Executors.newFixedThreadPool(
+                    this.zkConfig.getZkCommitMaxParallel(), new ThreadFactory() {
+                        private final AtomicInteger threadCnt = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ZK Offset Commit Thread-"
+                                    + threadCnt.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
         logger.info("ZooKeeper Offset Storage initiated!");
     }
 
@@ -78,6 +104,10 @@ public class ZkOffsetStorage implements OffsetStorage {
     public void close() {
         if (this.zkw != null) {
             logger.info("ZooKeeper Offset Storage closing .......");
+            if (this.commitExecutor != null) {
+                this.commitExecutor.shutdown();
+                this.commitExecutor = null;
+            }
             this.zkw.close();
             this.zkw = null;
             logger.info("ZooKeeper Offset Storage closed!");
@@ -93,37 +123,67 @@ public class ZkOffsetStorage implements OffsetStorage {
                 || offsetInfoList.isEmpty()) {
             return;
         }
+        commitOffset(Collections.singletonMap(group, offsetInfoList), isFailRetry);
+    }
+
+    @Override
+    public void commitOffset(final Map<String, Collection<OffsetStorageInfo>> groupOffsetMap,
+                             boolean isFailRetry) {
+        if (this.zkw == null
+                || groupOffsetMap == null
+                || groupOffsetMap.isEmpty()) {
+            return;
+        }
         StringBuilder sBuilder = new StringBuilder(512);
+        List<OffsetCommitItem> pendingItems = getModifiedOffsets(sBuilder, groupOffsetMap);
+        if (pendingItems.isEmpty()) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final int totalCnt = pendingItems.size();
         if (isFailRetry) {
             for (int i = 0; i < TServerConstants.CFG_ZK_COMMIT_DEFAULT_RETRIES; i++) {
+                pendingItems = cfmOffset(pendingItems);
+                if (pendingItems.isEmpty()) {
+                    break;
+                }
+                logger.error(sBuilder.append("Error found when commit offsets to ZooKeeper with retry ")
+                        .append(i).append(", failed count=").append(pendingItems.size()).toString());
+                sBuilder.delete(0, sBuilder.length());
                 try {
-                    cfmOffset(sBuilder, group, offsetInfoList);
+                    Thread.sleep(this.zkConfig.getZkSyncTimeMs());
+                } catch (InterruptedException ie) {
+                    logger.error(
+                            "InterruptedException when commit offset to ZooKeeper with retry " + i, ie);
                     break;
-                } catch (Exception e) {
-                    logger.error("Error found when commit offsets to ZooKeeper with retry " + i, e);
-                    try {
-                        Thread.sleep(this.zkConfig.getZkSyncTimeMs());
-                    } catch (InterruptedException ie) {
-                        logger.error(
-                                "InterruptedException when commit offset to ZooKeeper with retry " + i, ie);
-                        return;
-                    }
                 }
             }
         } else {
-            try {
-                cfmOffset(sBuilder, group, offsetInfoList);
-            } catch (OffsetStoreException e) {
-                logger.error("Error when commit offsets to ZooKeeper", e);
+            pendingItems = cfmOffset(pendingItems);
+        }
+        if (!pendingItems.isEmpty()) {
+            // keep the failed offsets modified, the next commit cycle will write them again
+            for (OffsetCommitItem item : pendingItems) {
+                synchronized (item.info) {
+                    item.info.setModified(true);
+                }
             }
+            logger.error(sBuilder.append("Error when commit offsets to ZooKeeper, failed count=")
+                    .append(pendingItems.size()).append(", total count=").append(totalCnt).toString());
+            sBuilder.delete(0, sBuilder.length());
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug(sBuilder.append("Committed offsets to ZooKeeper, count=").append(totalCnt)
+                    .append(", wast time ").append(System.currentTimeMillis() - startTime)
+                    .append("ms").toString());
+            sBuilder.delete(0, sBuilder.length());
         }
     }
 
     @Override
     public OffsetStorageInfo loadOffset(final String group, final String topic, int brokerId, int partitionId) {
-        String znode = new StringBuilder(512).append(this.consumerZkDir).append("/")
-                .append(group).append("/offsets/").append(topic).append("/")
-                .append(brokerId).append(TokenConstants.HYPHEN).append(partitionId).toString();
+        String znode = getOffsetPath(new StringBuilder(512),
+                group, topic, brokerId, partitionId);
         String offsetZkInfo;
         try {
             offsetZkInfo = ZKUtil.readDataMaybeNull(this.zkw, znode);
@@ -141,43 +201,130 @@ public class ZkOffsetStorage implements OffsetStorage {
 
     }
 
-    private void cfmOffset(final StringBuilder sb, final String group,
-                           final Collection<OffsetStorageInfo> infoList) throws OffsetStoreException {
-        sb.delete(0, sb.length());
-        for (final OffsetStorageInfo info : infoList) {
-            long newOffset = -1;
-            long msgId = -1;
-            synchronized (info) {
-                if (!info.isModified()) {
-                    continue;
+    /***
+     * Collect the offsets modified since the last commit.
+     *
+     * @param sb
+     * @param groupOffsetMap
+     * @return the offsets to be written
+     */
+    private List<OffsetCommitItem> getModifiedOffsets(final StringBuilder sb,
+                                                      final Map<String, Collection<OffsetStorageInfo>> groupOffsetMap) {
+        List<OffsetCommitItem> commitItems = new ArrayList<OffsetCommitItem>();
+        for (Map.Entry<String, Collection<OffsetStorageInfo>> entry : groupOffsetMap.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+            for (final OffsetStorageInfo info : entry.getValue()) {
+                long newOffset = -1;
+                long msgId = -1;
+                synchronized (info) {
+                    if (!info.isModified()) {
+                        continue;
+                    }
+                    newOffset = info.getOffset();
+                    msgId = info.getMessageId();
+                    info.setModified(false);
                 }
-                newOffset = info.getOffset();
-                msgId = info.getMessageId();
-                info.setModified(false);
+                String offsetPath = getOffsetPath(sb, entry.getKey(),
+                        info.getTopic(), info.getBrokerId(), info.getPartitionId());
+                String offsetData =
+                        sb.append(msgId).append(TokenConstants.HYPHEN).append(newOffset).toString();
+                sb.delete(0, sb.length());
+                commitItems.add(new OffsetCommitItem(offsetPath, offsetData, info));
+            }
+        }
+        return commitItems;
+    }
+
+    /***
+     * Write offsets to ZooKeeper in batches, each batch is one ZooKeeper transaction,
+     * and at most zkCommitMaxParallel batches are in flight at the same time.
+     *
+     * @param commitItems
+     * @return the offsets failed to be written
+     */
+    private List<OffsetCommitItem> cfmOffset(final List<OffsetCommitItem> commitItems) {
+        final int batchSize = Math.max(1, this.zkConfig.getZkCommitBatchSize());
+        List<List<OffsetCommitItem>> batches = new ArrayList<List<OffsetCommitItem>>();
+        for (int i = 0; i < commitItems.size(); i += batchSize) {
+            batches.add(commitItems.subList(i, Math.min(i + batchSize, commitItems.size())));
+        }
+        List<OffsetCommitItem> failedItems = new ArrayList<OffsetCommitItem>();
+        if (batches.size() == 1 || this.commitExecutor == null) {
+            for (List<OffsetCommitItem> batch : batches) {
+                failedItems.addAll(cfmOffsetBatch(batch));
+            }
+            return failedItems;
+        }
+        List<Future<List<OffsetCommitItem>>> futures =
+                new ArrayList<Future<List<OffsetCommitItem>>>(batches.size());
+        for (final List<OffsetCommitItem> batch : batches) {
+            try {
+                futures.add(this.commitExecutor.submit(new Callable<List<OffsetCommitItem>>() {
+                    @Override
+                    public List<OffsetCommitItem> call() throws Exception {
+                        return cfmOffsetBatch(batch);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                failedItems.addAll(batch);
             }
-            final String topic = info.getTopic();
-            String offsetPath = sb.append(this.consumerZkDir).append("/")
-                    .append(group).append("/offsets/").append(topic).append("/")
-                    .append(info.getBrokerId()).append(TokenConstants.HYPHEN)
-                    .append(info.getPartitionId()).toString();
-            sb.delete(0, sb.length());
-            String offsetData =
-                    sb.append(msgId).append(TokenConstants.HYPHEN).append(newOffset).toString();
-            sb.delete(0, sb.length());
+        }
+        for (int i = 0; i < futures.size(); i++) {
             try {
-                ZKUtil.updatePersistentPath(this.zkw, offsetPath, offsetData);
-            } catch (final Throwable t) {
-                logger.error("Exception during commit offsets to ZooKeeper", t);
-                throw new OffsetStoreException(t);
+                failedItems.addAll(futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failedItems.addAll(batches.get(i));
+            } catch (ExecutionException e) {
+                logger.error("Exception during commit offsets to ZooKeeper", e);
+                failedItems.addAll(batches.get(i));
             }
-            if (logger.isDebugEnabled()) {
-                logger.debug(sb.append("Committed offset, path=")
-                        .append(offsetPath).append(", data=").append(offsetData).toString());
-                sb.delete(0, sb.length());
+        }
+        return failedItems;
+    }
+
+    private List<OffsetCommitItem> cfmOffsetBatch(final List<OffsetCommitItem> batch) {
+        List<String> paths = new ArrayList<String>(batch.size());
+        List<String> dataLst = new ArrayList<String>(batch.size());
+        for (OffsetCommitItem item : batch) {
+            paths.add(item.path);
+            dataLst.add(item.data);
+        }
+        try {
+            if (!ZKUtil.multiSetData(this.zkw, paths, dataLst)) {
+                return batch;
             }
+            return Collections.emptyList();
+        } catch (KeeperException.NoNodeException e) {
+            // some offset nodes are not created yet, write them one by one
+            List<OffsetCommitItem> failedItems = new ArrayList<OffsetCommitItem>();
+            for (OffsetCommitItem item : batch) {
+                try {
+                    ZKUtil.updatePersistentPath(this.zkw, item.path, item.data);
+                } catch (final Throwable t) {
+                    logger.error("Exception during commit offsets to ZooKeeper", t);
+                    failedItems.add(item);
+                }
+            }
+            return failedItems;
+        } catch (final Throwable t) {
+            logger.error("Exception during commit offsets to ZooKeeper", t);
+            return batch;
         }
     }
 
+    private String getOffsetPath(final StringBuilder sb, final String group,
+                                 final String topic, int brokerId, int partitionId) {
+        String offsetPath = sb.append(this.consumerZkDir).append("/")
+                .append(group).append("/offsets/").append(topic).append("/")
+                .append(brokerId).append(TokenConstants.HYPHEN)
+                .append(partitionId).toString();
+        sb.delete(0, sb.length());
+        return offsetPath;
+    }
+
     private String normalize(final String root) {
         if (root.startsWith("/")) {
             return this.removeLastSlash(root);
@@ -194,4 +341,16 @@ public class ZkOffsetStorage implements OffsetStorage {
         }
     }
 
+    private static class OffsetCommitItem {
+        private final String path;
+        private final String data;
+        private final OffsetStorageInfo info;
+
+        public OffsetCommitItem(String path, String data, OffsetStorageInfo info) {
+            this.path = path;
+            this.data = data;
+            this.info = info;
+        }
+    }
+
 }
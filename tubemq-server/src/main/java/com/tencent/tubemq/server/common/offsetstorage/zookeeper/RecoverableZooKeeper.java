@@ -29,6 +29,8 @@ import java.util.List;
 import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.ZooKeeper.States;
@@ -422,6 +424,39 @@ public class RecoverableZooKeeper {
         }
     }
 
+    /**
+     * Run a group of operations as one ZooKeeper transaction. Only unconditional setData
+     * transactions are expected here, which are idempotent, so the whole transaction is
+     * reissued on recoverable errors. This method is deliberately not synchronized so that
+     * several transactions can be in flight on the same session at once.
+     *
+     * @return the results of the operations
+     */
+    public List<OpResult> multi(Iterable<Op> ops) throws KeeperException,
+            InterruptedException {
+        RetryCounter retryCounter = retryCounterFactory.create();
+        while (true) {
+            try {
+                return getZooKeeper().multi(ops);
+            } catch (KeeperException e) {
+                ensureConnectivity(e);
+
+                switch (e.code()) {
+                    case CONNECTIONLOSS:
+                    case SESSIONEXPIRED:
+                    case OPERATIONTIMEOUT:
+                        retryOrThrow(retryCounter, e, "multi");
+                        break;
+
+                    default:
+                        throw e;
+                }
+            }
+            retryCounter.sleepUntilNextRetry();
+            retryCounter.useRetry();
+        }
+    }
+
     /**
      * <p> NONSEQUENTIAL create is idempotent operation. Retry before throwing exceptions. But this
      * function will not throw the NodeExist exception back to the application. </p> <p> But
@@ -26,11 +26,13 @@ import com.tencent.tubemq.corebase.TBaseConstants;
 import com.tencent.tubemq.server.common.fileconfig.ZKConfig;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.codec.binary.StringUtils;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.KeeperException.NoNodeException;
 import org.apache.zookeeper.KeeperException.NodeExistsException;
+import org.apache.zookeeper.Op;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.data.ACL;
@@ -461,6 +463,32 @@ public class ZKUtil {
         }
     }
 
+    /**
+     * Set the data of a group of existing nodes in one transaction. Either all the nodes are
+     * updated or none of them is; a {@link NoNodeException} is thrown if any node is missing.
+     *
+     * @param zkw     zk reference
+     * @param paths   paths of the nodes
+     * @param dataLst data to set, one item per path
+     * @return true if data set, false if interrupted
+     * @throws KeeperException if unexpected zookeeper exception
+     */
+    public static boolean multiSetData(final ZooKeeperWatcher zkw, final List<String> paths,
+                                    final List<String> dataLst) throws KeeperException {
+        List<Op> ops = new ArrayList<Op>(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            String data = dataLst.get(i);
+            ops.add(Op.setData(paths.get(i),
+                    (data == null ? null : StringUtils.getBytesUtf8(data)), -1));
+        }
+        try {
+            return zkw.getRecoverableZooKeeper().multi(ops) != null;
+        } catch (InterruptedException e) {
+            zkw.interruptedException(e);
+            return false;
+        }
+    }
+
     public static String readData(final ZooKeeperWatcher zkw, final String path)
             throws KeeperException {
         byte[] bytes = ZKUtil.getDataAndWatch(zkw, path);
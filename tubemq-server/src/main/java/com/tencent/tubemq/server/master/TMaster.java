@@ -1213,6 +1213,7 @@ public class TMaster extends HasThread implements MasterService, Stoppable {
                 request.getBrokerDefaultConfInfo(), request.getBrokerTopicSetConfInfoList(),
                 true, request.getBrokerOnline(), overtls);
         processBrokerReportConfigureInfo(brokerInfo, strBuffer);
+        topicPSInfoManager.setReplicaReadInfo(brokerInfo, request.getReplicaReadInfoList());
         if (request.getTakeRemovedTopicInfo()) {
             List<String> removedTopics = request.getRemovedTopicsInfoList();
             logger.info(strBuffer.append("[Broker Report] receive broker confirmed removed topic list is ")
@@ -1801,6 +1802,16 @@ public class TMaster extends HasThread implements MasterService, Stoppable {
                     }
                 }
             }
+            // a follower topic is replicated from its leader, so not published, and its partitions
+            // are only balanced in place of the leader's ones to the groups lagging on them
+            if (topicConfInfoArr.length > 15
+                    && !TStringUtils.isBlank(topicConfInfoArr[15])) {
+                tmpAcceptPublish = false;
+                topicPSInfoManager.setTopicReplica(tmpTopic, brokerInfo,
+                        Integer.parseInt(topicConfInfoArr[15].split(TokenConstants.SEGMENT_SEP)[0]));
+            } else {
+                topicPSInfoManager.removeTopicReplica(tmpTopic, brokerInfo);
+            }
             newTopicInfoMap.put(tmpTopic, new TopicInfo(brokerInfo, tmpTopic,
                     tmpPartNum, tmpNumTopicStores, tmpAcceptPublish, tmpAcceptSubscribe));
         }
@@ -1841,6 +1852,7 @@ public class TMaster extends HasThread implements MasterService, Stoppable {
                     topicInfoMap.put(broker, topicInfo);
                 } else {
                     topicInfoMap.remove(broker);
+                    topicPSInfoManager.removeTopicReplica(topicInfo.getTopic(), broker);
                 }
             } catch (IOException e) {
                 logger.error("Get lock error!", e);
@@ -2448,6 +2460,7 @@ public class TMaster extends HasThread implements MasterService, Stoppable {
                 if (topicInfoList != null) {
                     updateTopicsInternal(broker, topicInfoList, EventType.DISCONNECT);
                 }
+                topicPSInfoManager.removeReplicaReadInfo(broker);
                 defaultBrokerConfManage.resetBrokerReportInfo(broker.getBrokerId());
             }
         }
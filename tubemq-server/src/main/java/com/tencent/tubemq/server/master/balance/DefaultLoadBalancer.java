@@ -160,7 +160,11 @@ public class DefaultLoadBalancer implements LoadBalancer {
                 }
             }
             List<ConsumerInfo> newConsumerList2 = new ArrayList<ConsumerInfo>();
-            Map<String, Partition> psMap = topicPSInfoManager.getPartitionMap(topicSet);
+            // the partitions a group lags on are read from a follower broker, keyed by the
+            // leader partition, a consumer holding either of them keeps the partition
+            Map<String, Partition> psMap = consumerBandInfo.isBandConsume()
+                    ? topicPSInfoManager.getPartitionMap(topicSet)
+                    : topicPSInfoManager.getPartitionMap(group, topicSet);
             Map<String, NodeRebInfo> rebProcessInfoMap = consumerBandInfo.getRebalanceMap();
             for (ConsumerInfo consumer : newConsumerList) {
                 Map<String, List<Partition>> partitions = new HashMap<String, List<Partition>>();
@@ -188,7 +192,8 @@ public class DefaultLoadBalancer implements LoadBalancer {
                         Map<String, Partition> partitionMap = entry.getValue();
                         if (partitionMap != null && !partitionMap.isEmpty()) {
                             for (Partition partition : partitionMap.values()) {
-                                Partition curPart = psMap.remove(partition.getPartitionKey());
+                                Partition curPart = psMap.remove(
+                                        topicPSInfoManager.getLogicalPartitionKey(partition));
                                 if (curPart != null) {
                                     ps.add(curPart);
                                 }
@@ -345,6 +345,40 @@ public class BdbTopicConfEntity implements Serializable {
                         String.valueOf(memCacheFlushIntvl));
     }
 
+    public int getMemCacheBufferCnt() {
+        String atrVal =
+                TStringUtils.getAttrValFrmAttributes(this.attributes,
+                        TokenConstants.TOKEN_MCACHE_BUFFER_CNT);
+        if (atrVal != null) {
+            return Integer.valueOf(atrVal);
+        }
+        return TBaseConstants.META_VALUE_UNDEFINED;
+    }
+
+    public void setMemCacheBufferCnt(final int memCacheBufferCnt) {
+        this.attributes =
+                TStringUtils.setAttrValToAttributes(this.attributes,
+                        TokenConstants.TOKEN_MCACHE_BUFFER_CNT,
+                        String.valueOf(memCacheBufferCnt));
+    }
+
+    public int getReplicaOf() {
+        String atrVal =
+                TStringUtils.getAttrValFrmAttributes(this.attributes,
+                        TokenConstants.TOKEN_REPLICA_OF);
+        if (atrVal != null) {
+            return Integer.valueOf(atrVal);
+        }
+        return TBaseConstants.META_VALUE_UNDEFINED;
+    }
+
+    public void setReplicaOf(final int leaderBrokerId) {
+        this.attributes =
+                TStringUtils.setAttrValToAttributes(this.attributes,
+                        TokenConstants.TOKEN_REPLICA_OF,
+                        String.valueOf(leaderBrokerId));
+    }
+
     public void appendAttributes(String attrKey, String attrVal) {
         this.attributes =
                 TStringUtils.setAttrValToAttributes(this.attributes, attrKey, attrVal);
@@ -375,6 +409,8 @@ public class BdbTopicConfEntity implements Serializable {
                 .append(",\"memCacheMsgCntInK\":").append(getMemCacheMsgCntInK())
                 .append(",\"memCacheMsgSizeInMB\":").append(getMemCacheMsgSizeInMB())
                 .append(",\"memCacheFlushIntvl\":").append(getMemCacheFlushIntvl())
+                .append(",\"memCacheBufferCnt\":").append(getMemCacheBufferCnt())
+                .append(",\"replicaOf\":").append(getReplicaOf())
                 .append(",\"dataPath\":\"").append(dataPath)
                 .append("\",\"createUser\":\"").append(createUser)
                 .append("\",\"createDate\":\"")
@@ -1138,6 +1138,25 @@ public class BrokerConfManage implements Server {
                 } else {
                     sbuffer.append(TokenConstants.ATTR_SEP).append(topicEntity.getMemCacheFlushIntvl());
                 }
+                if (topicEntity.getMemCacheBufferCnt() <= 0) {
+                    sbuffer.append(TokenConstants.ATTR_SEP).append(" ");
+                } else {
+                    sbuffer.append(TokenConstants.ATTR_SEP).append(topicEntity.getMemCacheBufferCnt());
+                }
+                BdbBrokerConfEntity leaderConfEntity = topicEntity.getReplicaOf() < 0
+                        ? null : getBrokerDefaultConfigStoreInfo(topicEntity.getReplicaOf());
+                if (leaderConfEntity == null) {
+                    sbuffer.append(TokenConstants.ATTR_SEP).append(" ");
+                } else {
+                    sbuffer.append(TokenConstants.ATTR_SEP).append(leaderConfEntity.getBrokerId())
+                            .append(TokenConstants.SEGMENT_SEP).append(leaderConfEntity.getBrokerIp())
+                            .append(TokenConstants.SEGMENT_SEP).append(leaderConfEntity.getBrokerPort());
+                }
+                sbuffer.append(TokenConstants.ATTR_SEP);
+                if (!appendReplicaFollowers(topicEntity.getTopicName(),
+                        brokerConfEntity.getBrokerId(), sbuffer)) {
+                    sbuffer.append(" ");
+                }
                 brokerTopicStrConfSet.add(sbuffer.toString());
                 sbuffer.delete(0, sbuffer.length());
             }
@@ -1145,6 +1164,36 @@ public class BrokerConfManage implements Server {
         return brokerTopicStrConfSet;
     }
 
+    /**
+     * Append the follower brokers replicating the topic from the leader broker,
+     * in followerId#followerIp,followerId#followerIp format
+     *
+     * @param topicName
+     * @param leaderBrokerId
+     * @param sbuffer
+     * @return whether any follower is appended
+     */
+    private boolean appendReplicaFollowers(final String topicName, final int leaderBrokerId,
+                                           final StringBuilder sbuffer) {
+        boolean isAppended = false;
+        for (ConcurrentHashMap<String, BdbTopicConfEntity> topicEntityMap
+                : brokerTopicEntityStoreMap.values()) {
+            BdbTopicConfEntity followerEntity = topicEntityMap.get(topicName);
+            if (followerEntity == null
+                    || followerEntity.getReplicaOf() != leaderBrokerId
+                    || followerEntity.getTopicStatusId() >= TStatusConstants.STATUS_TOPIC_SOFT_REMOVE) {
+                continue;
+            }
+            if (isAppended) {
+                sbuffer.append(TokenConstants.ARRAY_SEP);
+            }
+            sbuffer.append(followerEntity.getBrokerId())
+                    .append(TokenConstants.SEGMENT_SEP).append(followerEntity.getBrokerIp());
+            isAppended = true;
+        }
+        return isAppended;
+    }
+
 
     // /////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
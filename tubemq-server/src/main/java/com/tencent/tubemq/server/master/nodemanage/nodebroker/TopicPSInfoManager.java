@@ -18,6 +18,7 @@
 package com.tencent.tubemq.server.master.nodemanage.nodebroker;
 
 import com.tencent.tubemq.corebase.TBaseConstants;
+import com.tencent.tubemq.corebase.TokenConstants;
 import com.tencent.tubemq.corebase.cluster.BrokerInfo;
 import com.tencent.tubemq.corebase.cluster.Partition;
 import com.tencent.tubemq.corebase.cluster.TopicInfo;
@@ -44,6 +45,12 @@ public class TopicPSInfoManager {
     private final ConcurrentHashMap<String/* topic */,
             ConcurrentHashSet<String/* group */>> topicSubInfoMap =
             new ConcurrentHashMap<String, ConcurrentHashSet<String>>();
+    private final ConcurrentHashMap<String/* topic */,
+            ConcurrentHashMap<BrokerInfo/* follower */, Integer/* leader brokerId */>> topicReplicaMap =
+            new ConcurrentHashMap<String, ConcurrentHashMap<BrokerInfo, Integer>>();
+    private final ConcurrentHashMap<BrokerInfo/* reporting broker */,
+            Set<String/* group:leader partition key */>> replicaReadMap =
+            new ConcurrentHashMap<BrokerInfo, Set<String>>();
 
     /**
      * Get groups according to topic
@@ -208,7 +215,8 @@ public class TopicPSInfoManager {
             }
             for (Map.Entry<BrokerInfo, TopicInfo> entry : topicInfoMap.entrySet()) {
                 TopicInfo topicInfo = entry.getValue();
-                if (!topicInfo.isAcceptSubscribe()) {
+                if (!topicInfo.isAcceptSubscribe()
+                        || getReplicaLeaderId(topic, entry.getKey()) != null) {
                     continue;
                 }
                 for (int j = 0; j < topicInfo.getTopicStoreNum(); j++) {
@@ -224,6 +232,59 @@ public class TopicPSInfoManager {
         return partMap;
     }
 
+    /**
+     * Get the partitions of topics for a group, the partitions the group lags on are replaced
+     * by the same partitions of a follower broker, the map is keyed by the leader partition key
+     *
+     * @param group
+     * @param topics
+     * @return
+     */
+    public Map<String, Partition> getPartitionMap(String group, Set<String> topics) {
+        Map<String, Partition> partMap = getPartitionMap(topics);
+        for (Map.Entry<String, Partition> entry : partMap.entrySet()) {
+            if (!isReplicaRead(group, entry.getKey())) {
+                continue;
+            }
+            Partition partition = entry.getValue();
+            BrokerInfo follower = null;
+            for (BrokerInfo broker
+                    : getReplicaBrokers(partition.getTopic(), partition.getBrokerId())) {
+                TopicInfo topicInfo = getTopicInfo(partition.getTopic(), broker);
+                if (topicInfo == null
+                        || !topicInfo.isAcceptSubscribe()
+                        || topicInfo.getTopicStoreNum()
+                        <= partition.getPartitionId() / TBaseConstants.META_STORE_INS_BASE
+                        || topicInfo.getPartitionNum()
+                        <= partition.getPartitionId() % TBaseConstants.META_STORE_INS_BASE) {
+                    continue;
+                }
+                if (follower == null || broker.getBrokerId() < follower.getBrokerId()) {
+                    follower = broker;
+                }
+            }
+            if (follower != null) {
+                entry.setValue(new Partition(follower,
+                        partition.getTopic(), partition.getPartitionId()));
+            }
+        }
+        return partMap;
+    }
+
+    /**
+     * Get the key of the leader partition, a follower partition is the leader's one
+     *
+     * @param partition
+     * @return
+     */
+    public String getLogicalPartitionKey(Partition partition) {
+        Integer leaderId = getReplicaLeaderId(partition.getTopic(), partition.getBroker());
+        if (leaderId == null) {
+            return partition.getPartitionKey();
+        }
+        return getPartitionKey(leaderId, partition.getTopic(), partition.getPartitionId());
+    }
+
     public Set<Partition> getPartitionSet(String topic) {
         Set<Partition> partSet = new HashSet<Partition>();
         ConcurrentHashMap<BrokerInfo, TopicInfo> topicInfoMap =
@@ -234,7 +295,8 @@ public class TopicPSInfoManager {
         for (Map.Entry<BrokerInfo, TopicInfo> entry
                 : topicInfoMap.entrySet()) {
             TopicInfo topicInfo = entry.getValue();
-            if (!topicInfo.isAcceptSubscribe()) {
+            if (!topicInfo.isAcceptSubscribe()
+                    || getReplicaLeaderId(topic, entry.getKey()) != null) {
                 continue;
             }
             for (int j = 0; j < topicInfo.getTopicStoreNum(); j++) {
@@ -278,7 +340,124 @@ public class TopicPSInfoManager {
         return topicInfoList;
     }
 
+    /**
+     * Record a follower broker replicating a topic from the leader broker
+     *
+     * @param topic
+     * @param follower
+     * @param leaderBrokerId
+     */
+    public void setTopicReplica(String topic, BrokerInfo follower, int leaderBrokerId) {
+        ConcurrentHashMap<BrokerInfo, Integer> replicaMap = topicReplicaMap.get(topic);
+        if (replicaMap == null) {
+            ConcurrentHashMap<BrokerInfo, Integer> tmpReplicaMap =
+                    new ConcurrentHashMap<BrokerInfo, Integer>();
+            replicaMap = topicReplicaMap.putIfAbsent(topic, tmpReplicaMap);
+            if (replicaMap == null) {
+                replicaMap = tmpReplicaMap;
+            }
+        }
+        replicaMap.put(follower, leaderBrokerId);
+    }
+
+    public void removeTopicReplica(String topic, BrokerInfo follower) {
+        ConcurrentHashMap<BrokerInfo, Integer> replicaMap = topicReplicaMap.get(topic);
+        if (replicaMap != null) {
+            replicaMap.remove(follower);
+        }
+    }
+
+    /**
+     * Get the follower brokers replicating a topic from the leader broker
+     *
+     * @param topic
+     * @param leaderBrokerId
+     * @return
+     */
+    public List<BrokerInfo> getReplicaBrokers(String topic, int leaderBrokerId) {
+        List<BrokerInfo> replicaBrokers = new ArrayList<BrokerInfo>();
+        ConcurrentHashMap<BrokerInfo, Integer> replicaMap = topicReplicaMap.get(topic);
+        if (replicaMap == null) {
+            return replicaBrokers;
+        }
+        for (Map.Entry<BrokerInfo, Integer> entry : replicaMap.entrySet()) {
+            if (entry.getValue() == leaderBrokerId) {
+                replicaBrokers.add(entry.getKey());
+            }
+        }
+        return replicaBrokers;
+    }
+
+    /**
+     * Set the group partitions a broker reports lagging on the replicated topics, the reads of
+     * these partitions are moved to a follower broker
+     *
+     * @param broker
+     * @param replicaReadInfo group:topic:partitionId of the lagging partitions
+     */
+    public void setReplicaReadInfo(BrokerInfo broker, List<String> replicaReadInfo) {
+        if (replicaReadInfo == null || replicaReadInfo.isEmpty()) {
+            replicaReadMap.remove(broker);
+            return;
+        }
+        Set<String> replicaReads = new HashSet<String>();
+        for (String partStr : replicaReadInfo) {
+            String[] groupTopicPart = partStr.split(TokenConstants.ATTR_SEP);
+            if (groupTopicPart.length != 3) {
+                continue;
+            }
+            Integer leaderId = getReplicaLeaderId(groupTopicPart[1], broker);
+            if (leaderId == null) {
+                leaderId = broker.getBrokerId();
+            }
+            replicaReads.add(new StringBuilder(512).append(groupTopicPart[0])
+                    .append(TokenConstants.ATTR_SEP).append(getPartitionKey(leaderId,
+                            groupTopicPart[1], Integer.parseInt(groupTopicPart[2]))).toString());
+        }
+        replicaReadMap.put(broker, replicaReads);
+    }
+
+    public void removeReplicaReadInfo(BrokerInfo broker) {
+        replicaReadMap.remove(broker);
+    }
+
+    /**
+     * Check if the reads of a group on a leader partition are moved to a follower broker
+     *
+     * @param group
+     * @param partitionKey the leader partition key
+     * @return
+     */
+    public boolean isReplicaRead(String group, String partitionKey) {
+        if (replicaReadMap.isEmpty()) {
+            return false;
+        }
+        String replicaRead = new StringBuilder(512).append(group)
+                .append(TokenConstants.ATTR_SEP).append(partitionKey).toString();
+        for (Set<String> replicaReads : replicaReadMap.values()) {
+            if (replicaReads.contains(replicaRead)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Integer getReplicaLeaderId(String topic, BrokerInfo broker) {
+        ConcurrentHashMap<BrokerInfo, Integer> replicaMap = topicReplicaMap.get(topic);
+        if (replicaMap == null) {
+            return null;
+        }
+        return replicaMap.get(broker);
+    }
+
+    private String getPartitionKey(int brokerId, String topic, int partitionId) {
+        return new StringBuilder(512).append(brokerId).append(TokenConstants.ATTR_SEP)
+                .append(topic).append(TokenConstants.ATTR_SEP).append(partitionId).toString();
+    }
+
     public void clear() {
+        replicaReadMap.clear();
+        topicReplicaMap.clear();
         brokerPubInfoMap.clear();
         topicPubInfoMap.clear();
         topicSubInfoMap.clear();
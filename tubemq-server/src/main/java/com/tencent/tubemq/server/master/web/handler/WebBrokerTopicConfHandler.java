@@ -187,8 +187,17 @@ public class WebBrokerTopicConfHandler {
                         WebParameterUtils.validIntDataParameter("memCacheFlushIntvl",
                                 req.getParameter("memCacheFlushIntvl"),
                                 false, defmemCacheFlushIntvl, 4000);
+                int memCacheBufferCnt =
+                        WebParameterUtils.validIntDataParameter("memCacheBufferCnt",
+                                req.getParameter("memCacheBufferCnt"),
+                                false, TBaseConstants.META_VALUE_UNDEFINED, 2);
+                int replicaOf =
+                        WebParameterUtils.validIntDataParameter("replicaOf",
+                                req.getParameter("replicaOf"),
+                                false, TBaseConstants.META_VALUE_UNDEFINED, 0);
+                checkReplicaLeader(replicaOf, oldEntity.getBrokerId(), strBuffer);
                 int unFlushDataHold = unflushThreshold;
-                String attributes = strBuffer.append(TokenConstants.TOKEN_STORE_NUM)
+                strBuffer.append(TokenConstants.TOKEN_STORE_NUM)
                         .append(TokenConstants.EQ).append(numTopicStores)
                         .append(TokenConstants.SEGMENT_SEP).append(TokenConstants.TOKEN_DATA_UNFLUSHHOLD)
                         .append(TokenConstants.EQ).append(unFlushDataHold)
@@ -197,7 +206,16 @@ public class WebBrokerTopicConfHandler {
                         .append(TokenConstants.SEGMENT_SEP).append(TokenConstants.TOKEN_MCACHE_MSG_SIZE)
                         .append(TokenConstants.EQ).append(memCacheMsgSizeInMB)
                         .append(TokenConstants.SEGMENT_SEP).append(TokenConstants.TOKEN_MCACHE_FLUSH_INTVL)
-                        .append(TokenConstants.EQ).append(memCacheFlushIntvl).toString();
+                        .append(TokenConstants.EQ).append(memCacheFlushIntvl);
+                if (memCacheBufferCnt > 0) {
+                    strBuffer.append(TokenConstants.SEGMENT_SEP).append(TokenConstants.TOKEN_MCACHE_BUFFER_CNT)
+                            .append(TokenConstants.EQ).append(memCacheBufferCnt);
+                }
+                if (replicaOf >= 0) {
+                    strBuffer.append(TokenConstants.SEGMENT_SEP).append(TokenConstants.TOKEN_REPLICA_OF)
+                            .append(TokenConstants.EQ).append(replicaOf);
+                }
+                String attributes = strBuffer.toString();
                 strBuffer.delete(0, strBuffer.length());
                 for (String itemTopicName : bathAddTopicNames) {
                     bathAddBdbTopicEntitys.add(new BdbTopicConfEntity(oldEntity.getBrokerId(),
@@ -426,6 +444,8 @@ public class WebBrokerTopicConfHandler {
                         brokerConfManage.updateBrokerConfChanged(brokerConfEntity.getBrokerId(),
                                 true, false);
                     }
+                    // the leader broker serves the follower brokers in its topic config
+                    markReplicaLeaderChanged(itemBdbTopicEntity.getReplicaOf());
                 }
                 inserted = true;
             }  // for each topic
@@ -569,6 +589,8 @@ public class WebBrokerTopicConfHandler {
                             .append(",\"memCacheMsgSizeInMB\":").append(entity.getMemCacheMsgSizeInMB())
                             .append(",\"memCacheFlushIntvl\":").append(entity.getMemCacheFlushIntvl())
                             .append(",\"memCacheMsgCntInK\":").append(entity.getMemCacheMsgCntInK())
+                            .append(",\"memCacheBufferCnt\":").append(entity.getMemCacheBufferCnt())
+                            .append(",\"replicaOf\":").append(entity.getReplicaOf())
                             .append(",\"createUser\":\"").append(entity.getCreateUser())
                             .append("\",\"createDate\":\"").append(formatter.format(entity.getCreateDate()))
                             .append("\",\"modifyUser\":\"").append(entity.getModifyUser())
@@ -620,6 +642,16 @@ public class WebBrokerTopicConfHandler {
                         strBuffer.append(",\"numPartitions\":").append(topicInfo.getPartitionNum())
                                 .append(",\"numTopicStores\":").append(topicInfo.getTopicStoreNum())
                                 .append(",\"brokerManageStatus\":\"").append(strManageStatus).append("\"");
+                        List<BrokerInfo> replicaBrokers =
+                                topicPSInfoManager.getReplicaBrokers(entity.getTopicName(), entity.getBrokerId());
+                        strBuffer.append(",\"replicaBrokerIds\":[");
+                        for (int i = 0; i < replicaBrokers.size(); i++) {
+                            if (i > 0) {
+                                strBuffer.append(",");
+                            }
+                            strBuffer.append(replicaBrokers.get(i).getBrokerId());
+                        }
+                        strBuffer.append("]");
                     }
                     strBuffer.append("}}");
                 }
@@ -1219,6 +1251,13 @@ public class WebBrokerTopicConfHandler {
             int memCacheFlushIntvl =
                     WebParameterUtils.validIntDataParameter("memCacheFlushIntvl",
                             req.getParameter("memCacheFlushIntvl"), false, TBaseConstants.META_VALUE_UNDEFINED, 4000);
+            int memCacheBufferCnt =
+                    WebParameterUtils.validIntDataParameter("memCacheBufferCnt",
+                            req.getParameter("memCacheBufferCnt"), false, TBaseConstants.META_VALUE_UNDEFINED, 2);
+            // -1 turns a follower topic back to a normal one
+            int replicaOf =
+                    WebParameterUtils.validIntDataParameter("replicaOf",
+                            req.getParameter("replicaOf"), false, TBaseConstants.META_VALUE_UNDEFINED, -1);
             int unFlushDataHold = unflushThreshold;
             List<BdbTopicConfEntity> bathModBdbTopicEntitys = new ArrayList<BdbTopicConfEntity>();
             for (BdbBrokerConfEntity tgtEntity : bathBrokerEntitySet) {
@@ -1302,6 +1341,17 @@ public class WebBrokerTopicConfHandler {
                         newEntity.appendAttributes(TokenConstants.TOKEN_MCACHE_FLUSH_INTVL,
                                 String.valueOf(memCacheFlushIntvl));
                     }
+                    if (memCacheBufferCnt > 0 && memCacheBufferCnt != oldEntity.getMemCacheBufferCnt()) {
+                        foundChange = true;
+                        newEntity.appendAttributes(TokenConstants.TOKEN_MCACHE_BUFFER_CNT,
+                                String.valueOf(memCacheBufferCnt));
+                    }
+                    if (replicaOf >= -1 && replicaOf != oldEntity.getReplicaOf()
+                            && !(replicaOf == -1 && oldEntity.getReplicaOf() < 0)) {
+                        checkReplicaLeader(replicaOf, oldEntity.getBrokerId(), strBuffer);
+                        foundChange = true;
+                        newEntity.setReplicaOf(replicaOf);
+                    }
                     if ((numTopicStores > 0) && (numTopicStores != oldEntity.getNumTopicStores())) {
                         if (numTopicStores < oldEntity.getNumTopicStores()) {
                             throw new Exception(strBuffer
@@ -1389,6 +1439,10 @@ public class WebBrokerTopicConfHandler {
                             brokerConfManage.updateBrokerConfChanged(
                                     brokerConfEntity.getBrokerId(), true, isFastStart);
                         }
+                        if (itemTopicEntity.getReplicaOf() != oldEntity.getReplicaOf()) {
+                            markReplicaLeaderChanged(oldEntity.getReplicaOf());
+                            markReplicaLeaderChanged(itemTopicEntity.getReplicaOf());
+                        }
                     }
                 }
             } catch (Exception ee) {
@@ -1402,4 +1456,31 @@ public class WebBrokerTopicConfHandler {
         }
         return strBuffer;
     }
+
+    private void markReplicaLeaderChanged(final int leaderBrokerId) {
+        if (leaderBrokerId < 0) {
+            return;
+        }
+        BdbBrokerConfEntity leaderConfEntity =
+                brokerConfManage.getBrokerDefaultConfigStoreInfo(leaderBrokerId);
+        if (leaderConfEntity != null && !leaderConfEntity.isConfDataUpdated()) {
+            brokerConfManage.updateBrokerConfChanged(leaderBrokerId, true, true);
+        }
+    }
+
+    private void checkReplicaLeader(final int replicaOf, final int brokerId,
+                                    final StringBuilder strBuffer) throws Exception {
+        if (replicaOf < 0) {
+            return;
+        }
+        if (replicaOf == brokerId) {
+            throw new Exception(strBuffer.append("The replicaOf broker can not be the topic's broker ")
+                    .append(brokerId).append(" itself!").toString());
+        }
+        if (brokerConfManage.getBrokerDefaultConfigStoreInfo(replicaOf) == null) {
+            throw new Exception(strBuffer.append("Not found the replicaOf broker ")
+                    .append(replicaOf).append("'s configure, please confirm the configure first!")
+                    .toString());
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+
+package com.tencent.tubemq.server.broker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.protobuf.ByteString;
+import com.tencent.tubemq.corebase.TErrCodeConstants;
+import com.tencent.tubemq.corebase.TokenConstants;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.SendMessageRequestP2B;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.SendMessageResponseB2P;
+import com.tencent.tubemq.server.broker.metadata.BrokerDefMetadata;
+import com.tencent.tubemq.server.broker.metadata.MetadataManage;
+import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
+import com.tencent.tubemq.server.broker.msgstore.MessageStore;
+import com.tencent.tubemq.server.broker.msgstore.MessageStoreManager;
+import com.tencent.tubemq.server.common.aaaserver.CertifiedResult;
+import com.tencent.tubemq.server.common.aaaserver.SimpleCertificateBrokerHandler;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+
+/***
+ * BrokerServiceServer test of the write admission on the produce path.
+ */
+public class BrokerServiceServerTest {
+    private static final String TOPIC_CONF = "test:1: : : : : : : : : :1:1:1";
+    private MessageStore messageStore;
+    private BrokerServiceServer brokerService;
+
+    @Before
+    public void setup() throws Throwable {
+        BrokerConfig brokerConfig = mock(BrokerConfig.class);
+        when(brokerConfig.getHostName()).thenReturn("127.0.0.1");
+        when(brokerConfig.isWriteAdmissionEnable()).thenReturn(true);
+        when(brokerConfig.getWriteRetryAfterMaxMs()).thenReturn(1000L);
+        MetadataManage metadataManage = mock(MetadataManage.class);
+        when(metadataManage.getTopicMetadata("test")).thenReturn(new TopicMetadata(new BrokerDefMetadata(),
+                TOPIC_CONF.replace(":", TokenConstants.ATTR_SEP)));
+        messageStore = mock(MessageStore.class);
+        when(messageStore.getPendingFlushBytes()).thenReturn(4096L);
+        ConcurrentHashMap<Integer, MessageStore> partStores = new ConcurrentHashMap<Integer, MessageStore>();
+        partStores.put(0, messageStore);
+        Map<String, ConcurrentHashMap<Integer, MessageStore>> messageStores =
+                Collections.singletonMap("test", partStores);
+        MessageStoreManager storeManager = mock(MessageStoreManager.class);
+        when(storeManager.getOrCreateMessageStore("test", 0)).thenReturn(messageStore);
+        when(storeManager.getMessageStores()).thenReturn(messageStores);
+        CertifiedResult certResult = new CertifiedResult();
+        certResult.setSuccessResult("", "");
+        SimpleCertificateBrokerHandler authHandler = mock(SimpleCertificateBrokerHandler.class);
+        when(authHandler.identityValidUserInfo(any(ClientBroker.AuthorizedInfo.class), anyBoolean()))
+                .thenReturn(certResult);
+        when(authHandler.validProduceAuthorizeInfo(anyString(), anyString(), Matchers.<String>any(), anyString()))
+                .thenReturn(certResult);
+        TubeBroker tubeBroker = mock(TubeBroker.class);
+        when(tubeBroker.getMetadataManage()).thenReturn(metadataManage);
+        when(tubeBroker.getStoreManager()).thenReturn(storeManager);
+        when(tubeBroker.getServerAuthHandler()).thenReturn(authHandler);
+        brokerService = new BrokerServiceServer(tubeBroker, brokerConfig);
+    }
+
+    @Test
+    public void rejectOverloadedWrite() throws Throwable {
+        // the write cache is full and its flush needs 120ms more
+        when(messageStore.getAppendWaitTimeMs(anyInt())).thenReturn(120L);
+        SendMessageResponseB2P response = brokerService.sendMessageP2B(buildRequest(), "127.0.0.1", false);
+        Assert.assertFalse(response.getSuccess());
+        Assert.assertEquals(TErrCodeConstants.SERVER_RECEIVE_OVERFLOW, response.getErrCode());
+        Assert.assertEquals(120L, response.getRetryAfterMs());
+        // the hint is bounded by writeRetryAfterMaxMs
+        when(messageStore.getAppendWaitTimeMs(anyInt())).thenReturn(5000L);
+        response = brokerService.sendMessageP2B(buildRequest(), "127.0.0.1", false);
+        Assert.assertEquals(TErrCodeConstants.SERVER_RECEIVE_OVERFLOW, response.getErrCode());
+        Assert.assertEquals(1000L, response.getRetryAfterMs());
+        verify(messageStore, never()).appendMsg(anyLong(), anyInt(), anyInt(),
+                any(byte[].class), anyInt(), anyInt(), anyInt(), anyInt());
+        String statisInfo = brokerService.getWriteAdmissionStatisInfo();
+        Assert.assertTrue(statisInfo.contains("\"rejectCnt\":2,"));
+        Assert.assertTrue(statisInfo.contains("\"pendingFlushBytes\":4096,"));
+        Assert.assertTrue(statisInfo.contains("{\"topicName\":\"test\",\"storeId\":0,\"pendingFlushBytes\":4096}"));
+    }
+
+    @Test
+    public void admitWrite() throws Throwable {
+        when(messageStore.getAppendWaitTimeMs(anyInt())).thenReturn(0L);
+        when(messageStore.appendMsg(anyLong(), anyInt(), anyInt(),
+                any(byte[].class), anyInt(), anyInt(), anyInt(), anyInt())).thenReturn(true);
+        SendMessageResponseB2P response = brokerService.sendMessageP2B(buildRequest(), "127.0.0.1", false);
+        Assert.assertTrue(response.getSuccess());
+        Assert.assertFalse(response.hasRetryAfterMs());
+        // an append overflowing after the admission check also carries the hint
+        when(messageStore.getAppendWaitTimeMs(anyInt())).thenReturn(0L, 50L);
+        when(messageStore.appendMsg(anyLong(), anyInt(), anyInt(),
+                any(byte[].class), anyInt(), anyInt(), anyInt(), anyInt())).thenReturn(false);
+        response = brokerService.sendMessageP2B(buildRequest(), "127.0.0.1", false);
+        Assert.assertEquals(TErrCodeConstants.SERVER_RECEIVE_OVERFLOW, response.getErrCode());
+        Assert.assertEquals(50L, response.getRetryAfterMs());
+        Assert.assertTrue(brokerService.getWriteAdmissionStatisInfo().contains("\"rejectCnt\":0,"));
+    }
+
+    private SendMessageRequestP2B buildRequest() {
+        return SendMessageRequestP2B.newBuilder()
+                .setClientId("producer-1")
+                .setTopicName("test")
+                .setPartitionId(0)
+                .setData(ByteString.copyFrom(new byte[100]))
+                .setFlag(0)
+                .setCheckSum(-1)
+                .setSentAddr(0)
+                .build();
+    }
+}
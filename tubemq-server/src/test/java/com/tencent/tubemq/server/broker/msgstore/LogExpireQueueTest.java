@@ -0,0 +1,59 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore;
+
+import static org.mockito.Mockito.mock;
+
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/***
+ * LogExpireQueue test.
+ */
+public class LogExpireQueueTest {
+
+    @Test
+    public void pollExpiredInOrder() {
+        LogExpireQueue expireQueue = new LogExpireQueue();
+        MessageStore store1 = mock(MessageStore.class);
+        MessageStore store2 = mock(MessageStore.class);
+        MessageStore store3 = mock(MessageStore.class);
+        expireQueue.schedule(store1, 300L);
+        expireQueue.schedule(store2, 100L);
+        expireQueue.schedule(store3, Long.MAX_VALUE);
+        Assert.assertEquals(2, expireQueue.size());
+        // a later expire time keeps the scheduled one, an earlier one replaces it
+        expireQueue.schedule(store2, 500L);
+        Assert.assertEquals(100L, expireQueue.getScheduledTime(store2));
+        expireQueue.schedule(store1, 200L);
+        Assert.assertEquals(200L, expireQueue.getScheduledTime(store1));
+        Assert.assertEquals(2, expireQueue.size());
+        Assert.assertTrue(expireQueue.pollExpired(50L).isEmpty());
+        List<MessageStore> expiredStores = expireQueue.pollExpired(200L);
+        Assert.assertEquals(2, expiredStores.size());
+        Assert.assertSame(store2, expiredStores.get(0));
+        Assert.assertSame(store1, expiredStores.get(1));
+        Assert.assertEquals(0, expireQueue.size());
+        // removed store is not polled
+        expireQueue.schedule(store3, 100L);
+        Assert.assertTrue(expireQueue.remove(store3));
+        Assert.assertFalse(expireQueue.remove(store3));
+        Assert.assertTrue(expireQueue.pollExpired(Long.MAX_VALUE).isEmpty());
+    }
+}
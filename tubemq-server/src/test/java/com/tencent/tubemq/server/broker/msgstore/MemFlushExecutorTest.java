@@ -0,0 +1,110 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/***
+ * MemFlushExecutor test.
+ */
+public class MemFlushExecutorTest {
+
+    @Test
+    public void executeBoundedPerDisk() throws Exception {
+        final int threadsPerDisk = 2;
+        final int taskCnt = 20;
+        MemFlushExecutor flushExecutor = new MemFlushExecutor(threadsPerDisk);
+        final CountDownLatch finished = new CountDownLatch(2 * taskCnt);
+        final AtomicInteger[] runningCnt = {new AtomicInteger(0), new AtomicInteger(0)};
+        final AtomicInteger[] maxRunningCnt = {new AtomicInteger(0), new AtomicInteger(0)};
+        for (int i = 0; i < taskCnt; i++) {
+            for (int disk = 0; disk < 2; disk++) {
+                final int diskIndex = disk;
+                Assert.assertTrue(flushExecutor.execute("/data" + disk, new Runnable() {
+                    @Override
+                    public void run() {
+                        int curCnt = runningCnt[diskIndex].incrementAndGet();
+                        if (curCnt > maxRunningCnt[diskIndex].get()) {
+                            maxRunningCnt[diskIndex].set(curCnt);
+                        }
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        runningCnt[diskIndex].decrementAndGet();
+                        finished.countDown();
+                    }
+                }));
+            }
+        }
+        Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+        // the flushes of a disk are bounded, the disks do not wait for each other
+        for (int disk = 0; disk < 2; disk++) {
+            Assert.assertTrue(maxRunningCnt[disk].get() <= threadsPerDisk);
+            Assert.assertTrue(maxRunningCnt[disk].get() > 0);
+        }
+        String statisInfo = flushExecutor.getStatisInfo();
+        Assert.assertTrue(statisInfo, statisInfo.contains("\"dataPath\":\"/data0\""));
+        Assert.assertTrue(statisInfo, statisInfo.contains("\"dataPath\":\"/data1\""));
+        flushExecutor.close();
+        Assert.assertFalse(flushExecutor.execute("/data0", new Runnable() {
+            @Override
+            public void run() {
+                //
+            }
+        }));
+    }
+
+    @Test
+    public void executeInSubmitOrder() throws Exception {
+        MemFlushExecutor flushExecutor = new MemFlushExecutor(1);
+        final List<Integer> runOrder = new ArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            final int storeId = i;
+            flushExecutor.execute("/data", new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (runOrder) {
+                        runOrder.add(storeId);
+                    }
+                    finished.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, runOrder.get(i).intValue());
+        }
+        // the statistics are added after the flush returns
+        long endTime = System.currentTimeMillis() + 5000;
+        while (!flushExecutor.getStatisInfo().contains("\"flushCnt\":10")
+                && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(flushExecutor.getStatisInfo().contains("\"flushCnt\":10"));
+        flushExecutor.close();
+    }
+}
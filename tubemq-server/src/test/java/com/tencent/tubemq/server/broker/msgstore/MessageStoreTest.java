@@ -0,0 +1,173 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.tencent.tubemq.corebase.TokenConstants;
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.metadata.BrokerDefMetadata;
+import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
+import com.tencent.tubemq.server.broker.msgstore.disk.GetMessageResult;
+import com.tencent.tubemq.server.broker.msgstore.mem.MemCacheAllocator;
+import com.tencent.tubemq.server.broker.msgstore.mem.MsgMemStore;
+import com.tencent.tubemq.server.broker.nodeinfo.ConsumerNodeInfo;
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/***
+ * MessageStore test
+ */
+public class MessageStoreTest {
+    // messages held by a write cache, memCacheMsgCntInK=1
+    private static final int CACHE_MSG_CNT = 512;
+    private File storeDir;
+    private BrokerConfig brokerConfig;
+    private MemCacheAllocator memCacheAllocator;
+    private MessageStoreManager storeManager;
+    // the flush tasks are held until run by the test
+    private final List<Runnable> flushTasks = new ArrayList<Runnable>();
+
+    @Before
+    public void setup() {
+        storeDir = new File("target/message-store-test");
+        FileUtils.deleteQuietly(storeDir);
+        storeDir.mkdirs();
+        brokerConfig = mock(BrokerConfig.class);
+        when(brokerConfig.getPrimaryPath()).thenReturn(storeDir.getPath());
+        when(brokerConfig.getMaxSegmentSize()).thenReturn(1024 * 1024);
+        when(brokerConfig.getMaxIndexSegmentSize())
+                .thenReturn(10000 * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        when(brokerConfig.getIndexTransCount()).thenReturn(1000);
+        MemFlushExecutor memFlushExecutor = mock(MemFlushExecutor.class);
+        when(memFlushExecutor.execute(anyString(), any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                flushTasks.add((Runnable) invocation.getArguments()[1]);
+                return true;
+            }
+        });
+        memCacheAllocator = new MemCacheAllocator(1024 * 1024 * 1024L, 64 * 1024 * 1024L);
+        storeManager = mock(MessageStoreManager.class);
+        when(storeManager.getMemFlushExecutor()).thenReturn(memFlushExecutor);
+        when(storeManager.getMemCacheAllocator()).thenReturn(memCacheAllocator);
+        when(storeManager.getMaxMsgTransferSize()).thenReturn(1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(storeDir);
+    }
+
+    @Test
+    public void appendMsgWithCacheRing() throws Throwable {
+        // a ring of 3 write caches
+        TopicMetadata topicMetadata = new TopicMetadata(new BrokerDefMetadata(),
+                "test:1: : : : : : : : : :1:1: :3".replace(":", TokenConstants.ATTR_SEP));
+        MessageStore messageStore = new MessageStore(storeManager, topicMetadata,
+                0, brokerConfig, 1024 * 1024);
+        final byte[] data = new byte[100];
+        // the full caches are swapped without waiting for their flushes
+        for (int i = 0; i < 3 * CACHE_MSG_CNT; i++) {
+            Assert.assertTrue(messageStore.appendMsg(i, data.length, 0, data, 0, 0, 0, 0));
+        }
+        Assert.assertEquals(2, flushTasks.size());
+        Assert.assertEquals(2, messageStore.getBeingFlushCacheCnt());
+        Assert.assertFalse(messageStore.appendMsg(0, data.length, 0, data, 0, 0, 0, 0));
+        Assert.assertTrue(messageStore.getAppendWaitTimeMs(data.length) > 0);
+        // the unflushed caches are read in order
+        ConsumerNodeInfo consumerNodeInfo = mock(ConsumerNodeInfo.class);
+        for (int i = 0; i < 3; i++) {
+            GetMessageResult result = messageStore.getMessages(300,
+                    (long) i * CACHE_MSG_CNT * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                    0, consumerNodeInfo, "test", 1024 * 1024);
+            Assert.assertTrue(result.isSuccess);
+            Assert.assertEquals(i * CACHE_MSG_CNT,
+                    result.getTransferedMessageList().get(0).getMessageId());
+        }
+        for (Runnable flushTask : flushTasks) {
+            flushTask.run();
+        }
+        Assert.assertEquals(0, messageStore.getBeingFlushCacheCnt());
+        Assert.assertEquals(0, messageStore.getAppendWaitTimeMs(data.length));
+        Assert.assertEquals(messageStore.getDataStoreSize(),
+                messageStore.getPendingFlushBytes() + 2L * CACHE_MSG_CNT
+                        * (DataStoreUtils.STORE_DATA_HEADER_LEN + data.length));
+        Assert.assertTrue(messageStore.appendMsg(0, data.length, 0, data, 0, 0, 0, 0));
+        messageStore.close();
+    }
+
+    @Test
+    public void releaseIdleWriteCaches() throws Throwable {
+        when(brokerConfig.getMemCacheIdleReleaseMs()).thenReturn(1L);
+        // the write cache is flushed every millisecond
+        TopicMetadata topicMetadata = new TopicMetadata(new BrokerDefMetadata(),
+                "test:1: : : : : : : : : :1:1:1".replace(":", TokenConstants.ATTR_SEP));
+        MessageStore messageStore = new MessageStore(storeManager, topicMetadata,
+                0, brokerConfig, 1024 * 1024);
+        // the buffers are allocated when written
+        Assert.assertEquals(0, memCacheAllocator.getUsedSize());
+        final byte[] data = new byte[100];
+        Assert.assertTrue(messageStore.appendMsg(0, data.length, 0, data, 0, 0, 0, 0));
+        final long cacheSize = MsgMemStore.getAllocSize(512 * 1024, CACHE_MSG_CNT);
+        Assert.assertEquals(cacheSize, memCacheAllocator.getTopicUsedSize("test"));
+        Thread.sleep(5);
+        messageStore.flushMemCacheData();
+        Assert.assertEquals(1, flushTasks.size());
+        flushTasks.get(0).run();
+        Assert.assertEquals(cacheSize, messageStore.getWriteCacheAllocatedSize());
+        // the idle store returns its buffers
+        messageStore.flushMemCacheData();
+        Assert.assertEquals(0, messageStore.getWriteCacheAllocatedSize());
+        Assert.assertEquals(0, memCacheAllocator.getTopicUsedSize("test"));
+        Assert.assertEquals(cacheSize, memCacheAllocator.getPooledSize());
+        Assert.assertTrue(messageStore.appendMsg(1, data.length, 0, data, 0, 0, 0, 0));
+        Assert.assertEquals(cacheSize, memCacheAllocator.getUsedSize());
+        messageStore.close();
+        Assert.assertEquals(0, memCacheAllocator.getUsedSize());
+    }
+
+    @Test
+    public void parseRetentionSize() throws Throwable {
+        // the size limit of the topic is shared by its 2 stores
+        TopicMetadata topicMetadata = new TopicMetadata(new BrokerDefMetadata(),
+                "test:1: : : : : :delete,168h,10m:2: : :1:1:1".replace(":", TokenConstants.ATTR_SEP));
+        MessageStore messageStore = new MessageStore(storeManager, topicMetadata,
+                0, brokerConfig, 1024 * 1024);
+        Assert.assertEquals(168 * 3600000L, messageStore.getMaxFileValidDurMs());
+        Assert.assertEquals(5 * 1024 * 1024L, messageStore.getMaxFileValidSize());
+        Assert.assertFalse(messageStore.isOverRetentionSize());
+        messageStore.refreshUnflushThreshold(new TopicMetadata(new BrokerDefMetadata(),
+                "test:1: : : : : :delete,24h:2: : :1:1:1".replace(":", TokenConstants.ATTR_SEP)));
+        Assert.assertEquals(24 * 3600000L, messageStore.getMaxFileValidDurMs());
+        Assert.assertEquals(0L, messageStore.getMaxFileValidSize());
+        messageStore.close();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * ColdSegmentReader test
+ */
+public class ColdSegmentReaderTest {
+    private static final Logger logger = LoggerFactory.getLogger(ColdSegmentReaderTest.class);
+    private File storeDir;
+
+    @Before
+    public void setup() {
+        storeDir = new File("target/cold-segment-reader-test");
+        FileUtils.deleteQuietly(storeDir);
+        storeDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(storeDir);
+    }
+
+    @Test
+    public void readAsFileReadView() throws IOException {
+        final int fileSize = 300 * 1024 + 123;
+        Segment segment = createSegment(0L, fileSize);
+        ColdSegmentReader coldReader = new ColdSegmentReader(0L, 64 * 1024, 2);
+        try {
+            RecordView recordView = new FileReadView(segment, 0L, 0L, fileSize);
+            // unaligned ranges, ranges over the buffer size, and ranges over the end of the file
+            final long[][] ranges = {{100, 10000}, {4096, 8192}, {5000, 200 * 1024},
+                {fileSize - 5000, 10000}, {fileSize, 100}};
+            for (long[] range : ranges) {
+                ByteBuffer expected = ByteBuffer.allocate((int) range[1]);
+                recordView.read(expected, range[0]);
+                ByteBuffer actual = ByteBuffer.allocate((int) range[1]);
+                Assert.assertTrue(coldReader.read(segment, actual, range[0]));
+                Assert.assertEquals(expected.position(), actual.position());
+                Assert.assertTrue(Arrays.equals(expected.array(), actual.array()));
+            }
+            Assert.assertEquals(ranges.length, coldReader.getReadCnt());
+            // the file is read with direct I/O all the time or never
+            Assert.assertTrue(coldReader.getDirectReadCnt() == 0
+                    || coldReader.getDirectReadCnt() == ranges.length);
+            logger.info("Cold read statistics: " + coldReader.getStatisInfo());
+        } finally {
+            coldReader.close();
+            segment.close();
+        }
+    }
+
+    @Test
+    public void isCold() throws IOException {
+        Segment segment = createSegment(1000L, 4096);
+        ColdSegmentReader coldReader = new ColdSegmentReader(10000L, 64 * 1024, 1);
+        try {
+            Assert.assertFalse(coldReader.isCold(segment, 1000L + 4096 + 9999));
+            Assert.assertTrue(coldReader.isCold(segment, 1000L + 4096 + 10000));
+            // the segment being written is always hot
+            segment.setMutable(true);
+            Assert.assertFalse(coldReader.isCold(segment, Long.MAX_VALUE));
+        } finally {
+            coldReader.close();
+            segment.close();
+        }
+    }
+
+    @Test
+    public void busyReadLeftToCaller() throws Exception {
+        final int fileSize = 64 * 1024;
+        final Segment segment = createSegment(0L, fileSize);
+        final ColdSegmentReader coldReader = new ColdSegmentReader(0L, 64 * 1024, 1);
+        final CountDownLatch readingLatch = new CountDownLatch(1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        // a cold read holding the only read permit until released
+        final Segment blockedSegment = Mockito.mock(Segment.class);
+        final Answer<Object> blockedAnswer = new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                readingLatch.countDown();
+                releaseLatch.await();
+                return invocation.getMethod().getName().equals("getFileChannel")
+                        ? segment.getFileChannel() : null;
+            }
+        };
+        Mockito.when(blockedSegment.getDirectChannel(Matchers.<OpenOption>any())).thenAnswer(blockedAnswer);
+        Mockito.when(blockedSegment.getFileChannel()).thenAnswer(blockedAnswer);
+        final Thread blockedThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    coldReader.read(blockedSegment, ByteBuffer.allocate(1024), 0L);
+                } catch (IOException e) {
+                    logger.error("Blocked cold read failure", e);
+                }
+            }
+        };
+        blockedThread.start();
+        try {
+            readingLatch.await();
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            Assert.assertFalse(coldReader.read(segment, buffer, 0L));
+            Assert.assertEquals(0, buffer.position());
+            Assert.assertTrue(coldReader.getStatisInfo().contains("\"busyCnt\":1"));
+            releaseLatch.countDown();
+            blockedThread.join();
+            Assert.assertTrue(coldReader.read(segment, buffer, 0L));
+            Assert.assertFalse(buffer.hasRemaining());
+        } finally {
+            releaseLatch.countDown();
+            coldReader.close();
+            segment.close();
+        }
+    }
+
+    @Test
+    public void directFailureDisablesSegmentOnly() throws IOException {
+        final int fileSize = 64 * 1024;
+        final Segment segment = createSegment(0L, fileSize);
+        final ColdSegmentReader coldReader = new ColdSegmentReader(0L, 64 * 1024, 1);
+        // a segment the file system refuses to open with direct I/O
+        final Segment refusedSegment = Mockito.mock(Segment.class);
+        Mockito.when(refusedSegment.getDirectChannel(Matchers.<OpenOption>any())).thenReturn(null);
+        Mockito.when(refusedSegment.getFileChannel()).thenReturn(segment.getFileChannel());
+        // a segment failing the direct reads, on a closed channel
+        final FileChannel failedChannel = FileChannel.open(segment.getFile().toPath());
+        failedChannel.close();
+        final Segment failedSegment = Mockito.mock(Segment.class);
+        Mockito.when(failedSegment.getDirectChannel(Matchers.<OpenOption>any())).thenReturn(failedChannel);
+        Mockito.when(failedSegment.getFileChannel()).thenReturn(segment.getFileChannel());
+        try {
+            final boolean directEnabled = coldReader.isDirectReadEnabled();
+            for (Segment curSegment : new Segment[]{refusedSegment, failedSegment}) {
+                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                Assert.assertTrue(coldReader.read(curSegment, buffer, 100L));
+                Assert.assertFalse(buffer.hasRemaining());
+                Assert.assertEquals(100 % 251, buffer.get(0));
+            }
+            if (directEnabled) {
+                Mockito.verify(failedSegment).disableDirectRead(Matchers.<Throwable>any());
+            }
+            Assert.assertEquals(directEnabled, coldReader.isDirectReadEnabled());
+            Assert.assertEquals(0, coldReader.getDirectReadCnt());
+        } finally {
+            coldReader.close();
+            segment.close();
+        }
+    }
+
+    /***
+     * Latency of the real-time reads of a recent segment, alone and with catch-up readers
+     * scanning an old segment through the page cache or through the cold reader. To measure
+     * the page cache eviction, run with an old segment larger than the free memory, set by
+     * tubemq.test.coldReadDataSize, after dropping the page cache. Run only when
+     * tubemq.test.benchmark is true.
+     */
+    @Test
+    public void realtimeReadLatencyBenchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("tubemq.test.benchmark"));
+        final long coldSize = Long.getLong("tubemq.test.coldReadDataSize", 32 * 1024 * 1024L);
+        final int hotSize = 4 * 1024 * 1024;
+        final int readCnt = Integer.getInteger("tubemq.test.realtimeReadCnt", 20000);
+        final int catchUpCnt = 2;
+        final Segment coldSegment = createSegment(0L, coldSize);
+        final Segment hotSegment = createSegment(coldSize, hotSize);
+        final ColdSegmentReader coldReader = new ColdSegmentReader(0L, 1024 * 1024, catchUpCnt);
+        try {
+            // warm up
+            readRealtime(hotSegment, hotSize, readCnt);
+            final long[] alone = readRealtime(hotSegment, hotSize, readCnt);
+            final long[] buffered =
+                    readRealtimeWithCatchUp(hotSegment, hotSize, readCnt, coldSegment, null, catchUpCnt);
+            final long[] cold =
+                    readRealtimeWithCatchUp(hotSegment, hotSize, readCnt, coldSegment, coldReader, catchUpCnt);
+            logger.info(new StringBuilder(512).append("Real-time read latency in us of ")
+                    .append(readCnt).append(" reads (p50/p99/p999/max), alone ").append(percentiles(alone))
+                    .append("; with ").append(catchUpCnt).append(" catch-up readers of ")
+                    .append(coldSize / 1024 / 1024).append("MB through page cache ").append(percentiles(buffered))
+                    .append("; through cold reader (direct I/O ").append(coldReader.isDirectReadEnabled())
+                    .append(") ").append(percentiles(cold)).toString());
+            Assert.assertTrue(coldReader.getReadCnt() > 0);
+        } finally {
+            coldReader.close();
+            coldSegment.close();
+            hotSegment.close();
+        }
+    }
+
+    private long[] readRealtimeWithCatchUp(final Segment hotSegment, final int hotSize,
+                                           final int readCnt, final Segment coldSegment,
+                                           final ColdSegmentReader coldReader,
+                                           final int catchUpCnt) throws Exception {
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final AtomicLong catchUpBytes = new AtomicLong(0L);
+        final CountDownLatch startLatch = new CountDownLatch(catchUpCnt);
+        final Thread[] threads = new Thread[catchUpCnt];
+        for (int i = 0; i < catchUpCnt; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    final RecordView recordView = new FileReadView(coldSegment,
+                            0L, 0L, coldSegment.getCommitSize());
+                    final ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+                    startLatch.countDown();
+                    try {
+                        while (!stopped.get()) {
+                            for (long offset = 0; offset < coldSegment.getCommitSize()
+                                    && !stopped.get(); offset += buffer.capacity()) {
+                                buffer.clear();
+                                if (coldReader == null
+                                        || !coldReader.read(coldSegment, buffer, offset)) {
+                                    recordView.read(buffer, offset);
+                                }
+                                catchUpBytes.addAndGet(buffer.position());
+                            }
+                        }
+                    } catch (IOException e) {
+                        logger.error("Catch-up read failure", e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        startLatch.await();
+        try {
+            return readRealtime(hotSegment, hotSize, readCnt);
+        } finally {
+            stopped.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertTrue(catchUpBytes.get() > 0);
+        }
+    }
+
+    private long[] readRealtime(final Segment hotSegment,
+                                final int hotSize, final int readCnt) throws IOException {
+        final RecordView recordView = new FileReadView(hotSegment, 0L, 0L, hotSize);
+        final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        final Random random = new Random(1);
+        final long[] latencies = new long[readCnt];
+        for (int i = 0; i < readCnt; i++) {
+            buffer.clear();
+            final long startTime = System.nanoTime();
+            recordView.read(buffer, random.nextInt(hotSize - buffer.capacity()));
+            latencies[i] = System.nanoTime() - startTime;
+            Assert.assertFalse(buffer.hasRemaining());
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private String percentiles(final long[] latencies) {
+        return new StringBuilder(64)
+                .append(latencies[latencies.length / 2] / 1000).append("/")
+                .append(latencies[(int) (latencies.length * 0.99)] / 1000).append("/")
+                .append(latencies[(int) (latencies.length * 0.999)] / 1000).append("/")
+                .append(latencies[latencies.length - 1] / 1000).toString();
+    }
+
+    private Segment createSegment(final long start, final long size) throws IOException {
+        final File file = new File(storeDir,
+                DataStoreUtils.nameFromOffset(start, DataStoreUtils.DATA_FILE_SUFFIX));
+        Segment segment = new FileSegment(start, file, true, SegmentType.DATA);
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long written = 0L;
+        while (written < size) {
+            buffer.clear();
+            for (int i = 0; i < buffer.capacity(); i++) {
+                buffer.put((byte) ((written + i) % 251));
+            }
+            buffer.flip();
+            buffer.limit((int) Math.min(buffer.capacity(), size - written));
+            written += buffer.remaining();
+            segment.append(buffer);
+        }
+        segment.flush(true);
+        segment.setMutable(false);
+        return segment;
+    }
+}
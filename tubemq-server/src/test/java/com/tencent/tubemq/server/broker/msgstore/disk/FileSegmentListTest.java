@@ -17,18 +17,24 @@
 
 package com.tencent.tubemq.server.broker.msgstore.disk;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /***
  * FileSegmentList test
  */
 public class FileSegmentListTest {
+    private static final Logger logger = LoggerFactory.getLogger(FileSegmentListTest.class);
 
     FileSegmentList fileSegmentList;
 
@@ -94,4 +100,208 @@ public class FileSegmentListTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void delExpiredSegments() throws IOException {
+        File dir = new File("src/test/resource/clear");
+        dir.mkdirs();
+        try {
+            fileSegmentList = new FileSegmentList(dir, SegmentType.DATA,
+                    true, 0L, Long.MAX_VALUE, new StringBuilder());
+            Segment oldSegment = fileSegmentList.last();
+            // only the segment being written, nothing to expire
+            Assert.assertEquals(Long.MAX_VALUE, fileSegmentList.getNextExpireTime(1000L));
+            int dataSize = 10 * 1024 * 1024;
+            oldSegment.append(ByteBuffer.allocate(dataSize));
+            long newOffset = oldSegment.flush(true);
+            oldSegment.setMutable(false);
+            fileSegmentList.append(new FileSegment(newOffset,
+                    new File(dir, DataStoreUtils.nameFromOffset(newOffset,
+                            DataStoreUtils.DATA_FILE_SUFFIX)), SegmentType.DATA));
+            long lastModified = System.currentTimeMillis() - 10000L;
+            oldSegment.getFile().setLastModified(lastModified);
+            lastModified = oldSegment.getFile().lastModified();
+            Assert.assertEquals(lastModified + 1000L + 1,
+                    fileSegmentList.getNextExpireTime(1000L));
+            Assert.assertTrue(fileSegmentList.checkExpiredSegments(System.currentTimeMillis(), 1000L));
+            Assert.assertEquals(0L, fileSegmentList.getNextExpireTime(1000L));
+            // deleted chunk by chunk under the delete limiter
+            long reclaimedSize = fileSegmentList.delExpiredSegments(new StringBuilder(),
+                    RateLimiter.create(1024 * 1024 * 1024L));
+            Assert.assertEquals(dataSize, reclaimedSize);
+            Assert.assertFalse(oldSegment.getFile().exists());
+            Assert.assertEquals(1, fileSegmentList.getView().size());
+            Assert.assertEquals(Long.MAX_VALUE, fileSegmentList.getNextExpireTime(1000L));
+        } finally {
+            if (fileSegmentList != null) {
+                fileSegmentList.close();
+            }
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void expireOverSize() throws IOException {
+        File dir = new File("src/test/resource/oversize");
+        dir.mkdirs();
+        try {
+            fileSegmentList = new FileSegmentList(dir, SegmentType.DATA,
+                    true, 0L, Long.MAX_VALUE, new StringBuilder());
+            long baseTime = System.currentTimeMillis() / 1000 * 1000 - 10000L;
+            Segment[] segments = new Segment[3];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = fileSegmentList.last();
+                segments[i].append(ByteBuffer.allocate(1024));
+                long newOffset = segments[i].flush(true);
+                if (i < segments.length - 1) {
+                    segments[i].setMutable(false);
+                    segments[i].getFile().setLastModified(baseTime + i * 2000L);
+                    fileSegmentList.append(new FileSegment(newOffset,
+                            new File(dir, DataStoreUtils.nameFromOffset(newOffset,
+                                    DataStoreUtils.DATA_FILE_SUFFIX)), SegmentType.DATA));
+                }
+            }
+            long firstTime = segments[0].getFile().lastModified();
+            long secondTime = segments[1].getFile().lastModified();
+            Assert.assertEquals(firstTime, fileSegmentList.getOldestFileTime());
+            Assert.assertEquals(-1L, fileSegmentList.getSizeExpireTime(0L));
+            Assert.assertEquals(-1L, fileSegmentList.getSizeExpireTime(3072L));
+            Assert.assertEquals(firstTime, fileSegmentList.getSizeExpireTime(2048L));
+            // the last segment is kept even if it is over the size
+            Assert.assertEquals(secondTime, fileSegmentList.getSizeExpireTime(100L));
+            Assert.assertTrue(fileSegmentList.checkExpiredSegmentsBefore(firstTime));
+            Assert.assertTrue(segments[0].isExpired());
+            Assert.assertFalse(segments[1].isExpired());
+            Assert.assertEquals(secondTime, fileSegmentList.getOldestFileTime());
+            Assert.assertEquals(1024L,
+                    fileSegmentList.delExpiredSegments(new StringBuilder(), null));
+            Assert.assertEquals(-1L, fileSegmentList.getSizeExpireTime(2048L));
+        } finally {
+            if (fileSegmentList != null) {
+                fileSegmentList.close();
+            }
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void findSegmentWithCursor() throws IOException {
+        File dir = new File("src/test/resource/cursor");
+        dir.mkdirs();
+        try {
+            fileSegmentList = createSegmentList(dir, 3, 1024);
+            List<Segment> segments = fileSegmentList.getView();
+            SegmentCursor cursor = new SegmentCursor();
+            Assert.assertSame(segments.get(0), fileSegmentList.findSegment(10L, cursor));
+            Assert.assertEquals(0, cursor.getIndex(fileSegmentList.getView()));
+            Assert.assertSame(segments.get(1), fileSegmentList.findSegment(1030L, cursor));
+            Assert.assertEquals(1, cursor.getIndex(fileSegmentList.getView()));
+            Assert.assertSame(segments.get(1), fileSegmentList.findSegment(2047L, cursor));
+            Assert.assertNull(fileSegmentList.findSegment(3072L, cursor));
+            // the cached position is dropped once the list is changed
+            File file = new File(dir,
+                    DataStoreUtils.nameFromOffset(3072L, DataStoreUtils.DATA_FILE_SUFFIX));
+            Segment newSegment = new FileSegment(3072L, file, SegmentType.DATA);
+            newSegment.append(ByteBuffer.allocate(1024));
+            newSegment.flush(true);
+            fileSegmentList.append(newSegment);
+            Assert.assertEquals(-1, cursor.getIndex(fileSegmentList.getView()));
+            Assert.assertSame(newSegment, fileSegmentList.findSegment(3072L, cursor));
+            fileSegmentList.delete(segments.get(0));
+            Assert.assertEquals(-1, cursor.getIndex(fileSegmentList.getView()));
+            Assert.assertSame(segments.get(2), fileSegmentList.findSegment(2048L, cursor));
+            Assert.assertEquals(1, cursor.getIndex(fileSegmentList.getView()));
+            segments.get(0).close();
+        } finally {
+            clearSegmentList(dir);
+        }
+    }
+
+    @Test
+    public void findSegmentBenchmark() throws IOException {
+        final int maxSegmentCnt = Integer.getInteger("tubemq.test.segmentCnt", 4096);
+        final int lookupCnt = 1000000;
+        final int segmentSize = 1024;
+        File dir = new File("src/test/resource/lookup");
+        for (int segmentCnt = 16; segmentCnt <= maxSegmentCnt; segmentCnt *= 16) {
+            dir.mkdirs();
+            try {
+                fileSegmentList = createSegmentList(dir, segmentCnt, segmentSize);
+                final long maxOffset = (long) segmentCnt * segmentSize;
+                final Random random = new Random(segmentCnt);
+                // random reads are searched, each consumer reads forward by 128 bytes
+                long beginTime = System.nanoTime();
+                for (int i = 0; i < lookupCnt; i++) {
+                    long offset = (long) (random.nextDouble() * maxOffset);
+                    Segment segment = fileSegmentList.findSegment(offset);
+                    Assert.assertEquals(offset - offset % segmentSize, segment.getStart());
+                }
+                final long randomTime = System.nanoTime() - beginTime;
+                beginTime = System.nanoTime();
+                for (int i = 0; i < lookupCnt; i++) {
+                    long offset = (i * 128L) % maxOffset;
+                    Segment segment = fileSegmentList.findSegment(offset);
+                    Assert.assertEquals(offset - offset % segmentSize, segment.getStart());
+                }
+                final long searchTime = System.nanoTime() - beginTime;
+                final SegmentCursor cursor = new SegmentCursor();
+                beginTime = System.nanoTime();
+                for (int i = 0; i < lookupCnt; i++) {
+                    long offset = (i * 128L) % maxOffset;
+                    Segment segment = fileSegmentList.findSegment(offset, cursor);
+                    Assert.assertEquals(offset - offset % segmentSize, segment.getStart());
+                }
+                final long cursorTime = System.nanoTime() - beginTime;
+                logger.info("Lookup " + lookupCnt + " offsets in " + segmentCnt
+                        + " segments, random search " + randomTime / lookupCnt
+                        + "ns/op, sequential search " + searchTime / lookupCnt
+                        + "ns/op, sequential with cursor " + cursorTime / lookupCnt + "ns/op");
+            } finally {
+                clearSegmentList(dir);
+            }
+        }
+    }
+
+    private FileSegmentList createSegmentList(final File dir, final int segmentCnt,
+                                              final int segmentSize) throws IOException {
+        for (int i = 0; i < segmentCnt; i++) {
+            File file = new File(dir, DataStoreUtils.nameFromOffset(
+                    (long) i * segmentSize, DataStoreUtils.DATA_FILE_SUFFIX));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(segmentSize);
+            } finally {
+                raf.close();
+            }
+        }
+        // the last file is loaded as the mutable one
+        return new FileSegmentList(dir, SegmentType.DATA,
+                true, 0L, Long.MAX_VALUE, new StringBuilder());
+    }
+
+    private void clearSegmentList(final File dir) {
+        if (fileSegmentList != null) {
+            fileSegmentList.close();
+            fileSegmentList = null;
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
 }
@@ -0,0 +1,398 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.disk;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.msgstore.MessageStore;
+import com.tencent.tubemq.server.broker.msgstore.mem.MsgMemStatisInfo;
+import com.tencent.tubemq.server.broker.msgstore.mem.MsgMemStore;
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * MsgFileStore test
+ */
+public class MsgFileStoreTest {
+    private static final Logger logger = LoggerFactory.getLogger(MsgFileStoreTest.class);
+    private File storeDir;
+
+    @Before
+    public void setup() {
+        storeDir = new File("target/msg-file-store-test");
+        FileUtils.deleteQuietly(storeDir);
+        storeDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(storeDir);
+    }
+
+    @Test
+    public void getContiguousReadSize() {
+        ByteBuffer indexBuffer = ByteBuffer.allocate(4 * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        putIndex(indexBuffer, 0L, 100);
+        putIndex(indexBuffer, 100L, 100);
+        putIndex(indexBuffer, 200L, 100);
+        putIndex(indexBuffer, 400L, 100);
+        indexBuffer.flip();
+        // position after the first entry, as getMessages does
+        indexBuffer.position(DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        Assert.assertEquals(300,
+                MsgFileStore.getContiguousReadSize(indexBuffer, 0L, 100, 1000L, 1000));
+        Assert.assertEquals(200,
+                MsgFileStore.getContiguousReadSize(indexBuffer, 0L, 100, 1000L, 250));
+        Assert.assertEquals(200,
+                MsgFileStore.getContiguousReadSize(indexBuffer, 0L, 100, 250L, 1000));
+        // the current message is always read
+        Assert.assertEquals(100,
+                MsgFileStore.getContiguousReadSize(indexBuffer, 0L, 100, 1000L, 10));
+        Assert.assertEquals(DataStoreUtils.STORE_INDEX_HEAD_LEN, indexBuffer.position());
+    }
+
+    @Test
+    public void getIndexOffsetByTime() throws Throwable {
+        final int msgCnt = 3000;
+        final long baseTime = 1000000L;
+        MessageStore messageStore = mock(MessageStore.class);
+        when(messageStore.getStoreKey()).thenReturn("test-0");
+        when(messageStore.getFileMsgSizeStatisInfo()).thenReturn(new MsgFileStatisInfo());
+        when(messageStore.getUnflushThreshold()).thenReturn(1000);
+        when(messageStore.getUnflushInterval()).thenReturn(10000);
+        BrokerConfig brokerConfig = new BrokerConfig();
+        MsgFileStore msgFileStore =
+                new MsgFileStore(messageStore, brokerConfig, storeDir.getPath(), 0L);
+        final StringBuilder sb = new StringBuilder(512);
+        final int msgSize = DataStoreUtils.STORE_DATA_HEADER_LEN + 16;
+        ByteBuffer buffer = ByteBuffer.allocate(msgSize);
+        for (int i = 0; i < msgCnt; i++) {
+            buffer.clear();
+            buffer.putLong(DataStoreUtils.STORE_HEADER_POS_QUEUE_LOGICOFF,
+                    (long) i * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+            // one message every 10 milliseconds
+            msgFileStore.appendMsg(0, 0, baseTime + i * 10L,
+                    (long) i * msgSize, msgSize, buffer, sb);
+        }
+        Assert.assertEquals(3, msgFileStore.getTimeIndexEntryCount());
+        checkIndexOffsetByTime(msgFileStore, baseTime, msgCnt);
+        msgFileStore.close();
+        // the time index is rebuilt when the store is reloaded
+        msgFileStore = new MsgFileStore(messageStore, brokerConfig, storeDir.getPath(), 0L);
+        Assert.assertEquals(1, msgFileStore.getTimeIndexEntryCount());
+        checkIndexOffsetByTime(msgFileStore, baseTime, msgCnt);
+        msgFileStore.close();
+    }
+
+    @Test
+    public void getFilterCandidateOffset() throws Throwable {
+        MessageStore messageStore = mock(MessageStore.class);
+        when(messageStore.getStoreKey()).thenReturn("test-0");
+        when(messageStore.getFileMsgSizeStatisInfo()).thenReturn(new MsgFileStatisInfo());
+        when(messageStore.getUnflushThreshold()).thenReturn(1);
+        when(messageStore.getUnflushInterval()).thenReturn(10000);
+        BrokerConfig brokerConfig = new BrokerConfig();
+        MsgFileStore msgFileStore =
+                new MsgFileStore(messageStore, brokerConfig, storeDir.getPath(), 0L);
+        final StringBuilder sb = new StringBuilder(512);
+        final int msgSize = DataStoreUtils.STORE_DATA_HEADER_LEN + 16;
+        final int blockRecordCnt = DataStoreUtils.STORE_KEY_FILTER_BLOCK_RECORDS;
+        ByteBuffer buffer = ByteBuffer.allocate(msgSize);
+        for (int i = 0; i < 4 * blockRecordCnt; i++) {
+            buffer.clear();
+            buffer.putLong(DataStoreUtils.STORE_HEADER_POS_QUEUE_LOGICOFF,
+                    (long) i * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+            // key 2 only in the third block
+            int keyCode = (i / blockRecordCnt == 2) ? 2 : 1;
+            msgFileStore.appendMsg(0, keyCode, System.currentTimeMillis(),
+                    (long) i * msgSize, msgSize, buffer, sb);
+        }
+        checkFilterCandidateOffset(msgFileStore, blockRecordCnt);
+        msgFileStore.close();
+        // the filter of the last segment is rebuilt when the store is reloaded
+        msgFileStore = new MsgFileStore(messageStore, brokerConfig, storeDir.getPath(), 0L);
+        checkFilterCandidateOffset(msgFileStore, blockRecordCnt);
+        msgFileStore.close();
+    }
+
+    @Test
+    public void appendMsgs() throws Throwable {
+        final int msgCnt = 1000;
+        MessageStore messageStore = mockMessageStore(100);
+        BrokerConfig brokerConfig = mock(BrokerConfig.class);
+        when(brokerConfig.getMaxSegmentSize()).thenReturn(20000);
+        when(brokerConfig.getMaxIndexSegmentSize())
+                .thenReturn(300 * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        File singleDir = new File(storeDir, "single");
+        File bulkDir = new File(storeDir, "bulk");
+        MsgFileStore singleStore =
+                new MsgFileStore(messageStore, brokerConfig, singleDir.getPath(), 0L);
+        MsgFileStore bulkStore =
+                new MsgFileStore(messageStore, brokerConfig, bulkDir.getPath(), 0L);
+        MsgMemStore msgMemStore = new MsgMemStore(1024 * 1024, msgCnt, brokerConfig);
+        msgMemStore.resetStartPos(0L, 0L);
+        final MsgMemStatisInfo msgMemStatisInfo = new MsgMemStatisInfo();
+        final StringBuilder sb = new StringBuilder(512);
+        final Random random = new Random(1);
+        final long baseTime = 1000000L;
+        long dataOffset = 0L;
+        for (int i = 0; i < msgCnt; i++) {
+            ByteBuffer entry = createEntry(random, random.nextInt(100));
+            Assert.assertTrue(msgMemStore.appendMsg(msgMemStatisInfo,
+                    i % 3, i % 5, baseTime + i, entry.remaining(), entry));
+            final int msgSize = entry.remaining();
+            singleStore.appendMsg(i % 3, i % 5, baseTime + i, dataOffset, msgSize, entry, sb);
+            dataOffset += msgSize;
+        }
+        // the bulk flush writes the same files as the message by message appends
+        msgMemStore.flush(bulkStore, sb);
+        msgMemStore.close();
+        Assert.assertEquals(singleStore.getDataMaxOffset(), bulkStore.getDataMaxOffset());
+        Assert.assertEquals(singleStore.getIndexMaxOffset(), bulkStore.getIndexMaxOffset());
+        Assert.assertEquals(singleStore.getTimeIndexEntryCount(), bulkStore.getTimeIndexEntryCount());
+        singleStore.close();
+        bulkStore.close();
+        File singleDataDir = new File(singleDir, "test-0");
+        File bulkDataDir = new File(bulkDir, "test-0");
+        Assert.assertTrue(singleDataDir.list().length > 3);
+        assertSameFiles(singleDataDir, bulkDataDir);
+    }
+
+    @Test
+    public void appendMsgsBenchmark() throws Throwable {
+        final int msgCnt = Integer.getInteger("tubemq.test.flushMsgCnt", 20000);
+        final int payloadSize = 1024;
+        MessageStore messageStore = mockMessageStore(1000);
+        BrokerConfig brokerConfig = new BrokerConfig();
+        MsgFileStore singleStore = new MsgFileStore(messageStore,
+                brokerConfig, new File(storeDir, "single").getPath(), 0L);
+        MsgFileStore bulkStore = new MsgFileStore(messageStore,
+                brokerConfig, new File(storeDir, "bulk").getPath(), 0L);
+        MsgMemStore msgMemStore = new MsgMemStore(msgCnt
+                * (DataStoreUtils.STORE_DATA_HEADER_LEN + payloadSize + 64), msgCnt, brokerConfig);
+        msgMemStore.resetStartPos(0L, 0L);
+        final MsgMemStatisInfo msgMemStatisInfo = new MsgMemStatisInfo();
+        final StringBuilder sb = new StringBuilder(512);
+        final Random random = new Random(1);
+        final List<ByteBuffer> entries = new ArrayList<>(msgCnt);
+        for (int i = 0; i < msgCnt; i++) {
+            ByteBuffer entry = createEntry(random, payloadSize);
+            msgMemStore.appendMsg(msgMemStatisInfo, 0, i % 5,
+                    System.currentTimeMillis(), entry.remaining(), entry);
+            entries.add(entry);
+        }
+        final double totalMb = msgMemStore.getCurDataCacheSize() / 1024.0 / 1024.0;
+        // message by message, with a copy of each message as the cache flush did
+        long startTime = System.nanoTime();
+        long dataOffset = 0L;
+        for (int i = 0; i < msgCnt; i++) {
+            ByteBuffer entry = entries.get(i);
+            byte[] tmpArray = new byte[entry.remaining()];
+            entry.get(tmpArray);
+            singleStore.appendMsg(0, i % 5, System.currentTimeMillis(),
+                    dataOffset, tmpArray.length, ByteBuffer.wrap(tmpArray), sb);
+            dataOffset += tmpArray.length;
+        }
+        final long singleTimeMs = (System.nanoTime() - startTime) / 1000000L;
+        startTime = System.nanoTime();
+        msgMemStore.flush(bulkStore, sb);
+        final long bulkTimeMs = (System.nanoTime() - startTime) / 1000000L;
+        Assert.assertEquals(singleStore.getDataMaxOffset(), bulkStore.getDataMaxOffset());
+        // producers are held by a full cache for the flush time of the previous cache
+        logger.info(new StringBuilder(256).append("Flush ").append((long) totalMb)
+                .append("MB of ").append(msgCnt).append(" messages, message by message wast time ")
+                .append(singleTimeMs).append("ms (")
+                .append((long) (totalMb * 1000 / Math.max(1, singleTimeMs)))
+                .append(" MB/s), bulk wast time ").append(bulkTimeMs).append("ms (")
+                .append((long) (totalMb * 1000 / Math.max(1, bulkTimeMs))).append(" MB/s)").toString());
+        msgMemStore.close();
+        singleStore.close();
+        bulkStore.close();
+    }
+
+    @Test
+    public void keyBlockFilterFile() throws IOException {
+        final int blockRecordCnt = 4;
+        final long segStart = 100L * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        MsgKeyBlockFilter filter = new MsgKeyBlockFilter(segStart, blockRecordCnt, 2);
+        for (int i = 0; i < 10; i++) {
+            filter.add(segStart + (long) i * DataStoreUtils.STORE_INDEX_HEAD_LEN, i < 8 ? 5 : 7);
+        }
+        Assert.assertEquals(3, filter.getBlockCnt());
+        File filterFile = new File(storeDir, DataStoreUtils.nameFromOffset(segStart,
+                DataStoreUtils.FILTER_FILE_SUFFIX));
+        filter.writeToFile(filterFile);
+        // mismatched record count or layout is not loaded
+        Assert.assertNull(MsgKeyBlockFilter.loadFromFile(filterFile, segStart, 11, blockRecordCnt, 2));
+        Assert.assertNull(MsgKeyBlockFilter.loadFromFile(filterFile, segStart, 10, blockRecordCnt, 4));
+        MsgKeyBlockFilter loadFilter =
+                MsgKeyBlockFilter.loadFromFile(filterFile, segStart, 10, blockRecordCnt, 2);
+        Assert.assertNotNull(loadFilter);
+        Assert.assertEquals(filter.getEndOffset(), loadFilter.getEndOffset());
+        int[] keyBitPositions =
+                MsgKeyBlockFilter.getKeyBitPositions(Collections.singleton(7), 2);
+        Assert.assertEquals(segStart + 8L * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                loadFilter.getNextCandidateOffset(segStart, Long.MAX_VALUE, keyBitPositions));
+        // the skip stops before a block crossing the limit offset
+        Assert.assertEquals(segStart + 4L * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                loadFilter.getNextCandidateOffset(segStart,
+                        segStart + 6L * DataStoreUtils.STORE_INDEX_HEAD_LEN, keyBitPositions));
+    }
+
+    private MessageStore mockMessageStore(int unflushThreshold) {
+        MessageStore messageStore = mock(MessageStore.class);
+        when(messageStore.getStoreKey()).thenReturn("test-0");
+        when(messageStore.getFileMsgSizeStatisInfo()).thenReturn(new MsgFileStatisInfo());
+        when(messageStore.getUnflushThreshold()).thenReturn(unflushThreshold);
+        when(messageStore.getUnflushInterval()).thenReturn(10000);
+        return messageStore;
+    }
+
+    private ByteBuffer createEntry(Random random, int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        ByteBuffer entry = ByteBuffer.allocate(DataStoreUtils.STORE_DATA_HEADER_LEN + payloadSize);
+        entry.putInt(DataStoreUtils.STORE_DATA_PREFX_LEN + payloadSize);
+        entry.putInt(DataStoreUtils.STORE_DATA_TOKER_BEGIN_VALUE);
+        entry.position(DataStoreUtils.STORE_DATA_HEADER_LEN);
+        entry.put(payload);
+        entry.flip();
+        return entry;
+    }
+
+    private void assertSameFiles(File expectDir, File actualDir) throws IOException {
+        File[] expectFiles = expectDir.listFiles();
+        Assert.assertNotNull(expectFiles);
+        Assert.assertEquals(expectFiles.length, actualDir.list().length);
+        for (File expectFile : expectFiles) {
+            File actualFile = new File(actualDir, expectFile.getName());
+            if (expectFile.isDirectory()) {
+                assertSameFiles(expectFile, actualFile);
+            } else {
+                Assert.assertTrue(expectFile.getName(),
+                        FileUtils.contentEquals(expectFile, actualFile));
+            }
+        }
+    }
+
+    private void checkFilterCandidateOffset(MsgFileStore msgFileStore, int blockRecordCnt) {
+        final long blockSize = (long) blockRecordCnt * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        final long maxOffset = msgFileStore.getIndexMaxHighOffset();
+        Assert.assertEquals(4 * blockSize, maxOffset);
+        Assert.assertEquals(0L, msgFileStore.getFilterCandidateOffset(0L,
+                Long.MAX_VALUE, Collections.singleton(1)));
+        Assert.assertEquals(2 * blockSize, msgFileStore.getFilterCandidateOffset(0L,
+                Long.MAX_VALUE, Collections.singleton(2)));
+        Assert.assertEquals(2 * blockSize + 28L, msgFileStore.getFilterCandidateOffset(2 * blockSize + 28L,
+                Long.MAX_VALUE, Collections.singleton(2)));
+        Assert.assertEquals(maxOffset, msgFileStore.getFilterCandidateOffset(3 * blockSize,
+                Long.MAX_VALUE, Collections.singleton(2)));
+        // the skip is limited by the limit offset
+        Assert.assertEquals(blockSize, msgFileStore.getFilterCandidateOffset(0L,
+                blockSize + 28L, Collections.singleton(2)));
+    }
+
+    private void checkIndexOffsetByTime(MsgFileStore msgFileStore, long baseTime, int msgCnt) {
+        Assert.assertEquals(0L, msgFileStore.getIndexOffsetByTime(0L));
+        Assert.assertEquals(0L, msgFileStore.getIndexOffsetByTime(baseTime));
+        Assert.assertEquals(2L * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                msgFileStore.getIndexOffsetByTime(baseTime + 15L));
+        Assert.assertEquals(1024L * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                msgFileStore.getIndexOffsetByTime(baseTime + 10240L));
+        Assert.assertEquals(2500L * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                msgFileStore.getIndexOffsetByTime(baseTime + 24991L));
+        Assert.assertEquals((long) msgCnt * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                msgFileStore.getIndexOffsetByTime(baseTime + msgCnt * 10L));
+    }
+
+    /***
+     * Compare reading a segment message by message with reading contiguous runs.
+     * Drop the page cache before running to measure the cold cache case,
+     * the data size is set by tubemq.test.readAheadDataSize.
+     */
+    @Test
+    public void readAheadThroughput() throws IOException {
+        final int msgSize = 1024;
+        final int runSize = 512 * 1024;
+        final long dataSize = Long.getLong("tubemq.test.readAheadDataSize", 16 * 1024 * 1024L);
+        final File file = new File(storeDir, DataStoreUtils.nameFromOffset(0L, DataStoreUtils.DATA_FILE_SUFFIX));
+        Segment segment = new FileSegment(0L, file, true, SegmentType.DATA);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(runSize);
+            for (long written = 0; written < dataSize; written += runSize) {
+                buf.clear();
+                segment.append(buf);
+            }
+            segment.flush(true);
+            final long totalSize = segment.getCachedSize();
+            RecordView recordView = new FileReadView(segment, 0L, 0L, totalSize);
+            // one read per message
+            ByteBuffer dataBuffer = ByteBuffer.allocate(msgSize);
+            long startTime = System.currentTimeMillis();
+            long readSize = 0L;
+            for (long offset = 0; offset < totalSize; offset += msgSize) {
+                dataBuffer.clear();
+                recordView.read(dataBuffer, offset);
+                readSize += dataBuffer.position();
+            }
+            long singleWastTime = Math.max(1L, System.currentTimeMillis() - startTime);
+            Assert.assertEquals(totalSize, readSize);
+            // one read per contiguous run
+            dataBuffer = ByteBuffer.allocate(runSize);
+            startTime = System.currentTimeMillis();
+            readSize = 0L;
+            for (long offset = 0; offset < totalSize; offset += runSize) {
+                dataBuffer.clear();
+                recordView.read(dataBuffer, offset);
+                readSize += dataBuffer.position();
+            }
+            long runWastTime = Math.max(1L, System.currentTimeMillis() - startTime);
+            Assert.assertEquals(totalSize, readSize);
+            logger.info("Read " + totalSize / 1024 / 1024 + "MB, per message "
+                    + totalSize * 1000 / 1024 / 1024 / singleWastTime + "MB/s, wast time "
+                    + singleWastTime + "ms; per contiguous run "
+                    + totalSize * 1000 / 1024 / 1024 / runWastTime + "MB/s, wast time "
+                    + runWastTime + "ms");
+        } finally {
+            segment.close();
+        }
+    }
+
+    private void putIndex(ByteBuffer indexBuffer, long dataOffset, int dataSize) {
+        indexBuffer.putInt(1);
+        indexBuffer.putLong(dataOffset);
+        indexBuffer.putInt(dataSize);
+        indexBuffer.putInt(0);
+        indexBuffer.putLong(System.currentTimeMillis());
+    }
+}
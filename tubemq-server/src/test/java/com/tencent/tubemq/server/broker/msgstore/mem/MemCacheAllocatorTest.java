@@ -0,0 +1,62 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.mem;
+
+import java.nio.ByteBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/***
+ * MemCacheAllocator test.
+ */
+public class MemCacheAllocatorTest {
+
+    @Test
+    public void allocateInBudget() {
+        MemCacheAllocator allocator = new MemCacheAllocator(3000, 2000);
+        ByteBuffer buffer1 = allocator.allocate("test1", 1000, false);
+        ByteBuffer buffer2 = allocator.allocate("test2", 1000, false);
+        Assert.assertNotNull(buffer1);
+        Assert.assertNotNull(buffer2);
+        Assert.assertFalse(allocator.isAvailable(2000));
+        Assert.assertNull(allocator.allocate("test1", 2000, false));
+        // a forced allocation exceeds the budget
+        ByteBuffer buffer3 = allocator.allocate("test1", 2000, true);
+        Assert.assertEquals(4000, allocator.getUsedSize());
+        Assert.assertEquals(3000, allocator.getTopicUsedSize("test1"));
+        Assert.assertEquals(1000, allocator.getTopicUsedSize("test2"));
+        allocator.release("test1", buffer3);
+        Assert.assertEquals(2000, allocator.getUsedSize());
+        Assert.assertEquals(0, allocator.getPooledSize());
+        // the released buffers are pooled and reused
+        allocator.release("test1", buffer1);
+        Assert.assertEquals(1000, allocator.getPooledSize());
+        Assert.assertSame(buffer1, allocator.allocate("test2", 1000, false));
+        Assert.assertEquals(0, allocator.getPooledSize());
+        Assert.assertEquals(0, allocator.getTopicUsedSize("test1"));
+        Assert.assertEquals(2000, allocator.getTopicUsedSize("test2"));
+        // the pooled buffers are freed for a new allocation in the budget
+        allocator.release("test2", buffer1);
+        allocator.release("test2", buffer2);
+        Assert.assertEquals(2000, allocator.getPooledSize());
+        Assert.assertNotNull(allocator.allocate("test1", 1500, false));
+        Assert.assertTrue(allocator.getPooledSize() <= 1500);
+        allocator.close();
+        Assert.assertEquals(0, allocator.getPooledSize());
+    }
+}
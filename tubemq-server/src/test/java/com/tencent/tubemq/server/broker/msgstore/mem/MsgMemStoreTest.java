@@ -18,6 +18,7 @@
 package com.tencent.tubemq.server.broker.msgstore.mem;
 
 import java.nio.ByteBuffer;
+import org.junit.Assert;
 import org.junit.Test;
 
 /***
@@ -49,4 +50,49 @@ public class MsgMemStoreTest {
         // get messages
         GetCacheMsgResult getCacheMsgResult = msgMemStore.getMessages(0, 2, 1024, 1000, 0, false, false, null);
     }
+
+    @Test
+    public void allocBuffersOnDemand() {
+        MemCacheAllocator allocator = new MemCacheAllocator(64 * 1024 * 1024, 64 * 1024 * 1024);
+        MsgMemStore msgMemStore = new MsgMemStore(1024 * 1024, 1000, null, allocator, "test");
+        MsgMemStatisInfo msgMemStatisInfo = new MsgMemStatisInfo();
+        Assert.assertEquals(0, msgMemStore.getAllocatedSize());
+        ByteBuffer bf = ByteBuffer.allocate(1024);
+        bf.put("abc".getBytes());
+        Assert.assertTrue(msgMemStore.appendMsg(msgMemStatisInfo, 0, 0, System.currentTimeMillis(), 3, bf));
+        final long allocSize = MsgMemStore.getAllocSize(1024 * 1024, 1000);
+        Assert.assertEquals(allocSize, msgMemStore.getAllocatedSize());
+        Assert.assertEquals(allocSize, allocator.getTopicUsedSize("test"));
+        // the buffers of a cache holding messages are kept
+        Assert.assertFalse(msgMemStore.releaseBuffers());
+        msgMemStore.resetStartPos(0L, 0L);
+        Assert.assertTrue(msgMemStore.releaseBuffers());
+        Assert.assertEquals(0, msgMemStore.getAllocatedSize());
+        Assert.assertEquals(0, allocator.getUsedSize());
+        Assert.assertEquals(allocSize, allocator.getPooledSize());
+        // allocated again from the pool when written
+        Assert.assertTrue(msgMemStore.appendMsg(msgMemStatisInfo, 0, 0, System.currentTimeMillis(), 3, bf));
+        Assert.assertEquals(0, allocator.getPooledSize());
+        msgMemStore.close();
+        Assert.assertEquals(0, allocator.getUsedSize());
+    }
+
+    @Test
+    public void isFull() {
+        int maxCacheSize = 1024;
+        int maxMsgCount = 2;
+        MsgMemStore msgMemStore = new MsgMemStore(maxCacheSize, maxMsgCount, null);
+        MsgMemStatisInfo msgMemStatisInfo = new MsgMemStatisInfo();
+        Assert.assertFalse(msgMemStore.isFull(1000));
+        Assert.assertTrue(msgMemStore.isFull(1025));
+        ByteBuffer bf = ByteBuffer.allocate(512);
+        msgMemStore.appendMsg(msgMemStatisInfo, 0, 0, System.currentTimeMillis(), 512, bf);
+        // data size full
+        Assert.assertTrue(msgMemStore.isFull(1000));
+        Assert.assertFalse(msgMemStore.isFull(500));
+        bf = ByteBuffer.allocate(64);
+        msgMemStore.appendMsg(msgMemStatisInfo, 0, 0, System.currentTimeMillis(), 64, bf);
+        // message count full
+        Assert.assertTrue(msgMemStore.isFull(64));
+    }
 }
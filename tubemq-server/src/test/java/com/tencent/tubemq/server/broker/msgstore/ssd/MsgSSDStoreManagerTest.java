@@ -0,0 +1,219 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.ssd;
+
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.BrokerServiceServer;
+import com.tencent.tubemq.server.broker.TubeBroker;
+import com.tencent.tubemq.server.broker.metadata.MetadataManage;
+import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
+import com.tencent.tubemq.server.broker.msgstore.MessageStoreManager;
+import com.tencent.tubemq.server.broker.nodeinfo.ConsumerNodeInfo;
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/***
+ * MsgSSDStoreManager test
+ */
+public class MsgSSDStoreManagerTest {
+
+    private File baseDir;
+    private BrokerConfig tubeConfig;
+    private MessageStoreManager msgStoreMgr;
+    private ConsumerNodeInfo consumerNodeInfo;
+    private MsgSSDStoreManager ssdStoreManager;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = new File("target/ssd-test");
+        FileUtils.deleteQuietly(baseDir);
+        tubeConfig = Mockito.mock(BrokerConfig.class);
+        Mockito.when(tubeConfig.getPrimaryPath())
+                .thenReturn(new File(baseDir, "data").getAbsolutePath());
+        Mockito.when(tubeConfig.getSecondDataPath())
+                .thenReturn(new File(baseDir, "ssd").getAbsolutePath());
+        Mockito.when(tubeConfig.getSsdTransferQueueSize()).thenReturn(10);
+        Mockito.when(tubeConfig.getSsdTransferThreadCnt()).thenReturn(1);
+        Mockito.when(tubeConfig.getSsdTransferMaxPerDisk()).thenReturn(1);
+        Mockito.when(tubeConfig.getMaxSSDTotalFileCnt()).thenReturn(100);
+        Mockito.when(tubeConfig.getMaxSSDTotalFileSizes()).thenReturn(Long.MAX_VALUE);
+        MetadataManage metadataManage = Mockito.mock(MetadataManage.class);
+        Mockito.when(metadataManage.getTopicMetadata("test"))
+                .thenReturn(Mockito.mock(TopicMetadata.class));
+        consumerNodeInfo = Mockito.mock(ConsumerNodeInfo.class);
+        BrokerServiceServer brokerServiceServer = Mockito.mock(BrokerServiceServer.class);
+        Mockito.when(brokerServiceServer.getConsumerNodeInfo(Mockito.anyString()))
+                .thenReturn(consumerNodeInfo);
+        TubeBroker tubeBroker = Mockito.mock(TubeBroker.class);
+        Mockito.when(tubeBroker.getBrokerServiceServer()).thenReturn(brokerServiceServer);
+        msgStoreMgr = Mockito.mock(MessageStoreManager.class);
+        Mockito.when(msgStoreMgr.getMetadataManage()).thenReturn(metadataManage);
+        Mockito.when(msgStoreMgr.getTubeBroker()).thenReturn(tubeBroker);
+    }
+
+    @After
+    public void tearDown() {
+        if (ssdStoreManager != null) {
+            ssdStoreManager.close();
+        }
+        FileUtils.deleteQuietly(baseDir);
+    }
+
+    @Test
+    public void copySegmentToSsd() throws Exception {
+        File srcFile = createSourceFile("test-0", 0L, 256 * 1024);
+        Mockito.when(msgStoreMgr.getSourceSegment("test", 0, 0L, 15))
+                .thenReturn(new SSDSegFound(true, 0, srcFile, 0L, srcFile.length()));
+        ssdStoreManager = new MsgSSDStoreManager(msgStoreMgr, tubeConfig);
+        Assert.assertTrue(ssdStoreManager.requestSsdTransfer("group-test-0", "test-0", 0L, 1, 100L));
+        ssdStoreManager.loadSSDStores();
+        Mockito.verify(consumerNodeInfo, Mockito.timeout(10000))
+                .setSSDTransferFinished(true, 0L, srcFile.length());
+        // the copied file has the same content as the source
+        File ssdFile = new File(baseDir, "ssd/test-0/"
+                + DataStoreUtils.nameFromOffset(0L, DataStoreUtils.DATA_FILE_SUFFIX));
+        Assert.assertTrue(FileUtils.contentEquals(srcFile, ssdFile));
+        Assert.assertTrue(ssdStoreManager.getSsdTransferStatisInfo().contains("\"copySuccCnt\":1,"));
+    }
+
+    @Test
+    public void copyFailureRemovesTarget() throws Exception {
+        // the source is shorter than the requested range, the copy can not be verified
+        File srcFile = createSourceFile("test-0", 0L, 64 * 1024);
+        Mockito.when(msgStoreMgr.getSourceSegment("test", 0, 0L, 15))
+                .thenReturn(new SSDSegFound(true, 0, srcFile, 0L, srcFile.length() + 100));
+        ssdStoreManager = new MsgSSDStoreManager(msgStoreMgr, tubeConfig);
+        ssdStoreManager.requestSsdTransfer("group-test-0", "test-0", 0L, 1, 100L);
+        ssdStoreManager.loadSSDStores();
+        Mockito.verify(consumerNodeInfo, Mockito.timeout(10000))
+                .setSSDTransferFinished(false, 0L, srcFile.length() + 100);
+        File ssdFile = new File(baseDir, "ssd/test-0/"
+                + DataStoreUtils.nameFromOffset(0L, DataStoreUtils.DATA_FILE_SUFFIX));
+        Assert.assertFalse(ssdFile.exists());
+        Assert.assertTrue(ssdStoreManager.getSsdTransferStatisInfo().contains("\"copyFailCnt\":1,"));
+    }
+
+    @Test
+    public void requestsServedByDataLag() throws Exception {
+        final List<Integer> servedStoreIds = new ArrayList<Integer>();
+        Mockito.when(msgStoreMgr.getSourceSegment(Mockito.eq("test"), Mockito.anyInt(),
+                Mockito.anyLong(), Mockito.anyInt())).thenAnswer(new Answer<SSDSegFound>() {
+                    @Override
+                    public SSDSegFound answer(InvocationOnMock invocation) throws Throwable {
+                        synchronized (servedStoreIds) {
+                            servedStoreIds.add((Integer) invocation.getArguments()[1]);
+                        }
+                        return new SSDSegFound(false, 0, null);
+                    }
+                });
+        ssdStoreManager = new MsgSSDStoreManager(msgStoreMgr, tubeConfig);
+        ssdStoreManager.requestSsdTransfer("group-test-1", "test-1", 0L, 1, 10L);
+        ssdStoreManager.requestSsdTransfer("group-test-2", "test-2", 0L, 1, 300L);
+        ssdStoreManager.requestSsdTransfer("group-test-3", "test-3", 0L, 1, 20L);
+        ssdStoreManager.loadSSDStores();
+        Mockito.verify(msgStoreMgr, Mockito.timeout(10000).times(3))
+                .getSourceSegment(Mockito.eq("test"), Mockito.anyInt(),
+                        Mockito.anyLong(), Mockito.anyInt());
+        // the partition which falls behind most is served first
+        synchronized (servedStoreIds) {
+            Assert.assertEquals(Arrays.asList(2, 3, 1), servedStoreIds);
+        }
+    }
+
+    @Test
+    public void duplicateRequestsMerged() throws Exception {
+        Mockito.when(tubeConfig.getSsdTransferQueueSize()).thenReturn(2);
+        ssdStoreManager = new MsgSSDStoreManager(msgStoreMgr, tubeConfig);
+        Assert.assertTrue(ssdStoreManager.requestSsdTransfer("group-test-0", "test-0", 0L, 1, 10L));
+        // a partition keeps one request in the queue
+        Assert.assertTrue(ssdStoreManager.requestSsdTransfer("group-test-0", "test-0", 0L, 1, 20L));
+        Assert.assertTrue(ssdStoreManager.requestSsdTransfer("group-test-1", "test-1", 0L, 1, 10L));
+        // the queue is full
+        Assert.assertFalse(ssdStoreManager.requestSsdTransfer("group-test-2", "test-2", 0L, 1, 10L));
+        String statisInfo = ssdStoreManager.getSsdTransferStatisInfo();
+        Assert.assertTrue(statisInfo.contains("\"queueDepth\":2,"));
+        Assert.assertTrue(statisInfo.contains("\"requestCnt\":4,"));
+        Assert.assertTrue(statisInfo.contains("\"mergedCnt\":1,"));
+        Assert.assertTrue(statisInfo.contains("\"droppedCnt\":1,"));
+        // a dropped partition can request again once the queue has room
+        Assert.assertTrue(ssdStoreManager.requestSsdTransfer("group-test-0", "test-0", 0L, 1, 10L));
+    }
+
+    @Test
+    public void transfersBoundedPerDisk() throws Exception {
+        final int fileSize = 64 * 1024;
+        final int fileCnt = 4;
+        Mockito.when(tubeConfig.getSsdTransferThreadCnt()).thenReturn(fileCnt);
+        Mockito.when(tubeConfig.getSsdTransferMaxPerDisk()).thenReturn(2);
+        // slow down the copies so that the waiting transfers can be observed
+        Mockito.when(tubeConfig.getSsdTransferBytesPerSec()).thenReturn(4L * fileSize);
+        for (int i = 0; i < fileCnt; i++) {
+            File srcFile = createSourceFile("test-" + i, 0L, fileSize);
+            Mockito.when(msgStoreMgr.getSourceSegment("test", i, 0L, 15))
+                    .thenReturn(new SSDSegFound(true, 0, srcFile, 0L, fileSize));
+        }
+        ssdStoreManager = new MsgSSDStoreManager(msgStoreMgr, tubeConfig);
+        for (int i = 0; i < fileCnt; i++) {
+            ssdStoreManager.requestSsdTransfer("group-test-" + i, "test-" + i, 0L, 1, 10L);
+        }
+        ssdStoreManager.loadSSDStores();
+        Pattern runningPattern = Pattern.compile("\"runningTransfers\":(\\d+),");
+        int maxRunning = 0;
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            String statisInfo = ssdStoreManager.getSsdTransferStatisInfo();
+            Matcher matcher = runningPattern.matcher(statisInfo);
+            Assert.assertTrue(matcher.find());
+            maxRunning = Math.max(maxRunning, Integer.parseInt(matcher.group(1)));
+            if (statisInfo.contains("\"copySuccCnt\":" + fileCnt + ",")) {
+                break;
+            }
+            Thread.sleep(5);
+        }
+        // all the source files are on the same disk
+        Assert.assertEquals(2, maxRunning);
+        Mockito.verify(consumerNodeInfo, Mockito.times(fileCnt))
+                .setSSDTransferFinished(true, 0L, fileSize);
+    }
+
+    private File createSourceFile(final String storeKey, final long start,
+                                  final int size) throws Exception {
+        File storeDir = new File(baseDir, "data/" + storeKey);
+        storeDir.mkdirs();
+        byte[] data = new byte[size];
+        new Random(start).nextBytes(data);
+        File file = new File(storeDir,
+                DataStoreUtils.nameFromOffset(start, DataStoreUtils.DATA_FILE_SUFFIX));
+        FileUtils.writeByteArrayToFile(file, data);
+        return file;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.msgstore.tiered;
+
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.msgstore.disk.FileSegment;
+import com.tencent.tubemq.server.broker.msgstore.disk.RecordView;
+import com.tencent.tubemq.server.broker.msgstore.disk.Segment;
+import com.tencent.tubemq.server.broker.msgstore.disk.SegmentType;
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/***
+ * TieredStoreManager test
+ */
+public class TieredStoreManagerTest {
+
+    private File baseDir;
+    private BlockingBlobStore blobStore;
+    private TieredStoreManager tieredStoreManager;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = new File("target/tiered-test");
+        FileUtils.deleteQuietly(baseDir);
+        BrokerConfig tubeConfig = Mockito.mock(BrokerConfig.class);
+        Mockito.when(tubeConfig.getPrimaryPath())
+                .thenReturn(new File(baseDir, "data").getAbsolutePath());
+        Mockito.when(tubeConfig.getTieredStorePath())
+                .thenReturn(new File(baseDir, "tiered").getAbsolutePath());
+        Mockito.when(tubeConfig.getTieredCacheMaxBytes()).thenReturn(1L);
+        blobStore = new BlockingBlobStore();
+        tieredStoreManager = new TieredStoreManager(tubeConfig, blobStore);
+    }
+
+    @After
+    public void tearDown() {
+        tieredStoreManager.close();
+        FileUtils.deleteQuietly(baseDir);
+    }
+
+    @Test
+    public void offloadAndFetch() throws Exception {
+        byte[] data = "abcdef".getBytes();
+        TieredSegmentList tieredSegments = uploadFiles(data);
+        Assert.assertEquals(2, tieredSegments.size());
+        Assert.assertEquals(0L, tieredSegments.getMinOffset());
+        Assert.assertEquals(2L * data.length, tieredSegments.getSizeInBytes());
+        // reload the uploaded files from the blob store
+        tieredSegments = tieredStoreManager.loadSegmentList("test-0");
+        Assert.assertEquals(2, tieredSegments.size());
+        Assert.assertTrue(tieredSegments.contains(data.length));
+        // fetch the second file into the cache, then read it again from the cache
+        for (int i = 0; i < 2; i++) {
+            RecordView recordView = tieredStoreManager.getRecordView(
+                    tieredSegments.find(data.length + 2), data.length + 2, 4);
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            recordView.read(buffer);
+            Assert.assertEquals("cdef", new String(buffer.array()));
+            recordView.getSegment().relViewRef();
+        }
+        Assert.assertTrue(tieredStoreManager.getStatisInfo().contains("\"fetchCnt\":1,"));
+        Assert.assertTrue(tieredStoreManager.getStatisInfo().contains("\"cacheHitCnt\":1,"));
+        // delete the uploaded files
+        List<TieredSegmentList.RemoteSegment> removed = tieredSegments.removeAll();
+        tieredStoreManager.deleteSegments(removed);
+        Assert.assertEquals(0, tieredStoreManager.loadSegmentList("test-0").size());
+    }
+
+    @Test
+    public void concurrentMissesFetchOnce() throws Exception {
+        final byte[] data = "abcdef".getBytes();
+        final TieredSegmentList tieredSegments = uploadFiles(data);
+        final int readerCnt = 4;
+        blobStore.fetchLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(readerCnt);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < readerCnt; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        RecordView recordView = tieredStoreManager.getRecordView(
+                                tieredSegments.find(data.length + 2), data.length + 2, 4);
+                        ByteBuffer buffer = ByteBuffer.allocate(4);
+                        recordView.read(buffer);
+                        recordView.getSegment().relViewRef();
+                        return new String(buffer.array());
+                    }
+                }));
+            }
+            // the readers wait for the one fetch in flight
+            Thread.sleep(200);
+            Assert.assertEquals(1, blobStore.getCnt.get());
+            blobStore.fetchLatch.countDown();
+            for (Future<String> future : futures) {
+                Assert.assertEquals("cdef", future.get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, blobStore.getCnt.get());
+            Assert.assertTrue(tieredStoreManager.getStatisInfo().contains("\"fetchCnt\":1,"));
+            // a failed fetch is reported to the waiting readers and fetched again later
+            blobStore.fetchLatch = null;
+            blobStore.failCnt.set(1);
+            futures.clear();
+            for (int i = 0; i < readerCnt; i++) {
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        RecordView recordView = tieredStoreManager.getRecordView(
+                                tieredSegments.find(0), 0, 4);
+                        ByteBuffer buffer = ByteBuffer.allocate(4);
+                        recordView.read(buffer);
+                        recordView.getSegment().relViewRef();
+                        return new String(buffer.array());
+                    }
+                }));
+            }
+            int failedCnt = 0;
+            for (Future<String> future : futures) {
+                try {
+                    Assert.assertEquals("abcd", future.get(10, TimeUnit.SECONDS));
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IOException);
+                    failedCnt++;
+                }
+            }
+            Assert.assertTrue(failedCnt >= 1);
+            RecordView recordView = tieredStoreManager.getRecordView(tieredSegments.find(0), 0, 4);
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            recordView.read(buffer);
+            recordView.getSegment().relViewRef();
+            Assert.assertEquals("abcd", new String(buffer.array()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /***
+     * Upload two data files of the data to the blob store.
+     */
+    private TieredSegmentList uploadFiles(final byte[] data) throws Exception {
+        File storeDir = new File(baseDir, "data/test-0");
+        storeDir.mkdirs();
+        TieredSegmentList tieredSegments = tieredStoreManager.loadSegmentList("test-0");
+        Assert.assertEquals(0, tieredSegments.size());
+        for (long start = 0L; start <= data.length; start += data.length) {
+            File file = new File(storeDir,
+                    DataStoreUtils.nameFromOffset(start, DataStoreUtils.DATA_FILE_SUFFIX));
+            Segment segment = new FileSegment(start, file, SegmentType.DATA);
+            segment.append(ByteBuffer.wrap(data));
+            segment.flush(true);
+            segment.setMutable(false);
+            tieredStoreManager.upload(tieredSegments, segment);
+            segment.close();
+        }
+        return tieredSegments;
+    }
+
+    /***
+     * Local blob store counting the fetches, a fetch waits for the latch if set.
+     */
+    private static class BlockingBlobStore extends LocalFileBlobStore {
+        private final AtomicInteger getCnt = new AtomicInteger(0);
+        private final AtomicInteger failCnt = new AtomicInteger(0);
+        private volatile CountDownLatch fetchLatch;
+
+        @Override
+        public void get(final String key, final File dstFile) throws IOException {
+            getCnt.incrementAndGet();
+            if (failCnt.getAndDecrement() > 0) {
+                throw new IOException("test fetch failure");
+            }
+            if (fetchLatch != null) {
+                try {
+                    fetchLatch.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            super.get(key, dstFile);
+        }
+    }
+}
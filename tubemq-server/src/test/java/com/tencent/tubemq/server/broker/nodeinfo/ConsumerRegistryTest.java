@@ -0,0 +1,147 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.nodeinfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/***
+ * ConsumerRegistry test.
+ */
+public class ConsumerRegistryTest {
+
+    @Test
+    public void registerAndUnregister() {
+        ConsumerRegistry registry = new ConsumerRegistry(10000, null);
+        ConsumerRegistry.Registration registration =
+                registry.register("group", "topic", 1, "consumer1", newNodeInfo("consumer1", "group:topic:1"));
+        Assert.assertSame(registration, registry.getRegistration("group", "topic", 1));
+        Assert.assertSame(registration, registry.getRegistration("group:topic:1"));
+        Assert.assertNull(registry.getRegistration("group", "topic", 2));
+        Assert.assertNull(registry.getRegistration("group", "topic2", 1));
+        Assert.assertEquals("consumer1",
+                registry.getConsumerNodeInfo("group:topic:1").getConsumerId());
+        Assert.assertEquals(1, registry.getConsumerNodeInfoMap().size());
+        // replace the registration
+        ConsumerRegistry.Registration registration2 =
+                registry.register("group", "topic", 1, "consumer2", newNodeInfo("consumer2", "group:topic:1"));
+        Assert.assertTrue(registration.isRemoved());
+        Assert.assertFalse(registry.heartbeat(registration));
+        Assert.assertFalse(registry.unregister(registration));
+        Assert.assertSame(registration2, registry.getRegistration("group", "topic", 1));
+        Assert.assertEquals(1, registry.getRegistrationCnt());
+        // remove the registration
+        Assert.assertTrue(registry.unregister(registration2));
+        Assert.assertNull(registry.getRegistration("group", "topic", 1));
+        Assert.assertEquals(0, registry.getRegistrationCnt());
+    }
+
+    @Test
+    public void manyRegistrations() {
+        ConsumerRegistry registry = new ConsumerRegistry(10000, null);
+        List<ConsumerRegistry.Registration> registrations = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            String topic = "topic" + (i % 10);
+            registrations.add(registry.register("group", topic, i, "consumer",
+                    newNodeInfo("consumer", "group:" + topic + ":" + i)));
+        }
+        Assert.assertEquals(10000, registry.getRegistrationCnt());
+        for (int i = 0; i < 10000; i += 2) {
+            Assert.assertTrue(registry.unregister(registrations.get(i)));
+        }
+        for (int i = 0; i < 10000; i++) {
+            ConsumerRegistry.Registration registration =
+                    registry.getRegistration("group", "topic" + (i % 10), i);
+            if (i % 2 == 0) {
+                Assert.assertNull(registration);
+            } else {
+                Assert.assertSame(registrations.get(i), registration);
+            }
+        }
+        Assert.assertEquals(5000, registry.getConsumerNodeInfoMap().size());
+    }
+
+    @Test
+    public void releaseGroupTopicIds() {
+        ConsumerRegistry registry = new ConsumerRegistry(10000, null);
+        ConsumerRegistry.Registration registration1 =
+                registry.register("group", "topic", 1, "consumer1", newNodeInfo("consumer1", "group:topic:1"));
+        ConsumerRegistry.Registration registration2 =
+                registry.register("group", "topic", 2, "consumer1", newNodeInfo("consumer1", "group:topic:2"));
+        ConsumerRegistry.Registration registration3 =
+                registry.register("group", "topic2", 1, "consumer1", newNodeInfo("consumer1", "group:topic2:1"));
+        Assert.assertEquals(2, registry.getGroupTopicCnt());
+        // a replaced registration does not hold the id
+        ConsumerRegistry.Registration registration4 =
+                registry.register("group", "topic", 1, "consumer2", newNodeInfo("consumer2", "group:topic:1"));
+        Assert.assertFalse(registry.unregister(registration1));
+        Assert.assertTrue(registry.unregister(registration2));
+        Assert.assertEquals(2, registry.getGroupTopicCnt());
+        Assert.assertTrue(registry.unregister(registration4));
+        Assert.assertEquals(1, registry.getGroupTopicCnt());
+        Assert.assertNull(registry.getRegistration("group", "topic", 1));
+        Assert.assertTrue(registry.unregister(registration3));
+        Assert.assertEquals(0, registry.getGroupTopicCnt());
+        // the pair is interned again by a new registration
+        ConsumerRegistry.Registration registration5 =
+                registry.register("group", "topic", 1, "consumer3", newNodeInfo("consumer3", "group:topic:1"));
+        Assert.assertSame(registration5, registry.getRegistration("group:topic:1"));
+        Assert.assertEquals(1, registry.getGroupTopicCnt());
+    }
+
+    @Test
+    public void expire() throws Exception {
+        final List<ConsumerRegistry.Registration> expired = new ArrayList<>();
+        final ConsumerRegistry registry = new ConsumerRegistry(300,
+                new ConsumerRegistry.ExpireListener() {
+                    @Override
+                    public void onExpired(ConsumerRegistry.Registration registration) {
+                        expired.add(registration);
+                    }
+                }, 4, 10, 64);
+        final ConsumerRegistry.Registration registration1 =
+                registry.register("group", "topic", 1, "consumer1", newNodeInfo("consumer1", "group:topic:1"));
+        final ConsumerRegistry.Registration registration2 =
+                registry.register("group", "topic", 2, "consumer2", newNodeInfo("consumer2", "group:topic:2"));
+        final long startTime = System.currentTimeMillis();
+        registry.expire(startTime + 100);
+        Assert.assertTrue(expired.isEmpty());
+        // heartbeat extends the deadline of registration1
+        Thread.sleep(200);
+        Assert.assertTrue(registry.heartbeat(registration1));
+        registry.expire(startTime + 350);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(registration2, expired.get(0));
+        // the listener did not remove it, so it is notified again
+        expired.clear();
+        registry.expire(startTime + 400);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(registration2, expired.get(0));
+        Assert.assertTrue(registry.unregister(registration2));
+        expired.clear();
+        registry.expire(registration1.getDeadline() + 20);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(registration1, expired.get(0));
+    }
+
+    private ConsumerNodeInfo newNodeInfo(String consumerId, String partStr) {
+        return new ConsumerNodeInfo(null, consumerId, null, null, 0, partStr);
+    }
+}
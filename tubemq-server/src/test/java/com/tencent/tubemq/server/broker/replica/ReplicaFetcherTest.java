@@ -0,0 +1,242 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.broker.replica;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.tencent.tubemq.corebase.TErrCodeConstants;
+import com.tencent.tubemq.corebase.TokenConstants;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.ReplicaFetchRequestB2B;
+import com.tencent.tubemq.corebase.protobuf.generated.ClientBroker.ReplicaFetchResponseB2B;
+import com.tencent.tubemq.corerpc.service.BrokerReplicaService;
+import com.tencent.tubemq.server.broker.BrokerConfig;
+import com.tencent.tubemq.server.broker.BrokerServiceServer;
+import com.tencent.tubemq.server.broker.TubeBroker;
+import com.tencent.tubemq.server.broker.metadata.BrokerDefMetadata;
+import com.tencent.tubemq.server.broker.metadata.MetadataManage;
+import com.tencent.tubemq.server.broker.metadata.TopicMetadata;
+import com.tencent.tubemq.server.broker.msgstore.MemFlushExecutor;
+import com.tencent.tubemq.server.broker.msgstore.MessageStore;
+import com.tencent.tubemq.server.broker.msgstore.MessageStoreManager;
+import com.tencent.tubemq.server.broker.msgstore.disk.GetMessageResult;
+import com.tencent.tubemq.server.broker.msgstore.mem.MemCacheAllocator;
+import com.tencent.tubemq.server.broker.nodeinfo.ConsumerNodeInfo;
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.util.Collections;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/***
+ * ReplicaFetcher test, the leader and the follower stores are in one JVM and the fetch
+ * goes through the encoded protobuf messages.
+ */
+public class ReplicaFetcherTest {
+    private static final String TOPIC_CONF = "test:1: : : : : : : : : :1:1:1";
+    private File storeDir;
+    private BrokerConfig leaderConfig;
+    private BrokerConfig followerConfig;
+    private MessageStoreManager storeManager;
+    private ReplicaFetcher replicaFetcher;
+    private MessageStore leaderStore;
+    private MessageStore followerStore;
+
+    @Before
+    public void setup() throws Throwable {
+        storeDir = new File("target/replica-fetcher-test");
+        FileUtils.deleteQuietly(storeDir);
+        leaderConfig = mockBrokerConfig(new File(storeDir, "leader"));
+        followerConfig = mockBrokerConfig(new File(storeDir, "follower"));
+        when(followerConfig.getBrokerId()).thenReturn(7);
+        when(followerConfig.getHostName()).thenReturn("127.0.0.1");
+        MemFlushExecutor memFlushExecutor = mock(MemFlushExecutor.class);
+        when(memFlushExecutor.execute(anyString(), any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[1]).run();
+                return true;
+            }
+        });
+        storeManager = mock(MessageStoreManager.class);
+        when(storeManager.getMemFlushExecutor()).thenReturn(memFlushExecutor);
+        when(storeManager.getMemCacheAllocator())
+                .thenReturn(new MemCacheAllocator(1024 * 1024 * 1024L, 64 * 1024 * 1024L));
+        when(storeManager.getMaxMsgTransferSize()).thenReturn(1024 * 1024);
+        replicaFetcher = new ReplicaFetcher(followerConfig,
+                mock(MetadataManage.class), storeManager, null);
+        leaderStore = new MessageStore(storeManager, new TopicMetadata(new BrokerDefMetadata(),
+                TOPIC_CONF.replace(":", TokenConstants.ATTR_SEP)), 0, leaderConfig, 1024 * 1024);
+        followerStore = new MessageStore(storeManager, new TopicMetadata(new BrokerDefMetadata(),
+                TOPIC_CONF.replace(":", TokenConstants.ATTR_SEP)), 0, followerConfig, 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        replicaFetcher.close();
+        leaderStore.close();
+        followerStore.close();
+        FileUtils.deleteQuietly(storeDir);
+    }
+
+    @Test
+    public void fetchStore() throws Throwable {
+        final StringBuilder sBuilder = new StringBuilder(512);
+        appendAndFlush(leaderStore, 0, 1000);
+        Assert.assertEquals(1000, replicaFetcher.fetchStore(followerStore,
+                new LocalReplicaService(newLeaderService()), sBuilder));
+        Assert.assertEquals(leaderStore.getIndexMaxOffset(), followerStore.getIndexMaxOffset());
+        Assert.assertEquals(leaderStore.getDataMaxOffset(), followerStore.getDataMaxOffset());
+        // caught up
+        Assert.assertEquals(0, replicaFetcher.fetchStore(followerStore,
+                new LocalReplicaService(newLeaderService()), sBuilder));
+        // the replicated messages are read from the follower
+        GetMessageResult result = followerStore.getMessages(300,
+                500L * DataStoreUtils.STORE_INDEX_HEAD_LEN, 0,
+                mock(ConsumerNodeInfo.class), "test", 1024 * 1024);
+        Assert.assertTrue(result.isSuccess);
+        Assert.assertEquals(500, result.getTransferedMessageList().get(0).getMessageId());
+        // the later messages follow
+        appendAndFlush(leaderStore, 1000, 10);
+        Assert.assertEquals(10, replicaFetcher.fetchStore(followerStore,
+                new LocalReplicaService(newLeaderService()), sBuilder));
+        result = followerStore.getMessages(300,
+                1005L * DataStoreUtils.STORE_INDEX_HEAD_LEN, 0,
+                mock(ConsumerNodeInfo.class), "test", 1024 * 1024);
+        Assert.assertTrue(result.isSuccess);
+        Assert.assertEquals(1005, result.getTransferedMessageList().get(0).getMessageId());
+    }
+
+    @Test
+    public void fetchStoreAfterLeaderExpired() throws Throwable {
+        final StringBuilder sBuilder = new StringBuilder(512);
+        // several segments, the older ones are expired before the follower starts
+        for (int i = 0; i < 6; i++) {
+            appendAndFlush(leaderStore, i * 500, 500);
+        }
+        Assert.assertTrue(leaderStore.runClearupPolicy(null, System.currentTimeMillis() + 60000L) > 0);
+        appendAndFlush(leaderStore, 3000, 100);
+        final long leaderIndexMin = leaderStore.getIndexMinOffset();
+        Assert.assertTrue(leaderIndexMin > 0);
+        // the empty follower restarts at the oldest records of the leader
+        Assert.assertEquals(100, replicaFetcher.fetchStore(followerStore,
+                new LocalReplicaService(newLeaderService()), sBuilder));
+        Assert.assertEquals(leaderIndexMin, followerStore.getIndexMinOffset());
+        Assert.assertEquals(leaderStore.getIndexMaxOffset(), followerStore.getIndexMaxOffset());
+        Assert.assertEquals(leaderStore.getDataMaxOffset(), followerStore.getDataMaxOffset());
+        GetMessageResult result = followerStore.getMessages(300, leaderIndexMin, 0,
+                mock(ConsumerNodeInfo.class), "test", 1024 * 1024);
+        Assert.assertTrue(result.isSuccess);
+        Assert.assertEquals(leaderIndexMin / DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                result.getTransferedMessageList().get(0).getMessageId());
+    }
+
+    @Test
+    public void rejectNotFollower() throws Throwable {
+        BrokerReplicaService leaderService = newLeaderService();
+        appendAndFlush(leaderStore, 0, 10);
+        ReplicaFetchResponseB2B response =
+                leaderService.fetchReplicaB2B(buildRequest(7), "127.0.0.1", false);
+        Assert.assertTrue(response.getSuccess());
+        Assert.assertEquals(10 * DataStoreUtils.STORE_INDEX_HEAD_LEN, response.getIndexData().size());
+        // a broker not configured as follower
+        response = leaderService.fetchReplicaB2B(buildRequest(8), "127.0.0.1", false);
+        Assert.assertFalse(response.getSuccess());
+        Assert.assertEquals(TErrCodeConstants.FORBIDDEN, response.getErrCode());
+        Assert.assertEquals(0, response.getIndexData().size());
+        Assert.assertEquals(0, response.getMsgData().size());
+        // the follower's id from another host
+        response = leaderService.fetchReplicaB2B(buildRequest(7), "10.0.0.1", false);
+        Assert.assertEquals(TErrCodeConstants.FORBIDDEN, response.getErrCode());
+    }
+
+    /***
+     * Leader broker service of the leader store, broker 7 on 127.0.0.1 is the only follower.
+     */
+    private BrokerServiceServer newLeaderService() {
+        MetadataManage metadataManage = mock(MetadataManage.class);
+        when(metadataManage.getTopicMetadata("test")).thenReturn(new TopicMetadata(new BrokerDefMetadata(),
+                (TOPIC_CONF + ": : :7#127.0.0.1").replace(":", TokenConstants.ATTR_SEP)));
+        when(storeManager.getMessageStoresByTopic("test"))
+                .thenReturn(Collections.singletonList(leaderStore));
+        TubeBroker tubeBroker = mock(TubeBroker.class);
+        when(tubeBroker.getMetadataManage()).thenReturn(metadataManage);
+        when(tubeBroker.getStoreManager()).thenReturn(storeManager);
+        return new BrokerServiceServer(tubeBroker, leaderConfig);
+    }
+
+    private ReplicaFetchRequestB2B buildRequest(final int brokerId) {
+        return ReplicaFetchRequestB2B.newBuilder()
+                .setBrokerId(brokerId)
+                .setTopicName("test")
+                .setStoreId(0)
+                .setIndexOffset(0L)
+                .setDataOffset(0L)
+                .setMaxDataSize(64 * 1024)
+                .build();
+    }
+
+    private BrokerConfig mockBrokerConfig(final File primaryDir) {
+        primaryDir.mkdirs();
+        BrokerConfig brokerConfig = mock(BrokerConfig.class);
+        when(brokerConfig.getPrimaryPath()).thenReturn(primaryDir.getPath());
+        when(brokerConfig.getMaxSegmentSize()).thenReturn(64 * 1024);
+        when(brokerConfig.getMaxIndexSegmentSize())
+                .thenReturn(1000 * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        when(brokerConfig.getIndexTransCount()).thenReturn(1000);
+        when(brokerConfig.getReplicaFetchMaxSize()).thenReturn(64 * 1024);
+        return brokerConfig;
+    }
+
+    private void appendAndFlush(final MessageStore msgStore,
+                                final int startId, final int msgCnt) throws Throwable {
+        final byte[] data = new byte[100];
+        for (int i = startId; i < startId + msgCnt; i++) {
+            Assert.assertTrue(msgStore.appendMsg(i, data.length, 0, data, 0, 0, 0, 0));
+        }
+        Thread.sleep(5);
+        msgStore.flushMemCacheData();
+    }
+
+    /***
+     * Leader broker service called through the encoded protobuf messages.
+     */
+    private static class LocalReplicaService implements BrokerReplicaService {
+        private final BrokerReplicaService leaderService;
+
+        LocalReplicaService(final BrokerReplicaService leaderService) {
+            this.leaderService = leaderService;
+        }
+
+        @Override
+        public ReplicaFetchResponseB2B fetchReplicaB2B(ReplicaFetchRequestB2B request,
+                                                       final String rmtAddress,
+                                                       boolean overtls) throws Throwable {
+            final ReplicaFetchResponseB2B response = leaderService.fetchReplicaB2B(
+                    ReplicaFetchRequestB2B.parseFrom(request.toByteArray()), rmtAddress, overtls);
+            return ReplicaFetchResponseB2B.parseFrom(response.toByteArray());
+        }
+    }
+}
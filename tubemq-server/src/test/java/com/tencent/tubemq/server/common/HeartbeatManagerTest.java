@@ -20,6 +20,7 @@ package com.tencent.tubemq.server.common;
 import com.tencent.tubemq.server.common.heartbeat.HeartbeatManager;
 import com.tencent.tubemq.server.common.heartbeat.TimeoutInfo;
 import com.tencent.tubemq.server.common.heartbeat.TimeoutListener;
+import java.util.concurrent.ConcurrentHashMap;
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -85,4 +86,33 @@ public class HeartbeatManagerTest {
         Assert.assertTrue(heartbeatManager.getProducerRegMap().get("node1").getTimeoutTime()
                 > System.currentTimeMillis());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testNodeTimeoutNotify() throws Exception {
+        final ConcurrentHashMap<String, Long> timeoutNodes = new ConcurrentHashMap<String, Long>();
+        HeartbeatManager manager = new HeartbeatManager();
+        manager.regProducerCheckBusiness(300,
+                new TimeoutListener() {
+                    @Override
+                    public void onTimeout(final String nodeId, TimeoutInfo nodeInfo) throws Exception {
+                        timeoutNodes.put(nodeId, System.currentTimeMillis());
+                    }
+                });
+        try {
+            manager.regProducerNode("node1");
+            manager.regProducerNode("node2");
+            final long deadline = manager.getProducerRegMap().get("node2").getTimeoutTime();
+            for (int i = 0; i < 10; i++) {
+                Thread.sleep(100);
+                manager.updProducerNode("node1");
+            }
+            Assert.assertNull(timeoutNodes.get("node1"));
+            Assert.assertNotNull(manager.getProducerRegMap().get("node1"));
+            Assert.assertNotNull(timeoutNodes.get("node2"));
+            Assert.assertTrue(timeoutNodes.get("node2") >= deadline);
+            Assert.assertNull(manager.getProducerRegMap().get("node2"));
+        } finally {
+            manager.stop();
+        }
+    }
+}
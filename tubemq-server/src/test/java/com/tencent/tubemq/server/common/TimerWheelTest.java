@@ -0,0 +1,135 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.common;
+
+import com.tencent.tubemq.server.common.heartbeat.TimerWheel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TimerWheelTest {
+    private static final Logger logger = LoggerFactory.getLogger(TimerWheelTest.class);
+
+    @Test
+    public void testExpire() {
+        final long tickMs = 10;
+        final long startTime = 1000000L;
+        // small wheels so that the deadlines spread over all the levels
+        TimerWheel<Node> timerWheel = new TimerWheel<Node>(tickMs, 8, 3, startTime);
+        Random random = new Random(17);
+        List<Node> nodes = new ArrayList<Node>();
+        for (int i = 0; i < 5000; i++) {
+            Node node = new Node();
+            timerWheel.schedule(node, startTime + 1 + random.nextInt(20000));
+            nodes.add(node);
+        }
+        for (int i = 0; i < nodes.size(); i += 3) {
+            nodes.get(i).extendDeadline(nodes.get(i).getDeadline() + random.nextInt(20000));
+        }
+        for (int i = 1; i < nodes.size(); i += 7) {
+            Assert.assertTrue(timerWheel.cancel(nodes.get(i)));
+            nodes.get(i).cancelled = true;
+        }
+        List<Node> expired = new ArrayList<Node>();
+        long currentTime = startTime;
+        while (currentTime < startTime + 50000) {
+            // jump over the whole level 0 wheel from time to time
+            currentTime += (currentTime % 7 == 0) ? tickMs * 20 : tickMs;
+            timerWheel.expire(currentTime, expired);
+            for (Node node : expired) {
+                Assert.assertFalse(node.cancelled);
+                Assert.assertEquals(0, node.expireTime);
+                Assert.assertTrue(node.getDeadline() <= currentTime);
+                node.expireTime = currentTime;
+            }
+            expired.clear();
+        }
+        for (Node node : nodes) {
+            Assert.assertEquals(node.cancelled, node.expireTime == 0);
+        }
+        Assert.assertEquals(0, timerWheel.size());
+    }
+
+    /***
+     * Compare the timing wheel with a full scan of all the nodes once per second, the node
+     * count is set by tubemq.test.heartbeatNodeCnt, such as 100000 or 500000.
+     */
+    @Test
+    public void testExpireBenchmark() {
+        final int nodeCnt = Integer.getInteger("tubemq.test.heartbeatNodeCnt", 100000);
+        final long tickMs = 100;
+        final long timeoutMs = 30000;
+        final long runTimeMs = 120000;
+        final long startTime = System.currentTimeMillis();
+        TimerWheel<Node> timerWheel = new TimerWheel<Node>(tickMs, 512, startTime);
+        Map<String, Node> nodeMap = new ConcurrentHashMap<String, Node>();
+        Node[] nodes = new Node[nodeCnt];
+        for (int i = 0; i < nodeCnt; i++) {
+            nodes[i] = new Node();
+            nodes[i].extendDeadline(startTime + timeoutMs);
+            timerWheel.schedule(nodes[i], startTime + timeoutMs);
+            nodeMap.put("node" + i, nodes[i]);
+        }
+        // every node heartbeats every 10 seconds except 1 of 100 nodes which stop at once
+        long wheelTime = 0L;
+        long scanTime = 0L;
+        int wheelExpiredCnt = 0;
+        int scanExpiredCnt = 0;
+        List<Node> expired = new ArrayList<Node>();
+        for (long time = tickMs; time <= runTimeMs; time += tickMs) {
+            final long currentTime = startTime + time;
+            final int slot = (int) ((time / tickMs) % 100);
+            for (int i = slot; i < nodeCnt; i += 100) {
+                if (i % 100 != 99) {
+                    nodes[i].extendDeadline(currentTime + timeoutMs);
+                }
+            }
+            long beginTime = System.nanoTime();
+            timerWheel.expire(currentTime, expired);
+            wheelTime += System.nanoTime() - beginTime;
+            wheelExpiredCnt += expired.size();
+            expired.clear();
+            if (time % 1000 == 0) {
+                beginTime = System.nanoTime();
+                for (Node node : nodeMap.values()) {
+                    if (node.expireTime == 0 && node.getDeadline() <= currentTime) {
+                        node.expireTime = currentTime;
+                        scanExpiredCnt++;
+                    }
+                }
+                scanTime += System.nanoTime() - beginTime;
+            }
+        }
+        Assert.assertEquals(nodeCnt / 100, wheelExpiredCnt);
+        Assert.assertEquals(nodeCnt / 100, scanExpiredCnt);
+        logger.info("Expire " + nodeCnt + " nodes in " + runTimeMs / 1000
+                + "s, timing wheel wast time " + wheelTime / 1000000
+                + "ms, full scan wast time " + scanTime / 1000000 + "ms");
+    }
+
+    private static class Node extends TimerWheel.Timeout {
+        private boolean cancelled = false;
+        private long expireTime = 0L;
+    }
+}
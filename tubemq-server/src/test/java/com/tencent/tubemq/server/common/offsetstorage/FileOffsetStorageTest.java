@@ -0,0 +1,131 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.common.offsetstorage;
+
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/***
+ * FileOffsetStorage test
+ */
+public class FileOffsetStorageTest {
+    private static final int BROKER_ID = 1;
+    private File storeDir;
+
+    @Before
+    public void setup() {
+        storeDir = new File("target/file-offset-test");
+        FileUtils.deleteQuietly(storeDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(storeDir);
+    }
+
+    @Test
+    public void commitAndReload() throws IOException {
+        FileOffsetStorage offsetStorage =
+                new FileOffsetStorage(storeDir.getPath(), 1024 * 1024, null);
+        Assert.assertNull(offsetStorage.loadOffset("group", "topic", BROKER_ID, 0));
+        List<OffsetStorageInfo> offsetInfos = createOffsets(10);
+        offsetStorage.commitOffset("group", offsetInfos, false);
+        offsetInfos.get(3).getAndSetOffset(100 * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+        offsetStorage.commitOffset("group", offsetInfos, false);
+        offsetStorage.close();
+        // append a broken record, as left by a crash during write
+        RandomAccessFile raf = new RandomAccessFile(new File(storeDir, "offsets.log"), "rw");
+        raf.seek(raf.length());
+        raf.writeInt(40);
+        raf.close();
+        offsetStorage = new FileOffsetStorage(storeDir.getPath(), 1024 * 1024, null);
+        OffsetStorageInfo info = offsetStorage.loadOffset("group", "topic", BROKER_ID, 3);
+        Assert.assertNotNull(info);
+        Assert.assertFalse(info.isFirstCreate());
+        Assert.assertEquals(100 * DataStoreUtils.STORE_INDEX_HEAD_LEN, info.getOffset());
+        info = offsetStorage.loadOffset("group", "topic", BROKER_ID, 9);
+        Assert.assertEquals(9 * DataStoreUtils.STORE_INDEX_HEAD_LEN, info.getOffset());
+        offsetStorage.close();
+    }
+
+    @Test
+    public void compactLog() throws IOException {
+        FileOffsetStorage offsetStorage =
+                new FileOffsetStorage(storeDir.getPath(), 4096, null);
+        List<OffsetStorageInfo> offsetInfos = createOffsets(20);
+        for (int i = 1; i <= 50; i++) {
+            for (OffsetStorageInfo info : offsetInfos) {
+                info.getAndSetOffset((info.getPartitionId() + i) * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+            }
+            offsetStorage.commitOffset("group", offsetInfos, false);
+        }
+        Assert.assertTrue(new File(storeDir, "offsets.snapshot").exists());
+        Assert.assertTrue(new File(storeDir, "offsets.log").length() <= 4096);
+        // the log may still hold records after the last snapshot
+        File tmpDir = new File("target/file-offset-test-copy");
+        FileUtils.deleteQuietly(tmpDir);
+        FileUtils.copyDirectory(storeDir, tmpDir);
+        offsetStorage.close();
+        FileOffsetStorage loadStorage =
+                new FileOffsetStorage(tmpDir.getPath(), 4096, null);
+        for (int j = 0; j < 20; j++) {
+            Assert.assertEquals((j + 50) * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                    loadStorage.loadOffset("group", "topic", BROKER_ID, j).getOffset());
+        }
+        loadStorage.close();
+        FileUtils.deleteQuietly(tmpDir);
+    }
+
+    @Test
+    public void migrateOffset() throws IOException {
+        FileOffsetStorage oldStorage =
+                new FileOffsetStorage(storeDir.getPath() + "/old", 1024 * 1024, null);
+        oldStorage.commitOffset("group", createOffsets(5), false);
+        FileOffsetStorage offsetStorage =
+                new FileOffsetStorage(storeDir.getPath() + "/new", 1024 * 1024, oldStorage);
+        OffsetStorageInfo info = offsetStorage.loadOffset("group", "topic", BROKER_ID, 2);
+        Assert.assertNotNull(info);
+        Assert.assertEquals(2 * DataStoreUtils.STORE_INDEX_HEAD_LEN, info.getOffset());
+        offsetStorage.close();
+        // migrated offsets are kept locally
+        offsetStorage = new FileOffsetStorage(storeDir.getPath() + "/new", 1024 * 1024, null);
+        info = offsetStorage.loadOffset("group", "topic", BROKER_ID, 2);
+        Assert.assertNotNull(info);
+        Assert.assertEquals(2 * DataStoreUtils.STORE_INDEX_HEAD_LEN, info.getOffset());
+        Assert.assertNull(offsetStorage.loadOffset("group", "topic", BROKER_ID, 3));
+        offsetStorage.close();
+    }
+
+    private List<OffsetStorageInfo> createOffsets(int partCnt) {
+        List<OffsetStorageInfo> offsetInfos = new ArrayList<OffsetStorageInfo>();
+        for (int j = 0; j < partCnt; j++) {
+            offsetInfos.add(new OffsetStorageInfo("topic", BROKER_ID, j,
+                    j * DataStoreUtils.STORE_INDEX_HEAD_LEN, 0));
+        }
+        return offsetInfos;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Tencent is pleased to support the open source community by making TubeMQ available.
+ *
+ * Copyright (C) 2012-2019 Tencent. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * https://opensource.org/licenses/Apache-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OF ANY KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.tencent.tubemq.server.common.offsetstorage;
+
+import com.tencent.tubemq.server.broker.utils.DataStoreUtils;
+import com.tencent.tubemq.server.common.fileconfig.ZKConfig;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * ZkOffsetStorage test, runs against an embedded ZooKeeper server and
+ * reports the duration of each commit cycle. The scale can be raised with
+ * -Dtubemq.test.offsetGroupCnt and -Dtubemq.test.offsetPartCnt.
+ */
+public class ZkOffsetStorageTest {
+    private static final Logger logger = LoggerFactory.getLogger(ZkOffsetStorageTest.class);
+    private static final int BROKER_ID = 1;
+    private static File zkDataDir;
+    private static ZooKeeperServer zkServer;
+    private static ServerCnxnFactory cnxnFactory;
+    private static ZKConfig zkConfig;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        zkDataDir = new File("target/zk-offset-test");
+        FileUtils.deleteQuietly(zkDataDir);
+        zkDataDir.mkdirs();
+        int port;
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            port = socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+        zkServer = new ZooKeeperServer(zkDataDir, zkDataDir, 2000);
+        cnxnFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", port), 100);
+        cnxnFactory.startup(zkServer);
+        zkConfig = new ZKConfig();
+        zkConfig.setZkServerAddr("127.0.0.1:" + port);
+        zkConfig.setZkNodeRoot("/tubemq-test");
+        zkConfig.setZkSessionTimeoutMs(30000);
+        zkConfig.setZkSyncTimeMs(100);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (cnxnFactory != null) {
+            cnxnFactory.shutdown();
+        }
+        if (zkServer != null) {
+            zkServer.shutdown();
+        }
+        FileUtils.deleteQuietly(zkDataDir);
+    }
+
+    @Test
+    public void commitOffsetBatch() {
+        final int groupCnt = Integer.getInteger("tubemq.test.offsetGroupCnt", 20);
+        final int partCnt = Integer.getInteger("tubemq.test.offsetPartCnt", 100);
+        Map<String, Collection<OffsetStorageInfo>> groupOffsetMap =
+                new HashMap<String, Collection<OffsetStorageInfo>>();
+        for (int i = 0; i < groupCnt; i++) {
+            List<OffsetStorageInfo> offsetInfos = new ArrayList<OffsetStorageInfo>();
+            for (int j = 0; j < partCnt; j++) {
+                offsetInfos.add(new OffsetStorageInfo("topic" + (j % 10),
+                        BROKER_ID, j, 0, 0));
+            }
+            groupOffsetMap.put("group" + i, offsetInfos);
+        }
+        ZkOffsetStorage offsetStorage = new ZkOffsetStorage(zkConfig);
+        try {
+            // first cycle creates all the offset nodes
+            long startTime = System.currentTimeMillis();
+            offsetStorage.commitOffset(groupOffsetMap, true);
+            logger.info("Create " + groupCnt * partCnt + " offsets, wast time "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+            // second cycle updates all the existing nodes in batches
+            for (Collection<OffsetStorageInfo> offsetInfos : groupOffsetMap.values()) {
+                for (OffsetStorageInfo info : offsetInfos) {
+                    info.getAndSetOffset((info.getPartitionId() + 1)
+                            * DataStoreUtils.STORE_INDEX_HEAD_LEN);
+                }
+            }
+            startTime = System.currentTimeMillis();
+            offsetStorage.commitOffset(groupOffsetMap, true);
+            logger.info("Update " + groupCnt * partCnt + " offsets, wast time "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+            // offsets set since the last commit are written, then no longer modified
+            for (Collection<OffsetStorageInfo> offsetInfos : groupOffsetMap.values()) {
+                for (OffsetStorageInfo info : offsetInfos) {
+                    info.getAndSetOffset(info.getOffset());
+                    Assert.assertTrue(info.isModified());
+                }
+            }
+            offsetStorage.commitOffset(groupOffsetMap, false);
+            for (Collection<OffsetStorageInfo> offsetInfos : groupOffsetMap.values()) {
+                for (OffsetStorageInfo info : offsetInfos) {
+                    Assert.assertFalse(info.isModified());
+                }
+            }
+        } finally {
+            offsetStorage.close();
+        }
+        ZkOffsetStorage loadStorage = new ZkOffsetStorage(zkConfig);
+        try {
+            for (int i = 0; i < groupCnt; i++) {
+                for (int j = 0; j < partCnt; j++) {
+                    OffsetStorageInfo info =
+                            loadStorage.loadOffset("group" + i, "topic" + (j % 10), BROKER_ID, j);
+                    Assert.assertNotNull(info);
+                    Assert.assertEquals((j + 1) * DataStoreUtils.STORE_INDEX_HEAD_LEN,
+                            info.getOffset());
+                }
+            }
+        } finally {
+            loadStorage.close();
+        }
+    }
+
+    @Test
+    public void rewriteExternallyChangedOffset() throws Exception {
+        final long offset = 10 * DataStoreUtils.STORE_INDEX_HEAD_LEN;
+        final String offsetPath = "/tubemq-test/consumers-v3/group-ext/offsets/topic-ext/"
+                + BROKER_ID + "-0";
+        OffsetStorageInfo info = new OffsetStorageInfo("topic-ext", BROKER_ID, 0, 0, 0);
+        info.getAndSetOffset(offset);
+        Map<String, Collection<OffsetStorageInfo>> groupOffsetMap =
+                new HashMap<String, Collection<OffsetStorageInfo>>();
+        groupOffsetMap.put("group-ext", Collections.singletonList(info));
+        ZkOffsetStorage offsetStorage = new ZkOffsetStorage(zkConfig);
+        ZooKeeper zooKeeper = new ZooKeeper(zkConfig.getZkServerAddr(), 30000, new Watcher() {
+            @Override
+            public void process(WatchedEvent event) {
+                //
+            }
+        });
+        try {
+            offsetStorage.commitOffset(groupOffsetMap, true);
+            Assert.assertEquals("0-" + offset,
+                    new String(zooKeeper.getData(offsetPath, false, null)));
+            // the offset node is cleared outside of the broker
+            zooKeeper.setData(offsetPath, "0-0".getBytes(), -1);
+            // the same offset committed again is written back
+            info.getAndSetOffset(offset);
+            offsetStorage.commitOffset(groupOffsetMap, true);
+            Assert.assertEquals("0-" + offset,
+                    new String(zooKeeper.getData(offsetPath, false, null)));
+        } finally {
+            zooKeeper.close();
+            offsetStorage.close();
+        }
+    }
+}
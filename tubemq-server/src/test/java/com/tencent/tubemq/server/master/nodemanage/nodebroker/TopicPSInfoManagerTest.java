@@ -18,9 +18,15 @@
 package com.tencent.tubemq.server.master.nodemanage.nodebroker;
 
 
+import com.tencent.tubemq.corebase.cluster.BrokerInfo;
+import com.tencent.tubemq.corebase.cluster.Partition;
+import com.tencent.tubemq.corebase.cluster.TopicInfo;
 import com.tencent.tubemq.corebase.utils.ConcurrentHashSet;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -75,4 +81,43 @@ public class TopicPSInfoManagerTest {
         Assert.assertEquals(1, ti2.size());
         Assert.assertTrue(ti2.contains("producer_001"));
     }
+
+    @Test
+    public void replicaRead() {
+        BrokerInfo leader = new BrokerInfo(1, "127.0.0.1", 8123);
+        BrokerInfo follower = new BrokerInfo(2, "127.0.0.2", 8123);
+        ConcurrentHashMap<BrokerInfo, TopicInfo> topicInfoMap =
+                new ConcurrentHashMap<BrokerInfo, TopicInfo>();
+        topicInfoMap.put(leader, new TopicInfo(leader, "topic001", 2, 1, true, true));
+        topicInfoMap.put(follower, new TopicInfo(follower, "topic001", 2, 1, false, true));
+        topicPSInfoManager.setBrokerPubInfo("topic001", topicInfoMap);
+        topicPSInfoManager.setTopicReplica("topic001", follower, 1);
+        HashSet<String> topics = new HashSet<String>(Arrays.asList("topic001"));
+
+        // the follower partitions are not balanced as partitions of their own
+        Assert.assertEquals(2, topicPSInfoManager.getPartitionSet("topic001").size());
+        Map<String, Partition> partMap = topicPSInfoManager.getPartitionMap("group_001", topics);
+        Assert.assertEquals(2, partMap.size());
+        Assert.assertEquals(1, partMap.get("1:topic001:0").getBrokerId());
+
+        // a lag reported by the leader moves the group's reads to the follower
+        topicPSInfoManager.setReplicaReadInfo(leader,
+                Collections.singletonList("group_001:topic001:0"));
+        partMap = topicPSInfoManager.getPartitionMap("group_001", topics);
+        Assert.assertEquals(2, partMap.get("1:topic001:0").getBrokerId());
+        Assert.assertEquals(1, partMap.get("1:topic001:1").getBrokerId());
+        Assert.assertEquals(1,
+                topicPSInfoManager.getPartitionMap("group_002", topics).get("1:topic001:0").getBrokerId());
+        Assert.assertEquals("1:topic001:0",
+                topicPSInfoManager.getLogicalPartitionKey(partMap.get("1:topic001:0")));
+
+        // the follower keeps the reads while it reports the lag, then they move back
+        topicPSInfoManager.setReplicaReadInfo(leader, Collections.<String>emptyList());
+        topicPSInfoManager.setReplicaReadInfo(follower,
+                Collections.singletonList("group_001:topic001:0"));
+        Assert.assertTrue(topicPSInfoManager.isReplicaRead("group_001", "1:topic001:0"));
+        topicPSInfoManager.removeReplicaReadInfo(follower);
+        Assert.assertEquals(1,
+                topicPSInfoManager.getPartitionMap("group_001", topics).get("1:topic001:0").getBrokerId());
+    }
 }